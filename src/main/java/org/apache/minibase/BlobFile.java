@@ -0,0 +1,339 @@
+package org.apache.minibase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * An append-only file of the large values separated from the disk files, so that compaction only
+ * rewrites the small {@link BlobRef} pointing to the value rather than the value itself. Each
+ * record is:
+ *
+ * <pre>
+ * keyLen(varint) + key + valueLen(varint) + value + checksum(4B)
+ * </pre>
+ * <p>
+ * The key is kept only to make the blob file self-describing, the readers locate the value by the
+ * offset and length in the {@link BlobRef}. A blob file is never rewritten in place, the live
+ * values are relocated to a new blob file by compaction once enough of it is dead.
+ */
+public class BlobFile implements Closeable {
+
+  public static final String FILE_NAME_PREFIX = "blob.";
+  private static final int CHECKSUM_LEN = 4;
+
+  /**
+   * The value of a key value with op {@link KeyValue.Op#BlobRef}, which points to the value in a
+   * blob file: fileId(varint) + offset(varint) + length(varint).
+   */
+  public static class BlobRef {
+
+    private final long fileId;
+    private final long offset;
+    private final int length;
+
+    public BlobRef(long fileId, long offset, int length) {
+      this.fileId = fileId;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public long getFileId() {
+      return fileId;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public byte[] toBytes() {
+      byte[] buf = new byte[Bytes.vlongSize(fileId) + Bytes.vlongSize(offset)
+          + Bytes.vlongSize(length)];
+      int pos = Bytes.putVLong(buf, 0, fileId);
+      pos = Bytes.putVLong(buf, pos, offset);
+      Bytes.putVLong(buf, pos, length);
+      return buf;
+    }
+
+    public static BlobRef parseFrom(byte[] buf) throws IOException {
+      int pos = 0;
+      long fileId = Bytes.getVLong(buf, pos);
+      pos += Bytes.vlongSize(fileId);
+      long offset = Bytes.getVLong(buf, pos);
+      pos += Bytes.vlongSize(offset);
+      long length = Bytes.getVLong(buf, pos);
+      pos += Bytes.vlongSize(length);
+      if (pos != buf.length || length > Integer.MAX_VALUE) {
+        throw new IOException("Invalid blob ref with " + buf.length + " bytes");
+      }
+      return new BlobRef(fileId, offset, (int) length);
+    }
+  }
+
+  /**
+   * The meta of a blob file recorded in the {@link Manifest}. The garbage bytes are the total
+   * length of the values whose references have been dropped by compaction.
+   */
+  public static class BlobMeta {
+
+    private final String fileName;
+    private final long totalBytes;
+    private final long garbageBytes;
+
+    public BlobMeta(String fileName, long totalBytes, long garbageBytes) {
+      this.fileName = fileName;
+      this.totalBytes = totalBytes;
+      this.garbageBytes = garbageBytes;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    public long getFileId() {
+      return parseFileId(fileName);
+    }
+
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    public long getGarbageBytes() {
+      return garbageBytes;
+    }
+
+    public double getGarbageRatio() {
+      return totalBytes == 0 ? 1.0 : (double) garbageBytes / totalBytes;
+    }
+
+    public BlobMeta withGarbage(long garbageBytes) {
+      return new BlobMeta(fileName, totalBytes, garbageBytes);
+    }
+
+    public int getSerializeSize() throws IOException {
+      return 4 + Bytes.toBytes(fileName).length + 8 + 8;
+    }
+
+    public byte[] toBytes() throws IOException {
+      byte[] name = Bytes.toBytes(fileName);
+      byte[] buf = new byte[getSerializeSize()];
+      int pos = 0;
+      System.arraycopy(Bytes.toBytes(name.length), 0, buf, pos, 4);
+      pos += 4;
+      System.arraycopy(name, 0, buf, pos, name.length);
+      pos += name.length;
+      System.arraycopy(Bytes.toBytes(totalBytes), 0, buf, pos, 8);
+      pos += 8;
+      System.arraycopy(Bytes.toBytes(garbageBytes), 0, buf, pos, 8);
+      return buf;
+    }
+
+    public static BlobMeta parseFrom(byte[] buf, int offset) throws IOException {
+      int pos = offset;
+      int nameLen = Bytes.toInt(Bytes.slice(buf, pos, 4));
+      pos += 4;
+      String fileName = new String(Bytes.slice(buf, pos, nameLen), "UTF-8");
+      pos += nameLen;
+      long totalBytes = Bytes.toLong(Bytes.slice(buf, pos, 8));
+      pos += 8;
+      long garbageBytes = Bytes.toLong(Bytes.slice(buf, pos, 8));
+      return new BlobMeta(fileName, totalBytes, garbageBytes);
+    }
+  }
+
+  public static class BlobWriter implements Closeable {
+
+    private final String fname;
+    private final long fileId;
+    private FileOutputStream out;
+    private long offset = 0;
+    private long totalBytes = 0;
+
+    public BlobWriter(String fname) throws IOException {
+      this.fname = fname;
+      this.fileId = parseFileId(new File(fname).getName());
+      this.out = new FileOutputStream(fname, false);
+    }
+
+    /**
+     * Append the value of the key value.
+     *
+     * @return the reference to the value.
+     */
+    public BlobRef append(byte[] key, byte[] value) throws IOException {
+      byte[] record = new byte[Bytes.vlongSize(key.length) + key.length
+          + Bytes.vlongSize(value.length) + value.length + CHECKSUM_LEN];
+      int pos = Bytes.putVLong(record, 0, key.length);
+      System.arraycopy(key, 0, record, pos, key.length);
+      pos += key.length;
+      pos = Bytes.putVLong(record, pos, value.length);
+      int valueOffset = pos;
+      System.arraycopy(value, 0, record, pos, value.length);
+      pos += value.length;
+      System.arraycopy(Bytes.toBytes(checksum(value, 0, value.length)), 0, record, pos,
+        CHECKSUM_LEN);
+      out.write(record);
+
+      BlobRef ref = new BlobRef(fileId, offset + valueOffset, value.length);
+      offset += record.length;
+      totalBytes += value.length;
+      return ref;
+    }
+
+    public BlobMeta getBlobMeta() {
+      return new BlobMeta(new File(fname).getName(), totalBytes, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (out != null) {
+        try {
+          out.flush();
+          out.getFD().sync();
+        } finally {
+          out.close();
+          out = null;
+        }
+      }
+    }
+  }
+
+  private final String fname;
+  private final long fileId;
+  private volatile BlobMeta blobMeta;
+  private volatile RandomAccessFile in;
+  // The number of versions which contain this blob file.
+  private final AtomicInteger refCount = new AtomicInteger(0);
+  private volatile boolean obsolete = false;
+
+  public BlobFile(String fname, BlobMeta blobMeta) {
+    this.fname = fname;
+    this.fileId = parseFileId(new File(fname).getName());
+    this.blobMeta = blobMeta;
+  }
+
+  /**
+   * @param fileName the blob file name without the directory, such as blob.00000000000000000001.
+   */
+  public static long parseFileId(String fileName) {
+    if (!fileName.startsWith(FILE_NAME_PREFIX)) {
+      throw new IllegalArgumentException("Invalid blob file name: " + fileName);
+    }
+    return Long.parseLong(fileName.substring(FILE_NAME_PREFIX.length()));
+  }
+
+  public static String fileName(long fileId) {
+    return String.format(FILE_NAME_PREFIX + "%020d", fileId);
+  }
+
+  private static int checksum(byte[] buf, int offset, int len) {
+    Checksum crc32 = new CRC32();
+    crc32.update(buf, offset, len);
+    return (int) crc32.getValue();
+  }
+
+  public String getFileName() {
+    return fname;
+  }
+
+  public long getFileId() {
+    return fileId;
+  }
+
+  public BlobMeta getBlobMeta() {
+    return blobMeta;
+  }
+
+  public boolean isOpened() {
+    return in != null;
+  }
+
+  /**
+   * Update the garbage bytes, called by the {@link DiskStore} under its lock.
+   */
+  void setBlobMeta(BlobMeta blobMeta) {
+    this.blobMeta = blobMeta;
+  }
+
+  /**
+   * Read the value which the reference points to, the file is opened on the first read.
+   */
+  public byte[] read(BlobRef ref) throws IOException {
+    if (ref.getFileId() != fileId) {
+      throw new IOException("Blob ref of file " + ref.getFileId() + " is not in " + fname);
+    }
+    RandomAccessFile raf = in;
+    if (raf == null) {
+      synchronized (this) {
+        if (in == null) {
+          in = new RandomAccessFile(fname, "r");
+        }
+        raf = in;
+      }
+    }
+
+    // The positional read allows the concurrent readers to share the file handle.
+    ByteBuffer buffer = ByteBuffer.allocate(ref.getLength() + CHECKSUM_LEN);
+    FileChannel channel = raf.getChannel();
+    long position = ref.getOffset();
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position);
+      if (n < 0) {
+        throw new IOException("Unexpected EOF when reading blob at offset " + ref.getOffset()
+            + " of " + fname);
+      }
+      position += n;
+    }
+    byte[] buf = buffer.array();
+    int checksum = Bytes.toInt(Bytes.slice(buf, ref.getLength(), CHECKSUM_LEN));
+    if (checksum != checksum(buf, 0, ref.getLength())) {
+      throw new IOException("Checksum mismatched for blob at offset " + ref.getOffset() + " of "
+          + fname);
+    }
+    return Bytes.slice(buf, 0, ref.getLength());
+  }
+
+  void retain() {
+    refCount.incrementAndGet();
+  }
+
+  /**
+   * @return true if the last reference is released.
+   */
+  boolean release() {
+    return refCount.decrementAndGet() == 0;
+  }
+
+  /**
+   * Mark the blob file as removed from the store, it will be archived once no version holds it.
+   */
+  void markObsolete() {
+    this.obsolete = true;
+  }
+
+  boolean isObsolete() {
+    return this.obsolete;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (in != null) {
+      try {
+        in.close();
+      } finally {
+        in = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.apache.minibase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache the blocks loaded from the disk files, such as the data blocks, index partitions and bloom
+ * blocks. The blocks are kept in the access order, and the least recently used blocks will be
+ * evicted once the total heap size of the cached blocks exceeds the capacity.
+ */
+public class BlockCache {
+
+  public static class BlockKey {
+
+    private final String fileName;
+    private final long offset;
+
+    public BlockKey(String fileName, long offset) {
+      this.fileName = fileName;
+      this.offset = offset;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey that = (BlockKey) obj;
+      return this.offset == that.offset && this.fileName.equals(that.fileName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fileName, offset);
+    }
+  }
+
+  private static class Entry {
+    private final Object block;
+    private final long heapSize;
+
+    private Entry(Object block, long heapSize) {
+      this.block = block;
+      this.heapSize = heapSize;
+    }
+  }
+
+  private final long capacity;
+  private final boolean cacheCompressed;
+  private final LinkedHashMap<BlockKey, Entry> blocks = new LinkedHashMap<>(16, 0.75f, true);
+  private long size = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+
+  /**
+   * @param capacity the max heap size in bytes of all the cached blocks.
+   */
+  public BlockCache(long capacity) {
+    this(capacity, false);
+  }
+
+  /**
+   * @param cacheCompressed true to cache the data blocks as they are on the disk, otherwise cache
+   *                        the decompressed data blocks.
+   */
+  public BlockCache(long capacity, boolean cacheCompressed) {
+    this.capacity = capacity;
+    this.cacheCompressed = cacheCompressed;
+  }
+
+  /**
+   * @return the cached block, or null if it's not cached.
+   */
+  public synchronized Object get(BlockKey key) {
+    Entry entry = blocks.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.block;
+  }
+
+  /**
+   * @return true if the block is cached, without counting a hit or miss nor touching its order.
+   */
+  public synchronized boolean contains(BlockKey key) {
+    return blocks.containsKey(key);
+  }
+
+  public synchronized void put(BlockKey key, Object block, long heapSize) {
+    if (heapSize > capacity) {
+      // Caching the block would evict everything else.
+      return;
+    }
+    Entry prev = blocks.put(key, new Entry(block, heapSize));
+    if (prev != null) {
+      size -= prev.heapSize;
+    }
+    size += heapSize;
+
+    Iterator<Map.Entry<BlockKey, Entry>> it = blocks.entrySet().iterator();
+    while (size > capacity && it.hasNext()) {
+      Map.Entry<BlockKey, Entry> eldest = it.next();
+      size -= eldest.getValue().heapSize;
+      it.remove();
+    }
+  }
+
+  /**
+   * Drop all the cached blocks of the disk file, called when the disk file is closed.
+   */
+  public synchronized void evictFile(String fileName) {
+    Iterator<Map.Entry<BlockKey, Entry>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<BlockKey, Entry> entry = it.next();
+      if (entry.getKey().getFileName().equals(fileName)) {
+        size -= entry.getValue().heapSize;
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public boolean isCacheCompressed() {
+    return cacheCompressed;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+}
@@ -1,11 +1,29 @@
 package org.apache.minibase;
 
+/**
+ * A cache-line-blocked bloom filter. All the probes of a key fall into one 64-byte line chosen by
+ * the 64-bit hash of the key, so a lookup touches a single cache line of the filter. The filter
+ * is self-describing: it's the lines followed by one byte of the probe count, so a filter loaded
+ * from a disk file can be queried by {@link #contains(byte[], byte[])} without knowing how it was
+ * generated.
+ */
 public class BloomFilter {
+  public static final int LINE_BYTES = 64;
+  private static final int LINE_BITS_LOG = 9;
+  private static final int LINE_BITS = 1 << LINE_BITS_LOG;
+
   private int k;
   private int bitsPerKey;
-  private int bitLen;
   private byte[] result;
 
+  /**
+   * Create the filter with the probe count which minimizes the false positive rate, i.e.
+   * bitsPerKey * ln(2).
+   */
+  public BloomFilter(int bitsPerKey) {
+    this(Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69))), bitsPerKey);
+  }
+
   public BloomFilter(int k, int bitsPerKey) {
     this.k = k;
     this.bitsPerKey = bitsPerKey;
@@ -13,33 +31,74 @@ public class BloomFilter {
 
   public byte[] generate(byte[][] keys) {
     assert keys != null;
-    bitLen = keys.length * bitsPerKey;
-    bitLen = ((bitLen + 7) / 8) << 3; // align the bitLen.
-    bitLen = bitLen < 64 ? 64 : bitLen;
-    result = new byte[bitLen >> 3];
+    long[] hashes = new long[keys.length];
     for (int i = 0; i < keys.length; i++) {
       assert keys[i] != null;
-      int h = Bytes.hash(keys[i]);
+      hashes[i] = Bytes.hash64(keys[i]);
+    }
+    return generate(hashes, hashes.length);
+  }
+
+  /**
+   * Generate the filter with the hashes of the keys computed by {@link Bytes#hash64(byte[])}, so
+   * the caller needn't hold all the keys.
+   *
+   * @param count the number of the valid hashes in the array.
+   */
+  public byte[] generate(long[] hashes, int count) {
+    long bitLen = (long) count * bitsPerKey;
+    int lines = (int) Math.max(1, (bitLen + LINE_BITS - 1) / LINE_BITS);
+    result = new byte[lines * LINE_BYTES + 1];
+    result[result.length - 1] = (byte) k;
+    for (int i = 0; i < count; i++) {
+      long h = hashes[i];
+      int offset = lineOffset(h, lines);
+      int h2 = (int) (h >>> 32);
       for (int t = 0; t < k; t++) {
-        int idx = (h % bitLen + bitLen) % bitLen;
-        result[idx / 8] |= (1 << (idx % 8));
-        int delta = (h >> 17) | (h << 15);
-        h += delta;
+        int idx = h2 >>> (32 - LINE_BITS_LOG);
+        result[offset + (idx >>> 3)] |= (1 << (idx & 7));
+        h2 = nextProbe(h2);
       }
     }
     return result;
   }
 
+  private static int lineOffset(long h, int lines) {
+    // Map the lower 32 bits into [0, lines) by multiplication rather than modulo.
+    return (int) (((h & 0xFFFFFFFFL) * lines) >>> 32) * LINE_BYTES;
+  }
+
+  /**
+   * The probe takes the high bits of the hash, since the low bits of this sequence have short
+   * periods.
+   */
+  private static int nextProbe(int h) {
+    return h * 0x9E3779B9 + 0x7F4A7C15;
+  }
+
   public boolean contains(byte[] key) {
     assert result != null;
-    int h = Bytes.hash(key);
+    return contains(result, key);
+  }
+
+  /**
+   * Check the key against a serialized filter, e.g. the one loaded from a disk file.
+   */
+  public static boolean contains(byte[] filter, byte[] key) {
+    if (filter.length <= 1) {
+      return false;
+    }
+    int lines = (filter.length - 1) / LINE_BYTES;
+    int k = filter[filter.length - 1];
+    long h = Bytes.hash64(key);
+    int offset = lineOffset(h, lines);
+    int h2 = (int) (h >>> 32);
     for (int t = 0; t < k; t++) {
-      int idx = (h % bitLen + bitLen) % bitLen;
-      if ((result[idx / 8] & (1 << (idx % 8))) == 0) {
+      int idx = h2 >>> (32 - LINE_BITS_LOG);
+      if ((filter[offset + (idx >>> 3)] & (1 << (idx & 7))) == 0) {
         return false;
       }
-      int delta = (h >> 17) | (h << 15);
-      h += delta;
+      h2 = nextProbe(h2);
     }
     return true;
   }
@@ -0,0 +1,49 @@
+package org.apache.minibase;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of reusable byte arrays, such as the buffers which the data blocks are decompressed into,
+ * so that reading the compressed blocks won't allocate a large array per block.
+ */
+public class BufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+  /**
+   * @param bufferSize the min size of the allocated buffers.
+   * @param maxPooled  the max number of the idle buffers kept by the pool.
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return a buffer whose length is at least the size, which should be released after use.
+   */
+  public byte[] acquire(int size) {
+    byte[] buf;
+    synchronized (this) {
+      buf = buffers.poll();
+    }
+    if (buf == null || buf.length < size) {
+      buf = new byte[Math.max(size, bufferSize)];
+    }
+    return buf;
+  }
+
+  public void release(byte[] buf) {
+    synchronized (this) {
+      if (buffers.size() < maxPooled) {
+        buffers.push(buf);
+      }
+    }
+  }
+
+  public synchronized int getPooledCount() {
+    return buffers.size();
+  }
+}
@@ -0,0 +1,443 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskStore.MultiIter;
+import org.apache.minibase.MStore.ColumnFamily;
+import org.apache.minibase.MStore.SeekIter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Import a large unsorted input into a column family with an external sort, without passing the
+ * key values through the memstore:
+ *
+ * <ol>
+ * <li>The records are read into memory-bounded runs, each run is sorted and spilled as a temporary
+ * disk file by the thread pool, while the next run is being read.</li>
+ * <li>The key space is split at the block index keys of the runs, and every range is merged from
+ * all the runs by a {@link MultiIter} in parallel, into the size-bounded disk files built by
+ * {@link DiskFileBuilder}.</li>
+ * <li>The merged disk files are installed by {@link ColumnFamily#ingest(List)} at once.</li>
+ * </ol>
+ *
+ * The input is a stream of records of {@code keyLen(4B) + key + valueLen(4B) + value}, see
+ * {@link #writeRecord(DataOutputStream, byte[], byte[])}. If a key appears more than once, the last
+ * record wins. The temporary files are spread over the temporary directories, so the spills and
+ * the merges use all the disks. Usage:
+ *
+ * <pre>
+ * BulkImporter --input=file --dataDir=dir [--threads=n] [--runSize=bytes] [--fileSize=bytes]
+ *              [--tmpDirs=dir1,dir2]
+ * </pre>
+ */
+public class BulkImporter {
+
+  private static final Logger LOG = Logger.getLogger(BulkImporter.class);
+  // The estimated heap overhead of a key value in a run, besides its key and value.
+  private static final int KV_HEAP_OVERHEAD = 64;
+  // The ranges per thread to merge, so a thread finished early can take another range.
+  private static final int RANGES_PER_THREAD = 4;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private long runSize = 64 * 1024 * 1024;
+  private long fileSize = 64 * 1024 * 1024;
+  private List<String> tmpDirs = Collections.singletonList(System.getProperty("java.io.tmpdir"));
+  private FormatOptions formatOptions = new FormatOptions();
+  private final AtomicInteger nextFileId = new AtomicInteger();
+
+  /**
+   * @param threads the number of threads to sort and merge the runs.
+   */
+  public BulkImporter setThreads(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Invalid threads: " + threads);
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * @param runSize the estimated heap size of a run. At most threads + 1 runs are held in memory,
+   *                one being read and the others being sorted and spilled.
+   */
+  public BulkImporter setRunSize(long runSize) {
+    if (runSize <= 0) {
+      throw new IllegalArgumentException("Invalid run size: " + runSize);
+    }
+    this.runSize = runSize;
+    return this;
+  }
+
+  /**
+   * @param fileSize the size of the key values in each imported disk file before encoding.
+   */
+  public BulkImporter setFileSize(long fileSize) {
+    if (fileSize <= 0) {
+      throw new IllegalArgumentException("Invalid file size: " + fileSize);
+    }
+    this.fileSize = fileSize;
+    return this;
+  }
+
+  /**
+   * @param tmpDirs the directories of the spilled runs and the merged disk files, better located
+   *                on different disks.
+   */
+  public BulkImporter setTmpDirs(List<String> tmpDirs) {
+    if (tmpDirs.isEmpty()) {
+      throw new IllegalArgumentException("No temporary directory");
+    }
+    this.tmpDirs = tmpDirs;
+    return this;
+  }
+
+  /**
+   * @param formatOptions the options of the imported disk files.
+   */
+  public BulkImporter setFormatOptions(FormatOptions formatOptions) {
+    this.formatOptions = formatOptions;
+    return this;
+  }
+
+  public static void writeRecord(DataOutputStream out, byte[] key, byte[] value)
+      throws IOException {
+    out.writeInt(key.length);
+    out.write(key);
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  /**
+   * @return the next record as a put, or null if the input ends right before the record.
+   * @throws IOException if the record is truncated or has an invalid length.
+   */
+  private static KeyValue readRecord(DataInputStream in, long sequenceId) throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      return null;
+    }
+    try {
+      int keyLen = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+      byte[] key = new byte[checkLength("key", keyLen)];
+      in.readFully(key);
+      byte[] value = new byte[checkLength("value", in.readInt())];
+      in.readFully(value);
+      return KeyValue.createPut(key, value, sequenceId);
+    } catch (EOFException e) {
+      throw new IOException("Truncated record at the end of the input", e);
+    }
+  }
+
+  private static int checkLength(String field, int len) throws IOException {
+    // A key value has to fit in a block of the disk file.
+    if (len < 0 || len > DiskFile.BLOCK_SIZE_UP_LIMIT) {
+      throw new IOException("Invalid " + field + " length " + len + " of the record, should be in "
+          + "[0, " + DiskFile.BLOCK_SIZE_UP_LIMIT + "]");
+    }
+    return len;
+  }
+
+  private String nextFileName(String prefix) {
+    int id = nextFileId.getAndIncrement();
+    return new File(tmpDirs.get(id % tmpDirs.size()), prefix + "." + id).getPath();
+  }
+
+  /**
+   * Import the input into the column family.
+   *
+   * @return the number of the imported key values.
+   */
+  public long importTo(InputStream input, ColumnFamily cf) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<DiskFile> runs = new ArrayList<>();
+    List<Path> files = new ArrayList<>();
+    try {
+      runs.addAll(spillRuns(input, pool));
+      Map<Path, Long> merged = mergeRuns(runs, pool);
+      files.addAll(merged.keySet());
+      long count = 0;
+      for (long c : merged.values()) {
+        count += c;
+      }
+      cf.ingest(files);
+      return count;
+    } finally {
+      pool.shutdownNow();
+      for (DiskFile run : runs) {
+        run.close();
+        new File(run.getFileName()).delete();
+      }
+      // The ingested disk files have been linked or copied into the store.
+      for (Path f : files) {
+        f.toFile().delete();
+      }
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted when importing");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to import", e.getCause());
+    }
+  }
+
+  /**
+   * Read the input into runs, and sort and spill them in the pool.
+   *
+   * @return the spilled runs, which are opened.
+   */
+  List<DiskFile> spillRuns(InputStream input, ExecutorService pool) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    // Bound the runs in memory, the reader waits for a spill to finish once all threads are busy.
+    Semaphore permits = new Semaphore(threads);
+    List<Future<DiskFile>> futures = new ArrayList<>();
+    try {
+      long sequenceId = 0;
+      KeyValue kv = readRecord(in, ++sequenceId);
+      while (kv != null) {
+        List<KeyValue> run = new ArrayList<>();
+        long size = 0;
+        while (kv != null && size < runSize) {
+          run.add(kv);
+          size += kv.getKey().length + kv.getValue().length + KV_HEAP_OVERHEAD;
+          kv = readRecord(in, ++sequenceId);
+        }
+        permits.acquireUninterruptibly();
+        futures.add(pool.submit(() -> {
+          try {
+            return spill(run);
+          } finally {
+            permits.release();
+          }
+        }));
+      }
+      List<DiskFile> runs = new ArrayList<>();
+      for (Future<DiskFile> future : futures) {
+        runs.add(await(future));
+      }
+      LOG.info("Spilled " + (sequenceId - 1) + " records into " + runs.size() + " runs");
+      return runs;
+    } catch (IOException e) {
+      for (Future<DiskFile> future : futures) {
+        try {
+          DiskFile run = await(future);
+          run.close();
+          new File(run.getFileName()).delete();
+        } catch (IOException ignored) {
+          // The run failed as well.
+        }
+      }
+      throw e;
+    }
+  }
+
+  private DiskFile spill(List<KeyValue> run) throws IOException {
+    // The sequence ids are the positions in the input, so the later record of a key sorts first.
+    Collections.sort(run);
+    String fileName = nextFileName("run");
+    try (DiskFileWriter writer = new DiskFileWriter(fileName)) {
+      for (KeyValue kv : run) {
+        writer.append(kv);
+      }
+      writer.appendIndex();
+      writer.appendTrailer();
+    } catch (IOException e) {
+      new File(fileName).delete();
+      throw e;
+    }
+    DiskFile df = new DiskFile(fileName, null);
+    df.open(fileName);
+    return df;
+  }
+
+  /**
+   * Split the key space at the block index keys of the runs, and merge the ranges in the pool.
+   *
+   * @return the merged disk files and the number of key values in each of them.
+   */
+  Map<Path, Long> mergeRuns(List<DiskFile> runs, ExecutorService pool) throws IOException {
+    TreeSet<byte[]> indexKeys = new TreeSet<>(Bytes::compare);
+    for (DiskFile run : runs) {
+      for (byte[] key : run.getBlockIndexKeys()) {
+        // The empty key means negative infinity, which can't split the key space.
+        if (key.length > 0) {
+          indexKeys.add(key);
+        }
+      }
+    }
+    List<byte[]> keys = new ArrayList<>(indexKeys);
+    int ranges = Math.max(1, Math.min(keys.size(), threads * RANGES_PER_THREAD));
+    List<byte[]> bounds = new ArrayList<>();
+    bounds.add(Bytes.EMPTY_BYTES);
+    for (int i = 1; i < ranges; i++) {
+      bounds.add(keys.get((int) ((long) i * keys.size() / ranges)));
+    }
+    bounds.add(Bytes.EMPTY_BYTES);
+
+    List<Future<Map<Path, Long>>> futures = new ArrayList<>();
+    for (int i = 0; i + 1 < bounds.size(); i++) {
+      byte[] start = bounds.get(i), stop = bounds.get(i + 1);
+      Callable<Map<Path, Long>> task = () -> mergeRange(runs, start, stop);
+      futures.add(pool.submit(task));
+    }
+    Map<Path, Long> merged = new HashMap<>();
+    IOException error = null;
+    for (Future<Map<Path, Long>> future : futures) {
+      try {
+        merged.putAll(await(future));
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      for (Path f : merged.keySet()) {
+        f.toFile().delete();
+      }
+      throw error;
+    }
+    return merged;
+  }
+
+  /**
+   * Merge the newest version of each key in [start, stop) from all the runs.
+   */
+  private Map<Path, Long> mergeRange(List<DiskFile> runs, byte[] start, byte[] stop)
+      throws IOException {
+    Map<Path, Long> files = new HashMap<>();
+    List<SeekIter<KeyValue>> iters = new ArrayList<>();
+    DiskFileBuilder builder = null;
+    try {
+      for (DiskFile run : runs) {
+        iters.add(run.sequentialIterator(false, DiskFile.COMPACTION_READAHEAD_BLOCKS));
+      }
+      MultiIter it = new MultiIter(iters);
+      if (start.length > 0) {
+        it.seekTo(KeyValue.createDelete(start, Long.MAX_VALUE));
+      }
+      String fileName = null;
+      long size = 0, count = 0;
+      byte[] lastKey = null;
+      while (it.hasNext()) {
+        KeyValue kv = it.next();
+        if (stop.length > 0 && Bytes.compare(kv.getKey(), stop) >= 0) {
+          break;
+        }
+        if (lastKey != null && Bytes.compare(lastKey, kv.getKey()) == 0) {
+          continue;
+        }
+        lastKey = kv.getKey();
+        if (builder == null) {
+          fileName = nextFileName("import");
+          builder = new DiskFileBuilder(fileName, formatOptions);
+        }
+        builder.put(kv.getKey(), kv.getValue());
+        size += kv.getKey().length + kv.getValue().length;
+        count++;
+        if (size >= fileSize) {
+          builder.finish();
+          builder.close();
+          builder = null;
+          files.put(new File(fileName).toPath(), count);
+          size = count = 0;
+        }
+      }
+      if (builder != null) {
+        builder.finish();
+        builder.close();
+        builder = null;
+        files.put(new File(fileName).toPath(), count);
+      }
+      return files;
+    } catch (IOException e) {
+      for (Path f : files.keySet()) {
+        f.toFile().delete();
+      }
+      throw e;
+    } finally {
+      if (builder != null) {
+        builder.close();
+      }
+      for (SeekIter<KeyValue> iter : iters) {
+        iter.close();
+      }
+    }
+  }
+
+  /**
+   * Parse the command line arguments in the form of --name=value, which the other tools of the
+   * package share.
+   */
+  static Map<String, String> parseArgs(String[] args) {
+    Map<String, String> parsed = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        throw new IllegalArgumentException("Invalid argument: " + arg);
+      }
+      parsed.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+    return parsed;
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> parsed = parseArgs(args);
+    if (!parsed.containsKey("input") || !parsed.containsKey("dataDir")) {
+      throw new IllegalArgumentException("Both --input and --dataDir are required");
+    }
+    BulkImporter importer = new BulkImporter();
+    if (parsed.containsKey("threads")) {
+      importer.setThreads(Integer.parseInt(parsed.get("threads")));
+    }
+    if (parsed.containsKey("runSize")) {
+      importer.setRunSize(Long.parseLong(parsed.get("runSize")));
+    }
+    if (parsed.containsKey("fileSize")) {
+      importer.setFileSize(Long.parseLong(parsed.get("fileSize")));
+    }
+    if (parsed.containsKey("tmpDirs")) {
+      importer.setTmpDirs(Arrays.asList(parsed.get("tmpDirs").split(",")));
+    }
+
+    MStore db = MStore.create(new Config().setDataDir(parsed.get("dataDir")));
+    db.open();
+    try (InputStream in = new FileInputStream(parsed.get("input"))) {
+      long start = System.nanoTime();
+      long count = importer.importTo(in, db.getColumnFamily(MStore.DEFAULT_COLUMN_FAMILY));
+      System.out.println("Imported " + count + " key values in "
+          + (System.nanoTime() - start) / 1000000 + "ms");
+    } finally {
+      db.close();
+    }
+  }
+}
@@ -90,6 +90,37 @@ public class Bytes {
     return result;
   }
 
+  /**
+   * The 64-bit MurmurHash2 (MurmurHash64A) of the key.
+   */
+  public static long hash64(byte[] key) {
+    final long m = 0xC6A4A7935BD1E995L;
+    final int r = 47;
+    long h = 0x9747B28CL ^ (key.length * m);
+    int end = key.length & ~7;
+    for (int i = 0; i < end; i += 8) {
+      long k = (key[i] & 0xFFL) | (key[i + 1] & 0xFFL) << 8 | (key[i + 2] & 0xFFL) << 16
+          | (key[i + 3] & 0xFFL) << 24 | (key[i + 4] & 0xFFL) << 32 | (key[i + 5] & 0xFFL) << 40
+          | (key[i + 6] & 0xFFL) << 48 | (key[i + 7] & 0xFFL) << 56;
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+    int rest = key.length & 7;
+    if (rest > 0) {
+      for (int i = rest - 1; i >= 0; i--) {
+        h ^= (key[end + i] & 0xFFL) << (8 * i);
+      }
+      h *= m;
+    }
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+
   public static int hash(byte[] key) {
     if (key == null) return 0;
     int h = 1;
@@ -112,4 +143,109 @@ public class Bytes {
     }
     return a.length - b.length;
   }
+
+  public static int compare(byte[] a, int aOffset, int aLen, byte[] b, int bOffset, int bLen) {
+    for (int i = 0; i < aLen && i < bLen; i++) {
+      int x = a[aOffset + i] & 0xFF;
+      int y = b[bOffset + i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return aLen - bLen;
+  }
+
+  /**
+   * @return the length of the common prefix of the two byte arrays.
+   */
+  public static int commonPrefix(byte[] a, byte[] b) {
+    int i = 0;
+    while (i < a.length && i < b.length && a[i] == b[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Find a short key k which satisfies a <= k < b, it's used as the index key between two
+   * adjacent blocks so that the index need not hold the whole last key of the block.
+   *
+   * @param a the last key of the previous block.
+   * @param b the first key of the next block.
+   * @return the shortest separator, or a itself if no shorter one exists.
+   */
+  public static byte[] shortestSeparator(byte[] a, byte[] b) {
+    if (compare(a, b) >= 0) {
+      return a;
+    }
+    int prefix = commonPrefix(a, b);
+    if (prefix >= a.length || prefix >= b.length) {
+      // a is the prefix of b, no key shorter than a could be >= a.
+      return a;
+    }
+    int x = a[prefix] & 0xFF;
+    int y = b[prefix] & 0xFF;
+    if (x < 0xFF && x + 1 < y) {
+      byte[] sep = new byte[prefix + 1];
+      System.arraycopy(a, 0, sep, 0, prefix);
+      sep[prefix] = (byte) (x + 1);
+      return sep;
+    }
+    // Keep the first differing byte of a, and bump the first byte after it which can be bumped.
+    for (int i = prefix + 1; i < a.length; i++) {
+      int z = a[i] & 0xFF;
+      if (z < 0xFF) {
+        byte[] sep = new byte[i + 1];
+        System.arraycopy(a, 0, sep, 0, i);
+        sep[i] = (byte) (z + 1);
+        return sep;
+      }
+    }
+    return a;
+  }
+
+  /**
+   * @return the number of bytes to encode the non-negative value as a varint.
+   */
+  public static int vlongSize(long x) {
+    int size = 1;
+    while ((x & ~0x7FL) != 0) {
+      x >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Encode the non-negative value as a varint, 7 bits per byte with the highest bit as the
+   * continuation flag.
+   *
+   * @return the position after the encoded bytes.
+   */
+  public static int putVLong(byte[] buf, int pos, long x) {
+    while ((x & ~0x7FL) != 0) {
+      buf[pos++] = (byte) ((x & 0x7F) | 0x80);
+      x >>>= 7;
+    }
+    buf[pos++] = (byte) x;
+    return pos;
+  }
+
+  /**
+   * Decode the varint at the given position, use {@link #vlongSize(long)} to advance the position.
+   */
+  public static long getVLong(byte[] buf, int pos) throws IOException {
+    long x = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (pos >= buf.length) {
+        throw new IOException("Buffer overflow when decoding varint at " + pos);
+      }
+      byte b = buf[pos++];
+      x |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return x;
+      }
+    }
+    throw new IOException("Malformed varint at " + pos);
+  }
 }
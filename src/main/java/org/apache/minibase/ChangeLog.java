@@ -0,0 +1,161 @@
+package org.apache.minibase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The recent changes of the store for the subscribers, kept in a ring buffer by sequence id. Each
+ * sequence id is recorded before its write completes, so all the sequence ids up to the read point
+ * are found in the ring buffer, unless they're overwritten by the newer ones. Then the subscriber
+ * has to read the changes from the disk store.
+ */
+public class ChangeLog {
+
+  // Recorded for the sequence id whose changes are only found in the disk store, such as the
+  // ingested disk files.
+  static final Change ON_DISK = new Change(-1L, null, null, null);
+
+  private final AtomicReferenceArray<Slot> ring;
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private static class Slot {
+    private final long sequenceId;
+    // null means nothing to deliver, such as a failed write.
+    private final Change change;
+
+    Slot(long sequenceId, Change change) {
+      this.sequenceId = sequenceId;
+      this.change = change;
+    }
+  }
+
+  /**
+   * @param capacity the number of the recent sequence ids to keep, 0 means the changes are always
+   *                 read from the disk store.
+   */
+  public ChangeLog(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Invalid change log capacity: " + capacity);
+    }
+    this.ring = new AtomicReferenceArray<>(capacity);
+  }
+
+  /**
+   * @param change the change of the sequence id, null if there's nothing to deliver.
+   */
+  public void record(long sequenceId, Change change) {
+    if (ring.length() > 0) {
+      ring.set((int) (sequenceId % ring.length()), new Slot(sequenceId, change));
+    }
+  }
+
+  /**
+   * Read the changes after the given sequence id, until the max number of changes are read or the
+   * history is missing in the ring buffer.
+   *
+   * @param from       the sequence id after which to read.
+   * @param readPoint  the read point of the store, the sequence ids after it are not read.
+   * @param maxChanges the max number of changes to read.
+   * @param changes    the list to add the read changes to.
+   * @return the last sequence id which is read, less than the read point if the max number of
+   * changes are read, or the next sequence id is missing.
+   */
+  public long read(long from, long readPoint, int maxChanges, List<Change> changes) {
+    long seqId = from;
+    int read = 0;
+    while (seqId < readPoint && read < maxChanges && ring.length() > 0) {
+      Slot slot = ring.get((int) ((seqId + 1) % ring.length()));
+      if (slot == null || slot.sequenceId != seqId + 1 || slot.change == ON_DISK) {
+        break;
+      }
+      if (slot.change != null) {
+        changes.add(slot.change);
+        read++;
+      }
+      seqId++;
+    }
+    return seqId;
+  }
+
+  /**
+   * Wake up the subscribers waiting for the changes, once a write completes.
+   */
+  public void signal() {
+    if (waiters.get() > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait for a write to complete, or the timeout.
+   *
+   * @param condition the wait is skipped if it's met, since the write may complete before the
+   *                  subscriber starts waiting.
+   */
+  public void await(long timeout, TimeUnit unit, BooleanSupplier condition)
+      throws InterruptedException {
+    waiters.incrementAndGet();
+    try {
+      synchronized (this) {
+        if (!condition.getAsBoolean()) {
+          TimeUnit.NANOSECONDS.timedWait(this, unit.toNanos(timeout));
+        }
+      }
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * A change of the store delivered to the subscribers, which is either a key value of a put, a
+   * delete or a merge, or a range tombstone.
+   */
+  public static class Change {
+
+    private final long sequenceId;
+    private final String columnFamily;
+    private final KeyValue keyValue;
+    private final RangeTombstone rangeTombstone;
+
+    Change(long sequenceId, String columnFamily, KeyValue keyValue,
+        RangeTombstone rangeTombstone) {
+      this.sequenceId = sequenceId;
+      this.columnFamily = columnFamily;
+      this.keyValue = keyValue;
+      this.rangeTombstone = rangeTombstone;
+    }
+
+    public long getSequenceId() {
+      return sequenceId;
+    }
+
+    public String getColumnFamily() {
+      return columnFamily;
+    }
+
+    /**
+     * @return the key value of the put, delete or merge, or null if it's a range delete.
+     */
+    public KeyValue getKeyValue() {
+      return keyValue;
+    }
+
+    /**
+     * @return the range tombstone of the range delete, or null if it's not a range delete.
+     */
+    public RangeTombstone getRangeTombstone() {
+      return rangeTombstone;
+    }
+
+    @Override
+    public String toString() {
+      return "sequenceId=" + sequenceId + "/columnFamily=" + columnFamily + "/"
+          + (keyValue != null ? keyValue : rangeTombstone);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+
+/**
+ * Compress and decompress the data blocks. Every data block records the id of its codec in the
+ * block header, so the disk files written with different codecs can be read by the same store.
+ */
+public interface Codec {
+
+  byte NONE_ID = 0;
+  byte DEFLATE_ID = 1;
+  byte LZ_ID = 2;
+
+  byte getId();
+
+  String getName();
+
+  /**
+   * @return the compressed bytes, which may be longer than the source if it's incompressible.
+   */
+  byte[] compress(byte[] src, int offset, int len) throws IOException;
+
+  /**
+   * Decompress the bytes into the destination buffer.
+   *
+   * @param rawLen the length of the decompressed bytes, the destination buffer must have enough
+   *               room for them.
+   */
+  void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen)
+      throws IOException;
+
+  static Codec of(byte id) throws IOException {
+    switch (id) {
+    case NONE_ID:
+      return None.INSTANCE;
+    case DEFLATE_ID:
+      return DeflateCodec.INSTANCE;
+    case LZ_ID:
+      return LZCodec.INSTANCE;
+    default:
+      throw new IOException("Unknown codec id: " + id);
+    }
+  }
+
+  /**
+   * @param name the name of the codec, one of none, deflate and lz.
+   */
+  static Codec of(String name) {
+    for (Codec codec : new Codec[] { None.INSTANCE, DeflateCodec.INSTANCE, LZCodec.INSTANCE }) {
+      if (codec.getName().equalsIgnoreCase(name)) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException("Unknown codec: " + name);
+  }
+
+  class None implements Codec {
+
+    public static final None INSTANCE = new None();
+
+    @Override
+    public byte getId() {
+      return NONE_ID;
+    }
+
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int offset, int len) throws IOException {
+      return Bytes.slice(src, offset, len);
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen)
+        throws IOException {
+      if (len != rawLen) {
+        throw new IOException("Length " + len + " mismatches the raw length " + rawLen);
+      }
+      System.arraycopy(src, offset, dst, dstOffset, len);
+    }
+  }
+}
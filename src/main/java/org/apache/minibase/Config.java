@@ -1,12 +1,35 @@
 package org.apache.minibase;
 
+import org.apache.minibase.DiskFile.ChecksumVerification;
+import org.apache.minibase.FormatOptions.IndexType;
+
 public class Config {
 
   private long maxMemstoreSize = 16 * 1024 * 1024;
+  private long globalMemstoreSize = 0;
   private int flushMaxRetries = 10;
   private String dataDir = "MiniBase";
   private int maxDiskFiles = 10;
   private int maxThreadPoolSize = 5;
+  private int preloadDiskFiles = 4;
+  private int maxOpenFiles = 1024;
+  private long blockCacheSize = 64 * 1024 * 1024;
+  private double compactionTombstoneRatio = 0.5;
+  private String compression = "none";
+  private boolean cacheCompressedBlocks = false;
+  private int blobValueThreshold = 0;
+  private int bloomBitsPerKey = DiskFile.BLOOM_FILTER_BITS_PER_KEY;
+  private IndexType indexType = IndexType.BINARY_SEARCH;
+  private int blockSize = FormatOptions.DEFAULT_BLOCK_SIZE;
+  private int restartInterval = DiskFile.BlockWriter.RESTART_INTERVAL;
+  private double blobGarbageRatio = 0.5;
+  private int readaheadBlocks = DiskFile.READAHEAD_BLOCKS;
+  private int compactionReadaheadBlocks = DiskFile.COMPACTION_READAHEAD_BLOCKS;
+  private boolean preallocateDiskFiles = false;
+  private ChecksumVerification checksumVerification = ChecksumVerification.ALWAYS;
+  private MergeOperator mergeOperator = null;
+  private int changeLogSize = 4096;
+  private long subscriptionRetention = 10 * 60 * 1000L;
 
   private static final Config DEFAULT = new Config();
 
@@ -19,6 +42,20 @@ public class Config {
     return this.maxMemstoreSize;
   }
 
+  /**
+   * @param globalMemstoreSize the max total size of the memstores of all the column families of
+   *                           the store, the largest memstore is flushed once exceeded. 0 means
+   *                           each memstore is only bounded by its own max memstore size.
+   */
+  public Config setGlobalMemstoreSize(long globalMemstoreSize) {
+    this.globalMemstoreSize = globalMemstoreSize;
+    return this;
+  }
+
+  public long getGlobalMemstoreSize() {
+    return this.globalMemstoreSize;
+  }
+
   public Config setFlushMaxRetries(int flushMaxRetries) {
     this.flushMaxRetries = flushMaxRetries;
     return this;
@@ -55,6 +92,283 @@ public class Config {
     return this.maxThreadPoolSize;
   }
 
+  /**
+   * @param preloadDiskFiles the number of the newest disk files whose index will be loaded in
+   *                         background when opening the store, the others are loaded on demand.
+   */
+  public Config setPreloadDiskFiles(int preloadDiskFiles) {
+    this.preloadDiskFiles = preloadDiskFiles;
+    return this;
+  }
+
+  public int getPreloadDiskFiles() {
+    return this.preloadDiskFiles;
+  }
+
+  /**
+   * @param maxOpenFiles the max number of disk files to keep opened, the least recently used disk
+   *                     files will be closed once exceeded.
+   */
+  public Config setMaxOpenFiles(int maxOpenFiles) {
+    this.maxOpenFiles = maxOpenFiles;
+    return this;
+  }
+
+  public int getMaxOpenFiles() {
+    return this.maxOpenFiles;
+  }
+
+  /**
+   * @param blockCacheSize the max heap size in bytes of the blocks cached by the
+   *                       {@link BlockCache}, such as the data blocks and index partitions.
+   */
+  public Config setBlockCacheSize(long blockCacheSize) {
+    this.blockCacheSize = blockCacheSize;
+    return this;
+  }
+
+  public long getBlockCacheSize() {
+    return this.blockCacheSize;
+  }
+
+  /**
+   * @param compactionTombstoneRatio a disk file whose ratio of the delete markers to all the key
+   *                                 values reaches it will be compacted with the disk files
+   *                                 overlapping with it, to drop the deleted key values.
+   */
+  public Config setCompactionTombstoneRatio(double compactionTombstoneRatio) {
+    this.compactionTombstoneRatio = compactionTombstoneRatio;
+    return this;
+  }
+
+  public double getCompactionTombstoneRatio() {
+    return this.compactionTombstoneRatio;
+  }
+
+  /**
+   * @param compression the name of the {@link Codec} to compress the data blocks of the newly
+   *                    written disk files, one of none, deflate and lz.
+   */
+  public Config setCompression(String compression) {
+    this.compression = Codec.of(compression).getName();
+    return this;
+  }
+
+  public String getCompression() {
+    return this.compression;
+  }
+
+  /**
+   * @param cacheCompressedBlocks if true, the block cache keeps the data blocks as they are on the
+   *                              disk, so more blocks fit in it but each read decompresses the
+   *                              block again. Otherwise it keeps the decompressed blocks.
+   */
+  public Config setCacheCompressedBlocks(boolean cacheCompressedBlocks) {
+    this.cacheCompressedBlocks = cacheCompressedBlocks;
+    return this;
+  }
+
+  public boolean isCacheCompressedBlocks() {
+    return this.cacheCompressedBlocks;
+  }
+
+  /**
+   * @param blobValueThreshold the values whose length reaches it are written to the blob files
+   *                           when flushing or compacting, and only the references to them are
+   *                           kept in the disk files. 0 means keeping all the values inline.
+   */
+  public Config setBlobValueThreshold(int blobValueThreshold) {
+    this.blobValueThreshold = blobValueThreshold;
+    return this;
+  }
+
+  public int getBlobValueThreshold() {
+    return this.blobValueThreshold;
+  }
+
+  /**
+   * @param blobGarbageRatio a blob file whose ratio of the dead values reaches it will have its
+   *                         live values relocated to a new blob file by compaction, and then be
+   *                         removed.
+   */
+  public Config setBlobGarbageRatio(double blobGarbageRatio) {
+    this.blobGarbageRatio = blobGarbageRatio;
+    return this;
+  }
+
+  public double getBlobGarbageRatio() {
+    return this.blobGarbageRatio;
+  }
+
+  /**
+   * @param bloomBitsPerKey the bits per key of the bloom filters in the newly written disk files.
+   *                        More bits mean a lower false positive rate but larger filters, 10 bits
+   *                        per key give about 1% false positive rate.
+   */
+  public Config setBloomBitsPerKey(int bloomBitsPerKey) {
+    this.bloomBitsPerKey = bloomBitsPerKey;
+    return this;
+  }
+
+  public int getBloomBitsPerKey() {
+    return this.bloomBitsPerKey;
+  }
+
+  /**
+   * @param indexType {@link IndexType#HASH} to append a hash index to each data block of the newly
+   *                  written disk files, so a get finds the key in the block without the binary
+   *                  search. It costs about 2.7 bytes per distinct key.
+   */
+  public Config setIndexType(IndexType indexType) {
+    this.indexType = indexType;
+    return this;
+  }
+
+  public IndexType getIndexType() {
+    return this.indexType;
+  }
+
+  /**
+   * @param blockSize the target size of the data blocks of the newly written disk files. Smaller
+   *                  blocks suit the point gets, larger ones suit the scans.
+   */
+  public Config setBlockSize(int blockSize) {
+    this.blockSize = blockSize;
+    return this;
+  }
+
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * @param restartInterval the number of key values between two restart points of a data block.
+   */
+  public Config setRestartInterval(int restartInterval) {
+    this.restartInterval = restartInterval;
+    return this;
+  }
+
+  public int getRestartInterval() {
+    return this.restartInterval;
+  }
+
+  /**
+   * @return the layout of the newly written disk files, the existing disk files keep the layout
+   * they were written with.
+   */
+  public FormatOptions getFormatOptions() {
+    return new FormatOptions().setBlockSize(blockSize).setRestartInterval(restartInterval)
+        .setBloomBitsPerKey(bloomBitsPerKey).setIndexType(indexType)
+        .setCodec(Codec.of(compression));
+  }
+
+  /**
+   * @param readaheadBlocks the number of data blocks which a scan reads ahead in background once
+   *                        it has read two consecutive blocks of a disk file. 0 means no
+   *                        readahead.
+   */
+  public Config setReadaheadBlocks(int readaheadBlocks) {
+    this.readaheadBlocks = readaheadBlocks;
+    return this;
+  }
+
+  public int getReadaheadBlocks() {
+    return this.readaheadBlocks;
+  }
+
+  /**
+   * @param compactionReadaheadBlocks the number of data blocks which the compaction reads ahead
+   *                                  for each input disk file from the first block on.
+   */
+  public Config setCompactionReadaheadBlocks(int compactionReadaheadBlocks) {
+    this.compactionReadaheadBlocks = compactionReadaheadBlocks;
+    return this;
+  }
+
+  public int getCompactionReadaheadBlocks() {
+    return this.compactionReadaheadBlocks;
+  }
+
+  /**
+   * @param preallocateDiskFiles true to reserve the expected size of a disk file before flushing
+   *                             or compacting into it, which is the memstore size for a flush and
+   *                             the total size of the inputs for a compaction.
+   */
+  public Config setPreallocateDiskFiles(boolean preallocateDiskFiles) {
+    this.preallocateDiskFiles = preallocateDiskFiles;
+    return this;
+  }
+
+  public boolean isPreallocateDiskFiles() {
+    return this.preallocateDiskFiles;
+  }
+
+  /**
+   * @param checksumVerification when to verify the checksums of the data blocks read from the
+   *                             disk files, a mismatch fails the read with
+   *                             {@link CorruptedBlockException}.
+   */
+  public Config setChecksumVerification(ChecksumVerification checksumVerification) {
+    this.checksumVerification = checksumVerification;
+    return this;
+  }
+
+  public ChecksumVerification getChecksumVerification() {
+    return this.checksumVerification;
+  }
+
+  /**
+   * @param mergeOperator the operator to combine the operands written by
+   *                      {@link MiniBase#merge(byte[], byte[])}, which is required to merge.
+   */
+  public Config setMergeOperator(MergeOperator mergeOperator) {
+    this.mergeOperator = mergeOperator;
+    return this;
+  }
+
+  public MergeOperator getMergeOperator() {
+    return this.mergeOperator;
+  }
+
+  /**
+   * @param changeLogSize the number of the recent writes kept in memory for the subscribers of
+   *                      the store. A subscriber falling behind them reads the changes from the
+   *                      memstores and the disk files newer than its position, which costs a
+   *                      scan of them per poll, so it should cover the writes between two polls.
+   *                      0 means the subscribers always scan.
+   */
+  public Config setChangeLogSize(int changeLogSize) {
+    if (changeLogSize < 0) {
+      throw new IllegalArgumentException("Invalid change log size: " + changeLogSize);
+    }
+    this.changeLogSize = changeLogSize;
+    return this;
+  }
+
+  public int getChangeLogSize() {
+    return this.changeLogSize;
+  }
+
+  /**
+   * @param subscriptionRetention the max milliseconds a subscription could be idle between two
+   *                              polls. An idle subscription holds a snapshot which stops the
+   *                              compactions from dropping the versions it hasn't read, so it
+   *                              expires after the retention and releases the snapshot.
+   */
+  public Config setSubscriptionRetention(long subscriptionRetention) {
+    if (subscriptionRetention <= 0) {
+      throw new IllegalArgumentException("Invalid subscription retention: "
+          + subscriptionRetention);
+    }
+    this.subscriptionRetention = subscriptionRetention;
+    return this;
+  }
+
+  public long getSubscriptionRetention() {
+    return this.subscriptionRetention;
+  }
+
   public static Config getDefault() {
     return DEFAULT;
   }
@@ -0,0 +1,21 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a block read from a disk file fails its checksum, so the callers could tell the
+ * corruption apart from the other I/O errors, such as failing the compaction rather than writing
+ * the corrupted key values into a new disk file.
+ */
+public class CorruptedBlockException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CorruptedBlockException(String message) {
+    super(message);
+  }
+
+  public CorruptedBlockException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,88 @@
+package org.apache.minibase;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C (Castagnoli) checksum of the data blocks. On JDK 9+ it's computed by
+ * java.util.zip.CRC32C, which the JIT compiles into the CRC32 instructions of the CPU, so that
+ * verifying a block costs only a small fraction of decoding it. On JDK 8 it falls back to a
+ * table-driven implementation in Java.
+ */
+public final class Crc32c implements Checksum {
+
+  // The reversed Castagnoli polynomial.
+  private static final int POLY = 0x82F63B78;
+  private static final int[] TABLE = new int[256];
+  // The constructor of java.util.zip.CRC32C returning a Checksum, null if the JDK doesn't have it.
+  // It's resolved once, so that creating a checksum per block costs no reflection.
+  private static final MethodHandle JDK_CRC32C;
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+      }
+      TABLE[i] = crc;
+    }
+
+    MethodHandle ctor = null;
+    try {
+      ctor = MethodHandles.publicLookup()
+          .findConstructor(Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class))
+          .asType(MethodType.methodType(Checksum.class));
+    } catch (ReflectiveOperationException e) {
+      // Use the Java implementation.
+    }
+    JDK_CRC32C = ctor;
+  }
+
+  private int crc = 0xFFFFFFFF;
+
+  /**
+   * @return a new checksum, which is the intrinsic one of the JDK if available.
+   */
+  public static Checksum create() {
+    if (JDK_CRC32C != null) {
+      try {
+        return (Checksum) JDK_CRC32C.invokeExact();
+      } catch (Throwable e) {
+        throw new IllegalStateException("Failed to create CRC32C", e);
+      }
+    }
+    return new Crc32c();
+  }
+
+  public static int checksum(byte[] buf, int offset, int len) {
+    Checksum checksum = create();
+    checksum.update(buf, offset, len);
+    return (int) checksum.getValue();
+  }
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int c = crc;
+    for (int i = off, end = off + len; i < end; i++) {
+      c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+    }
+    crc = c;
+  }
+
+  @Override
+  public long getValue() {
+    return (~crc) & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xFFFFFFFF;
+  }
+}
@@ -0,0 +1,71 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codec based on the JDK {@link Deflater}, which has a higher compression ratio but is slower
+ * than the {@link LZCodec}.
+ */
+public class DeflateCodec implements Codec {
+
+  public static final DeflateCodec INSTANCE = new DeflateCodec();
+
+  @Override
+  public byte getId() {
+    return DEFLATE_ID;
+  }
+
+  @Override
+  public String getName() {
+    return "deflate";
+  }
+
+  @Override
+  public byte[] compress(byte[] src, int offset, int len) throws IOException {
+    // The block header has its own length and checksum, so no zlib wrapper is needed.
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(src, offset, len);
+      deflater.finish();
+      byte[] buf = new byte[len + (len >> 3) + 64];
+      int pos = 0;
+      while (!deflater.finished()) {
+        if (pos == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        pos += deflater.deflate(buf, pos, buf.length - pos);
+      }
+      return Arrays.copyOf(buf, pos);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  @Override
+  public void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen)
+      throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(src, offset, len);
+      int pos = 0;
+      while (pos < rawLen && !inflater.finished()) {
+        int n = inflater.inflate(dst, dstOffset + pos, rawLen - pos);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        pos += n;
+      }
+      if (pos != rawLen) {
+        throw new IOException("Inflated " + pos + " bytes, but " + rawLen + " expected");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Malformed deflate data", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
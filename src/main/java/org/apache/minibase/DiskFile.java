@@ -1,118 +1,434 @@
 package org.apache.minibase;
 
+import org.apache.minibase.KeyValue.Op;
 import org.apache.minibase.MStore.SeekIter;
+import org.apache.minibase.MiniBase.Filter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.zip.CRC32;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
 import java.util.zip.Checksum;
 
 public class DiskFile implements Closeable {
 
+  // The max size of a data block, see FormatOptions for the target size.
   public static final int BLOCK_SIZE_UP_LIMIT = 1024 * 1024 * 2;
-  public static final int BLOOM_FILTER_HASH_COUNT = 3;
+  // The default bits per key of the bloom filters.
   public static final int BLOOM_FILTER_BITS_PER_KEY = 10;
+  // The default number of blocks indexed by each index partition.
+  public static final int INDEX_PARTITION_BLOCKS = 128;
+  // Each data block starts with the header: codecId(1B) + rawSize(4B) + checksum(4B), the raw size
+  // is the size of the serialized block before compression. The checksum covers the codec id, the
+  // raw size and the stored payload, so it's verified before the block is decompressed.
+  public static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+  // A block is cut once it reaches the block size, which is at most BLOCK_SIZE_UP_LIMIT, and its
+  // last key value is smaller than BLOCK_SIZE_UP_LIMIT as well.
+  private static final int MAX_RAW_BLOCK_SIZE = 2 * BLOCK_SIZE_UP_LIMIT;
+
+  // fileSize(8B)+ blockCount(4B) + indexPartitionBlocks(4B) + blockIndexOffset(8B)
+  // + blockIndexSize(8B) + bloomBlockOffset(8B) + bloomBlockSize(8B) + metaBlockOffset(8B)
+  // + metaBlockSize(8B) + rangeTombstoneOffset(8B) + rangeTombstoneSize(8B)
+  // + DISK_FILE_VERSION(4B) + DISK_FILE_MAGIC(8B), the block index here is the top-level index
+  // which points to the index partitions. The range tombstone block is absent if its size is 0.
+  public static final int TRAILER_SIZE = 8 + 4 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + 8;
+  public static final long DISK_FILE_MAGIC = 0xFAC881234221FFABL;
+  // The magic of the disk files written before the version was added to the trailer, whose layout
+  // is taken as version 0.
+  private static final long LEGACY_DISK_FILE_MAGIC = 0xFAC881234221FFA9L;
+  // Bump the version once the layout of the disk file is changed.
+  public static final int DISK_FILE_VERSION = 10;
+
+  /**
+   * When to verify the checksums of the data blocks read from the disk files. A block is verified
+   * once when it's read from the disk file, the hits of the block cache are not verified again.
+   */
+  public enum ChecksumVerification {
+    // Verify every data block read.
+    ALWAYS,
+    // Verify only the blocks read by compaction, so that the corrupted key values never get into
+    // the compacted disk file. The reads of users are not verified.
+    COMPACTION,
+    OFF
+  }
 
-  // fileSize(8B)+ blockCount(4B) + blockIndexOffset(8B) + blockIndexOffset(8B) + DISK_FILE_MAGIC
-  // (8B)
-  public static final int TRAILER_SIZE = 8 + 4 + 8 + 8 + 8;
-  public static final long DISK_FILE_MAGIC = 0xFAC881234221FFA9L;
+  // The default number of data blocks read ahead by a sequential scan, and by the compaction.
+  public static final int READAHEAD_BLOCKS = 2;
+  public static final int COMPACTION_READAHEAD_BLOCKS = 8;
+  // A scan is regarded as sequential once it has read this many consecutive blocks.
+  private static final int READAHEAD_TRIGGER_BLOCKS = 2;
+  private static final int READAHEAD_THREADS = 4;
+
+  // The buffers which the compressed data blocks are decompressed into.
+  private static final BufferPool BLOCK_BUFFERS =
+      new BufferPool(2 * FormatOptions.DEFAULT_BLOCK_SIZE, 16);
+  // The background I/O threads which read the data blocks ahead of the iterators.
+  private static final ExecutorService READAHEAD_POOL =
+      Executors.newFixedThreadPool(READAHEAD_THREADS, r -> {
+        Thread t = new Thread(r, "DiskFile-Readahead");
+        t.setDaemon(true);
+        return t;
+      });
 
   private String fname;
-  private RandomAccessFile in;
-  private SortedSet<BlockMeta> blockMetaSet = new TreeSet<>();
+  private FileMeta fileMeta;
+  private TableCache tableCache = null;
+  private BlockCache blockCache = null;
+  private volatile RandomAccessFile in;
+  // The resident top-level index, the index key of a partition is the last index key in it.
+  private BlockIndex topIndex;
+  // The options which the disk file was written with, loaded when it's opened.
+  private FormatOptions formatOptions;
+  // The range tombstones are few, so they're loaded when the disk file is opened.
+  private List<RangeTombstone> rangeTombstones;
+  // The number of iterators which are reading the file handle.
+  private int pinCount = 0;
+
+  // The number of versions which contain this disk file.
+  private final AtomicInteger refCount = new AtomicInteger(0);
+  private volatile boolean obsolete = false;
 
   private long fileSize;
   private int blockCount;
+  private int indexPartitionBlocks;
   private long blockIndexOffset;
   private long blockIndexSize;
+  private long bloomBlockOffset;
+  private long bloomBlockSize;
+  private long metaBlockOffset;
+  private long metaBlockSize;
+  private long rangeTombstoneOffset;
+  private long rangeTombstoneSize;
+
+  /**
+   * An index partition of the data blocks, or the top-level index of the partitions. The index key
+   * of a block is the shortest separator between its last key and the first key of the next block,
+   * all the keys are packed into a flat byte array so that a huge number of blocks costs only a
+   * few arrays.
+   */
+  public static class BlockIndex {
+
+    private static final int COUNT_SIZE = 4;
+
+    private final byte[] keys;
+    // keyOffsets[i] is the start of the i-th key in keys, keyOffsets[size] is keys.length.
+    private final int[] keyOffsets;
+    private final long[] blockOffsets;
+    private final int[] blockSizes;
+
+    private BlockIndex(byte[] keys, int[] keyOffsets, long[] blockOffsets, int[] blockSizes) {
+      this.keys = keys;
+      this.keyOffsets = keyOffsets;
+      this.blockOffsets = blockOffsets;
+      this.blockSizes = blockSizes;
+    }
+
+    public int size() {
+      return blockOffsets.length;
+    }
 
-  public static class BlockMeta implements Comparable<BlockMeta> {
+    public byte[] getKey(int i) {
+      return Arrays.copyOfRange(keys, keyOffsets[i], keyOffsets[i + 1]);
+    }
 
-    private static final int OFFSET_SIZE = 8;
-    private static final int SIZE_SIZE = 8;
-    private static final int BF_LEN_SIZE = 4;
+    public long getBlockOffset(int i) {
+      return blockOffsets[i];
+    }
 
-    private KeyValue lastKV;
-    private long blockOffset;
-    private long blockSize;
-    private byte[] bloomFilter;
+    public int getBlockSize(int i) {
+      return blockSizes[i];
+    }
 
     /**
-     * Only used for {@link SeekIter} to seek a target block meta. we only care about the lastKV, so
-     * the other fields can be anything.
-     *
-     * @param lastKV the last key value to construct the dummy block meta.
-     * @return the dummy block meta.
+     * @return the approximate heap size in bytes, used by the {@link BlockCache}.
      */
-    private static BlockMeta createSeekDummy(KeyValue lastKV) {
-      return new BlockMeta(lastKV, 0L, 0L, Bytes.EMPTY_BYTES);
+    public long heapSize() {
+      return keys.length + 4L * keyOffsets.length + 8L * blockOffsets.length
+          + 4L * blockSizes.length;
     }
 
-    public BlockMeta(KeyValue lastKV, long offset, long size, byte[] bloomFilter) {
-      this.lastKV = lastKV;
-      this.blockOffset = offset;
-      this.blockSize = size;
-      this.bloomFilter = bloomFilter;
+    /**
+     * @return the first block whose index key is greater than or equal to the given key, or
+     * {@link #size()} if there is no such block. All the key values in the blocks before it have a
+     * smaller key.
+     */
+    public int seek(byte[] key) {
+      int low = 0, high = size();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int cmp = Bytes.compare(keys, keyOffsets[mid], keyOffsets[mid + 1] - keyOffsets[mid], key,
+          0, key.length);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
     }
 
-    public KeyValue getLastKV() {
-      return this.lastKV;
+    public static BlockIndex parseFrom(byte[] buf, int offset, int len) throws IOException {
+      int pos = offset;
+      int count = Bytes.toInt(Bytes.slice(buf, pos, COUNT_SIZE));
+      pos += COUNT_SIZE;
+
+      int[] keyOffsets = new int[count + 1];
+      long[] blockOffsets = new long[count];
+      int[] blockSizes = new int[count];
+      // The keys are never longer than the encoded index since only the shared prefix is omitted,
+      // so start with it and grow if the keys share a lot.
+      byte[] keys = new byte[len];
+      int keysLen = 0;
+      int prevOffset = 0;
+      for (int i = 0; i < count; i++) {
+        int shared = (int) Bytes.getVLong(buf, pos);
+        pos += Bytes.vlongSize(shared);
+        int unshared = (int) Bytes.getVLong(buf, pos);
+        pos += Bytes.vlongSize(unshared);
+        if (pos + unshared > offset + len) {
+          throw new IOException("Block index overflow, pos: " + pos + ", unshared: " + unshared);
+        }
+
+        if (keysLen + shared + unshared > keys.length) {
+          keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysLen + shared + unshared));
+        }
+        keyOffsets[i] = keysLen;
+        System.arraycopy(keys, prevOffset, keys, keysLen, shared);
+        System.arraycopy(buf, pos, keys, keysLen + shared, unshared);
+        pos += unshared;
+        prevOffset = keysLen;
+        keysLen += shared + unshared;
+
+        blockOffsets[i] = Bytes.getVLong(buf, pos);
+        pos += Bytes.vlongSize(blockOffsets[i]);
+        long blockSize = Bytes.getVLong(buf, pos);
+        pos += Bytes.vlongSize(blockSize);
+        blockSizes[i] = (int) blockSize;
+      }
+      keyOffsets[count] = keysLen;
+
+      if (pos != offset + len) {
+        throw new IOException("pos(" + pos + ") should be equal to the end of block index ("
+            + (offset + len) + ")");
+      }
+      return new BlockIndex(Arrays.copyOf(keys, keysLen), keyOffsets, blockOffsets, blockSizes);
     }
+  }
 
-    public long getBlockOffset() {
-      return this.blockOffset;
+  /**
+   * The summary of a disk file, which is written into the metadata block of the disk file and
+   * recorded in the manifest, so that the store can be opened and the disk files can be pruned
+   * without reading any data block.
+   */
+  public static class FileMeta {
+
+    private static final int NAME_LEN_SIZE = 4;
+    private static final int KEY_LEN_SIZE = 4;
+
+    private String fileName;
+    private long fileSize;
+    private byte[] minKey;
+    private byte[] maxKey;
+    private long minSequenceId;
+    private long maxSequenceId;
+    private long entryCount;
+    private long tombstoneCount;
+    private long rawSize;
+    private long encodedSize;
+    private long rangeTombstoneCount;
+    private long globalSequenceId;
+
+    /**
+     * @param fileName            the file name without the directory.
+     * @param minKey              the min key of the key values and the range tombstones.
+     * @param maxKey              the max key of the key values and the stop key of the range
+     *                            tombstones, so the key range covers the range tombstones.
+     * @param rawSize             the total serialized size of the key values.
+     * @param encodedSize         the total size of the data blocks in the disk file.
+     * @param rangeTombstoneCount the number of the range tombstones in the disk file.
+     */
+    public FileMeta(String fileName, long fileSize, byte[] minKey, byte[] maxKey,
+        long minSequenceId, long maxSequenceId, long entryCount, long tombstoneCount,
+        long rawSize, long encodedSize, long rangeTombstoneCount) {
+      this(fileName, fileSize, minKey, maxKey, minSequenceId, maxSequenceId, entryCount,
+          tombstoneCount, rawSize, encodedSize, rangeTombstoneCount, 0L);
     }
 
-    public long getBlockSize() {
-      return this.blockSize;
+    /**
+     * @param globalSequenceId the sequence id of all the key values of an ingested disk file,
+     *                         which overrides the ones written in the disk file. 0 means none.
+     */
+    public FileMeta(String fileName, long fileSize, byte[] minKey, byte[] maxKey,
+        long minSequenceId, long maxSequenceId, long entryCount, long tombstoneCount,
+        long rawSize, long encodedSize, long rangeTombstoneCount, long globalSequenceId) {
+      this.fileName = fileName;
+      this.fileSize = fileSize;
+      this.minKey = minKey;
+      this.maxKey = maxKey;
+      this.minSequenceId = minSequenceId;
+      this.maxSequenceId = maxSequenceId;
+      this.entryCount = entryCount;
+      this.tombstoneCount = tombstoneCount;
+      this.rawSize = rawSize;
+      this.encodedSize = encodedSize;
+      this.rangeTombstoneCount = rangeTombstoneCount;
+      this.globalSequenceId = globalSequenceId;
     }
 
-    public byte[] getBloomFilter() {
-      return this.bloomFilter;
+    /**
+     * @return a copy of the meta with the given file name and size, which are unknown when the
+     * metadata block is written.
+     */
+    public FileMeta withFile(String fileName, long fileSize) {
+      return new FileMeta(fileName, fileSize, minKey, maxKey, minSequenceId, maxSequenceId,
+          entryCount, tombstoneCount, rawSize, encodedSize, rangeTombstoneCount,
+          globalSequenceId);
     }
 
-    public int getSerializeSize() {
-      // TODO the meta no need the value of last kv, will save much bytes.
-      return lastKV.getSerializeSize() + OFFSET_SIZE + SIZE_SIZE + BF_LEN_SIZE + bloomFilter.length;
+    /**
+     * @return a copy of the meta whose key values all take the given sequence id, once the disk
+     * file is ingested.
+     */
+    public FileMeta withGlobalSequenceId(long globalSequenceId) {
+      return new FileMeta(fileName, fileSize, minKey, maxKey, globalSequenceId, globalSequenceId,
+          entryCount, tombstoneCount, rawSize, encodedSize, rangeTombstoneCount,
+          globalSequenceId);
     }
 
-    public byte[] toBytes() throws IOException {
-      byte[] bytes = new byte[getSerializeSize()];
-      int pos = 0;
+    public String getFileName() {
+      return fileName;
+    }
+
+    public long getFileSize() {
+      return fileSize;
+    }
+
+    /**
+     * @return the min key of the disk file, byte[0] if the disk file is empty.
+     */
+    public byte[] getMinKey() {
+      return minKey;
+    }
+
+    public byte[] getMaxKey() {
+      return maxKey;
+    }
+
+    /**
+     * @return the min sequence id of the disk file, -1 if the disk file is empty.
+     */
+    public long getMinSequenceId() {
+      return minSequenceId;
+    }
+
+    public long getMaxSequenceId() {
+      return maxSequenceId;
+    }
+
+    public long getEntryCount() {
+      return entryCount;
+    }
+
+    /**
+     * @return the number of the delete markers in the disk file.
+     */
+    public long getTombstoneCount() {
+      return tombstoneCount;
+    }
+
+    public double getTombstoneRatio() {
+      return entryCount == 0 ? 0.0 : (double) tombstoneCount / entryCount;
+    }
+
+    public long getRawSize() {
+      return rawSize;
+    }
 
-      // Encode last kv
-      byte[] kvBytes = lastKV.toBytes();
-      System.arraycopy(kvBytes, 0, bytes, pos, kvBytes.length);
-      pos += kvBytes.length;
+    public long getEncodedSize() {
+      return encodedSize;
+    }
+
+    public long getRangeTombstoneCount() {
+      return rangeTombstoneCount;
+    }
+
+    public long getGlobalSequenceId() {
+      return globalSequenceId;
+    }
+
+    /**
+     * @return true if the disk file has neither key values nor range tombstones.
+     */
+    public boolean isEmpty() {
+      return entryCount == 0 && rangeTombstoneCount == 0;
+    }
+
+    /**
+     * @return true if the key is located in the key range of the disk file.
+     */
+    public boolean mayContain(byte[] key) {
+      return !isEmpty() && Bytes.compare(minKey, key) <= 0 && Bytes.compare(key, maxKey) <= 0;
+    }
+
+    /**
+     * @param start the start key (inclusive), byte[0] means negative infinity.
+     * @param stop  the stop key (exclusive), byte[0] means positive infinity.
+     * @return true if the key range of the disk file overlaps with the range [start, stop).
+     */
+    public boolean overlaps(byte[] start, byte[] stop) {
+      if (isEmpty()) {
+        return false;
+      }
+      if (Bytes.compare(maxKey, start) < 0) {
+        return false;
+      }
+      return stop.length == 0 || Bytes.compare(minKey, stop) < 0;
+    }
 
-      // Encode blockOffset
-      byte[] offsetBytes = Bytes.toBytes(blockOffset);
-      System.arraycopy(offsetBytes, 0, bytes, pos, offsetBytes.length);
-      pos += offsetBytes.length;
+    /**
+     * @return true if the key ranges of the two disk files overlap.
+     */
+    public boolean overlaps(FileMeta other) {
+      return !isEmpty() && !other.isEmpty() && Bytes.compare(minKey, other.maxKey) <= 0
+          && Bytes.compare(other.minKey, maxKey) <= 0;
+    }
 
-      // Encode blockSize
-      byte[] sizeBytes = Bytes.toBytes(blockSize);
-      System.arraycopy(sizeBytes, 0, bytes, pos, sizeBytes.length);
-      pos += sizeBytes.length;
+    public int getSerializeSize() throws IOException {
+      return NAME_LEN_SIZE + Bytes.toBytes(fileName).length + 8 + KEY_LEN_SIZE + minKey.length
+             + KEY_LEN_SIZE + maxKey.length + 8 + 8 + 8 + 8 + 8 + 8 + 8 + 8;
+    }
 
-      // Encode length of bloom filter
-      byte[] bfLenBytes = Bytes.toBytes(bloomFilter.length);
-      System.arraycopy(bfLenBytes, 0, bytes, pos, bfLenBytes.length);
-      pos += bfLenBytes.length;
+    public byte[] toBytes() throws IOException {
+      byte[] bytes = new byte[getSerializeSize()];
+      int pos = 0;
 
-      // Encode bytes of bloom filter.
-      System.arraycopy(bloomFilter, 0, bytes, pos, bloomFilter.length);
-      pos += bloomFilter.length;
+      byte[] nameBytes = Bytes.toBytes(fileName);
+      byte[][] fields = new byte[][] { Bytes.toBytes(nameBytes.length), nameBytes,
+          Bytes.toBytes(fileSize), Bytes.toBytes(minKey.length), minKey,
+          Bytes.toBytes(maxKey.length), maxKey, Bytes.toBytes(minSequenceId),
+          Bytes.toBytes(maxSequenceId), Bytes.toBytes(entryCount), Bytes.toBytes(tombstoneCount),
+          Bytes.toBytes(rawSize), Bytes.toBytes(encodedSize),
+          Bytes.toBytes(rangeTombstoneCount), Bytes.toBytes(globalSequenceId) };
+      for (byte[] field : fields) {
+        System.arraycopy(field, 0, bytes, pos, field.length);
+        pos += field.length;
+      }
 
       if (pos != bytes.length) {
         throw new IOException(
@@ -121,104 +437,308 @@ public class DiskFile implements Closeable {
       return bytes;
     }
 
-    public static BlockMeta parseFrom(byte[] buf, int offset) throws IOException {
+    public static FileMeta parseFrom(byte[] buf, int offset) throws IOException {
       int pos = offset;
 
-      // Decode last key value.
-      KeyValue lastKV = KeyValue.parseFrom(buf, offset);
-      pos += lastKV.getSerializeSize();
+      int nameLen = Bytes.toInt(Bytes.slice(buf, pos, NAME_LEN_SIZE));
+      pos += NAME_LEN_SIZE;
+      String fileName = new String(Bytes.slice(buf, pos, nameLen), "UTF-8");
+      pos += nameLen;
 
-      // Decode block blockOffset
-      long blockOffset = Bytes.toLong(Bytes.slice(buf, pos, OFFSET_SIZE));
-      pos += OFFSET_SIZE;
+      long fileSize = Bytes.toLong(Bytes.slice(buf, pos, 8));
+      pos += 8;
 
-      // Decode block blockSize
-      long blockSize = Bytes.toLong(Bytes.slice(buf, pos, SIZE_SIZE));
-      pos += SIZE_SIZE;
+      int minKeyLen = Bytes.toInt(Bytes.slice(buf, pos, KEY_LEN_SIZE));
+      pos += KEY_LEN_SIZE;
+      byte[] minKey = Bytes.slice(buf, pos, minKeyLen);
+      pos += minKeyLen;
 
-      // Decode blockSize of block bloom filter
-      int bloomFilterSize = Bytes.toInt(Bytes.slice(buf, pos, BF_LEN_SIZE));
-      pos += BF_LEN_SIZE;
+      int maxKeyLen = Bytes.toInt(Bytes.slice(buf, pos, KEY_LEN_SIZE));
+      pos += KEY_LEN_SIZE;
+      byte[] maxKey = Bytes.slice(buf, pos, maxKeyLen);
+      pos += maxKeyLen;
 
-      // Decode bytes of block bloom filter
-      byte[] bloomFilter = Bytes.slice(buf, pos, bloomFilterSize);
-      pos += bloomFilterSize;
+      long[] longs = new long[8];
+      for (int i = 0; i < longs.length; i++) {
+        longs[i] = Bytes.toLong(Bytes.slice(buf, pos, 8));
+        pos += 8;
+      }
 
-      assert pos <= buf.length;
-      return new BlockMeta(lastKV, blockOffset, blockSize, bloomFilter);
+      return new FileMeta(fileName, fileSize, minKey, maxKey, longs[0], longs[1], longs[2],
+          longs[3], longs[4], longs[5], longs[6], longs[7]);
     }
+  }
 
-    @Override
-    public int compareTo(BlockMeta o) {
-      return this.lastKV.compareTo(o.lastKV);
+  /**
+   * The metadata block of a disk file, which holds the {@link FileMeta} without the file name and
+   * size, the {@link FormatOptions} which the disk file was written with, and the bloom filter of
+   * all the keys in the disk file:
+   *
+   * <pre>
+   * metaLen(4B) + fileMeta + formatOptions + bloomFilter
+   * </pre>
+   */
+  public static class MetaBlock {
+
+    private static final int META_LEN_SIZE = 4;
+
+    private final FileMeta fileMeta;
+    private final FormatOptions formatOptions;
+    private final byte[] bloomFilter;
+
+    public MetaBlock(FileMeta fileMeta, FormatOptions formatOptions, byte[] bloomFilter) {
+      this.fileMeta = fileMeta;
+      this.formatOptions = formatOptions;
+      this.bloomFilter = bloomFilter;
+    }
+
+    public FileMeta getFileMeta() {
+      return fileMeta;
+    }
+
+    public FormatOptions getFormatOptions() {
+      return formatOptions;
+    }
+
+    public byte[] getBloomFilter() {
+      return bloomFilter;
+    }
+
+    public long heapSize() {
+      return fileMeta.getMinKey().length + fileMeta.getMaxKey().length + 8 * 8
+          + FormatOptions.SERIALIZE_SIZE + bloomFilter.length;
+    }
+
+    public byte[] toBytes() throws IOException {
+      byte[] metaBytes = fileMeta.toBytes();
+      return Bytes.toBytes(Bytes.toBytes(Bytes.toBytes(metaBytes.length), metaBytes),
+        Bytes.toBytes(formatOptions.toBytes(), bloomFilter));
+    }
+
+    public static MetaBlock parseFrom(byte[] buf, int offset, int len) throws IOException {
+      int pos = offset;
+      int metaLen = Bytes.toInt(Bytes.slice(buf, pos, META_LEN_SIZE));
+      pos += META_LEN_SIZE;
+      FileMeta fileMeta = FileMeta.parseFrom(buf, pos);
+      pos += metaLen;
+      if (pos + FormatOptions.SERIALIZE_SIZE > offset + len) {
+        throw new IOException("Meta block overflow, pos: " + pos + ", end: " + (offset + len));
+      }
+      FormatOptions formatOptions = FormatOptions.parseFrom(buf, pos);
+      pos += FormatOptions.SERIALIZE_SIZE;
+      return new MetaBlock(fileMeta, formatOptions, Bytes.slice(buf, pos, offset + len - pos));
     }
   }
 
   public static class BlockIndexWriter {
 
-    private List<BlockMeta> blockMetas = new ArrayList<>();
-    private int totalBytes = 0;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private byte[] prevKey = Bytes.EMPTY_BYTES;
+    private int count = 0;
+
+    /**
+     * @param indexKey the key which is greater than or equal to all the keys of the block and less
+     *                 than the keys of the next block.
+     */
+    public void append(byte[] indexKey, long offset, long size) {
+      int shared = Bytes.commonPrefix(prevKey, indexKey);
+      int unshared = indexKey.length - shared;
+      byte[] entry = new byte[Bytes.vlongSize(shared) + Bytes.vlongSize(unshared) + unshared
+          + Bytes.vlongSize(offset) + Bytes.vlongSize(size)];
+      int pos = Bytes.putVLong(entry, 0, shared);
+      pos = Bytes.putVLong(entry, pos, unshared);
+      System.arraycopy(indexKey, shared, entry, pos, unshared);
+      pos += unshared;
+      pos = Bytes.putVLong(entry, pos, offset);
+      pos = Bytes.putVLong(entry, pos, size);
+      assert pos == entry.length;
+
+      buffer.write(entry, 0, entry.length);
+      prevKey = indexKey;
+      count++;
+    }
 
-    public void append(KeyValue lastKV, long offset, long size, byte[] bloomFilter) {
-      BlockMeta meta = new BlockMeta(lastKV, offset, size, bloomFilter);
-      blockMetas.add(meta);
-      totalBytes += meta.getSerializeSize();
+    public int size() {
+      return count;
     }
 
     public byte[] serialize() throws IOException {
-      byte[] buffer = new byte[totalBytes];
-      int pos = 0;
-      for (BlockMeta meta : blockMetas) {
-        byte[] metaBytes = meta.toBytes();
-        System.arraycopy(metaBytes, 0, buffer, pos, metaBytes.length);
-        pos += metaBytes.length;
+      byte[] entries = buffer.toByteArray();
+      return Bytes.toBytes(Bytes.toBytes(count), entries);
+    }
+  }
+
+  /**
+   * The bloom filters of all the data blocks, which are kept apart from the block index and only
+   * loaded when a point lookup needs them.
+   */
+  public static class BloomBlock {
+
+    private static final int COUNT_SIZE = 4;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private int count = 0;
+
+    public void append(byte[] bloomFilter) {
+      byte[] len = new byte[Bytes.vlongSize(bloomFilter.length)];
+      Bytes.putVLong(len, 0, bloomFilter.length);
+      buffer.write(len, 0, len.length);
+      buffer.write(bloomFilter, 0, bloomFilter.length);
+      count++;
+    }
+
+    public byte[] serialize() throws IOException {
+      return Bytes.toBytes(Bytes.toBytes(count), buffer.toByteArray());
+    }
+
+    public static byte[][] parseFrom(byte[] buf, int offset, int len) throws IOException {
+      int pos = offset;
+      int count = Bytes.toInt(Bytes.slice(buf, pos, COUNT_SIZE));
+      pos += COUNT_SIZE;
+      byte[][] bloomFilters = new byte[count][];
+      for (int i = 0; i < count; i++) {
+        int bloomLen = (int) Bytes.getVLong(buf, pos);
+        pos += Bytes.vlongSize(bloomLen);
+        bloomFilters[i] = Bytes.slice(buf, pos, bloomLen);
+        pos += bloomLen;
+      }
+      if (pos != offset + len) {
+        throw new IOException("pos(" + pos + ") should be equal to the end of bloom block ("
+            + (offset + len) + ")");
       }
-      assert pos == totalBytes;
-      return buffer;
+      return bloomFilters;
+    }
+
+    public static long heapSize(byte[][] bloomFilters) {
+      long size = 8L * bloomFilters.length;
+      for (byte[] bloomFilter : bloomFilters) {
+        size += bloomFilter.length;
+      }
+      return size;
     }
   }
 
+  /**
+   * The data block encoder. The key of each key value is stored as the length of the prefix shared
+   * with the previous key plus the rest suffix, and the sequence id is stored as the zigzag varint
+   * delta to the previous one. Every {@link FormatOptions#getRestartInterval()} key values there is
+   * a restart point, whose key is stored in full and sequence id is not delta encoded, so that a
+   * seek could binary search the restart points.
+   * <p>
+   * The optional hash index maps the hash of each key to the restart point where the key first
+   * appears, so a point get jumps to the restart point directly. Each bucket is 2 bytes, holding
+   * the restart point, {@link #BUCKET_EMPTY} if no key falls into it, or {@link #BUCKET_COLLISION}
+   * if several keys in different restart intervals fall into it. The layout of a block is:
+   *
+   * <pre>
+   * entry: shared(varint) + unshared(varint) + valueLen(varint) + op(1B) + seqDelta(varint)
+   *        + keySuffix + value
+   * block: entry * kvCount + restartOffset(4B) * restartCount + bucket(2B) * bucketCount
+   *        + bucketCount(4B) + restartCount(4B) + kvCount(4B)
+   * </pre>
+   *
+   * The checksum of the block is kept in the header of the stored block, see
+   * {@link #writeBlock(WriteBehindChannel, byte[], int, Codec)}.
+   */
   public static class BlockWriter {
-    public static final int KV_SIZE_LEN = 4;
-    public static final int CHECKSUM_LEN = 4;
-
-    private int totalSize;
-    private List<KeyValue> kvBuf;
+    // The default restart interval.
+    public static final int RESTART_INTERVAL = 16;
+    // bucketCount(4B) + restartCount(4B) + kvCount(4B)
+    public static final int TRAILER_LEN = 4 + 4 + 4;
+    public static final int BUCKET_EMPTY = 0xFFFF;
+    public static final int BUCKET_COLLISION = 0xFFFE;
+
+    private byte[] buf = new byte[4096];
+    private int pos = 0;
+    private int[] restarts = new int[16];
+    private int restartCount = 0;
+    private final int restartInterval;
     private BloomFilter bloomFilter;
-    private Checksum crc32;
+    private boolean hashIndex;
+    // The hashes of the distinct keys, and the restart points where they first appear.
+    private long[] keyHashes = new long[64];
+    private int[] keyRestarts = new int[64];
+    private int keyCount = 0;
     private KeyValue lastKV;
     private int keyValueCount;
 
     public BlockWriter() {
-      totalSize = 0;
-      kvBuf = new ArrayList<>();
-      bloomFilter = new BloomFilter(BLOOM_FILTER_HASH_COUNT, BLOOM_FILTER_BITS_PER_KEY);
-      crc32 = new CRC32();
+      this(new FormatOptions());
     }
 
-    public void append(KeyValue kv) throws IOException {
-      // Update key value buffer
-      kvBuf.add(kv);
-      lastKV = kv;
+    /**
+     * @param options the restart interval, bloom bits per key and index type of the block.
+     */
+    public BlockWriter(FormatOptions options) {
+      this.restartInterval = options.getRestartInterval();
+      this.bloomFilter = new BloomFilter(options.getBloomBitsPerKey());
+      this.hashIndex = options.getIndexType() == FormatOptions.IndexType.HASH;
+    }
 
-      // Update checksum
-      byte[] buf = kv.toBytes();
-      crc32.update(buf, 0, buf.length);
+    static int hashBucket(long hash, int bucketCount) {
+      return (int) (((hash >>> 32) * bucketCount) >>> 32);
+    }
 
-      totalSize += kv.getSerializeSize();
+    public void append(KeyValue kv) throws IOException {
+      byte[] key = kv.getKey();
+      byte[] value = kv.getValue();
+      int shared = 0;
+      long prevSequenceId = 0;
+      if (keyValueCount % restartInterval == 0) {
+        if (restartCount == restarts.length) {
+          restarts = Arrays.copyOf(restarts, restarts.length * 2);
+        }
+        restarts[restartCount++] = pos;
+      } else {
+        shared = Bytes.commonPrefix(lastKV.getKey(), key);
+        prevSequenceId = lastKV.getSequenceId();
+      }
+      int unshared = key.length - shared;
+      long seqDelta = encodeZigZag(kv.getSequenceId() - prevSequenceId);
+
+      int entrySize = Bytes.vlongSize(shared) + Bytes.vlongSize(unshared)
+          + Bytes.vlongSize(value.length) + 1 + Bytes.vlongSize(seqDelta) + unshared
+          + value.length;
+      if (pos + entrySize > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + entrySize));
+      }
+      pos = Bytes.putVLong(buf, pos, shared);
+      pos = Bytes.putVLong(buf, pos, unshared);
+      pos = Bytes.putVLong(buf, pos, value.length);
+      buf[pos++] = kv.getOp().getCode();
+      pos = Bytes.putVLong(buf, pos, seqDelta);
+      System.arraycopy(key, shared, buf, pos, unshared);
+      pos += unshared;
+      System.arraycopy(value, 0, buf, pos, value.length);
+      pos += value.length;
+
+      if (keyValueCount == 0 || Bytes.compare(lastKV.getKey(), key) != 0) {
+        if (keyCount == keyHashes.length) {
+          keyHashes = Arrays.copyOf(keyHashes, keyCount * 2);
+          keyRestarts = Arrays.copyOf(keyRestarts, keyCount * 2);
+        }
+        keyHashes[keyCount] = Bytes.hash64(key);
+        keyRestarts[keyCount] = restartCount - 1;
+        keyCount++;
+      }
+      lastKV = kv;
       keyValueCount += 1;
     }
 
     public byte[] getBloomFilter() {
-      byte[][] bytes = new byte[kvBuf.size()][];
-      for (int i = 0; i < kvBuf.size(); i++) {
-        bytes[i] = kvBuf.get(i).getKey();
-      }
-      return bloomFilter.generate(bytes);
+      return bloomFilter.generate(keyHashes, keyCount);
     }
 
-    public int getChecksum() {
-      return (int) crc32.getValue();
+    /**
+     * @return the number of buckets of the hash index, 0 if there's no hash index.
+     */
+    private int getBucketCount() {
+      // The restart point must fit in a bucket.
+      if (!hashIndex || restartCount >= BUCKET_COLLISION) {
+        return 0;
+      }
+      // Keep the buckets at most 75% utilized to make the collisions rare.
+      return keyCount + keyCount / 3 + 1;
     }
 
     public KeyValue getLastKV() {
@@ -226,317 +746,1538 @@ public class DiskFile implements Closeable {
     }
 
     public int size() {
-      return KV_SIZE_LEN + totalSize + CHECKSUM_LEN;
+      return pos + 4 * restartCount + 2 * getBucketCount() + TRAILER_LEN;
     }
 
     public int getKeyValueCount() {
       return keyValueCount;
     }
 
-    public byte[] serialize() throws IOException {
-      byte[] buffer = new byte[size()];
-      int pos = 0;
+    /**
+     * Clear the block writer for the next block, the buffers are kept for reuse.
+     */
+    public void reset() {
+      pos = 0;
+      restartCount = 0;
+      keyCount = 0;
+      lastKV = null;
+      keyValueCount = 0;
+    }
 
-      // Append kv getSerializeSize.
-      byte[] kvSize = Bytes.toBytes(kvBuf.size());
-      System.arraycopy(kvSize, 0, buffer, pos, kvSize.length);
-      pos += kvSize.length;
+    public byte[] serialize() throws IOException {
+      int size = finish();
+      return Arrays.copyOf(buf, size);
+    }
 
-      // Append all the key value
-      for (int i = 0; i < kvBuf.size(); i++) {
-        byte[] kv = kvBuf.get(i).toBytes();
-        System.arraycopy(kv, 0, buffer, pos, kv.length);
-        pos += kv.length;
+    /**
+     * Append the restart points, hash index and trailer to the entries in the buffer, without
+     * copying the entries.
+     *
+     * @return the size of the block, which is the first bytes of {@link #buf}.
+     */
+    private int finish() {
+      if (buf.length < size()) {
+        buf = Arrays.copyOf(buf, size());
+      }
+      byte[] buffer = buf;
+      int off = pos;
+      for (int i = 0; i < restartCount; i++) {
+        System.arraycopy(Bytes.toBytes(restarts[i]), 0, buffer, off, 4);
+        off += 4;
       }
 
-      // Append checksum.
-      byte[] checksum = Bytes.toBytes(this.getChecksum());
-      System.arraycopy(checksum, 0, buffer, pos, checksum.length);
-      pos += checksum.length;
-
-      assert pos == size();
-      return buffer;
+      int bucketCount = getBucketCount();
+      int[] buckets = new int[bucketCount];
+      Arrays.fill(buckets, BUCKET_EMPTY);
+      for (int i = 0; bucketCount > 0 && i < keyCount; i++) {
+        int b = hashBucket(keyHashes[i], bucketCount);
+        if (buckets[b] == BUCKET_EMPTY) {
+          buckets[b] = keyRestarts[i];
+        } else if (buckets[b] != keyRestarts[i]) {
+          buckets[b] = BUCKET_COLLISION;
+        }
+      }
+      for (int bucket : buckets) {
+        buffer[off++] = (byte) (bucket >>> 8);
+        buffer[off++] = (byte) bucket;
+      }
+      System.arraycopy(Bytes.toBytes(bucketCount), 0, buffer, off, 4);
+      off += 4;
+      System.arraycopy(Bytes.toBytes(restartCount), 0, buffer, off, 4);
+      off += 4;
+      System.arraycopy(Bytes.toBytes(keyValueCount), 0, buffer, off, 4);
+      off += 4;
+
+      assert off == size();
+      return off;
     }
   }
 
-  public static class BlockReader {
+  private static long encodeZigZag(long x) {
+    return (x << 1) ^ (x >> 63);
+  }
 
-    private List<KeyValue> kvBuf;
+  private static long decodeZigZag(long x) {
+    return (x >>> 1) ^ -(x & 1);
+  }
 
-    public BlockReader(List<KeyValue> kvBuf) {
-      this.kvBuf = kvBuf;
+  /**
+   * The cursor over a data block, which decodes the key values one by one directly from the block
+   * buffer rather than materializing them all. The reader should be closed once it's drained, so
+   * that a pooled buffer could be reused.
+   */
+  public static class BlockReader implements Closeable {
+
+    private final byte[] buffer;
+    private final int offset;
+    // The end of the entries, where the restart offsets begin.
+    private final int entriesEnd;
+    private final int restartCount;
+    private final int bucketCount;
+    private final int keyValueCount;
+    private final int restartInterval;
+    private final boolean keyOnly;
+    private final BufferPool pool;
+
+    private int pos;
+    private byte[] keyBuf = new byte[64];
+    private int keyLen = 0;
+    private long sequenceId = 0;
+    private int valueOffset = 0;
+    private int valueLen = 0;
+    private int index = 0;
+    // The key value located by seekTo but not returned yet.
+    private KeyValue peeked = null;
+
+    private BlockReader(byte[] buffer, int offset, int entriesEnd, int restartCount,
+        int bucketCount, int keyValueCount, int restartInterval, boolean keyOnly,
+        BufferPool pool) {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.entriesEnd = entriesEnd;
+      this.restartCount = restartCount;
+      this.bucketCount = bucketCount;
+      this.keyValueCount = keyValueCount;
+      this.restartInterval = restartInterval;
+      this.keyOnly = keyOnly;
+      this.pool = pool;
+      this.pos = offset;
     }
 
     public static BlockReader parseFrom(byte[] buffer, int offset, int size) throws IOException {
-      int pos = 0;
-      List<KeyValue> kvBuf = new ArrayList<KeyValue>();
-      Checksum crc32 = new CRC32();
+      return parseFrom(buffer, offset, size, false);
+    }
 
-      // Parse kv getSerializeSize
-      int kvSize = Bytes.toInt(Bytes.slice(buffer, offset + pos, BlockWriter.KV_SIZE_LEN));
-      pos += BlockWriter.KV_SIZE_LEN;
+    /**
+     * @param keyOnly if true, the values won't be copied out of the buffer.
+     */
+    public static BlockReader parseFrom(byte[] buffer, int offset, int size, boolean keyOnly)
+        throws IOException {
+      return parseFrom(buffer, offset, size, BlockWriter.RESTART_INTERVAL, keyOnly, null);
+    }
 
-      // Parse all key value.
-      for (int i = 0; i < kvSize; i++) {
-        KeyValue kv = KeyValue.parseFrom(buffer, offset + pos);
-        kvBuf.add(kv);
-        crc32.update(buffer, offset + pos, kv.getSerializeSize());
-        pos += kv.getSerializeSize();
+    /**
+     * @param restartInterval the restart interval which the block was written with.
+     * @param pool            the pool which the buffer is borrowed from, the buffer will be
+     *                        released to it once the reader is closed.
+     * @throws CorruptedBlockException if the trailer is invalid.
+     */
+    static BlockReader parseFrom(byte[] buffer, int offset, int size, int restartInterval,
+        boolean keyOnly, BufferPool pool) throws IOException {
+      if (size < BlockWriter.TRAILER_LEN) {
+        throw new CorruptedBlockException("Block is too short: " + size);
+      }
+      int end = offset + size;
+      int kvCount = Bytes.toInt(Bytes.slice(buffer, end - 4, 4));
+      int restartCount = Bytes.toInt(Bytes.slice(buffer, end - 8, 4));
+      int bucketCount = Bytes.toInt(Bytes.slice(buffer, end - 12, 4));
+      int entriesEnd = end - BlockWriter.TRAILER_LEN - 2 * bucketCount - 4 * restartCount;
+      if (restartCount < 0 || bucketCount < 0 || entriesEnd < offset) {
+        throw new CorruptedBlockException("Invalid restart count " + restartCount
+            + " or bucket count " + bucketCount + " of block with size " + size);
       }
 
-      // Parse checksum
-      int checksum = Bytes.toInt(Bytes.slice(buffer, offset + pos, BlockWriter.CHECKSUM_LEN));
-      pos += BlockWriter.CHECKSUM_LEN;
-      assert checksum == (int) (crc32.getValue() & 0xFFFFFFFF);
-
-      assert pos == size : "pos: " + pos + ", getSerializeSize: " + size;
-
-      return new BlockReader(kvBuf);
+      return new BlockReader(buffer, offset, entriesEnd, restartCount, bucketCount, kvCount,
+          restartInterval, keyOnly, pool);
     }
 
-    public List<KeyValue> getKeyValues() {
-      return kvBuf;
+    public int getKeyValueCount() {
+      return keyValueCount;
     }
-  }
 
-  public static class DiskFileWriter implements Closeable {
-    private String fname;
-
-    private long currentOffset;
-    private BlockIndexWriter indexWriter;
-    private BlockWriter currentWriter;
-    private FileOutputStream out;
+    public boolean hasNext() {
+      return peeked != null || pos < entriesEnd;
+    }
 
-    private long fileSize = 0;
-    private int blockCount = 0;
-    private long blockIndexOffset = 0;
-    private long blockIndexSize = 0;
+    public KeyValue next() throws IOException {
+      if (peeked != null) {
+        KeyValue kv = peeked;
+        peeked = null;
+        return kv;
+      }
+      return decodeNext(keyOnly);
+    }
 
-    public DiskFileWriter(String fname) throws IOException {
-      this.fname = fname;
+    /**
+     * Skip the key values whose key is rejected by {@link Filter#filterKey(byte[])}, the values
+     * of the rejected key values are never copied out of the buffer.
+     *
+     * @return true if there is an accepted key value left in the block.
+     */
+    public boolean hasNext(Filter filter) throws IOException {
+      if (peeked != null && filter.filterKey(peeked.getKey())) {
+        peeked = null;
+      }
+      while (peeked == null && pos < entriesEnd) {
+        KeyValue kv = decodeNext(true);
+        if (!filter.filterKey(kv.getKey())) {
+          peeked = withValue(kv);
+        }
+      }
+      return peeked != null;
+    }
 
-      File f = new File(this.fname);
-      f.createNewFile();
-      out = new FileOutputStream(f, true);
-      currentOffset = 0;
-      indexWriter = new BlockIndexWriter();
-      currentWriter = new BlockWriter();
+    /**
+     * Attach the value of the entry just decoded without value to the key value.
+     */
+    private KeyValue withValue(KeyValue kv) throws IOException {
+      return keyOnly ? kv : KeyValue.create(kv.getKey(),
+        Bytes.slice(buffer, valueOffset, valueLen), kv.getOp(), kv.getSequenceId());
     }
 
-    private void switchNextBlockWriter() throws IOException {
-      assert currentWriter.getLastKV() != null;
+    /**
+     * @param skipValue if true, the value is not copied, but it could be sliced later by the
+     *                  valueOffset and valueLen of the decoded entry.
+     */
+    private KeyValue decodeNext(boolean skipValue) throws IOException {
+      boolean restart = index % restartInterval == 0;
+      int shared = (int) Bytes.getVLong(buffer, pos);
+      pos += Bytes.vlongSize(shared);
+      int unshared = (int) Bytes.getVLong(buffer, pos);
+      pos += Bytes.vlongSize(unshared);
+      valueLen = (int) Bytes.getVLong(buffer, pos);
+      pos += Bytes.vlongSize(valueLen);
+      Op op = Op.code2Op(buffer[pos++]);
+      long seqDelta = Bytes.getVLong(buffer, pos);
+      pos += Bytes.vlongSize(seqDelta);
+      if (shared > keyLen || (restart && shared != 0)
+          || pos + unshared + valueLen > entriesEnd) {
+        throw new CorruptedBlockException("Corrupted entry " + index + " of block, shared: "
+            + shared + ", unshared: " + unshared + ", valueLen: " + valueLen);
+      }
 
-      byte[] buffer = currentWriter.serialize();
-      out.write(buffer);
-      indexWriter.append(currentWriter.getLastKV(), currentOffset, buffer.length,
-        currentWriter.getBloomFilter());
+      if (shared + unshared > keyBuf.length) {
+        keyBuf = Arrays.copyOf(keyBuf, Math.max(keyBuf.length * 2, shared + unshared));
+      }
+      System.arraycopy(buffer, pos, keyBuf, shared, unshared);
+      pos += unshared;
+      keyLen = shared + unshared;
+      sequenceId = (restart ? 0 : sequenceId) + decodeZigZag(seqDelta);
+
+      valueOffset = pos;
+      byte[] value = skipValue ? Bytes.EMPTY_BYTES : Bytes.slice(buffer, pos, valueLen);
+      pos += valueLen;
+      index++;
+      return KeyValue.create(Arrays.copyOf(keyBuf, keyLen), value, op, sequenceId);
+    }
 
-      currentOffset += buffer.length;
-      blockCount += 1;
+    private void resetTo(int restart) throws IOException {
+      pos = offset + Bytes.toInt(Bytes.slice(buffer, entriesEnd + 4 * restart, 4));
+      index = restart * restartInterval;
+      keyLen = 0;
+      sequenceId = 0;
+      peeked = null;
+    }
 
-      // switch to the next block.
-      currentWriter = new BlockWriter();
+    public boolean hasHashIndex() {
+      return bucketCount > 0;
     }
 
-    public void append(KeyValue kv) throws IOException {
-      if (kv == null) return;
+    /**
+     * Look up the hash index for the restart point where the key first appears.
+     *
+     * @return the restart point, {@link BlockWriter#BUCKET_EMPTY} if the key is absent, or
+     * {@link BlockWriter#BUCKET_COLLISION} if the index can't tell.
+     */
+    public int lookupRestart(byte[] key) {
+      if (bucketCount == 0) {
+        return BlockWriter.BUCKET_COLLISION;
+      }
+      int b = BlockWriter.hashBucket(Bytes.hash64(key), bucketCount);
+      int bucketOffset = entriesEnd + 4 * restartCount + 2 * b;
+      return (buffer[bucketOffset] & 0xFF) << 8 | (buffer[bucketOffset + 1] & 0xFF);
+    }
 
-      assert kv.getSerializeSize() + BlockWriter.KV_SIZE_LEN + BlockWriter.CHECKSUM_LEN < BLOCK_SIZE_UP_LIMIT;
+    /**
+     * Locate the smallest key value which is greater than or equal to the target.
+     *
+     * @return false if all the key values in the block are smaller than the target.
+     */
+    public boolean seekTo(KeyValue target) throws IOException {
+      return seekTo(target, false);
+    }
 
-      if ((currentWriter.getKeyValueCount() > 0)
-          && (kv.getSerializeSize() + currentWriter.size() >= BLOCK_SIZE_UP_LIMIT)) {
-        switchNextBlockWriter();
+    /**
+     * @param point if true, the seek is for a point get of the target key, which jumps to the
+     *              restart point found in the hash index. The key values of other keys may be
+     *              skipped if the key is absent.
+     */
+    public boolean seekTo(KeyValue target, boolean point) throws IOException {
+      if (point) {
+        int restart = lookupRestart(target.getKey());
+        if (restart == BlockWriter.BUCKET_EMPTY) {
+          peeked = null;
+          pos = entriesEnd;
+          return false;
+        }
+        if (restart != BlockWriter.BUCKET_COLLISION) {
+          return scanFrom(restart, target);
+        }
       }
+      // Binary search the last restart point whose key value is smaller than the target.
+      int low = 0, high = restartCount - 1, start = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        resetTo(mid);
+        if (decodeNext(true).compareTo(target) < 0) {
+          start = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return scanFrom(start, target);
+    }
 
-      currentWriter.append(kv);
+    private boolean scanFrom(int restart, KeyValue target) throws IOException {
+      resetTo(restart);
+      while (pos < entriesEnd) {
+        KeyValue kv = decodeNext(true);
+        if (kv.compareTo(target) >= 0) {
+          peeked = withValue(kv);
+          return true;
+        }
+      }
+      return false;
     }
 
-    public void appendIndex() throws IOException {
-      if (currentWriter.getKeyValueCount() > 0) {
-        switchNextBlockWriter();
+    /**
+     * Decode all the key values of the block, regardless of the position of the cursor.
+     */
+    public List<KeyValue> getKeyValues() throws IOException {
+      BlockReader reader = new BlockReader(buffer, offset, entriesEnd, restartCount,
+          bucketCount, keyValueCount, restartInterval, keyOnly, null);
+      List<KeyValue> kvs = new ArrayList<>(keyValueCount);
+      while (reader.hasNext()) {
+        kvs.add(reader.next());
       }
+      return kvs;
+    }
 
-      byte[] buffer = indexWriter.serialize();
-      blockIndexOffset = currentOffset;
-      blockIndexSize = buffer.length;
+    @Override
+    public void close() {
+      if (pool != null) {
+        pool.release(buffer);
+      }
+    }
+  }
 
-      out.write(buffer);
+  /**
+   * Compress the first len bytes of the serialized block and write it after the block header. The
+   * block is stored uncompressed if the codec can't shrink it.
+   *
+   * @return the size of the stored block.
+   */
+  static int writeBlock(WriteBehindChannel out, byte[] raw, int len, Codec codec)
+      throws IOException {
+    byte[] payload = raw;
+    int payloadLen = len;
+    if (codec.getId() != Codec.NONE_ID) {
+      byte[] compressed = codec.compress(raw, 0, len);
+      if (compressed.length < len) {
+        payload = compressed;
+        payloadLen = compressed.length;
+      } else {
+        codec = Codec.None.INSTANCE;
+      }
+    }
+    byte[] header = new byte[BLOCK_HEADER_SIZE];
+    header[0] = codec.getId();
+    System.arraycopy(Bytes.toBytes(len), 0, header, 1, 4);
+    System.arraycopy(Bytes.toBytes(blockChecksum(header, payload, 0, payloadLen)), 0, header, 5,
+      4);
+    out.write(header);
+    out.write(payload, 0, payloadLen);
+    return BLOCK_HEADER_SIZE + payloadLen;
+  }
 
-      currentOffset += buffer.length;
+  /**
+   * @return the checksum of the codec id and the raw size in the header, and the payload.
+   */
+  private static int blockChecksum(byte[] header, byte[] payload, int offset, int len) {
+    Checksum checksum = Crc32c.create();
+    checksum.update(header, 0, 1 + 4);
+    checksum.update(payload, offset, len);
+    return (int) checksum.getValue();
+  }
+
+  /**
+   * Check the header of the stored block read from the disk file, and verify its checksum if
+   * asked, before anything is allocated or decompressed by the header.
+   *
+   * @return the raw size of the block.
+   * @throws CorruptedBlockException if the block is corrupted.
+   */
+  static int checkBlock(byte[] block, boolean verify) throws IOException {
+    if (block.length < BLOCK_HEADER_SIZE) {
+      throw new CorruptedBlockException("Block is too short: " + block.length);
+    }
+    int payloadLen = block.length - BLOCK_HEADER_SIZE;
+    if (verify && Bytes.toInt(Bytes.slice(block, 5, 4))
+        != blockChecksum(block, block, BLOCK_HEADER_SIZE, payloadLen)) {
+      throw new CorruptedBlockException("Checksum mismatched for block with size " + block.length);
     }
+    int rawSize = getRawBlockSize(block);
+    if (rawSize < 0 || rawSize > MAX_RAW_BLOCK_SIZE
+        || (block[0] == Codec.NONE_ID && rawSize != payloadLen)) {
+      throw new CorruptedBlockException("Invalid raw size " + rawSize + " of block with size "
+          + block.length);
+    }
+    return rawSize;
+  }
 
-    public void appendTrailer() throws IOException {
-      fileSize = currentOffset + TRAILER_SIZE;
+  /**
+   * @return the raw size in the header of the block, which is checked by
+   * {@link #checkBlock(byte[], boolean)} already.
+   */
+  private static int getRawBlockSize(byte[] block) throws IOException {
+    return Bytes.toInt(Bytes.slice(block, 1, 4));
+  }
 
-      // fileSize(8B)
-      byte[] buffer = Bytes.toBytes(fileSize);
-      out.write(buffer);
+  /**
+   * Decompress the block into the destination buffer, whose length must be at least the raw size.
+   *
+   * @throws CorruptedBlockException if the codec fails to decompress the block.
+   */
+  static void decompressBlock(byte[] block, byte[] dst, int rawSize) throws IOException {
+    try {
+      Codec.of(block[0]).decompress(block, BLOCK_HEADER_SIZE, block.length - BLOCK_HEADER_SIZE,
+        dst, 0, rawSize);
+    } catch (IOException | RuntimeException e) {
+      throw new CorruptedBlockException("Failed to decompress block with size " + block.length
+          + ": " + e.getMessage(), e);
+    }
+  }
 
-      // blockCount(4B)
-      buffer = Bytes.toBytes(blockCount);
-      out.write(buffer);
+  public static class DiskFileWriter implements Closeable {
+    private String fname;
+    private FormatOptions options;
+
+    private long currentOffset;
+    private BlockIndexWriter indexWriter;
+    // The serialized index partitions and their last index keys.
+    private List<byte[]> indexPartitions = new ArrayList<>();
+    private List<byte[]> partitionLastKeys = new ArrayList<>();
+    private byte[] lastIndexKey = null;
+    private BloomBlock bloomBlock;
+    private BlockWriter currentWriter;
+    private WriteBehindChannel out;
+
+    private long fileSize = 0;
+    private int blockCount = 0;
+    private int indexPartitionBlocks;
+    private long blockIndexOffset = 0;
+    private long blockIndexSize = 0;
+    private long bloomBlockOffset = 0;
+    private long bloomBlockSize = 0;
+    private long metaBlockOffset = 0;
+    private long metaBlockSize = 0;
+    private long rangeTombstoneOffset = 0;
+    private long rangeTombstoneSize = 0;
+    private List<RangeTombstone> rangeTombstones = new ArrayList<>();
+
+    // The last written block is indexed once the first key of the next block is known, so that
+    // its index key could be the shortest separator between them.
+    private byte[] pendingLastKey = null;
+    private long pendingOffset = 0;
+    private long pendingSize = 0;
+
+    private byte[] minKey = null;
+    private byte[] maxKey = null;
+    private long minSequenceId = -1L;
+    private long maxSequenceId = -1L;
+    private long entryCount = 0;
+    private long tombstoneCount = 0;
+    private long rawSize = 0;
+    private long encodedSize = 0;
+    // The hashes of the distinct keys, for the bloom filter of the whole file.
+    private long[] keyHashes = new long[1024];
+    private int keyCount = 0;
+
+    public DiskFileWriter(String fname) throws IOException {
+      this(fname, new FormatOptions());
+    }
+
+    /**
+     * @param options the layout of the disk file, which is recorded in its metadata block.
+     */
+    public DiskFileWriter(String fname, FormatOptions options) throws IOException {
+      this.fname = fname;
+      this.options = options;
+      this.indexPartitionBlocks = options.getIndexPartitionBlocks();
 
-      // blockIndexOffset(8B)
-      buffer = Bytes.toBytes(blockIndexOffset);
+      out = new WriteBehindChannel(fname);
+      currentOffset = 0;
+      indexWriter = new BlockIndexWriter();
+      bloomBlock = new BloomBlock();
+      currentWriter = new BlockWriter(options);
+    }
+
+    private void switchNextBlockWriter() throws IOException {
+      assert currentWriter.getLastKV() != null;
+
+      // The block is copied into the write buffer, so the block writer could be reused at once.
+      int len = currentWriter.finish();
+      int size = writeBlock(out, currentWriter.buf, len, options.getCodec());
+      bloomBlock.append(currentWriter.getBloomFilter());
+      pendingLastKey = currentWriter.getLastKV().getKey();
+      pendingOffset = currentOffset;
+      encodedSize += size;
+      pendingSize = size;
+
+      currentOffset += size;
+      blockCount += 1;
+
+      // switch to the next block.
+      currentWriter.reset();
+    }
+
+    /**
+     * Reserve the expected size of the file before appending, the file is truncated to the
+     * written size once it's closed.
+     */
+    public void preallocate(long size) throws IOException {
+      out.preallocate(size);
+    }
+
+    /**
+     * @param nextKey the first key of the next block, null if the pending block is the last one.
+     */
+    private void appendPendingIndex(byte[] nextKey) throws IOException {
+      if (pendingLastKey == null) return;
+      byte[] indexKey = nextKey == null ? pendingLastKey
+          : Bytes.shortestSeparator(pendingLastKey, nextKey);
+      indexWriter.append(indexKey, pendingOffset, pendingSize);
+      lastIndexKey = indexKey;
+      pendingLastKey = null;
+
+      if (indexWriter.size() >= indexPartitionBlocks) {
+        finishIndexPartition();
+      }
+    }
+
+    private void finishIndexPartition() throws IOException {
+      indexPartitions.add(indexWriter.serialize());
+      partitionLastKeys.add(lastIndexKey);
+      indexWriter = new BlockIndexWriter();
+    }
+
+    public void append(KeyValue kv) throws IOException {
+      if (kv == null) return;
+
+      assert kv.getSerializeSize() + BlockWriter.TRAILER_LEN < BLOCK_SIZE_UP_LIMIT;
+
+      if ((currentWriter.getKeyValueCount() > 0)
+          && (kv.getSerializeSize() + currentWriter.size() >= options.getBlockSize())) {
+        switchNextBlockWriter();
+      }
+      appendPendingIndex(kv.getKey());
+
+      currentWriter.append(kv);
+
+      // Update the summary of the file.
+      if (minKey == null) {
+        minKey = kv.getKey();
+      }
+      if (maxKey == null || Bytes.compare(maxKey, kv.getKey()) != 0) {
+        if (keyCount == keyHashes.length) {
+          keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        }
+        keyHashes[keyCount++] = Bytes.hash64(kv.getKey());
+      }
+      maxKey = kv.getKey();
+      entryCount++;
+      if (kv.getOp() == Op.Delete) {
+        tombstoneCount++;
+      }
+      rawSize += kv.getSerializeSize();
+      if (minSequenceId < 0 || kv.getSequenceId() < minSequenceId) {
+        minSequenceId = kv.getSequenceId();
+      }
+      maxSequenceId = Math.max(maxSequenceId, kv.getSequenceId());
+    }
+
+    /**
+     * Add a range tombstone into the range tombstone block, which is written by
+     * {@link #appendIndex()}. The range tombstones may be appended in any order.
+     */
+    public void appendRangeTombstone(RangeTombstone tombstone) {
+      rangeTombstones.add(tombstone);
+    }
+
+    /**
+     * Build the meta of the written file, should be called after the trailer is appended.
+     *
+     * @param fileName the name of the file without the directory, which may differ from the
+     *                 name of the writing file since we always write into a temporary file.
+     */
+    public FileMeta getFileMeta(String fileName) {
+      byte[] min = minKey, max = maxKey;
+      long minSeqId = minSequenceId, maxSeqId = maxSequenceId;
+      for (RangeTombstone t : rangeTombstones) {
+        if (min == null || Bytes.compare(t.getStart(), min) < 0) {
+          min = t.getStart();
+        }
+        if (max == null || Bytes.compare(t.getStop(), max) > 0) {
+          max = t.getStop();
+        }
+        if (minSeqId < 0 || t.getSequenceId() < minSeqId) {
+          minSeqId = t.getSequenceId();
+        }
+        maxSeqId = Math.max(maxSeqId, t.getSequenceId());
+      }
+      return new FileMeta(fileName, fileSize, min == null ? Bytes.EMPTY_BYTES : min,
+          max == null ? Bytes.EMPTY_BYTES : max, minSeqId, maxSeqId, entryCount, tombstoneCount,
+          rawSize, encodedSize, rangeTombstones.size());
+    }
+
+    public void appendIndex() throws IOException {
+      if (currentWriter.getKeyValueCount() > 0) {
+        switchNextBlockWriter();
+      }
+      appendPendingIndex(null);
+      if (indexWriter.size() > 0) {
+        finishIndexPartition();
+      }
+
+      byte[] buffer;
+      if (!rangeTombstones.isEmpty()) {
+        buffer = RangeTombstone.toBlock(rangeTombstones);
+        rangeTombstoneOffset = currentOffset;
+        rangeTombstoneSize = buffer.length;
+        out.write(buffer);
+        currentOffset += buffer.length;
+      }
+
+      buffer = bloomBlock.serialize();
+      bloomBlockOffset = currentOffset;
+      bloomBlockSize = buffer.length;
       out.write(buffer);
+      currentOffset += buffer.length;
+
+      BlockIndexWriter topIndexWriter = new BlockIndexWriter();
+      for (int i = 0; i < indexPartitions.size(); i++) {
+        buffer = indexPartitions.get(i);
+        out.write(buffer);
+        topIndexWriter.append(partitionLastKeys.get(i), currentOffset, buffer.length);
+        currentOffset += buffer.length;
+      }
+
+      buffer = topIndexWriter.serialize();
+      blockIndexOffset = currentOffset;
+      blockIndexSize = buffer.length;
 
-      // blockIndexSize(8B)
-      buffer = Bytes.toBytes(blockIndexSize);
       out.write(buffer);
 
-      // DISK_FILE_MAGIC(8B)
-      buffer = Bytes.toBytes(DISK_FILE_MAGIC);
+      currentOffset += buffer.length;
+
+      // The file name and size are filled by the reader.
+      BloomFilter bloom = new BloomFilter(options.getBloomBitsPerKey());
+      MetaBlock metaBlock = new MetaBlock(getFileMeta(""), options,
+          bloom.generate(keyHashes, keyCount));
+      buffer = metaBlock.toBytes();
+      metaBlockOffset = currentOffset;
+      metaBlockSize = buffer.length;
       out.write(buffer);
+      currentOffset += buffer.length;
     }
 
+    public void appendTrailer() throws IOException {
+      fileSize = currentOffset + TRAILER_SIZE;
+
+      ByteBuffer buffer = ByteBuffer.allocate(TRAILER_SIZE);
+      buffer.putLong(fileSize);
+      buffer.putInt(blockCount);
+      buffer.putInt(indexPartitionBlocks);
+      buffer.putLong(blockIndexOffset);
+      buffer.putLong(blockIndexSize);
+      buffer.putLong(bloomBlockOffset);
+      buffer.putLong(bloomBlockSize);
+      buffer.putLong(metaBlockOffset);
+      buffer.putLong(metaBlockSize);
+      buffer.putLong(rangeTombstoneOffset);
+      buffer.putLong(rangeTombstoneSize);
+      buffer.putInt(DISK_FILE_VERSION);
+      buffer.putLong(DISK_FILE_MAGIC);
+      assert !buffer.hasRemaining();
+      out.write(buffer.array());
+    }
+
+    /**
+     * Wait for the written blocks to reach the disk file, and sync the file once.
+     */
     public void close() throws IOException {
       if (out != null) {
         try {
-          out.flush();
-          FileDescriptor fd = out.getFD();
-          fd.sync();
-        } finally {
           out.close();
+        } finally {
+          out = null;
         }
       }
     }
   }
 
+  public DiskFile() {
+  }
+
+  /**
+   * Create a disk file with the meta recorded in the manifest, the file will be opened when it's
+   * accessed for the first time.
+   *
+   * @param filename the full path of the disk file.
+   */
+  public DiskFile(String filename, FileMeta fileMeta) {
+    this(filename, fileMeta, null);
+  }
+
+  /**
+   * @param tableCache the cache which limits the number of opened disk files, null means the disk
+   *                   file won't be closed until {@link #close()}.
+   */
+  public DiskFile(String filename, FileMeta fileMeta, TableCache tableCache) {
+    this(filename, fileMeta, tableCache, null);
+  }
+
+  /**
+   * @param blockCache the cache of the index partitions and bloom blocks, null means they're read
+   *                   from the disk file on every access.
+   */
+  public DiskFile(String filename, FileMeta fileMeta, TableCache tableCache,
+      BlockCache blockCache) {
+    this.fname = filename;
+    this.fileMeta = fileMeta;
+    this.tableCache = tableCache;
+    this.blockCache = blockCache;
+  }
+
+  /**
+   * Check the version and the magic at the end of the trailer before parsing the rest of it, since
+   * the trailer of the other versions has a different layout.
+   */
+  private void checkVersion(RandomAccessFile raf) throws IOException {
+    if (fileSize < 8) {
+      throw new IOException("Invalid size " + fileSize + " of disk file " + fname);
+    }
+    byte[] buffer = new byte[8];
+    raf.seek(fileSize - 8);
+    raf.readFully(buffer);
+    long magic = Bytes.toLong(buffer);
+    int version;
+    if (magic == LEGACY_DISK_FILE_MAGIC) {
+      version = 0;
+    } else if (magic != DISK_FILE_MAGIC || fileSize < TRAILER_SIZE) {
+      throw new IOException("Invalid magic of disk file " + fname);
+    } else {
+      buffer = new byte[4];
+      raf.seek(fileSize - 8 - 4);
+      raf.readFully(buffer);
+      version = Bytes.toInt(buffer);
+    }
+    if (version != DISK_FILE_VERSION) {
+      throw new IOException("Unsupported disk file version " + version + ", expected "
+          + DISK_FILE_VERSION + ": " + fname);
+    }
+  }
+
   public void open(String filename) throws IOException {
     this.fname = filename;
 
     File f = new File(fname);
-    this.in = new RandomAccessFile(f, "r");
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      this.fileSize = f.length();
+      checkVersion(raf);
+      raf.seek(fileSize - TRAILER_SIZE);
+
+      byte[] buffer = new byte[8];
+      raf.readFully(buffer);
+      assert this.fileSize == Bytes.toLong(buffer);
+
+      buffer = new byte[4];
+      raf.readFully(buffer);
+      this.blockCount = Bytes.toInt(buffer);
+
+      buffer = new byte[4];
+      raf.readFully(buffer);
+      this.indexPartitionBlocks = Bytes.toInt(buffer);
+      if (indexPartitionBlocks <= 0) {
+        throw new IOException("Invalid index partition size " + indexPartitionBlocks
+            + " of disk file " + fname);
+      }
 
-    this.fileSize = f.length();
-    assert fileSize > TRAILER_SIZE;
-    in.seek(fileSize - TRAILER_SIZE);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.blockIndexOffset = Bytes.toLong(buffer);
 
-    byte[] buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    assert this.fileSize == Bytes.toLong(buffer);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.blockIndexSize = Bytes.toLong(buffer);
 
-    buffer = new byte[4];
-    assert in.read(buffer) == buffer.length;
-    this.blockCount = Bytes.toInt(buffer);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.bloomBlockOffset = Bytes.toLong(buffer);
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    this.blockIndexOffset = Bytes.toLong(buffer);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.bloomBlockSize = Bytes.toLong(buffer);
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    this.blockIndexSize = Bytes.toLong(buffer);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.metaBlockOffset = Bytes.toLong(buffer);
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    assert DISK_FILE_MAGIC == Bytes.toLong(buffer);
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.metaBlockSize = Bytes.toLong(buffer);
 
-    // TODO Maybe a large memory, and overflow
-    buffer = new byte[(int) blockIndexSize];
-    in.seek(blockIndexOffset);
-    assert in.read(buffer) == blockIndexSize;
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.rangeTombstoneOffset = Bytes.toLong(buffer);
 
-    // TODO blockOffset may overflow.
-    int offset = 0;
+      buffer = new byte[8];
+      raf.readFully(buffer);
+      this.rangeTombstoneSize = Bytes.toLong(buffer);
 
-    do {
-      BlockMeta meta = BlockMeta.parseFrom(buffer, offset);
-      offset += meta.getSerializeSize();
-      blockMetaSet.add(meta);
-    } while (offset < buffer.length);
+      // The version and the magic are already checked.
+      raf.skipBytes(4 + 8);
 
-    assert blockMetaSet.size() == this.blockCount : "blockMetaSet.getSerializeSize:" + blockMetaSet.size()
-        + ", blockCount: " + blockCount;
+      // Only the top-level index is loaded, which has one entry per index partition.
+      buffer = new byte[(int) blockIndexSize];
+      raf.seek(blockIndexOffset);
+      raf.readFully(buffer);
+
+      // The index is empty if all the key values are dropped by compaction.
+      this.topIndex = BlockIndex.parseFrom(buffer, 0, buffer.length);
+
+      int partitions = (blockCount + indexPartitionBlocks - 1) / indexPartitionBlocks;
+      if (topIndex.size() != partitions) {
+        throw new IOException("Disk file " + fname + " has " + topIndex.size()
+            + " index partitions, but " + partitions + " expected for " + blockCount + " blocks");
+      }
+
+      // The data blocks are decoded by the format options in the metadata block. Cache the
+      // metadata block, since a get checks its bloom filter soon.
+      buffer = new byte[(int) metaBlockSize];
+      raf.seek(metaBlockOffset);
+      raf.readFully(buffer);
+      MetaBlock metaBlock = MetaBlock.parseFrom(buffer, 0, buffer.length);
+      this.formatOptions = metaBlock.getFormatOptions();
+      if (blockCache != null) {
+        blockCache.put(new BlockCache.BlockKey(fname, metaBlockOffset), metaBlock,
+          metaBlock.heapSize());
+      }
+
+      if (rangeTombstoneSize > 0) {
+        buffer = new byte[(int) rangeTombstoneSize];
+        raf.seek(rangeTombstoneOffset);
+        raf.readFully(buffer);
+        this.rangeTombstones = RangeTombstone.parseBlock(buffer, 0, buffer.length);
+      } else {
+        this.rangeTombstones = Collections.emptyList();
+      }
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    // Publish the file handle after the index is loaded, see ensureOpen.
+    this.in = raf;
+  }
+
+  /**
+   * Open the disk file if it has not been opened yet.
+   */
+  public void ensureOpen() throws IOException {
+    if (in == null) {
+      synchronized (this) {
+        if (in == null) {
+          open(fname);
+        }
+      }
+    }
+  }
+
+  public boolean isOpened() {
+    return in != null;
+  }
+
+  /**
+   * Open the disk file if needed, and prevent it from being closed by the {@link TableCache}
+   * until {@link #unpin()}.
+   */
+  void pin() throws IOException {
+    boolean first;
+    synchronized (this) {
+      ensureOpen();
+      first = pinCount++ == 0;
+      if (first && tableCache != null) {
+        tableCache.pinned(this);
+      }
+    }
+    if (first && tableCache != null) {
+      tableCache.evictIfNeeded();
+    }
+  }
+
+  void unpin() {
+    boolean last;
+    synchronized (this) {
+      assert pinCount > 0;
+      last = --pinCount == 0;
+      if (last && tableCache != null) {
+        tableCache.unpinned(this, in != null);
+      }
+    }
+    if (last && tableCache != null) {
+      tableCache.evictIfNeeded();
+    }
+  }
+
+  /**
+   * Close the file handle and drop the index if no iterator is reading the disk file, it will be
+   * opened again on the next access. It's removed from the {@link TableCache} with the lock held,
+   * so a concurrent pin can't reopen it in between.
+   *
+   * @return true if the disk file is closed.
+   */
+  synchronized boolean closeIfUnpinned() throws IOException {
+    if (pinCount > 0) {
+      return false;
+    }
+    try {
+      closeHandle();
+    } finally {
+      if (tableCache != null) {
+        tableCache.remove(this);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replace the file handle whose channel has been closed by an interrupt, unless it's replaced
+   * already.
+   *
+   * @param cause thrown if the disk file has been closed on purpose.
+   */
+  private synchronized void reopenHandle(RandomAccessFile closed, ClosedChannelException cause)
+      throws IOException {
+    if (in == null) {
+      throw cause;
+    }
+    if (in == closed) {
+      in = new RandomAccessFile(fname, "r");
+    }
+  }
+
+  private synchronized void closeHandle() throws IOException {
+    if (in != null) {
+      try {
+        in.close();
+      } finally {
+        in = null;
+        topIndex = null;
+      }
+    }
+  }
+
+  /**
+   * @return the meta of the disk file, null if the disk file was not created by the
+   * {@link DiskStore}.
+   */
+  public FileMeta getFileMeta() {
+    return fileMeta;
   }
 
   public String getFileName() {
     return fname;
   }
 
-  private BlockReader load(BlockMeta meta) throws IOException {
-    in.seek(meta.getBlockOffset());
+  void retain() {
+    refCount.incrementAndGet();
+  }
+
+  /**
+   * @return true if the last reference is released.
+   */
+  boolean release() {
+    return refCount.decrementAndGet() == 0;
+  }
+
+  /**
+   * Mark the disk file as removed from the store, it will be archived once no version holds it.
+   */
+  void markObsolete() {
+    this.obsolete = true;
+  }
+
+  boolean isObsolete() {
+    return this.obsolete;
+  }
+
+  /**
+   * @return the index key of every data block, in ascending order. Those keys split the file into
+   * ranges which could be scanned independently.
+   */
+  public List<byte[]> getBlockIndexKeys() throws IOException {
+    pin();
+    try {
+      List<byte[]> keys = new ArrayList<>(blockCount);
+      for (int p = 0; p < topIndex.size(); p++) {
+        BlockIndex partition = loadIndexPartition(topIndex, p);
+        for (int i = 0; i < partition.size(); i++) {
+          keys.add(partition.getKey(i));
+        }
+      }
+      return keys;
+    } finally {
+      unpin();
+    }
+  }
+
+  /**
+   * Check the key range and bloom filter of the disk file, then the bloom filter of the only block
+   * which may hold the key. The bloom filters are loaded through the block cache.
+   *
+   * @return false if the disk file has no key value with the given key.
+   */
+  public boolean mightContain(byte[] key) throws IOException {
+    // The meta from the manifest needn't open the disk file.
+    if (fileMeta != null && !fileMeta.mayContain(key)) {
+      return false;
+    }
+    pin();
+    try {
+      MetaBlock metaBlock = loadMetaBlock();
+      if (!metaBlock.getFileMeta().mayContain(key)) {
+        return false;
+      }
+      if (!BloomFilter.contains(metaBlock.getBloomFilter(), key)) {
+        return false;
+      }
+
+      int block = seekBlock(topIndex, key);
+      if (block >= blockCount) {
+        return false;
+      }
+      return BloomFilter.contains(loadBloomFilters()[block], key);
+    } finally {
+      unpin();
+    }
+  }
+
+  /**
+   * @return the ordinal of the first block whose index key is greater than or equal to the key, or
+   * the block count if there is no such block.
+   */
+  private int seekBlock(BlockIndex top, byte[] key) throws IOException {
+    int p = top.seek(key);
+    if (p >= top.size()) {
+      return blockCount;
+    }
+    // The partition must have such a block, since its last index key >= key.
+    return p * indexPartitionBlocks + loadIndexPartition(top, p).seek(key);
+  }
+
+  private BlockIndex loadIndexPartition(BlockIndex top, int p) throws IOException {
+    return loadCached(top.getBlockOffset(p), top.getBlockSize(p),
+      buf -> BlockIndex.parseFrom(buf, 0, buf.length), BlockIndex::heapSize);
+  }
+
+  /**
+   * Read the meta of the disk file from its metadata block.
+   */
+  public FileMeta readFileMeta() throws IOException {
+    pin();
+    try {
+      return loadMetaBlock().getFileMeta().withFile(new File(fname).getName(), fileSize);
+    } finally {
+      unpin();
+    }
+  }
+
+  /**
+   * @return the options which the disk file was written with.
+   */
+  public FormatOptions getFormatOptions() throws IOException {
+    pin();
+    try {
+      return formatOptions;
+    } finally {
+      unpin();
+    }
+  }
 
+  /**
+   * @return the range tombstones of the disk file. The disk file isn't opened if its meta tells
+   * there is none.
+   */
+  public List<RangeTombstone> getRangeTombstones() throws IOException {
+    if (fileMeta != null && fileMeta.getRangeTombstoneCount() == 0) {
+      return Collections.emptyList();
+    }
+    pin();
+    try {
+      return rangeTombstones;
+    } finally {
+      unpin();
+    }
+  }
+
+  private MetaBlock loadMetaBlock() throws IOException {
+    return loadCached(metaBlockOffset, (int) metaBlockSize,
+      buf -> MetaBlock.parseFrom(buf, 0, buf.length), MetaBlock::heapSize);
+  }
+
+  private byte[][] loadBloomFilters() throws IOException {
     // TODO Maybe overflow.
-    byte[] buffer = new byte[(int) meta.getBlockSize()];
+    byte[][] filters = loadCached(bloomBlockOffset, (int) bloomBlockSize,
+      buf -> BloomBlock.parseFrom(buf, 0, buf.length), BloomBlock::heapSize);
+    if (filters.length != blockCount) {
+      throw new IOException("Bloom block of " + fname + " has " + filters.length
+          + " filters, but there are " + blockCount + " blocks");
+    }
+    return filters;
+  }
+
+  private interface BlockParser<T> {
+    T parse(byte[] buf) throws IOException;
+  }
+
+  /**
+   * Read the block through the block cache, or read it from the disk file every time if there's
+   * no block cache.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T loadCached(long offset, int size, BlockParser<T> parser,
+      ToLongFunction<T> heapSize) throws IOException {
+    BlockCache.BlockKey cacheKey = null;
+    if (blockCache != null) {
+      cacheKey = new BlockCache.BlockKey(fname, offset);
+      Object cached = blockCache.get(cacheKey);
+      if (cached != null) {
+        return (T) cached;
+      }
+    }
+    T block = parser.parse(read(offset, size));
+    if (blockCache != null) {
+      blockCache.put(cacheKey, block, heapSize.applyAsLong(block));
+    }
+    return block;
+  }
+
+  /**
+   * @param verify true to verify the checksum of the block.
+   * @throws CorruptedBlockException if the block is corrupted.
+   */
+  private BlockReader loadDataBlock(long offset, int size, boolean keyOnly, boolean verify,
+      byte[] prefetched) throws IOException {
+    try {
+      return parseDataBlock(offset, size, keyOnly, verify, prefetched);
+    } catch (CorruptedBlockException e) {
+      throw new CorruptedBlockException(e.getMessage() + " at offset " + offset + " of " + fname,
+          e);
+    }
+  }
+
+  /**
+   * A data block in the block cache, which is the stored block if the cache keeps the blocks
+   * compressed, otherwise the decompressed one.
+   */
+  private static class CachedBlock {
+    private final byte[] buf;
+    // Whether the checksum was verified when the block was read from the disk file. The block is
+    // read again once a reader verifying the checksums hits it unverified.
+    private final boolean verified;
+
+    CachedBlock(byte[] buf, boolean verified) {
+      this.buf = buf;
+      this.verified = verified;
+    }
+
+    long heapSize() {
+      return 16 + 1 + DiskFile.heapSize(buf);
+    }
+  }
+
+  private BlockReader parseDataBlock(long offset, int size, boolean keyOnly, boolean verify,
+      byte[] prefetched) throws IOException {
+    int restartInterval = formatOptions.getRestartInterval();
+    if (blockCache == null) {
+      byte[] block = prefetched != null ? prefetched : read(offset, size);
+      return decodeBlock(block, checkBlock(block, verify), restartInterval, keyOnly);
+    }
+
+    // The checksum is verified only when the block is read from the disk file, the blocks in the
+    // cache are trusted.
+    BlockCache.BlockKey cacheKey = new BlockCache.BlockKey(fname, offset);
+    CachedBlock cached = (CachedBlock) blockCache.get(cacheKey);
+    if (cached == null || (verify && !cached.verified)) {
+      byte[] block = prefetched != null ? prefetched : read(offset, size);
+      int rawSize = checkBlock(block, verify);
+      if (!blockCache.isCacheCompressed()) {
+        byte[] raw = new byte[rawSize];
+        decompressBlock(block, raw, rawSize);
+        block = raw;
+      }
+      cached = new CachedBlock(block, verify);
+      blockCache.put(cacheKey, cached, cached.heapSize());
+    }
+    if (blockCache.isCacheCompressed()) {
+      return decodeBlock(cached.buf, getRawBlockSize(cached.buf), restartInterval, keyOnly);
+    }
+    return BlockReader.parseFrom(cached.buf, 0, cached.buf.length, restartInterval, keyOnly,
+        null);
+  }
+
+  /**
+   * Decode the stored block, whose header has been checked.
+   */
+  private static BlockReader decodeBlock(byte[] block, int rawSize, int restartInterval,
+      boolean keyOnly) throws IOException {
+    if (block[0] == Codec.NONE_ID) {
+      return BlockReader.parseFrom(block, BLOCK_HEADER_SIZE, rawSize, restartInterval, keyOnly,
+          null);
+    }
+    // The reader decodes the key values from the pooled buffer lazily, and releases the buffer
+    // once it's closed.
+    byte[] buffer = BLOCK_BUFFERS.acquire(rawSize);
+    try {
+      decompressBlock(block, buffer, rawSize);
+      return BlockReader.parseFrom(buffer, 0, rawSize, restartInterval, keyOnly, BLOCK_BUFFERS);
+    } catch (IOException | RuntimeException e) {
+      BLOCK_BUFFERS.release(buffer);
+      throw e;
+    }
+  }
+
+  /**
+   * Read the data block in background ahead of the iterator.
+   *
+   * @return the block, or null if it's cached already.
+   */
+  private byte[] prefetchDataBlock(long offset, int size) throws IOException {
+    if (blockCache != null && blockCache.contains(new BlockCache.BlockKey(fname, offset))) {
+      return null;
+    }
+    return read(offset, size);
+  }
 
-    assert in.read(buffer) == buffer.length;
-    return BlockReader.parseFrom(buffer, 0, buffer.length);
+  private static long heapSize(byte[] buf) {
+    return 16 + buf.length;
+  }
+
+  private byte[] read(long offset, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+
+    // Use the positional read rather than seek + read, so that several iterators can share the
+    // file handle concurrently.
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      RandomAccessFile handle = in;
+      int n;
+      try {
+        n = handle.getChannel().read(buffer, position);
+      } catch (ClosedByInterruptException e) {
+        // The interrupt closed the channel shared by all the readers, so reopen it for them.
+        reopenHandle(handle, e);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted when reading block at offset " + offset
+            + " of " + fname);
+      } catch (ClosedChannelException e) {
+        // Closed by the interrupt of another reader, retry with the reopened channel.
+        reopenHandle(handle, e);
+        continue;
+      }
+      if (n < 0) {
+        throw new IOException("Unexpected EOF when reading block at offset " + offset + " of "
+            + fname);
+      }
+      position += n;
+    }
+    return buffer.array();
+  }
+
+  /**
+   * A data block being read ahead in background.
+   */
+  private static class Prefetch {
+
+    private final int block;
+    private final Future<byte[]> future;
+
+    private Prefetch(int block, Future<byte[]> future) {
+      this.block = block;
+      this.future = future;
+    }
   }
 
   private class InternalIterator implements SeekIter<KeyValue> {
 
-    private int currentKVIndex = 0;
     private BlockReader currentReader;
-    private Iterator<BlockMeta> blockMetaIter;
-
-    public InternalIterator() {
+    // The index can't be dropped while the iterator pins the disk file.
+    private final BlockIndex top;
+    private BlockIndex partition = null;
+    private int partitionNo = -1;
+    private int nextBlock = 0;
+    private boolean keyOnly;
+    // The key values whose key is rejected by the filter are skipped, null means none.
+    private final Filter filter;
+    // The seeks are for the point gets, which use the hash index of the blocks.
+    private boolean point;
+    private boolean verifyChecksums;
+    private boolean closed = false;
+    // The sequence id which overrides the written ones of an ingested disk file, 0 means none.
+    private final long globalSequenceId;
+
+    // The max number of blocks read ahead, 0 means no readahead.
+    private final int readaheadBlocks;
+    // Read ahead from the first block rather than waiting for the scan to be sequential.
+    private final boolean alwaysReadahead;
+    // The number of consecutive blocks read since the last seek.
+    private int sequentialBlocks = 0;
+    private final ArrayDeque<Prefetch> prefetches = new ArrayDeque<>();
+    // The next block to read ahead.
+    private int prefetchBlock = 0;
+
+    public InternalIterator(boolean keyOnly, Filter filter, boolean point,
+        boolean verifyChecksums, int readaheadBlocks, boolean alwaysReadahead) {
+      this.keyOnly = keyOnly;
+      this.filter = filter;
+      this.point = point;
+      this.verifyChecksums = verifyChecksums;
+      this.readaheadBlocks = readaheadBlocks;
+      this.alwaysReadahead = alwaysReadahead;
       currentReader = null;
-      blockMetaIter = blockMetaSet.iterator();
+      top = topIndex;
+      globalSequenceId = fileMeta == null ? 0L : fileMeta.getGlobalSequenceId();
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        closeReader();
+        cancelPrefetches();
+        unpin();
+      }
+    }
+
+    private BlockIndex getPartition(int p) throws IOException {
+      return p == partitionNo ? partition : loadIndexPartition(top, p);
+    }
+
+    /**
+     * Keep the blocks after the next block being read ahead, up to the readahead blocks.
+     */
+    private void readahead() throws IOException {
+      prefetchBlock = Math.max(prefetchBlock, nextBlock + 1);
+      int end = Math.min(nextBlock + 1 + readaheadBlocks, blockCount);
+      for (; prefetchBlock < end; prefetchBlock++) {
+        BlockIndex index = getPartition(prefetchBlock / indexPartitionBlocks);
+        int i = prefetchBlock % indexPartitionBlocks;
+        long offset = index.getBlockOffset(i);
+        int size = index.getBlockSize(i);
+        prefetches.add(new Prefetch(prefetchBlock,
+            READAHEAD_POOL.submit(() -> prefetchDataBlock(offset, size))));
+      }
+    }
+
+    /**
+     * @return the next block if it has been read ahead, otherwise null.
+     */
+    private byte[] takePrefetched() throws IOException {
+      while (!prefetches.isEmpty() && prefetches.peek().block < nextBlock) {
+        prefetches.poll().future.cancel(false);
+      }
+      if (prefetches.isEmpty() || prefetches.peek().block != nextBlock) {
+        return null;
+      }
+      try {
+        return prefetches.poll().future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted when reading ahead " + fname);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Failed to read ahead " + fname, e.getCause());
+      }
+    }
+
+    private void cancelPrefetches() {
+      // Never interrupt the reads, which would close the file channel shared by other readers.
+      for (Prefetch prefetch : prefetches) {
+        prefetch.future.cancel(false);
+      }
+      prefetches.clear();
+      prefetchBlock = 0;
+    }
+
+    private void closeReader() {
+      if (currentReader != null) {
+        currentReader.close();
+        currentReader = null;
+      }
     }
 
     private boolean nextBlockReader() throws IOException {
-      if (blockMetaIter.hasNext()) {
-        currentReader = load(blockMetaIter.next());
-        currentKVIndex = 0;
-        return true;
-      } else {
+      closeReader();
+      if (nextBlock >= blockCount) {
         return false;
       }
+      int p = nextBlock / indexPartitionBlocks;
+      if (p != partitionNo) {
+        partition = loadIndexPartition(top, p);
+        partitionNo = p;
+      }
+      sequentialBlocks++;
+      if (readaheadBlocks > 0
+          && (alwaysReadahead || sequentialBlocks >= READAHEAD_TRIGGER_BLOCKS)) {
+        readahead();
+      }
+      int i = nextBlock % indexPartitionBlocks;
+      currentReader = loadDataBlock(partition.getBlockOffset(i), partition.getBlockSize(i),
+        keyOnly, verifyChecksums, takePrefetched());
+      nextBlock++;
+      return true;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      if (currentReader == null) {
-        return nextBlockReader();
-      } else {
-        if (currentKVIndex < currentReader.getKeyValues().size()) {
-          return true;
-        } else {
-          return nextBlockReader();
+      if (currentReader == null && !nextBlockReader()) {
+        return false;
+      }
+      // A block may have no key value left once the filter rejected its keys.
+      while (!(filter == null ? currentReader.hasNext() : currentReader.hasNext(filter))) {
+        if (!nextBlockReader()) {
+          return false;
         }
       }
+      return true;
     }
 
     @Override
     public KeyValue next() throws IOException {
-      return currentReader.getKeyValues().get(currentKVIndex++);
+      KeyValue kv = currentReader.next();
+      if (globalSequenceId > 0) {
+        kv = KeyValue.create(kv.getKey(), kv.getValue(), kv.getOp(), globalSequenceId);
+      }
+      return kv;
     }
 
     @Override
     public void seekTo(KeyValue target) throws IOException {
-      // Locate the smallest block meta which has the lastKV >= target.
-      blockMetaIter = blockMetaSet.tailSet(BlockMeta.createSeekDummy(target)).iterator();
-      currentReader = null;
-      if (blockMetaIter.hasNext()) {
-        currentReader = load(blockMetaIter.next());
-        currentKVIndex = 0;
-        // Locate the smallest KV which is greater than or equals to the given KV. We're sure that
-        // we can find the currentKVIndex, because lastKV of the block is greater than or equals
-        // to the target KV.
-        while (currentKVIndex < currentReader.getKeyValues().size()) {
-          KeyValue curKV = currentReader.getKeyValues().get(currentKVIndex);
-          if (curKV.compareTo(target) >= 0) {
-            break;
-          }
-          currentKVIndex++;
+      // All the key values before the located block have a smaller key than the target.
+      nextBlock = seekBlock(top, target.getKey());
+      // The scan has to become sequential again before reading ahead.
+      sequentialBlocks = 0;
+      cancelPrefetches();
+      while (nextBlockReader()) {
+        // The located block is the first one which may contain the target key, so the key is
+        // absent in the file if the hash index says it's absent in the block.
+        if (point && currentReader.lookupRestart(target.getKey()) == BlockWriter.BUCKET_EMPTY) {
+          closeReader();
+          nextBlock = blockCount;
+          return;
         }
-        if (currentKVIndex >= currentReader.getKeyValues().size()) {
-          throw new IOException("Data block mis-encoded, lastKV of the currentReader >= kv, but " +
-                                "we found all kv < target");
+        // Locate the smallest KV which is greater than or equals to the given KV. The block may
+        // have none of them if the versions of the target key continue in the next block.
+        if (currentReader.seekTo(target, point)) {
+          return;
         }
       }
     }
   }
 
-  public SeekIter<KeyValue> iterator() {
-    return new InternalIterator();
+  public SeekIter<KeyValue> iterator() throws IOException {
+    return iterator(false);
+  }
+
+  /**
+   * @param keyOnly if true, the iterator will return the key values with empty value.
+   */
+  public SeekIter<KeyValue> iterator(boolean keyOnly) throws IOException {
+    return iterator(keyOnly, true, READAHEAD_BLOCKS);
+  }
+
+  /**
+   * @param verifyChecksums true to verify the checksums of the data blocks, a corrupted block
+   *                        fails the iterator with {@link CorruptedBlockException}.
+   * @param readaheadBlocks the number of blocks read ahead in background once the iterator has
+   *                        read two consecutive blocks, 0 means no readahead.
+   */
+  public SeekIter<KeyValue> iterator(boolean keyOnly, boolean verifyChecksums,
+      int readaheadBlocks) throws IOException {
+    return iterator(keyOnly, null, verifyChecksums, readaheadBlocks);
+  }
+
+  /**
+   * @param filter the filter whose {@link Filter#filterKey(byte[])} drops the key values before
+   *               their values are decoded, null means none.
+   */
+  public SeekIter<KeyValue> iterator(boolean keyOnly, Filter filter, boolean verifyChecksums,
+      int readaheadBlocks) throws IOException {
+    // The disk file is pinned until the iterator is closed.
+    pin();
+    return new InternalIterator(keyOnly, filter, false, verifyChecksums, readaheadBlocks, false);
+  }
+
+  /**
+   * Create the iterator which reads the whole disk file, such as the input of compaction. It reads
+   * ahead from the first block on.
+   */
+  public SeekIter<KeyValue> sequentialIterator(boolean verifyChecksums, int readaheadBlocks)
+      throws IOException {
+    pin();
+    return new InternalIterator(false, null, false, verifyChecksums, readaheadBlocks, true);
+  }
+
+  public SeekIter<KeyValue> pointIterator() throws IOException {
+    return pointIterator(true);
+  }
+
+  /**
+   * Create the iterator for the point gets, whose seeks use the hash index of the data blocks.
+   * After seeking to a key which is absent, the iterator may skip the key values of other keys.
+   */
+  public SeekIter<KeyValue> pointIterator(boolean verifyChecksums) throws IOException {
+    pin();
+    return new InternalIterator(false, null, true, verifyChecksums, 0, false);
   }
 
   @Override
   public void close() throws IOException {
-    if (in != null) {
-      in.close();
+    synchronized (this) {
+      try {
+        closeHandle();
+      } finally {
+        if (tableCache != null) {
+          tableCache.remove(this);
+        }
+      }
+    }
+    if (blockCache != null) {
+      blockCache.evictFile(fname);
     }
   }
 }
@@ -0,0 +1,104 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskFile.FileMeta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Build a disk file outside of the store, which can be added to a store by
+ * {@link MStore#ingest(java.util.List)} without passing the key values through the memstore, the
+ * flush and the compactions. The keys must be added in strictly ascending order, so each key has a
+ * single version, whose sequence id is assigned by the store when the disk file is ingested.
+ * <p>
+ * The disk file is written to a temporary file and renamed once finished, so an unfinished disk
+ * file is never mistaken for a complete one.
+ */
+public class DiskFileBuilder implements Closeable {
+
+  private static final String FILE_NAME_TMP_SUFFIX = ".tmp";
+
+  private final String fileName;
+  private final String fileTempName;
+  private DiskFileWriter writer;
+  private byte[] lastKey = null;
+  private FileMeta fileMeta = null;
+
+  public DiskFileBuilder(String fileName) throws IOException {
+    this(fileName, new FormatOptions());
+  }
+
+  /**
+   * @param options the layout of the disk file, which may differ from the options of the store.
+   */
+  public DiskFileBuilder(String fileName, FormatOptions options) throws IOException {
+    this.fileName = fileName;
+    this.fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
+    this.writer = new DiskFileWriter(fileTempName, options);
+  }
+
+  public DiskFileBuilder put(byte[] key, byte[] value) throws IOException {
+    return add(KeyValue.createPut(key, value, 0L));
+  }
+
+  /**
+   * Add a delete marker, which deletes the older versions of the key in the store.
+   */
+  public DiskFileBuilder delete(byte[] key) throws IOException {
+    return add(KeyValue.createDelete(key, 0L));
+  }
+
+  private DiskFileBuilder add(KeyValue kv) throws IOException {
+    if (writer == null) {
+      throw new IllegalStateException("The disk file builder is finished or closed");
+    }
+    if (lastKey != null && Bytes.compare(lastKey, kv.getKey()) >= 0) {
+      throw new IllegalArgumentException("Key " + Bytes.toHex(kv.getKey())
+          + " should be greater than the last key " + Bytes.toHex(lastKey));
+    }
+    writer.append(kv);
+    lastKey = kv.getKey();
+    return this;
+  }
+
+  /**
+   * Write the index and the trailer, then rename the disk file to its name.
+   *
+   * @return the meta of the built disk file.
+   */
+  public FileMeta finish() throws IOException {
+    if (writer == null) {
+      throw new IllegalStateException("The disk file builder is finished or closed");
+    }
+    writer.appendIndex();
+    writer.appendTrailer();
+    writer.close();
+    FileMeta meta = writer.getFileMeta(new File(fileName).getName());
+    writer = null;
+    if (!new File(fileTempName).renameTo(new File(fileName))) {
+      throw new IOException("Rename " + fileTempName + " to " + fileName + " failed");
+    }
+    fileMeta = meta;
+    return meta;
+  }
+
+  /**
+   * Abandon the disk file unless it's finished.
+   */
+  @Override
+  public void close() throws IOException {
+    if (writer != null) {
+      try {
+        writer.close();
+      } finally {
+        writer = null;
+        new File(fileTempName).delete();
+      }
+    }
+    if (fileMeta == null) {
+      new File(fileTempName).delete();
+    }
+  }
+}
@@ -1,20 +1,43 @@
 package org.apache.minibase;
 
 import org.apache.log4j.Logger;
+import org.apache.minibase.BlobFile.BlobMeta;
+import org.apache.minibase.BlobFile.BlobRef;
+import org.apache.minibase.BlobFile.BlobWriter;
+import org.apache.minibase.DiskFile.ChecksumVerification;
 import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskFile.FileMeta;
+import org.apache.minibase.KeyValue.Op;
 import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Compactor;
+import org.apache.minibase.MiniBase.Filter;
 import org.apache.minibase.MiniBase.Flusher;
 import org.apache.minibase.MiniBase.Iter;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,15 +49,215 @@ public class DiskStore implements Closeable {
   private static final Pattern DATA_FILE_RE = Pattern.compile("data\\.([0-9]+)"); // data.1
 
   private String dataDir;
-  private List<DiskFile> diskFiles;
+  // The current version of the disk files. Readers pin a version without any lock, and the
+  // writers (flush and compaction) publish a new version under the lock of this disk store.
+  private final AtomicReference<Version> current;
+
+  private Manifest manifest;
 
   private int maxDiskFiles;
+  private double compactionTombstoneRatio;
+  private FormatOptions formatOptions;
+  private int blobValueThreshold;
+  private double blobGarbageRatio;
+  private int readaheadBlocks;
+  private int compactionReadaheadBlocks;
+  private boolean preallocateDiskFiles;
+  private ChecksumVerification checksumVerification;
+  private long maxMemstoreSize;
+  private MergeOperator mergeOperator;
   private volatile AtomicLong maxFileId;
+  private volatile boolean closed = false;
+
+  private TableCache tableCache;
+  private BlockCache blockCache;
 
   public DiskStore(String dataDir, int maxDiskFiles) {
+    this(new Config().setDataDir(dataDir).setMaxDiskFiles(maxDiskFiles));
+  }
+
+  public DiskStore(Config conf) {
+    this(conf.getDataDir(), conf, new TableCache(conf.getMaxOpenFiles()),
+        new BlockCache(conf.getBlockCacheSize(), conf.isCacheCompressedBlocks()));
+  }
+
+  /**
+   * Create the disk store of a column family, which shares the caches with the other column
+   * families of the store.
+   *
+   * @param dataDir the directory of the disk store, the data directory of the config is ignored.
+   */
+  public DiskStore(String dataDir, Config conf, TableCache tableCache, BlockCache blockCache) {
     this.dataDir = dataDir;
-    this.diskFiles = new ArrayList<>();
-    this.maxDiskFiles = maxDiskFiles;
+    this.current = new AtomicReference<>(new Version(new ArrayList<>(), new ArrayList<>()));
+    this.maxDiskFiles = conf.getMaxDiskFiles();
+    this.compactionTombstoneRatio = conf.getCompactionTombstoneRatio();
+    this.tableCache = tableCache;
+    this.blockCache = blockCache;
+    this.formatOptions = conf.getFormatOptions();
+    this.blobValueThreshold = conf.getBlobValueThreshold();
+    this.blobGarbageRatio = conf.getBlobGarbageRatio();
+    this.readaheadBlocks = conf.getReadaheadBlocks();
+    this.compactionReadaheadBlocks = conf.getCompactionReadaheadBlocks();
+    this.preallocateDiskFiles = conf.isPreallocateDiskFiles();
+    this.checksumVerification = conf.getChecksumVerification();
+    this.maxMemstoreSize = conf.getMaxMemstoreSize();
+    this.mergeOperator = conf.getMergeOperator();
+  }
+
+  /**
+   * Create a disk file which will be opened on demand through the table cache, and read its index
+   * partitions through the block cache.
+   */
+  private DiskFile newDiskFile(String fileName, FileMeta meta) {
+    return new DiskFile(fileName, meta, tableCache, blockCache);
+  }
+
+  /**
+   * Create the writer of a flushed or compacted disk file, which is written with the configured
+   * format options.
+   *
+   * @param expectedSize the size to preallocate if it's enabled.
+   */
+  DiskFileWriter newDiskFileWriter(String fileName, long expectedSize) throws IOException {
+    DiskFileWriter writer = new DiskFileWriter(fileName, formatOptions);
+    if (preallocateDiskFiles) {
+      try {
+        writer.preallocate(expectedSize);
+      } catch (IOException e) {
+        writer.close();
+        throw e;
+      }
+    }
+    return writer;
+  }
+
+  public TableCache getTableCache() {
+    return tableCache;
+  }
+
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  /**
+   * An immutable set of the disk files and blob files. A version holds a reference on each of its
+   * files, and the disk store holds a reference on the current version. A file will be closed and
+   * archived only after all the versions containing it have been released, so the readers can
+   * safely read the files while the compaction replaces them.
+   */
+  public class Version {
+
+    private final List<DiskFile> diskFiles;
+    private final List<BlobFile> blobFiles;
+    private final Map<Long, BlobFile> blobFileById = new HashMap<>();
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private Version(List<DiskFile> diskFiles, List<BlobFile> blobFiles) {
+      this.diskFiles = Collections.unmodifiableList(diskFiles);
+      this.blobFiles = Collections.unmodifiableList(blobFiles);
+      this.diskFiles.forEach(DiskFile::retain);
+      for (BlobFile bf : blobFiles) {
+        bf.retain();
+        blobFileById.put(bf.getFileId(), bf);
+      }
+    }
+
+    public List<DiskFile> getDiskFiles() {
+      return diskFiles;
+    }
+
+    public List<BlobFile> getBlobFiles() {
+      return blobFiles;
+    }
+
+    int getRefCount() {
+      return refCount.get();
+    }
+
+    /**
+     * Read the value which the reference points to.
+     */
+    public byte[] readBlob(BlobRef ref) throws IOException {
+      BlobFile bf = blobFileById.get(ref.getFileId());
+      if (bf == null) {
+        throw new IOException("Blob file " + BlobFile.fileName(ref.getFileId()) + " not found");
+      }
+      return bf.read(ref);
+    }
+
+    /**
+     * @return false if the version has been released by all holders, which means it's no longer
+     * the current version.
+     */
+    private boolean tryRetain() {
+      while (true) {
+        int count = refCount.get();
+        if (count <= 0) {
+          return false;
+        }
+        if (refCount.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    public void release() throws IOException {
+      if (refCount.decrementAndGet() == 0) {
+        IOException releaseException = null;
+        for (DiskFile df : diskFiles) {
+          try {
+            if (df.release()) {
+              retireDiskFile(df);
+            }
+          } catch (IOException e) {
+            releaseException = e;
+          }
+        }
+        for (BlobFile bf : blobFiles) {
+          try {
+            if (bf.release()) {
+              retireBlobFile(bf);
+            }
+          } catch (IOException e) {
+            releaseException = e;
+          }
+        }
+        if (releaseException != null) {
+          throw releaseException;
+        }
+      }
+    }
+  }
+
+  /**
+   * Close the disk file which is referenced by no version, and archive it if it has been removed
+   * by compaction.
+   */
+  private void retireDiskFile(DiskFile df) throws IOException {
+    df.close();
+    if (df.isObsolete()) {
+      File file = new File(df.getFileName());
+      File archiveFile = new File(df.getFileName() + FILE_NAME_ARCHIVE_SUFFIX);
+      if (!file.renameTo(archiveFile)) {
+        LOG.error("Rename " + df.getFileName() + " to " + archiveFile.getName() + " failed.");
+      }
+    }
+  }
+
+  /**
+   * Close the blob file which is referenced by no version, and archive it if it has been removed
+   * by compaction.
+   */
+  private void retireBlobFile(BlobFile bf) throws IOException {
+    bf.close();
+    if (bf.isObsolete()) {
+      File file = new File(bf.getFileName());
+      File archiveFile = new File(bf.getFileName() + FILE_NAME_ARCHIVE_SUFFIX);
+      if (!file.renameTo(archiveFile)) {
+        LOG.error("Rename " + bf.getFileName() + " to " + archiveFile.getName() + " failed.");
+      }
+    }
   }
 
   private File[] listDiskFiles() {
@@ -42,8 +265,11 @@ public class DiskStore implements Closeable {
     return f.listFiles(fname -> DATA_FILE_RE.matcher(fname.getName()).matches());
   }
 
+  /**
+   * @return the max id of the data files under the data directory. Only used when there's no
+   * manifest, otherwise the max file id is recorded in the manifest.
+   */
   public synchronized long getMaxDiskId() {
-    // TODO can we save the maxFileId ? and next time, need not to traverse the disk file.
     File[] files = listDiskFiles();
     long maxFileId = -1L;
     for (File f : files) {
@@ -59,99 +285,862 @@ public class DiskStore implements Closeable {
     return maxFileId.incrementAndGet();
   }
 
-  public void addDiskFile(DiskFile df) {
-    synchronized (diskFiles) {
-      diskFiles.add(df);
+  /**
+   * Publish a new version, which removes the given disk files from the current version and adds
+   * the new disk files. The change is persisted in the manifest before it's published.
+   */
+  public void replaceDiskFiles(Collection<DiskFile> removed, Collection<DiskFile> added)
+      throws IOException {
+    replaceFiles(removed, added, Collections.emptyList(), Collections.emptyMap());
+  }
+
+  /**
+   * Publish a new version like {@link #replaceDiskFiles(Collection, Collection)}, which also adds
+   * the blob files written by the flush or compaction, and adds the garbage bytes to the existing
+   * blob files. A blob file is removed once all of its values are garbage.
+   *
+   * @param blobGarbage the total length of the blob values whose references are dropped by the
+   *                    compaction, by the blob file id.
+   */
+  synchronized void replaceFiles(Collection<DiskFile> removed, Collection<DiskFile> added,
+      Collection<BlobFile> addedBlobs, Map<Long, Long> blobGarbage) throws IOException {
+    if (closed) {
+      throw new IOException("Disk store has been closed: " + dataDir);
     }
+    List<FileMeta> addedMetas = new ArrayList<>();
+    for (DiskFile df : added) {
+      addedMetas.add(df.getFileMeta() != null ? df.getFileMeta() : df.readFileMeta());
+    }
+    List<String> removedNames = new ArrayList<>();
+    for (DiskFile df : removed) {
+      removedNames.add(new File(df.getFileName()).getName());
+    }
+
+    Version prev = current.get();
+    List<BlobMeta> addedBlobMetas = new ArrayList<>();
+    for (BlobFile bf : addedBlobs) {
+      addedBlobMetas.add(bf.getBlobMeta());
+    }
+    Map<BlobFile, BlobMeta> updatedBlobs = new HashMap<>();
+    List<BlobFile> removedBlobs = new ArrayList<>();
+    List<String> removedBlobNames = new ArrayList<>();
+    for (BlobFile bf : prev.getBlobFiles()) {
+      Long garbage = blobGarbage.get(bf.getFileId());
+      if (garbage == null || garbage == 0) {
+        continue;
+      }
+      BlobMeta meta = bf.getBlobMeta();
+      meta = meta.withGarbage(meta.getGarbageBytes() + garbage);
+      if (meta.getGarbageBytes() >= meta.getTotalBytes()) {
+        removedBlobs.add(bf);
+        removedBlobNames.add(meta.getFileName());
+      } else {
+        updatedBlobs.put(bf, meta);
+        addedBlobMetas.add(meta);
+      }
+    }
+    manifest.append(new Manifest.Edit(addedMetas, removedNames, maxFileId.get(), addedBlobMetas,
+        removedBlobNames));
+
+    List<DiskFile> diskFiles = new ArrayList<>(prev.getDiskFiles());
+    diskFiles.removeAll(removed);
+    diskFiles.addAll(added);
+    removed.forEach(DiskFile::markObsolete);
+    List<BlobFile> blobFiles = new ArrayList<>(prev.getBlobFiles());
+    blobFiles.removeAll(removedBlobs);
+    blobFiles.addAll(addedBlobs);
+    removedBlobs.forEach(BlobFile::markObsolete);
+    updatedBlobs.forEach(BlobFile::setBlobMeta);
+    current.set(new Version(diskFiles, blobFiles));
+    prev.release();
+  }
+
+  public void addDiskFile(DiskFile df) throws IOException {
+    replaceDiskFiles(Collections.emptyList(), Collections.singletonList(df));
   }
 
   public synchronized void addDiskFile(String filename) throws IOException {
     DiskFile df = new DiskFile();
     df.open(filename);
-    addDiskFile(df);
+    FileMeta meta = df.readFileMeta();
+    df.close();
+    addDiskFile(newDiskFile(filename, meta));
+  }
+
+  /**
+   * Add the disk files built by {@link DiskFileBuilder} to the current version at once. The disk
+   * files are hard linked into the data directory, or copied if the file system can't link them,
+   * and all their key values take the given sequence id.
+   *
+   * @param paths            the disk files, whose key ranges must not overlap with each other.
+   * @param globalSequenceId the sequence id assigned to the key values of the disk files.
+   */
+  public void ingest(List<Path> paths, long globalSequenceId) throws IOException {
+    List<FileMeta> metas = new ArrayList<>();
+    for (Path path : paths) {
+      DiskFile df = new DiskFile();
+      try {
+        df.open(path.toString());
+        FileMeta meta = df.readFileMeta();
+        if (meta.getMaxSequenceId() > 0 || meta.getRangeTombstoneCount() > 0) {
+          throw new IOException("Disk file " + path + " is not built by DiskFileBuilder");
+        }
+        if (meta.isEmpty()) {
+          throw new IOException("Disk file " + path + " is empty");
+        }
+        metas.add(meta);
+      } finally {
+        df.close();
+      }
+    }
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < metas.size(); i++) {
+      order.add(i);
+    }
+    order.sort((a, b) -> Bytes.compare(metas.get(a).getMinKey(), metas.get(b).getMinKey()));
+    for (int i = 1; i < order.size(); i++) {
+      FileMeta prev = metas.get(order.get(i - 1)), meta = metas.get(order.get(i));
+      if (Bytes.compare(prev.getMaxKey(), meta.getMinKey()) >= 0) {
+        throw new IOException("Key range of disk file " + paths.get(order.get(i - 1))
+            + " overlaps with disk file " + paths.get(order.get(i)));
+      }
+    }
+
+    List<DiskFile> added = new ArrayList<>();
+    try {
+      for (int i = 0; i < paths.size(); i++) {
+        String fileName = getNextDiskFileName();
+        Path target = new File(fileName).toPath();
+        linkOrCopy(paths.get(i), target);
+        added.add(newDiskFile(fileName, metas.get(i).withFile(target.toFile().getName(),
+            metas.get(i).getFileSize()).withGlobalSequenceId(globalSequenceId)));
+      }
+      replaceDiskFiles(Collections.emptyList(), added);
+    } catch (IOException e) {
+      for (DiskFile df : added) {
+        new File(df.getFileName()).delete();
+      }
+      throw e;
+    }
+  }
+
+  private static void linkOrCopy(Path source, Path target) throws IOException {
+    try {
+      Files.createLink(target, source);
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(source, target);
+    }
+  }
+
+  /**
+   * Write an openable copy of the disk store into the target directory. The disk files and blob
+   * files of the current version are hard linked, or copied if the file system can't link them,
+   * so the copy takes no extra space until the compaction replaces the files of either side. The
+   * given key values of the memstore are written into a new disk file of the copy, and a manifest
+   * of all the files is written at last.
+   *
+   * @param targetDir       the directory of the copy, which must be empty or absent.
+   * @param memstore        the key values of the memstore, in the order of {@link KeyValue}.
+   * @param rangeTombstones the range tombstones of the memstore.
+   * @param readPoint       the key values and range tombstones newer than it are left out.
+   */
+  public void checkpoint(String targetDir, Iter<KeyValue> memstore,
+      List<RangeTombstone> rangeTombstones, long readPoint) throws IOException {
+    File dir = new File(targetDir);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create the checkpoint directory " + targetDir);
+    }
+    String[] existing = dir.list();
+    if (existing == null || existing.length > 0) {
+      throw new IOException("Checkpoint directory " + targetDir + " is not empty");
+    }
+    List<File> created = new ArrayList<>();
+    Version version = acquireVersion();
+    try {
+      List<FileMeta> metas = new ArrayList<>();
+      List<BlobMeta> blobMetas = new ArrayList<>();
+      for (DiskFile df : version.getDiskFiles()) {
+        File target = new File(dir, new File(df.getFileName()).getName());
+        created.add(target);
+        linkOrCopy(new File(df.getFileName()).toPath(), target.toPath());
+        metas.add(df.getFileMeta() != null ? df.getFileMeta() : df.readFileMeta());
+      }
+      for (BlobFile bf : version.getBlobFiles()) {
+        File target = new File(dir, new File(bf.getFileName()).getName());
+        created.add(target);
+        linkOrCopy(new File(bf.getFileName()).toPath(), target.toPath());
+        blobMetas.add(bf.getBlobMeta());
+      }
+
+      // The file id is taken from the disk store, so it never collides with the linked files.
+      long fileId = nextDiskFileId();
+      String fileName = new File(dir, String.format("data.%020d", fileId)).getPath();
+      String fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
+      created.add(new File(fileTempName));
+      created.add(new File(fileName));
+      DiskFileWriter writer = null;
+      try {
+        while (memstore.hasNext()) {
+          KeyValue kv = memstore.next();
+          if (kv.getSequenceId() <= readPoint) {
+            writer = writer != null ? writer : new DiskFileWriter(fileTempName, formatOptions);
+            writer.append(kv);
+          }
+        }
+        for (RangeTombstone t : rangeTombstones) {
+          if (t.getSequenceId() <= readPoint) {
+            writer = writer != null ? writer : new DiskFileWriter(fileTempName, formatOptions);
+            writer.appendRangeTombstone(t);
+          }
+        }
+        if (writer != null) {
+          writer.appendIndex();
+          writer.appendTrailer();
+          metas.add(writer.getFileMeta(new File(fileName).getName()));
+        }
+      } finally {
+        if (writer != null) {
+          writer.close();
+        }
+      }
+      if (writer != null && !new File(fileTempName).renameTo(new File(fileName))) {
+        throw new IOException("Rename " + fileTempName + " to " + fileName + " failed");
+      }
+
+      Manifest.create(targetDir, new Manifest.Edit(metas, new ArrayList<>(), fileId, blobMetas,
+          new ArrayList<>())).close();
+      created.clear();
+      LOG.info("Checkpoint " + dataDir + " into " + targetDir + " with " + metas.size()
+          + " disk files and " + blobMetas.size() + " blob files");
+    } finally {
+      version.release();
+      // Clean up the incomplete checkpoint.
+      for (File f : created) {
+        f.delete();
+      }
+    }
   }
 
   public synchronized String getNextDiskFileName() {
     return new File(this.dataDir, String.format("data.%020d", nextDiskFileId())).toString();
   }
 
-  public void open() throws IOException {
-    File[] files = listDiskFiles();
-    for (File f : files) {
-      DiskFile df = new DiskFile();
-      df.open(f.getAbsolutePath());
-      diskFiles.add(df);
+  /**
+   * The blob files share the file ids with the disk files.
+   */
+  public synchronized String getNextBlobFileName() {
+    return new File(this.dataDir, BlobFile.fileName(nextDiskFileId())).toString();
+  }
+
+  /**
+   * Open the disk store with the manifest, the disk files won't be opened until they're read.
+   * If there's no manifest, open all the data files under the data directory and create one.
+   */
+  public synchronized void open() throws IOException {
+    Manifest.Edit base = Manifest.replay(dataDir);
+    List<DiskFile> diskFiles = new ArrayList<>();
+    List<BlobFile> blobFiles = new ArrayList<>();
+    if (base != null) {
+      for (FileMeta meta : base.getAdded()) {
+        diskFiles.add(newDiskFile(new File(dataDir, meta.getFileName()).toString(), meta));
+      }
+      for (BlobMeta meta : base.getAddedBlobs()) {
+        blobFiles.add(new BlobFile(new File(dataDir, meta.getFileName()).toString(), meta));
+      }
+      maxFileId = new AtomicLong(base.getMaxFileId());
+    } else {
+      List<FileMeta> metas = new ArrayList<>();
+      for (File f : listDiskFiles()) {
+        DiskFile df = new DiskFile();
+        df.open(f.getAbsolutePath());
+        metas.add(df.readFileMeta());
+        diskFiles.add(newDiskFile(df.getFileName(), metas.get(metas.size() - 1)));
+        df.close();
+      }
+      maxFileId = new AtomicLong(getMaxDiskId());
+      base = new Manifest.Edit(metas, new ArrayList<>(), maxFileId.get());
     }
-    maxFileId = new AtomicLong(getMaxDiskId());
+    manifest = Manifest.create(dataDir, base);
+
+    Version prev = current.getAndSet(new Version(diskFiles, blobFiles));
+    prev.release();
   }
 
-  public List<DiskFile> getDiskFiles() {
-    synchronized (diskFiles) {
-      return new ArrayList<>(diskFiles);
+  /**
+   * Load the index of the newest disk files in background, since they're most likely to be read
+   * soon after the store is opened.
+   *
+   * @param count the number of disk files to load.
+   */
+  public void preloadDiskFiles(ExecutorService pool, int count) {
+    List<DiskFile> diskFiles = new ArrayList<>(getDiskFiles());
+    diskFiles.sort((a, b) -> Long.compare(b.getFileMeta().getMaxSequenceId(),
+        a.getFileMeta().getMaxSequenceId()));
+    for (DiskFile df : diskFiles.subList(0, Math.min(count, diskFiles.size()))) {
+      pool.submit(() -> {
+        try {
+          df.ensureOpen();
+        } catch (IOException e) {
+          LOG.warn("Failed to preload the disk file " + df.getFileName(), e);
+        }
+      });
     }
   }
 
-  public void removeDiskFiles(Collection<DiskFile> files) {
-    synchronized (diskFiles) {
-      diskFiles.removeAll(files);
+  /**
+   * Pin the current version, the version must be released after the reader finished.
+   */
+  public Version acquireVersion() {
+    while (true) {
+      Version version = current.get();
+      if (version.tryRetain()) {
+        return version;
+      }
+      // The version has been replaced and released, retry with the newer one.
+    }
+  }
+
+  /**
+   * @return the disk files of current version. Those disk files are not pinned, so use
+   * {@link #acquireVersion()} for reading them.
+   */
+  public List<DiskFile> getDiskFiles() {
+    return current.get().getDiskFiles();
+  }
+
+  /**
+   * @return the blob files of current version, which are not pinned either.
+   */
+  public List<BlobFile> getBlobFiles() {
+    return current.get().getBlobFiles();
+  }
+
+  public void removeDiskFiles(Collection<DiskFile> files) throws IOException {
+    replaceDiskFiles(files, Collections.emptyList());
+  }
+
+  /**
+   * @return the max sequence id of all the key values in the disk files, -1 if no key value.
+   */
+  public long getMaxSequenceId() {
+    long maxSequenceId = -1L;
+    for (DiskFile df : getDiskFiles()) {
+      maxSequenceId = Math.max(maxSequenceId, df.getFileMeta().getMaxSequenceId());
     }
+    return maxSequenceId;
   }
 
   public long getMaxDiskFiles() {
     return this.maxDiskFiles;
   }
 
+  public double getCompactionTombstoneRatio() {
+    return this.compactionTombstoneRatio;
+  }
+
+  public double getBlobGarbageRatio() {
+    return this.blobGarbageRatio;
+  }
+
   @Override
   public void close() throws IOException {
-    IOException closedException = null;
-    for (DiskFile df : diskFiles) {
-      try {
-        df.close();
-      } catch (IOException e) {
-        closedException = e;
+    Version prev;
+    synchronized (this) {
+      closed = true;
+      prev = current.getAndSet(new Version(new ArrayList<>(), new ArrayList<>()));
+      if (manifest != null) {
+        manifest.close();
       }
     }
-    if (closedException != null) {
-      throw closedException;
-    }
+    // The disk files will be closed once the readers released them.
+    prev.release();
   }
 
   public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles) throws IOException {
+    return createIterator(diskFiles, false);
+  }
+
+  /**
+   * Create an iterator on the given disk files, the caller must make sure that the disk files
+   * won't be closed while iterating.
+   */
+  public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles, boolean keyOnly)
+      throws IOException {
+    return createIterator(diskFiles, keyOnly, null);
+  }
+
+  /**
+   * @param filter the filter whose {@link Filter#filterKey(byte[])} drops the key values before
+   *               their values are decoded, null means none.
+   */
+  private SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles, boolean keyOnly,
+      Filter filter) throws IOException {
+    List<SeekIter<KeyValue>> iters = new ArrayList<>();
+    for (DiskFile df : diskFiles) {
+      iters.add(df.iterator(keyOnly, filter, checksumVerification == ChecksumVerification.ALWAYS,
+          readaheadBlocks));
+    }
+    return new MultiIter(iters);
+  }
+
+  /**
+   * Create an iterator which reads the given disk files through for compaction, each disk file is
+   * read ahead from its first block.
+   */
+  public SeekIter<KeyValue> createCompactionIterator(List<DiskFile> diskFiles)
+      throws IOException {
+    List<SeekIter<KeyValue>> iters = new ArrayList<>();
+    for (DiskFile df : diskFiles) {
+      iters.add(df.sequentialIterator(checksumVerification != ChecksumVerification.OFF,
+          compactionReadaheadBlocks));
+    }
+    return new MultiIter(iters);
+  }
+
+  /**
+   * Create an iterator for compaction which skips the key values deleted by the range tombstones
+   * without reading them. A disk file whose key values are all deleted is not read at all, and the
+   * covered blocks of the other disk files are skipped by seeking over them.
+   *
+   * @param fragments  the range tombstones of the compacted disk files.
+   * @param readPoints the read points of the live snapshots, a key value is skipped only if all
+   *                   the readers who can see it also see the tombstone deleting it.
+   */
+  public SeekIter<KeyValue> createCompactionIterator(List<DiskFile> diskFiles,
+      RangeTombstone.Fragments fragments, NavigableSet<Long> readPoints) throws IOException {
     List<SeekIter<KeyValue>> iters = new ArrayList<>();
-    diskFiles.forEach(df -> iters.add(df.iterator()));
+    for (DiskFile df : diskFiles) {
+      SeekIter<KeyValue> it = null;
+      FileMeta meta = df.getFileMeta();
+      if (meta != null) {
+        Long ceiling = readPoints.ceiling(meta.getMinSequenceId());
+        long oldestReader = ceiling == null ? Long.MAX_VALUE : ceiling;
+        LongPredicate droppable = seqId -> seqId > meta.getMaxSequenceId() && oldestReader >= seqId;
+        byte[] until = fragments.skipUntil(meta.getMinKey(), droppable);
+        if (until != null && Bytes.compare(until, meta.getMaxKey()) > 0) {
+          LOG.info("Skip the disk file " + df.getFileName() + " deleted by range tombstones");
+          continue;
+        }
+        it = new RangeSkipIter(df.sequentialIterator(
+            checksumVerification != ChecksumVerification.OFF, compactionReadaheadBlocks),
+            fragments, droppable);
+      } else {
+        it = df.sequentialIterator(checksumVerification != ChecksumVerification.OFF,
+          compactionReadaheadBlocks);
+      }
+      iters.add(it);
+    }
     return new MultiIter(iters);
   }
 
+  /**
+   * Seek over the runs of key values deleted by the range tombstones.
+   */
+  private static class RangeSkipIter implements SeekIter<KeyValue> {
+
+    private final SeekIter<KeyValue> it;
+    private final RangeTombstone.Fragments fragments;
+    private final LongPredicate droppable;
+    private KeyValue nextKV = null;
+
+    RangeSkipIter(SeekIter<KeyValue> it, RangeTombstone.Fragments fragments,
+        LongPredicate droppable) {
+      this.it = it;
+      this.fragments = fragments;
+      this.droppable = droppable;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while (nextKV == null && it.hasNext()) {
+        KeyValue kv = it.next();
+        byte[] until = fragments.skipUntil(kv.getKey(), droppable);
+        if (until == null) {
+          nextKV = kv;
+        } else {
+          it.seekTo(KeyValue.createDelete(until, Long.MAX_VALUE));
+        }
+      }
+      return nextKV != null;
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      hasNext();
+      KeyValue kv = nextKV;
+      nextKV = null;
+      return kv;
+    }
+
+    @Override
+    public void seekTo(KeyValue kv) throws IOException {
+      nextKV = null;
+      it.seekTo(kv);
+    }
+
+    @Override
+    public void close() throws IOException {
+      it.close();
+    }
+  }
+
   public SeekIter<KeyValue> createIterator() throws IOException {
-    return createIterator(getDiskFiles());
+    return createIterator(false);
+  }
+
+  /**
+   * Create an iterator on the current version, the version will be released once the iterator
+   * is closed.
+   */
+  public SeekIter<KeyValue> createIterator(boolean keyOnly) throws IOException {
+    return createIterator(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES, keyOnly);
+  }
+
+  /**
+   * Create an iterator on the disk files of the current version whose key range overlaps with
+   * [start, stop), the version will be released once the iterator is closed.
+   *
+   * @param start the start key (inclusive), byte[0] means negative infinity.
+   * @param stop  the stop key (exclusive), byte[0] means positive infinity.
+   */
+  public SeekIter<KeyValue> createIterator(byte[] start, byte[] stop, boolean keyOnly)
+      throws IOException {
+    return createIterator(start, stop, keyOnly, new ArrayList<>());
+  }
+
+  /**
+   * Create an iterator like {@link #createIterator(byte[], byte[], boolean)}, and collect the
+   * range tombstones overlapping with [start, stop) from the same version.
+   *
+   * @param rangeTombstones the list to add the range tombstones to.
+   */
+  public SeekIter<KeyValue> createIterator(byte[] start, byte[] stop, boolean keyOnly,
+      List<RangeTombstone> rangeTombstones) throws IOException {
+    return createIterator(start, stop, keyOnly, null, rangeTombstones);
+  }
+
+  /**
+   * Create an iterator like {@link #createIterator(byte[], byte[], boolean, List)}, which drops
+   * every version of the keys rejected by {@link Filter#filterKey(byte[])} without decoding their
+   * values. It's only for the scanners which would skip those keys anyway.
+   */
+  public SeekIter<KeyValue> createIterator(byte[] start, byte[] stop, boolean keyOnly,
+      Filter filter, List<RangeTombstone> rangeTombstones) throws IOException {
+    Version version = acquireVersion();
+    try {
+      List<DiskFile> diskFiles = new ArrayList<>();
+      for (DiskFile df : version.getDiskFiles()) {
+        if (df.getFileMeta() == null || df.getFileMeta().overlaps(start, stop)) {
+          diskFiles.add(df);
+          for (RangeTombstone t : df.getRangeTombstones()) {
+            if (t.overlaps(start, stop)) {
+              rangeTombstones.add(t);
+            }
+          }
+        }
+      }
+      return new VersionIter(version, createIterator(diskFiles, keyOnly, filter), keyOnly);
+    } catch (IOException e) {
+      version.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Create an iterator on the disk files of the current version which may have any key value in
+   * the sequence id range (from, to], and collect the range tombstones in the range from the same
+   * version. It's used to read the changes in the range, which are the newest versions of the
+   * keys kept by the flushes and compactions.
+   *
+   * @param rangeTombstones the list to add the range tombstones to.
+   */
+  public SeekIter<KeyValue> createChangeIterator(long from, long to,
+      List<RangeTombstone> rangeTombstones) throws IOException {
+    Version version = acquireVersion();
+    try {
+      List<DiskFile> diskFiles = new ArrayList<>();
+      for (DiskFile df : version.getDiskFiles()) {
+        FileMeta meta = df.getFileMeta();
+        if (meta != null && (meta.getMaxSequenceId() <= from || meta.getMinSequenceId() > to)) {
+          continue;
+        }
+        diskFiles.add(df);
+        for (RangeTombstone t : df.getRangeTombstones()) {
+          if (t.getSequenceId() > from && t.getSequenceId() <= to) {
+            rangeTombstones.add(t);
+          }
+        }
+      }
+      return new VersionIter(version, createIterator(diskFiles, false), false);
+    } catch (IOException e) {
+      version.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Create an iterator for the point lookup of the given key on the current version. The disk
+   * files whose bloom filters don't contain the key are skipped, so the iterator may miss the key
+   * values of other keys.
+   */
+  public SeekIter<KeyValue> createPointIterator(byte[] key) throws IOException {
+    return createPointIterator(key, new ArrayList<>());
+  }
+
+  /**
+   * Create an iterator like {@link #createPointIterator(byte[])}, and collect the range
+   * tombstones containing the key from the same version. The range tombstones are collected from
+   * every disk file whose key range contains the key, even if its bloom filter doesn't.
+   *
+   * @param rangeTombstones the list to add the range tombstones to.
+   */
+  public SeekIter<KeyValue> createPointIterator(byte[] key, List<RangeTombstone> rangeTombstones)
+      throws IOException {
+    Version version = acquireVersion();
+    try {
+      List<SeekIter<KeyValue>> iters = new ArrayList<>();
+      for (DiskFile df : version.getDiskFiles()) {
+        FileMeta meta = df.getFileMeta();
+        if (meta == null || (meta.getRangeTombstoneCount() > 0 && meta.mayContain(key))) {
+          for (RangeTombstone t : df.getRangeTombstones()) {
+            if (t.contains(key)) {
+              rangeTombstones.add(t);
+            }
+          }
+        }
+        if (df.mightContain(key)) {
+          iters.add(df.pointIterator(checksumVerification == ChecksumVerification.ALWAYS));
+        }
+      }
+      return new VersionIter(version, new MultiIter(iters), false);
+    } catch (IOException e) {
+      version.release();
+      throw e;
+    }
+  }
+
+  /**
+   * The iterator on a pinned version, which also replaces the references to the blob values with
+   * the values. A key-only iterator never reads the blob files.
+   */
+  private static class VersionIter implements SeekIter<KeyValue> {
+
+    private Version version;
+    private SeekIter<KeyValue> it;
+    private boolean keyOnly;
+
+    VersionIter(Version version, SeekIter<KeyValue> it, boolean keyOnly) {
+      this.version = version;
+      this.it = it;
+      this.keyOnly = keyOnly;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      return version != null && it.hasNext();
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      KeyValue kv = it.next();
+      if (kv.getOp() != Op.BlobRef) {
+        return kv;
+      }
+      byte[] value = keyOnly ? Bytes.EMPTY_BYTES
+          : version.readBlob(BlobRef.parseFrom(kv.getValue()));
+      return KeyValue.createPut(kv.getKey(), value, kv.getSequenceId());
+    }
+
+    @Override
+    public void seekTo(KeyValue kv) throws IOException {
+      if (version == null) {
+        throw new IOException("Can not seek a closed iterator.");
+      }
+      it.seekTo(kv);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (version != null) {
+        try {
+          it.close();
+        } finally {
+          version.release();
+          version = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Separate the large values of a flushed or compacted disk file into a new blob file, and count
+   * the blob values whose references are dropped by the compaction as garbage. The blob file is
+   * deleted on close unless it has been committed with the disk file.
+   */
+  class BlobOutput implements Closeable {
+
+    private final Version version;
+    private final Set<Long> relocated;
+    private final Map<Long, Long> garbage = new HashMap<>();
+    private String blobFileName = null;
+    private BlobWriter writer = null;
+    private boolean committed = false;
+
+    /**
+     * @param version   the pinned version which is compacted, null for flush.
+     * @param relocated the ids of the blob files whose live values are copied to the new blob
+     *                  file, so that they can be removed after the compaction.
+     */
+    BlobOutput(Version version, Set<Long> relocated) {
+      this.version = version;
+      this.relocated = relocated;
+    }
+
+    private void addGarbage(BlobRef ref, long bytes) {
+      garbage.merge(ref.getFileId(), bytes, Long::sum);
+    }
+
+    /**
+     * Count the blob references read by the compaction, the ones which are not written to the
+     * compacted disk file by {@link #separate(KeyValue)} are garbage.
+     */
+    Iter<KeyValue> track(Iter<KeyValue> it) {
+      return new Iter<KeyValue>() {
+        @Override
+        public boolean hasNext() throws IOException {
+          return it.hasNext();
+        }
+
+        @Override
+        public KeyValue next() throws IOException {
+          KeyValue kv = it.next();
+          if (kv.getOp() == Op.BlobRef) {
+            BlobRef ref = BlobRef.parseFrom(kv.getValue());
+            addGarbage(ref, ref.getLength());
+          }
+          return kv;
+        }
+
+        @Override
+        public void close() throws IOException {
+          it.close();
+        }
+      };
+    }
+
+    /**
+     * @return the key value to write into the disk file, whose value may be replaced by the
+     * reference to the value in the new blob file.
+     */
+    KeyValue separate(KeyValue kv) throws IOException {
+      if (kv.getOp() == Op.BlobRef) {
+        BlobRef ref = BlobRef.parseFrom(kv.getValue());
+        if (!relocated.contains(ref.getFileId())) {
+          addGarbage(ref, -ref.getLength());
+          return kv;
+        }
+        return writeBlob(kv.getKey(), version.readBlob(ref), kv.getSequenceId());
+      }
+      if (kv.getOp() == Op.Put && blobValueThreshold > 0
+          && kv.getValue().length >= blobValueThreshold) {
+        return writeBlob(kv.getKey(), kv.getValue(), kv.getSequenceId());
+      }
+      return kv;
+    }
+
+    private KeyValue writeBlob(byte[] key, byte[] value, long sequenceId) throws IOException {
+      if (writer == null) {
+        blobFileName = getNextBlobFileName();
+        writer = new BlobWriter(blobFileName);
+      }
+      BlobRef ref = writer.append(key, value);
+      return KeyValue.create(key, ref.toBytes(), Op.BlobRef, sequenceId);
+    }
+
+    /**
+     * Sync the new blob file, and publish it with the new disk files.
+     */
+    void commit(Collection<DiskFile> removed, Collection<DiskFile> added) throws IOException {
+      List<BlobFile> addedBlobs = new ArrayList<>();
+      if (writer != null) {
+        writer.close();
+        addedBlobs.add(new BlobFile(blobFileName, writer.getBlobMeta()));
+      }
+      replaceFiles(removed, added, addedBlobs, garbage);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (writer != null && !committed) {
+        try {
+          writer.close();
+        } finally {
+          new File(blobFileName).delete();
+        }
+      }
+    }
   }
 
+  /**
+   * Write the memstore snapshot into a new disk file. The versions which are invisible to any
+   * reader are dropped, and the merge operands are combined, as the compaction does. The versions
+   * newer than the read point at the beginning of the flush are all kept, since a snapshot taken
+   * during the flush may still see any of them.
+   */
   public static class DefaultFlusher implements Flusher {
     private DiskStore diskStore;
+    private Snapshot.Tracker snapshots;
+    private LongSupplier readPoint;
 
     public DefaultFlusher(DiskStore diskStore) {
+      this(diskStore, new Snapshot.Tracker(), () -> Long.MAX_VALUE);
+    }
+
+    /**
+     * @param readPoint supply the current read point of the store.
+     */
+    public DefaultFlusher(DiskStore diskStore, Snapshot.Tracker snapshots, LongSupplier readPoint) {
       this.diskStore = diskStore;
+      this.snapshots = snapshots;
+      this.readPoint = readPoint;
+    }
+
+    @Override
+    public void flush(Iter<KeyValue> input) throws IOException {
+      flush(input, Collections.emptyList());
     }
 
     @Override
-    public void flush(Iter<KeyValue> it) throws IOException {
+    public void flush(Iter<KeyValue> input, List<RangeTombstone> rangeTombstones)
+        throws IOException {
       String fileName = diskStore.getNextDiskFileName();
       String fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
-      try {
-        try (DiskFileWriter writer = new DiskFileWriter(fileTempName)) {
+      // Sample the read point before the snapshots, so no snapshot is missed in between.
+      long stableReadPoint = readPoint.getAsLong();
+      try (BlobOutput blobs = diskStore.new BlobOutput(null, Collections.emptySet())) {
+        FileMeta meta;
+        try (DiskFileWriter writer = diskStore.newDiskFileWriter(fileTempName,
+            diskStore.maxMemstoreSize);
+             CompactIter it = new CompactIter(input, snapshots.getReadPoints(), false,
+                 diskStore.mergeOperator, stableReadPoint, rangeTombstones)) {
           while (it.hasNext()) {
-            writer.append(it.next());
+            writer.append(blobs.separate(it.next()));
+          }
+          for (RangeTombstone t : it.getRangeTombstones()) {
+            writer.appendRangeTombstone(t);
           }
           writer.appendIndex();
           writer.appendTrailer();
+          meta = writer.getFileMeta(new File(fileName).getName());
         }
         File f = new File(fileTempName);
         if (!f.renameTo(new File(fileName))) {
           throw new IOException(
               "Rename " + fileTempName + " to " + fileName + " failed when flushing");
         }
-        // TODO any concurrent issue ?
-        diskStore.addDiskFile(fileName);
+        blobs.commit(Collections.emptyList(),
+          Collections.singletonList(diskStore.newDiskFile(fileName, meta)));
       } finally {
         File f = new File(fileTempName);
         if (f.exists()) {
@@ -162,44 +1151,81 @@ public class DiskStore implements Closeable {
   }
 
   public static class DefaultCompactor extends Compactor {
+    // The disk files with fewer key values are not worth compacting for their delete markers.
+    static final long TOMBSTONE_COMPACTION_MIN_ENTRIES = 1024;
+
     private DiskStore diskStore;
+    private Snapshot.Tracker snapshots;
     private volatile boolean running = true;
 
     public DefaultCompactor(DiskStore diskStore) {
+      this(diskStore, new Snapshot.Tracker());
+    }
+
+    public DefaultCompactor(DiskStore diskStore, Snapshot.Tracker snapshots) {
       this.diskStore = diskStore;
+      this.snapshots = snapshots;
       this.setDaemon(true);
     }
 
-    private void performCompact(List<DiskFile> filesToCompact) throws IOException {
+    /**
+     * @param version        the pinned version which contains the disk files.
+     * @param filesToCompact the disk files to merge into one.
+     * @param dropDeletes    true if no other disk file has older versions of the keys, so the
+     *                       delete markers which are invisible to all the snapshots can be dropped.
+     * @param relocated      the ids of the blob files to relocate, only allowed when all the disk
+     *                       files of the version are compacted, since no other disk file may refer
+     *                       to them after the compaction.
+     */
+    private void performCompact(Version version, List<DiskFile> filesToCompact,
+        boolean dropDeletes, Set<Long> relocated) throws IOException {
       String fileName = diskStore.getNextDiskFileName();
       String fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
-      try {
-        try (DiskFileWriter writer = new DiskFileWriter(fileTempName)) {
-          for (Iter<KeyValue> it = diskStore.createIterator(filesToCompact); it.hasNext();) {
-            writer.append(it.next());
+      long inputSize = 0;
+      for (DiskFile df : filesToCompact) {
+        inputSize += df.getFileMeta().getFileSize();
+      }
+      List<RangeTombstone> rangeTombstones = new ArrayList<>();
+      for (DiskFile df : filesToCompact) {
+        rangeTombstones.addAll(df.getRangeTombstones());
+      }
+      // The disk files outside of the compaction may hold older versions of the keys.
+      List<FileMeta> otherFiles = new ArrayList<>();
+      for (DiskFile df : version.getDiskFiles()) {
+        if (!filesToCompact.contains(df)) {
+          otherFiles.add(df.getFileMeta());
+        }
+      }
+      NavigableSet<Long> readPoints = snapshots.getReadPoints();
+      try (BlobOutput blobs = diskStore.new BlobOutput(version, relocated)) {
+        // The skipped blob references would never be counted as garbage, so the key values
+        // deleted by the range tombstones are only skipped when there is no blob file.
+        SeekIter<KeyValue> input = rangeTombstones.isEmpty() || !version.getBlobFiles().isEmpty()
+            ? diskStore.createCompactionIterator(filesToCompact)
+            : diskStore.createCompactionIterator(filesToCompact,
+              new RangeTombstone.Fragments(rangeTombstones), readPoints);
+        FileMeta meta;
+        try (DiskFileWriter writer = diskStore.newDiskFileWriter(fileTempName, inputSize);
+             CompactIter it = new CompactIter(blobs.track(input), readPoints, dropDeletes,
+                 diskStore.mergeOperator, Long.MAX_VALUE, rangeTombstones, otherFiles)) {
+          while (it.hasNext()) {
+            writer.append(blobs.separate(it.next()));
+          }
+          for (RangeTombstone t : it.getRangeTombstones()) {
+            writer.appendRangeTombstone(t);
           }
           writer.appendIndex();
           writer.appendTrailer();
+          meta = writer.getFileMeta(new File(fileName).getName());
         }
         File f = new File(fileTempName);
         if (!f.renameTo(new File(fileName))) {
           throw new IOException("Rename " + fileTempName + " to " + fileName + " failed");
         }
 
-        // Rename the data files to archive files.
-        // TODO when rename the files, will we effect the scan ?
-        for (DiskFile df : filesToCompact) {
-          df.close();
-          File file = new File(df.getFileName());
-          File archiveFile = new File(df.getFileName() + FILE_NAME_ARCHIVE_SUFFIX);
-          if (!file.renameTo(archiveFile)) {
-            LOG.error("Rename " + df.getFileName() + " to " + archiveFile.getName() + " failed.");
-          }
-        }
-        diskStore.removeDiskFiles(filesToCompact);
-
-        // TODO any concurrent issue ?
-        diskStore.addDiskFile(fileName);
+        // The input files will be archived once all the readers released them.
+        blobs.commit(filesToCompact,
+          Collections.singletonList(diskStore.newDiskFile(fileName, meta)));
       } finally {
         File f = new File(fileTempName);
         if (f.exists()) {
@@ -208,21 +1234,161 @@ public class DiskStore implements Closeable {
       }
     }
 
+    /**
+     * Compact all the disk files of the current version.
+     */
+    private void compactAll() throws IOException {
+      Version version = diskStore.acquireVersion();
+      try {
+        performCompact(version, version.getDiskFiles(), true, pickBlobsToRelocate(version));
+      } finally {
+        version.release();
+      }
+    }
+
+    /**
+     * @return the ids of the blob files whose ratio of the garbage reaches the threshold.
+     */
+    Set<Long> pickBlobsToRelocate(Version version) {
+      Set<Long> relocated = new HashSet<>();
+      for (BlobFile bf : version.getBlobFiles()) {
+        if (bf.getBlobMeta().getGarbageRatio() >= diskStore.getBlobGarbageRatio()) {
+          relocated.add(bf.getFileId());
+        }
+      }
+      return relocated;
+    }
+
+    /**
+     * Compact all the disk files to relocate the live values of the blob files picked by
+     * {@link #pickBlobsToRelocate(Version)}.
+     *
+     * @return true if any blob file is relocated.
+     */
+    boolean collectBlobGarbage() throws IOException {
+      Version version = diskStore.acquireVersion();
+      try {
+        Set<Long> relocated = pickBlobsToRelocate(version);
+        if (relocated.isEmpty()) {
+          return false;
+        }
+        performCompact(version, version.getDiskFiles(), true, relocated);
+        return true;
+      } finally {
+        version.release();
+      }
+    }
+
+    /**
+     * Choose the disk file with the highest ratio of delete markers which reaches the threshold,
+     * together with the disk files overlapping with it, and the ones overlapping with those in
+     * turn, until the key range of the chosen disk files stops growing. No other disk file holds
+     * any version of the keys in the chosen ones, so the delete markers can be dropped by the
+     * compaction. A disk file with range tombstones is always worth compacting, since the covered
+     * key values of the overlapping disk files are dropped without being read.
+     *
+     * @return the disk files to compact, empty if no disk file is worth compacting.
+     */
+    List<DiskFile> pickTombstoneCandidates(List<DiskFile> diskFiles) {
+      NavigableSet<Long> readPoints = snapshots.getReadPoints();
+      long oldestReadPoint = readPoints.isEmpty() ? Long.MAX_VALUE : readPoints.first();
+      FileMeta target = null;
+      for (DiskFile df : diskFiles) {
+        FileMeta meta = df.getFileMeta();
+        // The delete markers newer than the oldest snapshot must be kept, so skip those files,
+        // otherwise they may be picked again and again without any progress.
+        if (meta == null || meta.getMaxSequenceId() > oldestReadPoint) {
+          continue;
+        }
+        if (meta.getRangeTombstoneCount() > 0) {
+          target = meta;
+          break;
+        }
+        if (meta.getEntryCount() < TOMBSTONE_COMPACTION_MIN_ENTRIES
+            || meta.getTombstoneRatio() < diskStore.getCompactionTombstoneRatio()) {
+          continue;
+        }
+        if (target == null || meta.getTombstoneRatio() > target.getTombstoneRatio()) {
+          target = meta;
+        }
+      }
+      if (target == null) {
+        return Collections.emptyList();
+      }
+
+      List<DiskFile> candidates = new ArrayList<>();
+      List<DiskFile> others = new ArrayList<>(diskFiles);
+      byte[] minKey = target.getMinKey(), maxKey = target.getMaxKey();
+      boolean grown = true;
+      while (grown) {
+        grown = false;
+        for (Iterator<DiskFile> it = others.iterator(); it.hasNext(); ) {
+          DiskFile df = it.next();
+          FileMeta meta = df.getFileMeta();
+          // The key range of a disk file without meta is unknown, so compact all of them.
+          if (meta == null) {
+            return new ArrayList<>(diskFiles);
+          }
+          if (meta.isEmpty() || Bytes.compare(meta.getMaxKey(), minKey) < 0
+              || Bytes.compare(maxKey, meta.getMinKey()) < 0) {
+            continue;
+          }
+          candidates.add(df);
+          it.remove();
+          if (Bytes.compare(meta.getMinKey(), minKey) < 0) {
+            minKey = meta.getMinKey();
+            grown = true;
+          }
+          if (Bytes.compare(meta.getMaxKey(), maxKey) > 0) {
+            maxKey = meta.getMaxKey();
+            grown = true;
+          }
+        }
+      }
+      return candidates;
+    }
+
+    /**
+     * Compact the disk files chosen by {@link #pickTombstoneCandidates(List)}.
+     *
+     * @return true if any disk file is compacted.
+     */
+    boolean compactTombstones() throws IOException {
+      Version version = diskStore.acquireVersion();
+      try {
+        List<DiskFile> candidates = pickTombstoneCandidates(version.getDiskFiles());
+        if (candidates.isEmpty()) {
+          return false;
+        }
+        performCompact(version, candidates, true, Collections.emptySet());
+        return true;
+      } finally {
+        version.release();
+      }
+    }
+
     @Override
     public void compact() throws IOException {
-      List<DiskFile> filesToCompact = new ArrayList<>();
-      filesToCompact.addAll(diskStore.getDiskFiles());
-      performCompact(filesToCompact);
+      compactAll();
+    }
+
+    /**
+     * Run one round of the compaction if the disk store needs any.
+     *
+     * @return true if any disk file is compacted.
+     */
+    public boolean compactIfNeeded() throws IOException {
+      if (diskStore.getDiskFiles().size() > diskStore.getMaxDiskFiles()) {
+        compactAll();
+        return true;
+      }
+      return compactTombstones() || collectBlobGarbage();
     }
 
     public void run() {
       while (running) {
         try {
-          boolean isCompacted = false;
-          if (diskStore.getDiskFiles().size() > diskStore.getMaxDiskFiles()) {
-            performCompact(diskStore.getDiskFiles());
-            isCompacted = true;
-          }
+          boolean isCompacted = compactIfNeeded();
           if (!isCompacted) {
             Thread.sleep(1000);
           }
@@ -241,6 +1407,265 @@ public class DiskStore implements Closeable {
     }
   }
 
+  /**
+   * Drop the versions of each key which are invisible to any reader. The readers are grouped by
+   * the read points of the live snapshots plus the latest read point, a version is kept only if
+   * it's the newest version that some read point can see. If the kept version is a merge operand,
+   * the older versions visible to the same read point are combined into it by the
+   * {@link MergeOperator}. A version deleted by a range tombstone is dropped if all the read points
+   * which can see it also see the tombstone.
+   */
+  public static class CompactIter implements Iter<KeyValue> {
+
+    private Iter<KeyValue> it;
+    private NavigableSet<Long> readPoints;
+    private boolean dropDeletes;
+    private List<FileMeta> otherFiles;
+    private MergeOperator mergeOperator;
+    private long stableReadPoint;
+    private List<RangeTombstone> rangeTombstones;
+    private RangeTombstone.Fragments fragments;
+    private KeyValue prevKV = null;
+    // The key value read ahead from the input when combining the merge operands.
+    private KeyValue peekedKV = null;
+    private final ArrayDeque<KeyValue> pending = new ArrayDeque<>();
+
+    public CompactIter(Iter<KeyValue> it, NavigableSet<Long> readPoints, boolean dropDeletes) {
+      this(it, readPoints, dropDeletes, null, Long.MAX_VALUE);
+    }
+
+    public CompactIter(Iter<KeyValue> it, NavigableSet<Long> readPoints, boolean dropDeletes,
+        MergeOperator mergeOperator, long stableReadPoint) {
+      this(it, readPoints, dropDeletes, mergeOperator, stableReadPoint, Collections.emptyList());
+    }
+
+    /**
+     * @param mergeOperator   the operator to combine the merge operands, null to keep them.
+     * @param stableReadPoint the versions newer than it are all kept, since a reader with a newer
+     *                        read point may come later and see any of them.
+     * @param rangeTombstones the range tombstones of the input, which delete the key values.
+     */
+    public CompactIter(Iter<KeyValue> it, NavigableSet<Long> readPoints, boolean dropDeletes,
+        MergeOperator mergeOperator, long stableReadPoint, List<RangeTombstone> rangeTombstones) {
+      this(it, readPoints, dropDeletes, mergeOperator, stableReadPoint, rangeTombstones,
+          Collections.emptyList());
+    }
+
+    /**
+     * @param otherFiles the disk files outside of the compaction. The deletes are only dropped
+     *                   for the keys which none of them may hold, even if dropDeletes is true.
+     */
+    public CompactIter(Iter<KeyValue> it, NavigableSet<Long> readPoints, boolean dropDeletes,
+        MergeOperator mergeOperator, long stableReadPoint, List<RangeTombstone> rangeTombstones,
+        List<FileMeta> otherFiles) {
+      this.it = it;
+      this.readPoints = new TreeSet<>(readPoints);
+      this.readPoints.add(stableReadPoint);
+      this.readPoints.add(Long.MAX_VALUE);
+      this.dropDeletes = dropDeletes;
+      this.otherFiles = otherFiles;
+      this.mergeOperator = mergeOperator;
+      this.stableReadPoint = stableReadPoint;
+      this.rangeTombstones = rangeTombstones;
+      this.fragments = rangeTombstones.isEmpty() ? null
+          : new RangeTombstone.Fragments(rangeTombstones);
+    }
+
+    /**
+     * @return the smallest read point which can see the key value.
+     */
+    private long readPointOf(KeyValue kv) {
+      return readPointOf(kv.getSequenceId());
+    }
+
+    private long readPointOf(long sequenceId) {
+      if (sequenceId > stableReadPoint) {
+        return sequenceId;
+      }
+      return readPoints.ceiling(sequenceId);
+    }
+
+    /**
+     * @return true if the deletes of the key can be dropped, since no disk file outside of the
+     * compaction may hold an older version of it.
+     */
+    private boolean canDropDeletes(byte[] key) {
+      if (!dropDeletes) {
+        return false;
+      }
+      for (FileMeta meta : otherFiles) {
+        if (meta == null || meta.mayContain(key)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if the range tombstone can be dropped, since no disk file outside of the
+     * compaction overlaps with its range.
+     */
+    private boolean canDropDeletes(RangeTombstone t) {
+      if (!dropDeletes) {
+        return false;
+      }
+      for (FileMeta meta : otherFiles) {
+        if (meta == null || meta.overlaps(t.getStart(), t.getStop())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if the key value is deleted by a range tombstone which is visible to all the
+     * read points who can see the key value.
+     */
+    private boolean isDeletedByRange(KeyValue kv) {
+      if (fragments == null) {
+        return false;
+      }
+      long seqId = fragments.getSequenceId(kv.getKey());
+      return seqId > kv.getSequenceId() && readPointOf(kv) >= seqId;
+    }
+
+    /**
+     * @return the range tombstones to write with the output. Like the delete markers, the ones
+     * visible to the oldest read point are dropped if allowed, as they shadow nothing any more,
+     * unless a disk file outside of the compaction overlaps with them.
+     */
+    public List<RangeTombstone> getRangeTombstones() {
+      List<RangeTombstone> kept = new ArrayList<>();
+      for (RangeTombstone t : rangeTombstones) {
+        if (readPointOf(t.getSequenceId()) != readPoints.first() || !canDropDeletes(t)) {
+          kept.add(t);
+        }
+      }
+      return kept;
+    }
+
+    private KeyValue nextInput() throws IOException {
+      if (peekedKV != null) {
+        KeyValue kv = peekedKV;
+        peekedKV = null;
+        return kv;
+      }
+      return it.hasNext() ? it.next() : null;
+    }
+
+    private void advance() throws IOException {
+      KeyValue kv;
+      while (pending.isEmpty() && (kv = nextInput()) != null) {
+        boolean visible = prevKV == null || Bytes.compare(prevKV.getKey(), kv.getKey()) != 0
+                          || readPointOf(prevKV) != readPointOf(kv);
+        prevKV = kv;
+        if (!visible || isDeletedByRange(kv)) {
+          continue;
+        }
+        if (kv.getOp() == Op.Merge && mergeOperator != null) {
+          merge(kv);
+          continue;
+        }
+        // The older versions are all shadowed by the delete marker in the oldest read point, so
+        // the marker itself is useless.
+        if (kv.getOp() == Op.Delete && readPointOf(kv) == readPoints.first()
+            && canDropDeletes(kv.getKey())) {
+          continue;
+        }
+        pending.add(kv);
+      }
+    }
+
+    /**
+     * Combine the newest merge operand with the older versions of the key visible to the same
+     * read point. The operands are applied to the put or delete found among them, or to nothing
+     * if the key has no older version at all, neither in the input nor in the disk files outside
+     * of the compaction, otherwise the base value is unknown and the operands are only combined
+     * with each other.
+     */
+    private void merge(KeyValue newest) throws IOException {
+      byte[] key = newest.getKey();
+      long readPoint = readPointOf(newest);
+      List<KeyValue> operands = new ArrayList<>();
+      operands.add(newest);
+      KeyValue base = null;
+      boolean olderVersions = false;
+      KeyValue kv;
+      while ((kv = nextInput()) != null) {
+        if (Bytes.compare(kv.getKey(), key) != 0 || readPointOf(kv) != readPoint) {
+          olderVersions = Bytes.compare(kv.getKey(), key) == 0;
+          peekedKV = kv;
+          break;
+        }
+        prevKV = kv;
+        if (isDeletedByRange(kv)) {
+          base = KeyValue.createDelete(key, kv.getSequenceId());
+          break;
+        }
+        if (kv.getOp() != Op.Merge) {
+          base = kv;
+          break;
+        }
+        operands.add(kv);
+      }
+
+      // The value is in a blob file, leave the operands to the readers.
+      if (base != null && base.getOp() == Op.BlobRef) {
+        combineOperands(key, operands);
+        pending.add(base);
+        return;
+      }
+      // Without a base, the key must have no version in the disk files outside of compaction.
+      if (base != null || (!olderVersions && canDropDeletes(key))) {
+        byte[] value = base == null || base.getOp() == Op.Delete ? null : base.getValue();
+        pending.add(KeyValue.createPut(key,
+          mergeOperator.fullMerge(key, value, valuesOf(operands)), newest.getSequenceId()));
+        return;
+      }
+      combineOperands(key, operands);
+    }
+
+    private void combineOperands(byte[] key, List<KeyValue> operands) throws IOException {
+      if (operands.size() > 1) {
+        byte[] combined = mergeOperator.partialMerge(key, valuesOf(operands));
+        if (combined != null) {
+          pending.add(KeyValue.createMerge(key, combined, operands.get(0).getSequenceId()));
+          return;
+        }
+      }
+      pending.addAll(operands);
+    }
+
+    /**
+     * @param operands the merge operands from the newest to the oldest.
+     * @return the values of them from the oldest to the newest.
+     */
+    private static List<byte[]> valuesOf(List<KeyValue> operands) {
+      List<byte[]> values = new ArrayList<>(operands.size());
+      for (int i = operands.size() - 1; i >= 0; i--) {
+        values.add(operands.get(i).getValue());
+      }
+      return values;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      advance();
+      return !pending.isEmpty();
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      advance();
+      return pending.poll();
+    }
+
+    @Override
+    public void close() throws IOException {
+      it.close();
+    }
+  }
+
   public static class MultiIter implements SeekIter<KeyValue> {
 
     private class IterNode {
@@ -302,5 +1727,23 @@ public class DiskStore implements Closeable {
         }
       }
     }
+
+    @Override
+    public void close() throws IOException {
+      queue.clear();
+      IOException closeException = null;
+      for (SeekIter<KeyValue> it : iters) {
+        try {
+          if (it != null) {
+            it.close();
+          }
+        } catch (IOException e) {
+          closeException = e;
+        }
+      }
+      if (closeException != null) {
+        throw closeException;
+      }
+    }
   }
 }
@@ -0,0 +1,191 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.FormatOptions.IndexType;
+import org.apache.minibase.MStore.SeekIter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Sweep the format options over a dataset: write a disk file for every combination of the options,
+ * then report its size, the latency of the point gets and the throughput of a full scan, so the
+ * options of a store could be picked for its workload. Usage:
+ *
+ * <pre>
+ * FormatBenchmark [--data=file] [--keys=n] [--valueSize=n] [--gets=n] [--dir=dir]
+ *                 [--blockSizes=4096,16384,65536] [--restartIntervals=16] [--bloomBits=10]
+ *                 [--indexTypes=BINARY_SEARCH,HASH] [--codecs=none,lz]
+ * </pre>
+ *
+ * The dataset file has a key and a value separated by a tab per line, or a synthetic dataset of
+ * the given number of keys and value size is generated if no file is given. The files are read
+ * without a block cache, so every get reads its block from the disk file (or the page cache of the
+ * OS).
+ */
+public class FormatBenchmark {
+
+  private final TreeMap<byte[], byte[]> dataset;
+  private final int gets;
+  private final String dir;
+
+  public FormatBenchmark(TreeMap<byte[], byte[]> dataset, int gets, String dir) {
+    this.dataset = dataset;
+    this.gets = gets;
+    this.dir = dir;
+  }
+
+  public static TreeMap<byte[], byte[]> loadDataset(String fileName) throws IOException {
+    TreeMap<byte[], byte[]> dataset = new TreeMap<>(Bytes::compare);
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab <= 0) {
+          continue;
+        }
+        dataset.put(Bytes.toBytes(line.substring(0, tab)), Bytes.toBytes(line.substring(tab + 1)));
+      }
+    }
+    return dataset;
+  }
+
+  public static TreeMap<byte[], byte[]> syntheticDataset(int keys, int valueSize)
+      throws IOException {
+    TreeMap<byte[], byte[]> dataset = new TreeMap<>(Bytes::compare);
+    Random random = new Random(42);
+    for (int i = 0; i < keys; i++) {
+      byte[] value = new byte[valueSize];
+      // Half random bytes, so the codecs have something to compress.
+      for (int j = 0; j < valueSize / 2; j++) {
+        value[j] = (byte) random.nextInt(256);
+      }
+      dataset.put(Bytes.toBytes(String.format("key-%010d", i)), value);
+    }
+    return dataset;
+  }
+
+  /**
+   * Write the dataset with the given options, then measure the gets and the scan.
+   */
+  public String run(FormatOptions options) throws IOException {
+    String fileName = dir + File.separator + "format-benchmark.db";
+    new File(fileName).delete();
+    try {
+      long start = System.nanoTime();
+      try (DiskFileWriter writer = new DiskFileWriter(fileName, options)) {
+        long sequenceId = 0;
+        for (Map.Entry<byte[], byte[]> e : dataset.entrySet()) {
+          writer.append(KeyValue.createPut(e.getKey(), e.getValue(), ++sequenceId));
+        }
+        writer.appendIndex();
+        writer.appendTrailer();
+      }
+      long writeNanos = System.nanoTime() - start;
+      long fileSize = new File(fileName).length();
+
+      List<byte[]> keys = new ArrayList<>(dataset.keySet());
+      long[] latencies = new long[gets];
+      long scanNanos, scanned = 0;
+      try (DiskFile df = new DiskFile(fileName, null)) {
+        df.open(fileName);
+        Random random = new Random(7);
+        for (int i = 0; i < gets; i++) {
+          byte[] key = keys.get(random.nextInt(keys.size()));
+          long t = System.nanoTime();
+          get(df, key);
+          latencies[i] = System.nanoTime() - t;
+        }
+        start = System.nanoTime();
+        try (SeekIter<KeyValue> it = df.sequentialIterator(true, Config.getDefault()
+            .getCompactionReadaheadBlocks())) {
+          while (it.hasNext()) {
+            it.next();
+            scanned++;
+          }
+        }
+        scanNanos = System.nanoTime() - start;
+        if (scanned != dataset.size()) {
+          throw new IOException("Scanned " + scanned + " key values, expected " + dataset.size());
+        }
+      }
+
+      Arrays.sort(latencies);
+      long total = 0;
+      for (long latency : latencies) {
+        total += latency;
+      }
+      return String.format("%s: size=%d (%.2fx), write=%dms, get avg=%.1fus p99=%.1fus, "
+          + "scan=%.0f kv/s", options, fileSize, fileSize / (double) rawSize(),
+        writeNanos / 1000000, gets == 0 ? 0 : total / 1000.0 / gets,
+        gets == 0 ? 0 : latencies[(int) (gets * 0.99)] / 1000.0,
+        scanned * 1e9 / Math.max(scanNanos, 1));
+    } finally {
+      new File(fileName).delete();
+    }
+  }
+
+  private static void get(DiskFile df, byte[] key) throws IOException {
+    if (!df.mightContain(key)) {
+      throw new IOException("Bloom filter misses key " + Bytes.toHex(key));
+    }
+    try (SeekIter<KeyValue> it = df.pointIterator()) {
+      it.seekTo(KeyValue.createDelete(key, Long.MAX_VALUE));
+      if (!it.hasNext() || Bytes.compare(it.next().getKey(), key) != 0) {
+        throw new IOException("Key not found: " + Bytes.toHex(key));
+      }
+    }
+  }
+
+  private long rawSize() {
+    long size = 0;
+    for (Map.Entry<byte[], byte[]> e : dataset.entrySet()) {
+      size += e.getKey().length + e.getValue().length;
+    }
+    return size;
+  }
+
+  private static String[] list(Map<String, String> args, String name, String defaultValue) {
+    return args.getOrDefault(name, defaultValue).split(",");
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> parsed = BulkImporter.parseArgs(args);
+    TreeMap<byte[], byte[]> dataset = parsed.containsKey("data")
+        ? loadDataset(parsed.get("data"))
+        : syntheticDataset(Integer.parseInt(parsed.getOrDefault("keys", "200000")),
+          Integer.parseInt(parsed.getOrDefault("valueSize", "100")));
+    FormatBenchmark benchmark = new FormatBenchmark(dataset,
+        Integer.parseInt(parsed.getOrDefault("gets", "100000")),
+        parsed.getOrDefault("dir", System.getProperty("java.io.tmpdir")));
+
+    System.out.println("Dataset: " + dataset.size() + " keys, " + benchmark.rawSize() + " bytes");
+    for (String blockSize : list(parsed, "blockSizes", "4096,16384,65536")) {
+      for (String restartInterval : list(parsed, "restartIntervals", "16")) {
+        for (String bloomBits : list(parsed, "bloomBits", "10")) {
+          for (String indexType : list(parsed, "indexTypes", "BINARY_SEARCH,HASH")) {
+            for (String codec : list(parsed, "codecs", "none,lz")) {
+              FormatOptions options = new FormatOptions()
+                  .setBlockSize(Integer.parseInt(blockSize))
+                  .setRestartInterval(Integer.parseInt(restartInterval))
+                  .setBloomBitsPerKey(Integer.parseInt(bloomBits))
+                  .setIndexType(IndexType.valueOf(indexType)).setCodec(Codec.of(codec));
+              System.out.println(benchmark.run(options));
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+
+/**
+ * The options of the layout of a disk file. They're recorded in the metadata block of each disk
+ * file, so the disk files written with different options can live together in a store, and the
+ * readers always decode a disk file with the options it was written with.
+ */
+public class FormatOptions {
+
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+  // blockSize(4B) + restartInterval(4B) + bloomBitsPerKey(4B) + indexType(1B) + codecId(1B)
+  // + indexPartitionBlocks(4B)
+  public static final int SERIALIZE_SIZE = 4 + 4 + 4 + 1 + 1 + 4;
+
+  /**
+   * How a data block is searched by a point get.
+   */
+  public enum IndexType {
+    // Binary search the restart points of the block.
+    BINARY_SEARCH((byte) 0),
+    // Look up the hash index appended to the block, see DiskFile.BlockWriter.
+    HASH((byte) 1);
+
+    private final byte code;
+
+    IndexType(byte code) {
+      this.code = code;
+    }
+
+    public byte getCode() {
+      return code;
+    }
+
+    public static IndexType of(byte code) throws IOException {
+      for (IndexType type : values()) {
+        if (type.code == code) {
+          return type;
+        }
+      }
+      throw new IOException("Unknown index type: " + code);
+    }
+  }
+
+  private int blockSize = DEFAULT_BLOCK_SIZE;
+  private int restartInterval = DiskFile.BlockWriter.RESTART_INTERVAL;
+  private int bloomBitsPerKey = DiskFile.BLOOM_FILTER_BITS_PER_KEY;
+  private IndexType indexType = IndexType.BINARY_SEARCH;
+  private Codec codec = Codec.None.INSTANCE;
+  private int indexPartitionBlocks = DiskFile.INDEX_PARTITION_BLOCKS;
+
+  /**
+   * @param blockSize the target size of the data blocks before compression. Smaller blocks make a
+   *                  get read fewer bytes, larger blocks make a scan read fewer blocks and the
+   *                  index smaller. A block holding a single large key value may exceed it.
+   */
+  public FormatOptions setBlockSize(int blockSize) {
+    if (blockSize <= 0 || blockSize > DiskFile.BLOCK_SIZE_UP_LIMIT) {
+      throw new IllegalArgumentException("Block size should be in (0, "
+          + DiskFile.BLOCK_SIZE_UP_LIMIT + "]: " + blockSize);
+    }
+    this.blockSize = blockSize;
+    return this;
+  }
+
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * @param restartInterval the number of key values between two restart points of a data block.
+   *                        A smaller interval makes a seek decode fewer key values, but stores
+   *                        more full keys.
+   */
+  public FormatOptions setRestartInterval(int restartInterval) {
+    if (restartInterval <= 0) {
+      throw new IllegalArgumentException("Invalid restart interval: " + restartInterval);
+    }
+    this.restartInterval = restartInterval;
+    return this;
+  }
+
+  public int getRestartInterval() {
+    return this.restartInterval;
+  }
+
+  public FormatOptions setBloomBitsPerKey(int bloomBitsPerKey) {
+    if (bloomBitsPerKey <= 0) {
+      throw new IllegalArgumentException("Invalid bloom bits per key: " + bloomBitsPerKey);
+    }
+    this.bloomBitsPerKey = bloomBitsPerKey;
+    return this;
+  }
+
+  public int getBloomBitsPerKey() {
+    return this.bloomBitsPerKey;
+  }
+
+  public FormatOptions setIndexType(IndexType indexType) {
+    this.indexType = indexType;
+    return this;
+  }
+
+  public IndexType getIndexType() {
+    return this.indexType;
+  }
+
+  /**
+   * @param codec the codec to compress the data blocks.
+   */
+  public FormatOptions setCodec(Codec codec) {
+    this.codec = codec;
+    return this;
+  }
+
+  public Codec getCodec() {
+    return this.codec;
+  }
+
+  /**
+   * @param indexPartitionBlocks the number of blocks indexed by each index partition.
+   */
+  public FormatOptions setIndexPartitionBlocks(int indexPartitionBlocks) {
+    if (indexPartitionBlocks <= 0) {
+      throw new IllegalArgumentException("Invalid index partition blocks: "
+          + indexPartitionBlocks);
+    }
+    this.indexPartitionBlocks = indexPartitionBlocks;
+    return this;
+  }
+
+  public int getIndexPartitionBlocks() {
+    return this.indexPartitionBlocks;
+  }
+
+  public byte[] toBytes() {
+    byte[] buf = new byte[SERIALIZE_SIZE];
+    int pos = 0;
+    System.arraycopy(Bytes.toBytes(blockSize), 0, buf, pos, 4);
+    pos += 4;
+    System.arraycopy(Bytes.toBytes(restartInterval), 0, buf, pos, 4);
+    pos += 4;
+    System.arraycopy(Bytes.toBytes(bloomBitsPerKey), 0, buf, pos, 4);
+    pos += 4;
+    buf[pos++] = indexType.getCode();
+    buf[pos++] = codec.getId();
+    System.arraycopy(Bytes.toBytes(indexPartitionBlocks), 0, buf, pos, 4);
+    return buf;
+  }
+
+  public static FormatOptions parseFrom(byte[] buf, int offset) throws IOException {
+    int pos = offset;
+    int blockSize = Bytes.toInt(Bytes.slice(buf, pos, 4));
+    pos += 4;
+    int restartInterval = Bytes.toInt(Bytes.slice(buf, pos, 4));
+    pos += 4;
+    int bloomBitsPerKey = Bytes.toInt(Bytes.slice(buf, pos, 4));
+    pos += 4;
+    IndexType indexType = IndexType.of(buf[pos++]);
+    Codec codec = Codec.of(buf[pos++]);
+    int indexPartitionBlocks = Bytes.toInt(Bytes.slice(buf, pos, 4));
+    try {
+      return new FormatOptions().setBlockSize(blockSize).setRestartInterval(restartInterval)
+          .setBloomBitsPerKey(bloomBitsPerKey).setIndexType(indexType).setCodec(codec)
+          .setIndexPartitionBlocks(indexPartitionBlocks);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid format options", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "blockSize=" + blockSize + ", restartInterval=" + restartInterval
+        + ", bloomBitsPerKey=" + bloomBitsPerKey + ", indexType=" + indexType + ", codec="
+        + codec.getName() + ", indexPartitionBlocks=" + indexPartitionBlocks;
+  }
+}
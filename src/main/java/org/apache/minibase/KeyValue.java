@@ -18,7 +18,11 @@ public class KeyValue implements Comparable<KeyValue> {
 
   public enum Op {
     Put((byte) 0),
-    Delete((byte) 1);
+    Delete((byte) 1),
+    // A put whose value is stored in a blob file, the value here is the BlobFile.BlobRef to it.
+    BlobRef((byte) 2),
+    // An operand of the MergeOperator, which is applied to the older versions of the key.
+    Merge((byte) 3);
 
     private byte code;
 
@@ -32,6 +36,10 @@ public class KeyValue implements Comparable<KeyValue> {
           return Put;
         case 1:
           return Delete;
+        case 2:
+          return BlobRef;
+        case 3:
+          return Merge;
         default:
           throw new IllegalArgumentException("Unknown code: " + code);
       }
@@ -54,6 +62,10 @@ public class KeyValue implements Comparable<KeyValue> {
     return KeyValue.create(key, Bytes.EMPTY_BYTES, Op.Delete, sequenceId);
   }
 
+  public static KeyValue createMerge(byte[] key, byte[] operand, long sequenceId) {
+    return KeyValue.create(key, operand, Op.Merge, sequenceId);
+  }
+
   private KeyValue(byte[] key, byte[] value, Op op, long sequenceId) {
     assert key != null;
     assert value != null;
@@ -157,7 +169,24 @@ public class KeyValue implements Comparable<KeyValue> {
     return sb.toString();
   }
 
+  /**
+   * @return the serialize size of the key value which is encoded at the offset of bytes.
+   */
+  public static int getSerializeSize(byte[] bytes, int offset) throws IOException {
+    int rawKeyLen = Bytes.toInt(Bytes.slice(bytes, offset, RAW_KEY_LEN_SIZE));
+    int valLen = Bytes.toInt(Bytes.slice(bytes, offset + RAW_KEY_LEN_SIZE, VAL_LEN_SIZE));
+    return RAW_KEY_LEN_SIZE + VAL_LEN_SIZE + rawKeyLen + valLen;
+  }
+
   public static KeyValue parseFrom(byte[] bytes, int offset) throws IOException {
+    return parseFrom(bytes, offset, false);
+  }
+
+  /**
+   * @param keyOnly if true, the value won't be copied and the parsed key value will have an empty
+   *                value.
+   */
+  public static KeyValue parseFrom(byte[] bytes, int offset, boolean keyOnly) throws IOException {
     if (bytes == null) {
       throw new IOException("buffer is null");
     }
@@ -187,7 +216,7 @@ public class KeyValue implements Comparable<KeyValue> {
     pos += SEQ_ID_SIZE;
 
     // Decode value.
-    byte[] val = Bytes.slice(bytes, pos, valLen);
+    byte[] val = keyOnly ? Bytes.EMPTY_BYTES : Bytes.slice(bytes, pos, valLen);
     return create(key, val, op, sequenceId);
   }
 
@@ -0,0 +1,151 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 codec in the LZ4 block format. The input is split into sequences, each sequence has
+ * a token byte, whose high nibble is the literal length and low nibble is the match length minus
+ * 4, the extra literal length bytes, the literals, a 2 bytes little endian match offset and the
+ * extra match length bytes. The last sequence has the literals only.
+ */
+public class LZCodec implements Codec {
+
+  public static final LZCodec INSTANCE = new LZCodec();
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int HASH_LOG = 14;
+
+  @Override
+  public byte getId() {
+    return LZ_ID;
+  }
+
+  @Override
+  public String getName() {
+    return "lz";
+  }
+
+  private static int readInt(byte[] buf, int pos) {
+    return (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8 | (buf[pos + 2] & 0xFF) << 16
+        | (buf[pos + 3] & 0xFF) << 24;
+  }
+
+  private static int hash(int seq) {
+    return (seq * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLength(byte[] dst, int pos, int len) {
+    while (len >= 0xFF) {
+      dst[pos++] = (byte) 0xFF;
+      len -= 0xFF;
+    }
+    dst[pos++] = (byte) len;
+    return pos;
+  }
+
+  @Override
+  public byte[] compress(byte[] src, int offset, int len) throws IOException {
+    int end = offset + len;
+    byte[] dst = new byte[len + len / 255 + 16];
+    int pos = 0;
+    // The positions are stored plus one, so zero means empty.
+    int[] table = new int[1 << HASH_LOG];
+    int anchor = offset, i = offset;
+    while (i + MIN_MATCH <= end) {
+      int seq = readInt(src, i);
+      int h = hash(seq);
+      int ref = table[h] - 1;
+      table[h] = i + 1;
+      if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+        i++;
+        continue;
+      }
+      int matchLen = MIN_MATCH;
+      while (i + matchLen < end && src[ref + matchLen] == src[i + matchLen]) {
+        matchLen++;
+      }
+
+      int litLen = i - anchor;
+      int token = pos++;
+      dst[token] = (byte) (Math.min(litLen, 15) << 4 | Math.min(matchLen - MIN_MATCH, 15));
+      if (litLen >= 15) {
+        pos = writeLength(dst, pos, litLen - 15);
+      }
+      System.arraycopy(src, anchor, dst, pos, litLen);
+      pos += litLen;
+      dst[pos++] = (byte) (i - ref);
+      dst[pos++] = (byte) ((i - ref) >>> 8);
+      if (matchLen - MIN_MATCH >= 15) {
+        pos = writeLength(dst, pos, matchLen - MIN_MATCH - 15);
+      }
+      i += matchLen;
+      anchor = i;
+    }
+
+    int litLen = end - anchor;
+    dst[pos++] = (byte) (Math.min(litLen, 15) << 4);
+    if (litLen >= 15) {
+      pos = writeLength(dst, pos, litLen - 15);
+    }
+    System.arraycopy(src, anchor, dst, pos, litLen);
+    pos += litLen;
+    return Arrays.copyOf(dst, pos);
+  }
+
+  @Override
+  public void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen)
+      throws IOException {
+    int ip = offset, end = offset + len;
+    int op = dstOffset, dstEnd = dstOffset + rawLen;
+    try {
+      while (true) {
+        int token = src[ip++] & 0xFF;
+        int litLen = token >>> 4;
+        if (litLen == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            litLen += b;
+          } while (b == 0xFF);
+        }
+        if (ip + litLen > end || op + litLen > dstEnd) {
+          throw new IOException("Literals overflow the buffer");
+        }
+        System.arraycopy(src, ip, dst, op, litLen);
+        ip += litLen;
+        op += litLen;
+        if (ip == end) {
+          break;
+        }
+
+        int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+        ip += 2;
+        int matchLen = token & 0x0F;
+        if (matchLen == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            matchLen += b;
+          } while (b == 0xFF);
+        }
+        matchLen += MIN_MATCH;
+        int ref = op - matchOffset;
+        if (matchOffset == 0 || ref < dstOffset || op + matchLen > dstEnd) {
+          throw new IOException("Invalid match, offset: " + matchOffset + ", len: " + matchLen);
+        }
+        // The match may overlap the bytes it's copying, so copy byte by byte.
+        for (int k = 0; k < matchLen; k++) {
+          dst[op++] = dst[ref++];
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Malformed lz data", e);
+    }
+    if (op != dstEnd) {
+      throw new IOException("Decompressed " + (op - dstOffset) + " bytes, but " + rawLen
+          + " expected");
+    }
+  }
+}
@@ -1,43 +1,76 @@
 package org.apache.minibase;
 
+import org.apache.log4j.Logger;
+import org.apache.minibase.ChangeLog.Change;
 import org.apache.minibase.DiskStore.DefaultCompactor;
 import org.apache.minibase.DiskStore.DefaultFlusher;
 import org.apache.minibase.DiskStore.MultiIter;
 import org.apache.minibase.KeyValue.Op;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class MStore implements MiniBase {
 
+  private static final Logger LOG = Logger.getLogger(MStore.class);
+  public static final String DEFAULT_COLUMN_FAMILY = "default";
+  // The column family is stored in the sub directory with its name.
+  private static final Pattern COLUMN_FAMILY_NAME_RE = Pattern.compile("[A-Za-z0-9_-]+");
+
   private ExecutorService pool;
-  private MemStore memStore;
-  private DiskStore diskStore;
+  private TableCache tableCache;
+  private BlockCache blockCache;
   private Compactor compactor;
   private AtomicLong sequenceId;
+  // The sequence ids of the writes which are not applied to the memstore yet.
+  private final TreeSet<Long> pendingWrites = new TreeSet<>();
+  private final Snapshot.Tracker snapshots = new Snapshot.Tracker();
+  private ChangeLog changeLog;
+  // The live subscriptions, checked for the expiry by the compaction thread.
+  private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+  private final Map<String, ColumnFamily> columnFamilies = new ConcurrentSkipListMap<>();
+  private ColumnFamily defaultFamily;
 
   private Config conf;
 
   public MiniBase open() throws IOException {
     assert conf != null;
 
-    // initialize the thread pool;
+    // initialize the thread pool and the caches shared by all the column families.
     this.pool = Executors.newFixedThreadPool(conf.getMaxThreadPoolSize());
+    this.tableCache = new TableCache(conf.getMaxOpenFiles());
+    this.blockCache = new BlockCache(conf.getBlockCacheSize(), conf.isCacheCompressedBlocks());
+    this.sequenceId = new AtomicLong(0L);
+    this.changeLog = new ChangeLog(conf.getChangeLogSize());
 
-    // initialize the disk store.
-    this.diskStore = new DiskStore(conf.getDataDir(), conf.getMaxDiskFiles());
-    this.diskStore.open();
-    // TODO initialize the max sequence id here.
-    this.sequenceId = new AtomicLong(0);
-
-    // initialize the memstore.
-    this.memStore = new MemStore(conf, new DefaultFlusher(diskStore), pool);
+    // initialize the default column family, which is stored in the data directory.
+    this.defaultFamily = new ColumnFamily(DEFAULT_COLUMN_FAMILY, conf.getDataDir(), conf);
+    columnFamilies.put(DEFAULT_COLUMN_FAMILY, defaultFamily);
 
-    this.compactor = new DefaultCompactor(diskStore);
+    this.compactor = new FamilyCompactor();
     this.compactor.start();
     return this;
   }
@@ -54,110 +87,1046 @@ public class MStore implements MiniBase {
     return create(Config.getDefault());
   }
 
+  /**
+   * Open the column family with the given name, or create it if absent. A column family is a
+   * separated keyspace with its own memstore, disk store and options, such as the format options,
+   * the max memstore size and the merge operator, while the thread pool, the caches, the
+   * compaction thread and the global memstore budget are shared with the other column families.
+   * The column families must be opened again after the store is reopened.
+   *
+   * @param name the name of the column family, which is made of letters, digits, '_' and '-'.
+   * @param conf the options of the column family, its data directory is ignored.
+   */
+  public ColumnFamily openColumnFamily(String name, Config conf) throws IOException {
+    if (!COLUMN_FAMILY_NAME_RE.matcher(name).matches()) {
+      throw new IllegalArgumentException("Invalid column family name: " + name);
+    }
+    synchronized (columnFamilies) {
+      if (columnFamilies.containsKey(name)) {
+        throw new IllegalArgumentException("Column family " + name + " is already opened");
+      }
+      File dir = new File(this.conf.getDataDir(), name);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Failed to create the directory of column family " + name);
+      }
+      ColumnFamily cf = new ColumnFamily(name, dir.getPath(), conf);
+      columnFamilies.put(name, cf);
+      return cf;
+    }
+  }
+
+  /**
+   * @return the opened column family, or null if it's not opened.
+   */
+  public ColumnFamily getColumnFamily(String name) {
+    return columnFamilies.get(name);
+  }
+
+  /**
+   * Allocate the sequence id for a new write, the write must be completed by
+   * {@link #completeWrite(long, Change)} whether it succeeded or not.
+   */
+  private long beginWrite() {
+    synchronized (pendingWrites) {
+      long seqId = sequenceId.incrementAndGet();
+      pendingWrites.add(seqId);
+      return seqId;
+    }
+  }
+
+  /**
+   * @param change the change to deliver to the subscribers, null if the write failed.
+   */
+  private void completeWrite(long seqId, Change change) {
+    // Record the change before it becomes visible, so the subscribers never miss it.
+    changeLog.record(seqId, change);
+    synchronized (pendingWrites) {
+      pendingWrites.remove(seqId);
+    }
+    changeLog.signal();
+  }
+
+  /**
+   * @return the largest sequence id which all the writes with smaller or equal sequence id have
+   * been applied to memstore, so a reader with the read point won't see the writes landing later.
+   */
+  private long getReadPoint() {
+    synchronized (pendingWrites) {
+      return pendingWrites.isEmpty() ? sequenceId.get() : pendingWrites.first() - 1;
+    }
+  }
+
+  private long getReadPoint(Snapshot snapshot) {
+    return snapshot == null ? getReadPoint() : snapshot.getReadPoint();
+  }
+
+  /**
+   * Flush the largest memstore once the memstores of all the column families exceed the global
+   * memstore size. Nothing to do if the largest one is being flushed, since its size will be
+   * released soon.
+   */
+  private void flushLargestIfNeeded() {
+    long limit = conf.getGlobalMemstoreSize();
+    if (limit <= 0) {
+      return;
+    }
+    long total = 0, largestSize = 0;
+    MemStore largest = null;
+    for (ColumnFamily cf : columnFamilies.values()) {
+      long size = cf.memStore.getDataSize();
+      total += size;
+      if (size > largestSize) {
+        largest = cf.memStore;
+        largestSize = size;
+      }
+    }
+    if (total > limit && largest != null) {
+      largest.requestFlush();
+    }
+  }
+
+  @Override
+  public Snapshot getSnapshot() throws IOException {
+    synchronized (pendingWrites) {
+      return snapshots.register(getReadPoint());
+    }
+  }
+
   @Override
   public void put(byte[] key, byte[] value) throws IOException {
-    this.memStore.add(KeyValue.createPut(key, value, sequenceId.incrementAndGet()));
+    defaultFamily.put(key, value);
   }
 
   @Override
-  public KeyValue get(byte[] key) throws IOException {
-    KeyValue result = null;
-    Iter<KeyValue> it = scan(key, Bytes.EMPTY_BYTES);
-    if (it.hasNext()) {
-      KeyValue kv = it.next();
-      if (Bytes.compare(kv.getKey(), key) == 0) {
-        result = kv;
-      }
-    }
-    return result;
+  public KeyValue get(byte[] key, Snapshot snapshot) throws IOException {
+    return defaultFamily.get(key, snapshot);
   }
 
   @Override
   public void delete(byte[] key) throws IOException {
-    this.memStore.add(KeyValue.createDelete(key, sequenceId.incrementAndGet()));
+    defaultFamily.delete(key);
   }
 
   @Override
-  public Iter<KeyValue> scan(byte[] start, byte[] stop) throws IOException {
-    List<SeekIter<KeyValue>> iterList = new ArrayList<>();
-    iterList.add(memStore.createIterator());
-    iterList.add(diskStore.createIterator());
-    MultiIter it = new MultiIter(iterList);
+  public void deleteRange(byte[] start, byte[] stop) throws IOException {
+    defaultFamily.deleteRange(start, stop);
+  }
+
+  @Override
+  public void merge(byte[] key, byte[] operand) throws IOException {
+    defaultFamily.merge(key, operand);
+  }
+
+  @Override
+  public Iter<KeyValue> scan(byte[] start, byte[] stop, ScanOptions options) throws IOException {
+    return defaultFamily.scan(start, stop, options);
+  }
+
+  /**
+   * Add the disk files built by {@link DiskFileBuilder} to the default column family, see
+   * {@link ColumnFamily#ingest(List)}.
+   */
+  public void ingest(List<Path> paths) throws IOException {
+    defaultFamily.ingest(paths);
+  }
+
+  /**
+   * Write an openable copy of the store into the target directory, which reads the same as a
+   * snapshot taken now. The immutable disk files are hard linked, so it takes milliseconds and
+   * no extra space until the compaction diverges the copy from the store, and the memstore is
+   * captured into a new disk file. The flushes are held off meanwhile, so each key value is
+   * either in the linked disk files or in the captured memstore. The column families are copied
+   * into the sub directories with their names, as the store does.
+   * <p>
+   * The copy is opened as a store whose data directory is the target directory. If it fails, the
+   * target directory should be removed before retrying.
+   *
+   * @param targetDir the directory of the copy, which must be empty or absent.
+   */
+  public void checkpoint(String targetDir) throws IOException {
+    // The default column family checks the target directory is empty, so it goes first.
+    List<ColumnFamily> families = new ArrayList<>();
+    families.add(defaultFamily);
+    for (ColumnFamily cf : columnFamilies.values()) {
+      if (cf != defaultFamily) {
+        families.add(cf);
+      }
+    }
+    List<ColumnFamily> paused = new ArrayList<>();
+    try {
+      for (ColumnFamily cf : families) {
+        cf.memStore.pauseFlush();
+        paused.add(cf);
+      }
+      long readPoint = getReadPoint();
+      for (ColumnFamily cf : families) {
+        String dir = cf == defaultFamily ? targetDir : new File(targetDir, cf.name).getPath();
+        try (SeekIter<KeyValue> it = cf.memStore.createIterator()) {
+          cf.diskStore.checkpoint(dir, it, cf.memStore.getRangeTombstones(), readPoint);
+        }
+      }
+    } finally {
+      for (ColumnFamily cf : paused) {
+        cf.memStore.resumeFlush();
+      }
+    }
+  }
+
+  /**
+   * Subscribe the changes of all the column families, which are delivered in the order of their
+   * sequence ids. The recent changes are read from the change log in memory, see
+   * {@link Config#setChangeLogSize(int)}, and the older ones from the memstores and the disk
+   * stores.
+   *
+   * The subscription expires once it's idle for longer than
+   * {@link Config#setSubscriptionRetention(long)}, so a stalled subscriber won't keep the old
+   * versions forever.
+   *
+   * @param fromSequenceId the first sequence id to deliver, 0 means from the beginning.
+   */
+  public Subscription subscribe(long fromSequenceId) {
+    if (fromSequenceId < 0) {
+      throw new IllegalArgumentException("Invalid sequence id: " + fromSequenceId);
+    }
+    Subscription subscription = new Subscription(Math.max(fromSequenceId - 1, 0L));
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  /**
+   * Expire the subscriptions idle for longer than the retention, called by the compaction thread
+   * before each round of compactions.
+   */
+  void expireSubscriptions() {
+    long retentionNanos = TimeUnit.MILLISECONDS.toNanos(conf.getSubscriptionRetention());
+    subscriptions.removeIf(s -> s.expireIfIdle(retentionNanos));
+  }
+
+  // The order of the changes delivered to the subscribers, the changes with the same sequence id
+  // are ordered by the column family and the key, so a subscriber can resume after any of them.
+  private static final Comparator<Change> CHANGE_ORDER = Comparator
+      .comparingLong(Change::getSequenceId)
+      .thenComparing(Change::getColumnFamily)
+      .thenComparing(c -> c.getKeyValue() != null ? c.getKeyValue().getKey()
+          : c.getRangeTombstone().getStart(), Bytes::compare)
+      .thenComparing(c -> c.getRangeTombstone() != null ? c.getRangeTombstone().getStop()
+          : Bytes.EMPTY_BYTES, Bytes::compare);
+
+  /**
+   * Read the first changes in (from, to] after the given change from the memstores and the disk
+   * stores. Only the versions kept by the flushes and compactions are found, at least the newest
+   * version of each key. The store iterators are in the key order, so the changes are scanned
+   * through and only the first ones are kept, which bounds the memory by the limit rather than
+   * the changes in the range.
+   *
+   * @param after the last delivered change, null to read from the first change in the range.
+   * @param limit the max number of changes to read.
+   * @return the changes in the order of {@link #CHANGE_ORDER}.
+   */
+  private List<Change> readChanges(long from, Change after, long to, int limit)
+      throws IOException {
+    // The changes are deduplicated as well, since a flush may move a key value from the memstore
+    // to the disk store between creating their iterators.
+    TreeSet<Change> changes = new TreeSet<>(CHANGE_ORDER);
+    Consumer<Change> collect = c -> {
+      if (after != null && CHANGE_ORDER.compare(c, after) <= 0) {
+        return;
+      }
+      if (changes.size() < limit) {
+        changes.add(c);
+      } else if (CHANGE_ORDER.compare(c, changes.last()) < 0 && changes.add(c)) {
+        changes.pollLast();
+      }
+    };
+    for (ColumnFamily cf : columnFamilies.values()) {
+      // Create the memstore iterator first, so that the key values flushed in between will be
+      // found in the disk store, then the duplicates are removed.
+      List<RangeTombstone> tombstones = new ArrayList<>(cf.memStore.getRangeTombstones());
+      List<SeekIter<KeyValue>> iters = new ArrayList<>();
+      iters.add(cf.memStore.createIterator());
+      iters.add(cf.diskStore.createChangeIterator(from, to, tombstones));
+      try (MultiIter it = new MultiIter(iters)) {
+        while (it.hasNext()) {
+          KeyValue kv = it.next();
+          if (kv.getSequenceId() > from && kv.getSequenceId() <= to) {
+            collect.accept(new Change(kv.getSequenceId(), cf.name, kv, null));
+          }
+        }
+      }
+      for (RangeTombstone t : tombstones) {
+        if (t.getSequenceId() > from && t.getSequenceId() <= to) {
+          collect.accept(new Change(t.getSequenceId(), cf.name, null, t));
+        }
+      }
+    }
+    return new ArrayList<>(changes);
+  }
+
+  /**
+   * The cursor of a subscriber on the changes of the store. The subscriber pulls the changes in
+   * batches at its own pace, and the subscription holds a snapshot at the last delivered sequence
+   * id, so the flushes and compactions keep the newer versions for it. A subscriber falling
+   * behind the change log reads the newest versions of the changed keys from the disk stores, so
+   * the intermediate versions dropped by the compactions are skipped. Each poll then scans the
+   * memstores and the disk files newer than the cursor for the next batch.
+   */
+  public class Subscription implements Closeable {
+
+    // The last delivered sequence id.
+    private volatile long sequenceId;
+    // The last delivered change read from the memstores and the disk stores, whose sequence id
+    // may have more changes to deliver. null if all the changes of the sequence id are delivered.
+    private Change cursor = null;
+    // Serializes the polls, which read and wait without holding the monitor of the subscription,
+    // so closing it never waits for a poll. The fields below are guarded by the monitor.
+    private final ReentrantLock pollLock = new ReentrantLock();
+    private Snapshot pinned;
+    private boolean polling = false;
+    // When the last poll finished, or the subscription was created.
+    private long idleSince = System.nanoTime();
+    private volatile boolean closed = false;
+    private volatile boolean expired = false;
+
+    private Subscription(long sequenceId) {
+      this.sequenceId = sequenceId;
+      this.pinned = snapshots.register(sequenceId);
+    }
+
+    /**
+     * @return the sequence id of the last delivered change. The changes with the same sequence
+     * id, such as the key values of the ingested disk files, may be delivered in several batches.
+     */
+    public long getSequenceId() {
+      return sequenceId;
+    }
+
+    /**
+     * @return true if the subscription has been idle for longer than the retention, see
+     * {@link Config#setSubscriptionRetention(long)}. It can't be polled any more, since the
+     * versions it hasn't read may have been dropped, so the subscriber has to subscribe again.
+     */
+    public boolean isExpired() {
+      return expired;
+    }
+
+    /**
+     * Pull the next batch of changes, wait until any change is available or the timeout. The wait
+     * ends early with the changes pulled so far once the subscription is closed.
+     *
+     * @param maxChanges the max number of changes to return.
+     * @return the changes in the order of their sequence ids, empty if timed out.
+     * @throws IllegalStateException if the subscription has been closed or expired.
+     */
+    public List<Change> poll(int maxChanges, long timeout, TimeUnit unit) throws IOException {
+      if (maxChanges <= 0) {
+        throw new IllegalArgumentException("Invalid max changes: " + maxChanges);
+      }
+      pollLock.lock();
+      try {
+        synchronized (this) {
+          if (closed) {
+            throw new IllegalStateException("The subscription has been closed");
+          }
+          if (expired) {
+            throw new IllegalStateException("The subscription has expired at sequence id "
+                + sequenceId);
+          }
+          polling = true;
+        }
+        try {
+          return pollChanges(maxChanges, timeout, unit);
+        } finally {
+          synchronized (this) {
+            polling = false;
+            idleSince = System.nanoTime();
+            if (!closed && pinned.getReadPoint() != sequenceId) {
+              pinned.close();
+              pinned = snapshots.register(sequenceId);
+            }
+          }
+        }
+      } finally {
+        pollLock.unlock();
+      }
+    }
+
+    private List<Change> pollChanges(int maxChanges, long timeout, TimeUnit unit)
+        throws IOException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      List<Change> changes = new ArrayList<>();
+      while (!closed) {
+        long readPoint = getReadPoint();
+        if (cursor == null) {
+          sequenceId = changeLog.read(sequenceId, readPoint, maxChanges - changes.size(),
+            changes);
+        }
+        if (changes.size() < maxChanges && (cursor != null || sequenceId < readPoint)) {
+          // The next change is missing in the change log, or the changes of the sequence id are
+          // partially delivered.
+          int limit = maxChanges - changes.size();
+          List<Change> read = readChanges(cursor != null ? sequenceId - 1 : sequenceId, cursor,
+            readPoint, limit);
+          changes.addAll(read);
+          if (read.size() < limit) {
+            // All the changes up to the read point are delivered.
+            sequenceId = readPoint;
+            cursor = null;
+          } else {
+            cursor = read.get(read.size() - 1);
+            sequenceId = cursor.getSequenceId();
+          }
+          continue;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (!changes.isEmpty() || remaining <= 0) {
+          break;
+        }
+        long from = sequenceId;
+        try {
+          changeLog.await(remaining, TimeUnit.NANOSECONDS,
+            () -> closed || getReadPoint() > from);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted when waiting for the changes");
+        }
+      }
+      return changes;
+    }
+
+    /**
+     * Release the snapshot of the subscription if it has been idle for longer than the retention,
+     * so a stalled subscriber never stops the compactions from dropping the old versions.
+     *
+     * @return true if the subscription is expired.
+     */
+    private synchronized boolean expireIfIdle(long retentionNanos) {
+      if (!closed && !expired && !polling && System.nanoTime() - idleSince > retentionNanos) {
+        expired = true;
+        pinned.close();
+        LOG.warn("Subscription at sequence id " + sequenceId + " expired after idle for "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince) + "ms");
+      }
+      return expired;
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        pinned.close();
+      }
+      subscriptions.remove(this);
+      // Wake up the poll waiting for the changes.
+      changeLog.signal();
+    }
+  }
+
+  /**
+   * A keyspace of the store. All the column families share the sequence ids and the snapshots of
+   * the store, so a snapshot reads a consistent view across them.
+   */
+  public class ColumnFamily implements MiniBase {
+
+    private final String name;
+    private final Config conf;
+    private final DiskStore diskStore;
+    private final MemStore memStore;
+    private final DefaultCompactor compactor;
+
+    private ColumnFamily(String name, String dataDir, Config conf) throws IOException {
+      this.name = name;
+      this.conf = conf;
+      this.diskStore = new DiskStore(dataDir, conf, tableCache, blockCache);
+      this.diskStore.open();
+      this.diskStore.preloadDiskFiles(pool, conf.getPreloadDiskFiles());
+      // The sequence ids are shared, so they must be newer than the ones of every column family.
+      sequenceId.accumulateAndGet(diskStore.getMaxSequenceId(), Math::max);
+      this.memStore = new MemStore(conf,
+          new DefaultFlusher(diskStore, snapshots, MStore.this::getReadPoint), pool);
+      // Not started, the compaction thread of the store runs it.
+      this.compactor = new DefaultCompactor(diskStore, snapshots);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    DiskStore getDiskStore() {
+      return diskStore;
+    }
+
+    private Change add(KeyValue kv) throws IOException {
+      this.memStore.add(kv);
+      flushLargestIfNeeded();
+      return new Change(kv.getSequenceId(), name, kv, null);
+    }
+
+    @Override
+    public Snapshot getSnapshot() throws IOException {
+      return MStore.this.getSnapshot();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+      long seqId = beginWrite();
+      Change change = null;
+      try {
+        change = add(KeyValue.createPut(key, value, seqId));
+      } finally {
+        completeWrite(seqId, change);
+      }
+    }
+
+    @Override
+    public KeyValue get(byte[] key, Snapshot snapshot) throws IOException {
+      KeyValue result = null;
+      // Skip the disk files whose bloom filters say the key is absent.
+      try (Iter<KeyValue> it = scan(key, Bytes.EMPTY_BYTES, new ScanOptions(),
+          getReadPoint(snapshot), true)) {
+        if (it.hasNext()) {
+          KeyValue kv = it.next();
+          if (Bytes.compare(kv.getKey(), key) == 0) {
+            result = kv;
+          }
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public void delete(byte[] key) throws IOException {
+      long seqId = beginWrite();
+      Change change = null;
+      try {
+        change = add(KeyValue.createDelete(key, seqId));
+      } finally {
+        completeWrite(seqId, change);
+      }
+    }
+
+    @Override
+    public void deleteRange(byte[] start, byte[] stop) throws IOException {
+      long seqId = beginWrite();
+      Change change = null;
+      try {
+        RangeTombstone tombstone = new RangeTombstone(start, stop, seqId);
+        this.memStore.addRangeTombstone(tombstone);
+        flushLargestIfNeeded();
+        change = new Change(seqId, name, null, tombstone);
+      } finally {
+        completeWrite(seqId, change);
+      }
+    }
+
+    @Override
+    public void merge(byte[] key, byte[] operand) throws IOException {
+      if (conf.getMergeOperator() == null) {
+        throw new IllegalStateException("No merge operator is configured");
+      }
+      long seqId = beginWrite();
+      Change change = null;
+      try {
+        change = add(KeyValue.createMerge(key, operand, seqId));
+      } finally {
+        completeWrite(seqId, change);
+      }
+    }
 
-    // with start being EMPTY_BYTES means minus infinity, will skip to seek.
-    if (Bytes.compare(start, Bytes.EMPTY_BYTES) != 0) {
-      it.seekTo(KeyValue.createDelete(start, sequenceId.get()));
+    @Override
+    public Iter<KeyValue> scan(byte[] start, byte[] stop, ScanOptions options)
+        throws IOException {
+      return scan(start, stop, options, getReadPoint(options.getSnapshot()));
     }
 
-    KeyValue stopKV = null;
-    if (Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0) {
-      // the smallest kv in all KeyValue with the same key.
-      stopKV = KeyValue.createDelete(stop, Long.MAX_VALUE);
+    /**
+     * Add the disk files built by {@link DiskFileBuilder} to the column family directly, so each
+     * byte of a bulk load is written once. All the key values of the disk files take a new
+     * sequence id, so they shadow the older writes of the same keys, and become visible at once.
+     * The disk files are left in place, they're hard linked or copied into the store.
+     *
+     * @param paths the disk files, whose key ranges must not overlap with each other.
+     */
+    public void ingest(List<Path> paths) throws IOException {
+      if (paths.isEmpty()) {
+        return;
+      }
+      long seqId = beginWrite();
+      Change change = null;
+      try {
+        diskStore.ingest(paths, seqId);
+        // The subscribers read the ingested key values from the disk store.
+        change = ChangeLog.ON_DISK;
+      } finally {
+        completeWrite(seqId, change);
+      }
+    }
+
+    private Iter<KeyValue> scan(byte[] start, byte[] stop, ScanOptions options, long readPoint)
+        throws IOException {
+      return scan(start, stop, options, readPoint, false);
+    }
+
+    /**
+     * @param pointLookup if true, only the key values of the start key are guaranteed to be
+     *                    found.
+     */
+    private Iter<KeyValue> scan(byte[] start, byte[] stop, ScanOptions options, long readPoint,
+        boolean pointLookup) throws IOException {
+      List<SeekIter<KeyValue>> iterList = new ArrayList<>();
+      // Create the memstore iterator first, so that the key values flushed in between will be
+      // found in the disk store. So are the range tombstones.
+      List<RangeTombstone> rangeTombstones = new ArrayList<>();
+      for (RangeTombstone t : memStore.getRangeTombstones()) {
+        if (pointLookup ? t.contains(start) : t.overlaps(start, stop)) {
+          rangeTombstones.add(t);
+        }
+      }
+      iterList.add(memStore.createIterator());
+      iterList.add(pointLookup ? diskStore.createPointIterator(start, rangeTombstones)
+          : diskStore.createIterator(start, stop, options.isKeysOnly(), options.getFilter(),
+              rangeTombstones));
+      MultiIter it = new MultiIter(iterList);
+
+      // The range tombstones written after the read point are invisible, like the key values.
+      List<RangeTombstone> visible = new ArrayList<>();
+      for (RangeTombstone t : rangeTombstones) {
+        if (t.getSequenceId() <= readPoint) {
+          visible.add(t);
+        }
+      }
+
+      // with start being EMPTY_BYTES means minus infinity, will skip to seek. Seek to the newest
+      // version, the delete marker with the read point would skip a merge operand with the same
+      // sequence id, whose op code sorts it first.
+      if (Bytes.compare(start, Bytes.EMPTY_BYTES) != 0) {
+        it.seekTo(KeyValue.createDelete(start, Long.MAX_VALUE));
+      }
+
+      KeyValue stopKV = null;
+      if (Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0) {
+        // the smallest kv in all KeyValue with the same key.
+        stopKV = KeyValue.createDelete(stop, Long.MAX_VALUE);
+      }
+      return new ScanIter(stopKV, it, options, readPoint, conf.getMergeOperator(),
+          visible.isEmpty() ? null : new RangeTombstone.Fragments(visible));
+    }
+
+    /**
+     * Close the column family, whose key values in the memstore are dropped as the store does.
+     * The default column family is closed with the store.
+     */
+    @Override
+    public void close() throws IOException {
+      if (this == defaultFamily) {
+        throw new IllegalStateException("The default column family is closed with the store");
+      }
+      columnFamilies.remove(name);
+      closeStores();
+    }
+
+    private void closeStores() throws IOException {
+      memStore.close();
+      diskStore.close();
+    }
+  }
+
+  /**
+   * The compaction thread shared by all the column families, which compacts them in turn.
+   */
+  private class FamilyCompactor extends Compactor {
+
+    FamilyCompactor() {
+      this.setDaemon(true);
+    }
+
+    @Override
+    public void compact() throws IOException {
+      expireSubscriptions();
+      for (ColumnFamily cf : columnFamilies.values()) {
+        cf.compactor.compact();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        expireSubscriptions();
+        boolean isCompacted = false;
+        for (ColumnFamily cf : columnFamilies.values()) {
+          try {
+            isCompacted |= cf.compactor.compactIfNeeded();
+          } catch (IOException e) {
+            LOG.error("Compaction of column family " + cf.getName() + " failed: ", e);
+          }
+        }
+        if (!isCompacted) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException ie) {
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a {@link Spliterator} which fetches the key values located in the range [startKey,
+   * stopKey). The key space is split at the block boundaries of the disk files, and every split
+   * scans its own sub range with a separated {@link ScanIter}. so a parallel stream created by
+   * {@link java.util.stream.StreamSupport#stream(Spliterator, boolean)} can scan the store with
+   * multiple cores.
+   *
+   * All the splits read with the same read point, so they see a consistent view of the store.
+   * The read point is not registered as a snapshot unless the caller passes one in, so a long
+   * running parallel scan should pass in a snapshot and close it after finished.
+   *
+   * The scanner of a split pins the disk files until it's drained, so the spliterator must be
+   * closed once it's done with, which closes the scanners of all its splits. Prefer
+   * {@link #stream(byte[], byte[], Snapshot, boolean)}, which closes it with the stream.
+   *
+   * @param start    start key to scan (inclusive), byte[0] means negative infinity.
+   * @param stop     stop key to scan (exclusive), byte[0] means positive infinity.
+   * @param snapshot the snapshot to read, null means the latest read point.
+   * @return the spliterator, any IOException will be thrown as {@link UncheckedIOException}.
+   */
+  public ScanSpliterator spliterator(byte[] start, byte[] stop, Snapshot snapshot)
+      throws IOException {
+    long readPoint = getReadPoint(snapshot);
+    TreeSet<byte[]> splitKeys = new TreeSet<>(Bytes::compare);
+    for (DiskFile df : defaultFamily.diskStore.getDiskFiles()) {
+      for (byte[] key : df.getBlockIndexKeys()) {
+        // The split key must be located in the range (start, stop), otherwise we will get an
+        // empty split.
+        if (Bytes.compare(key, start) <= 0) {
+          continue;
+        }
+        if (Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0 && Bytes.compare(key, stop) >= 0) {
+          continue;
+        }
+        splitKeys.add(key);
+      }
+    }
+    return new ScanSpliterator(start, stop, new ArrayList<>(splitKeys), readPoint,
+        Collections.newSetFromMap(new ConcurrentHashMap<>()));
+  }
+
+  public ScanSpliterator spliterator(byte[] start, byte[] stop) throws IOException {
+    return spliterator(start, stop, null);
+  }
+
+  public ScanSpliterator spliterator() throws IOException {
+    return spliterator(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
+  }
+
+  /**
+   * Create a stream of the key values located in the range [startKey, stopKey), see
+   * {@link #spliterator(byte[], byte[], Snapshot)}. The stream must be closed, e.g. by a
+   * try-with-resources statement, since a short-circuiting operation such as findFirst leaves the
+   * scanners of the splits open.
+   *
+   * @param parallel true to scan the splits in parallel.
+   */
+  public Stream<KeyValue> stream(byte[] start, byte[] stop, Snapshot snapshot, boolean parallel)
+      throws IOException {
+    ScanSpliterator split = spliterator(start, stop, snapshot);
+    return StreamSupport.stream(split, parallel).onClose(split::close);
+  }
+
+  public Stream<KeyValue> stream(boolean parallel) throws IOException {
+    return stream(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES, null, parallel);
+  }
+
+  public class ScanSpliterator implements Spliterator<KeyValue>, Closeable {
+
+    private byte[] start;
+    private byte[] stop;
+    // The sorted keys which located in (start, stop), each of them can be used to split the range.
+    private List<byte[]> splitKeys;
+    private final long readPoint;
+    private Iter<KeyValue> it = null;
+    private boolean drained = false;
+    // The open scanners of the spliterator and all its splits, shared by them.
+    private final Set<Iter<KeyValue>> openIters;
+
+    ScanSpliterator(byte[] start, byte[] stop, List<byte[]> splitKeys, long readPoint,
+        Set<Iter<KeyValue>> openIters) {
+      this.start = start;
+      this.stop = stop;
+      this.splitKeys = splitKeys;
+      this.readPoint = readPoint;
+      this.openIters = openIters;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super KeyValue> action) {
+      try {
+        if (drained) {
+          return false;
+        }
+        if (it == null) {
+          it = defaultFamily.scan(start, stop, new ScanOptions(), readPoint);
+          openIters.add(it);
+        }
+        if (!it.hasNext()) {
+          // Unpin the disk files once the split is drained.
+          drained = true;
+          if (openIters.remove(it)) {
+            it.close();
+          }
+          return false;
+        }
+        action.accept(it.next());
+        return true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Close the open scanners of the spliterator and all its splits, which may be left open by a
+     * short-circuiting or failed traversal.
+     */
+    @Override
+    public void close() {
+      IOException closeException = null;
+      for (Iter<KeyValue> iter : openIters) {
+        if (openIters.remove(iter)) {
+          try {
+            iter.close();
+          } catch (IOException e) {
+            closeException = e;
+          }
+        }
+      }
+      if (closeException != null) {
+        throw new UncheckedIOException(closeException);
+      }
+    }
+
+    @Override
+    public Spliterator<KeyValue> trySplit() {
+      // Once started to scan, the range can not be split any more.
+      if (it != null || splitKeys.isEmpty()) {
+        return null;
+      }
+      int mid = splitKeys.size() / 2;
+      byte[] splitKey = splitKeys.get(mid);
+      ScanSpliterator prefix =
+          new ScanSpliterator(start, splitKey, splitKeys.subList(0, mid), readPoint, openIters);
+      this.start = splitKey;
+      this.splitKeys = splitKeys.subList(mid + 1, splitKeys.size());
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      // We have no idea about the number of key values, so just use the number of blocks to
+      // estimate the relative size of the splits.
+      return splitKeys.size() + 1;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SORTED | DISTINCT | NONNULL;
+    }
+
+    @Override
+    public Comparator<? super KeyValue> getComparator() {
+      // The key values are sorted in their natural order.
+      return null;
     }
-    return new ScanIter(stopKV, it);
   }
 
   static class ScanIter implements Iter<KeyValue> {
 
     private KeyValue stopKV;
     private Iter<KeyValue> storeIt;
+    private ScanOptions options;
+    // The key values with larger sequence id are invisible to this scan.
+    private long readPoint;
     // Last KV is the last key value which has the largest sequence id in key values with the
     // same key, but diff sequence id or op.
     private KeyValue lastKV = null;
     private KeyValue pendingKV = null;
+    // The key value read ahead from the store when combining the merge operands.
+    private KeyValue peekedKV = null;
+    private long returnedCount = 0;
+    private MergeOperator mergeOperator;
+    // The range tombstones visible to the read point, null if there is none.
+    private RangeTombstone.Fragments rangeTombstones;
 
     public ScanIter(KeyValue stopKV, SeekIter<KeyValue> it) {
+      this(stopKV, it, new ScanOptions(), Long.MAX_VALUE, null, null);
+    }
+
+    public ScanIter(KeyValue stopKV, SeekIter<KeyValue> it, ScanOptions options, long readPoint,
+        MergeOperator mergeOperator, RangeTombstone.Fragments rangeTombstones) {
       this.stopKV = stopKV;
       this.storeIt = it;
+      this.options = options;
+      this.readPoint = readPoint;
+      this.mergeOperator = mergeOperator;
+      this.rangeTombstones = rangeTombstones;
+    }
+
+    private boolean isDeletedByRange(KeyValue kv) {
+      return rangeTombstones != null && rangeTombstones.covers(kv);
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      if (pendingKV == null) {
+      if (!reachLimit() && pendingKV == null) {
         switchToNewKey();
       }
-      return pendingKV != null;
+      if (reachLimit() || pendingKV == null) {
+        // Release the disk files as soon as possible.
+        close();
+        return false;
+      }
+      return true;
+    }
+
+    private boolean reachLimit() {
+      return options.getLimit() >= 0 && returnedCount >= options.getLimit();
     }
 
     private boolean shouldStop(KeyValue kv) {
       return stopKV != null && Bytes.compare(stopKV.getKey(), kv.getKey()) <= 0;
     }
 
+    /**
+     * Apply the keys-only mode and the filter on the newest put of a key.
+     *
+     * @return the key value to return, or null if it's filtered.
+     */
+    private KeyValue accept(KeyValue kv) {
+      Filter filter = options.getFilter();
+      if (filter != null && filter.filterKey(kv.getKey())) {
+        return null;
+      }
+      if (options.isKeysOnly() && kv.getValue().length > 0) {
+        kv = KeyValue.createPut(kv.getKey(), Bytes.EMPTY_BYTES, kv.getSequenceId());
+      }
+      if (filter != null && filter.filterKeyValue(kv)) {
+        return null;
+      }
+      return kv;
+    }
+
     private void switchToNewKey() throws IOException {
       if (lastKV != null && shouldStop(lastKV)) {
         return;
       }
       KeyValue curKV;
-      while (storeIt.hasNext()) {
-        curKV = storeIt.next();
+      while ((curKV = nextStoreKV()) != null) {
         if (shouldStop(curKV)) {
           return;
         }
+        if (curKV.getSequenceId() > readPoint) {
+          continue;
+        }
+        // The key value deleted by a range tombstone works like a delete marker.
+        if (isDeletedByRange(curKV)) {
+          if (lastKV == null || Bytes.compare(lastKV.getKey(), curKV.getKey()) != 0) {
+            lastKV = curKV;
+          }
+          continue;
+        }
         if (curKV.getOp() == Op.Put) {
-          if (lastKV == null) {
-            lastKV = pendingKV = curKV;
-            return;
+          if (lastKV != null) {
+            int ret = Bytes.compare(lastKV.getKey(), curKV.getKey());
+            if (ret > 0) {
+              String msg = "KV mis-encoded, curKV < lastKV, curKV:" + Bytes.toHex(curKV.getKey()) +
+                           ", lastKV:" + Bytes.toHex(lastKV.getKey());
+              throw new IOException(msg);
+            } else if (ret == 0) {
+              // Same key with lastKV, should continue to fetch the next key value.
+              continue;
+            }
           }
-          int ret = Bytes.compare(lastKV.getKey(), curKV.getKey());
-          if (ret < 0) {
-            lastKV = pendingKV = curKV;
+          lastKV = curKV;
+          KeyValue kv = accept(curKV);
+          if (kv != null) {
+            pendingKV = kv;
             return;
-          } else if (ret > 0) {
-            String msg = "KV mis-encoded, curKV < lastKV, curKV:" + Bytes.toHex(curKV.getKey()) +
-                         ", lastKV:" + Bytes.toHex(lastKV.getKey());
-            throw new IOException(msg);
           }
-          // Same key with lastKV, should continue to fetch the next key value.
+          // The key is filtered, the older versions of the key will be skipped as well.
         } else if (curKV.getOp() == Op.Delete) {
           if (lastKV == null || Bytes.compare(lastKV.getKey(), curKV.getKey()) != 0) {
             lastKV = curKV;
           }
+        } else if (curKV.getOp() == Op.Merge) {
+          if (lastKV != null && Bytes.compare(lastKV.getKey(), curKV.getKey()) == 0) {
+            continue;
+          }
+          lastKV = merge(curKV);
+          KeyValue kv = accept(lastKV);
+          if (kv != null) {
+            pendingKV = kv;
+            return;
+          }
         } else {
           throw new IOException("Unknown op code: " + curKV.getOp());
         }
       }
     }
 
+    private KeyValue nextStoreKV() throws IOException {
+      if (peekedKV != null) {
+        KeyValue kv = peekedKV;
+        peekedKV = null;
+        return kv;
+      }
+      return storeIt.hasNext() ? storeIt.next() : null;
+    }
+
+    /**
+     * Apply the newest visible merge operand of a key and the older ones to the newest put of the
+     * key, or to nothing if the key is deleted, by a delete marker or a range tombstone, or has
+     * never been put.
+     *
+     * @return the put with the combined value and the sequence id of the newest operand.
+     */
+    private KeyValue merge(KeyValue newest) throws IOException {
+      List<byte[]> operands = new ArrayList<>();
+      operands.add(newest.getValue());
+      byte[] base = null;
+      KeyValue kv;
+      while ((kv = nextStoreKV()) != null) {
+        if (Bytes.compare(kv.getKey(), newest.getKey()) != 0) {
+          peekedKV = kv;
+          break;
+        }
+        if (isDeletedByRange(kv)) {
+          break;
+        }
+        if (kv.getOp() == Op.Merge) {
+          operands.add(kv.getValue());
+          continue;
+        }
+        if (kv.getOp() == Op.Put) {
+          base = kv.getValue();
+        }
+        break;
+      }
+
+      byte[] value = Bytes.EMPTY_BYTES;
+      // The values are empty under the keys-only mode, nothing to combine.
+      if (!options.isKeysOnly()) {
+        if (mergeOperator == null) {
+          throw new IOException("No merge operator to combine the operands of key "
+              + Bytes.toHex(newest.getKey()));
+        }
+        Collections.reverse(operands);
+        value = mergeOperator.fullMerge(newest.getKey(), base, operands);
+      }
+      return KeyValue.createPut(newest.getKey(), value, newest.getSequenceId());
+    }
+
     @Override
     public KeyValue next() throws IOException {
       if (pendingKV == null) {
@@ -165,14 +1134,24 @@ public class MStore implements MiniBase {
       }
       lastKV = pendingKV;
       pendingKV = null;
+      if (lastKV != null) {
+        returnedCount++;
+      }
       return lastKV;
     }
+
+    @Override
+    public void close() throws IOException {
+      storeIt.close();
+    }
   }
 
   @Override
   public void close() throws IOException {
-    memStore.close();
-    diskStore.close();
+    for (ColumnFamily cf : columnFamilies.values()) {
+      cf.closeStores();
+    }
+    columnFamilies.clear();
     compactor.interrupt();
   }
 
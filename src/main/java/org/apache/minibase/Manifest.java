@@ -0,0 +1,288 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+import org.apache.minibase.BlobFile.BlobMeta;
+import org.apache.minibase.DiskFile.FileMeta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The append-only log of the changes on the disk file set. Each record is an {@link Edit} which
+ * adds or removes some disk files atomically, so the store can rebuild the live disk files, their
+ * key ranges and the max file id by replaying the manifest, without listing the data directory or
+ * opening any disk file.
+ * <p>
+ * The edit may also add, update or remove the blob files. An added blob meta replaces the one with
+ * the same file name, that's how the garbage bytes of a blob file are updated.
+ * <p>
+ * Record layout: payloadLen(4B) + checksum(4B) + payload. A record with a mismatched checksum at
+ * the tail is regarded as an incomplete write before the crash, and will be ignored.
+ */
+public class Manifest implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(Manifest.class);
+
+  public static final String MANIFEST_FILE_NAME = "MANIFEST";
+  private static final String FILE_NAME_TMP_SUFFIX = ".tmp";
+  private static final int PAYLOAD_LEN_SIZE = 4;
+  private static final int CHECKSUM_SIZE = 4;
+
+  private final String fileName;
+  private FileOutputStream out;
+
+  public static class Edit {
+
+    private List<FileMeta> added;
+    private List<String> removed;
+    private long maxFileId;
+    private List<BlobMeta> addedBlobs;
+    private List<String> removedBlobs;
+
+    public Edit(List<FileMeta> added, List<String> removed, long maxFileId) {
+      this(added, removed, maxFileId, new ArrayList<>(), new ArrayList<>());
+    }
+
+    public Edit(List<FileMeta> added, List<String> removed, long maxFileId,
+        List<BlobMeta> addedBlobs, List<String> removedBlobs) {
+      this.added = added;
+      this.removed = removed;
+      this.maxFileId = maxFileId;
+      this.addedBlobs = addedBlobs;
+      this.removedBlobs = removedBlobs;
+    }
+
+    public List<FileMeta> getAdded() {
+      return added;
+    }
+
+    /**
+     * @return the names of the removed disk files, without the directory.
+     */
+    public List<String> getRemoved() {
+      return removed;
+    }
+
+    public long getMaxFileId() {
+      return maxFileId;
+    }
+
+    /**
+     * @return the added or updated blob files.
+     */
+    public List<BlobMeta> getAddedBlobs() {
+      return addedBlobs;
+    }
+
+    /**
+     * @return the names of the removed blob files, without the directory.
+     */
+    public List<String> getRemovedBlobs() {
+      return removedBlobs;
+    }
+
+    private static void addNames(List<byte[]> fields, List<String> names) throws IOException {
+      fields.add(Bytes.toBytes(names.size()));
+      for (String name : names) {
+        byte[] nameBytes = Bytes.toBytes(name);
+        fields.add(Bytes.toBytes(nameBytes.length));
+        fields.add(nameBytes);
+      }
+    }
+
+    public byte[] toBytes() throws IOException {
+      List<byte[]> fields = new ArrayList<>();
+      fields.add(Bytes.toBytes(maxFileId));
+      fields.add(Bytes.toBytes(added.size()));
+      for (FileMeta meta : added) {
+        fields.add(meta.toBytes());
+      }
+      addNames(fields, removed);
+      fields.add(Bytes.toBytes(addedBlobs.size()));
+      for (BlobMeta meta : addedBlobs) {
+        fields.add(meta.toBytes());
+      }
+      addNames(fields, removedBlobs);
+
+      int size = 0;
+      for (byte[] field : fields) {
+        size += field.length;
+      }
+      byte[] bytes = new byte[size];
+      int pos = 0;
+      for (byte[] field : fields) {
+        System.arraycopy(field, 0, bytes, pos, field.length);
+        pos += field.length;
+      }
+      return bytes;
+    }
+
+    public static Edit parseFrom(byte[] buf, int offset) throws IOException {
+      int pos = offset;
+      long maxFileId = Bytes.toLong(Bytes.slice(buf, pos, 8));
+      pos += 8;
+
+      int addedCount = Bytes.toInt(Bytes.slice(buf, pos, 4));
+      pos += 4;
+      List<FileMeta> added = new ArrayList<>(addedCount);
+      for (int i = 0; i < addedCount; i++) {
+        FileMeta meta = FileMeta.parseFrom(buf, pos);
+        pos += meta.getSerializeSize();
+        added.add(meta);
+      }
+
+      List<String> removed = new ArrayList<>();
+      pos = parseNames(buf, pos, removed);
+
+      int addedBlobCount = Bytes.toInt(Bytes.slice(buf, pos, 4));
+      pos += 4;
+      List<BlobMeta> addedBlobs = new ArrayList<>(addedBlobCount);
+      for (int i = 0; i < addedBlobCount; i++) {
+        BlobMeta meta = BlobMeta.parseFrom(buf, pos);
+        pos += meta.getSerializeSize();
+        addedBlobs.add(meta);
+      }
+      List<String> removedBlobs = new ArrayList<>();
+      parseNames(buf, pos, removedBlobs);
+      return new Edit(added, removed, maxFileId, addedBlobs, removedBlobs);
+    }
+
+    private static int parseNames(byte[] buf, int pos, List<String> names) throws IOException {
+      int count = Bytes.toInt(Bytes.slice(buf, pos, 4));
+      pos += 4;
+      for (int i = 0; i < count; i++) {
+        int nameLen = Bytes.toInt(Bytes.slice(buf, pos, 4));
+        pos += 4;
+        names.add(new String(Bytes.slice(buf, pos, nameLen), "UTF-8"));
+        pos += nameLen;
+      }
+      return pos;
+    }
+  }
+
+  private Manifest(String fileName) throws IOException {
+    this.fileName = fileName;
+    this.out = new FileOutputStream(fileName, true);
+  }
+
+  /**
+   * Replay the manifest under the data directory.
+   *
+   * @return an edit which adds all the live disk files and blob files, or null if there's no
+   * manifest.
+   */
+  public static Edit replay(String dataDir) throws IOException {
+    File f = new File(dataDir, MANIFEST_FILE_NAME);
+    if (!f.exists()) {
+      return null;
+    }
+    Map<String, FileMeta> liveFiles = new LinkedHashMap<>();
+    Map<String, BlobMeta> liveBlobs = new LinkedHashMap<>();
+    long maxFileId = -1L;
+    try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+      long pos = 0, fileLen = in.length();
+      byte[] header = new byte[PAYLOAD_LEN_SIZE + CHECKSUM_SIZE];
+      while (pos + header.length <= fileLen) {
+        in.seek(pos);
+        in.readFully(header);
+        int payloadLen = Bytes.toInt(Bytes.slice(header, 0, PAYLOAD_LEN_SIZE));
+        int checksum = Bytes.toInt(Bytes.slice(header, PAYLOAD_LEN_SIZE, CHECKSUM_SIZE));
+        if (payloadLen < 0 || pos + header.length + payloadLen > fileLen) {
+          LOG.warn("Incomplete record at offset " + pos + " of " + f + ", ignore the tail.");
+          break;
+        }
+        byte[] payload = new byte[payloadLen];
+        in.readFully(payload);
+        if (checksum != checksum(payload)) {
+          LOG.warn("Checksum mismatched at offset " + pos + " of " + f + ", ignore the tail.");
+          break;
+        }
+
+        Edit edit = Edit.parseFrom(payload, 0);
+        for (String name : edit.getRemoved()) {
+          liveFiles.remove(name);
+        }
+        for (FileMeta meta : edit.getAdded()) {
+          liveFiles.put(meta.getFileName(), meta);
+        }
+        for (String name : edit.getRemovedBlobs()) {
+          liveBlobs.remove(name);
+        }
+        for (BlobMeta meta : edit.getAddedBlobs()) {
+          liveBlobs.put(meta.getFileName(), meta);
+        }
+        maxFileId = Math.max(maxFileId, edit.getMaxFileId());
+        pos += header.length + payloadLen;
+      }
+    }
+    return new Edit(new ArrayList<>(liveFiles.values()), new ArrayList<>(), maxFileId,
+        new ArrayList<>(liveBlobs.values()), new ArrayList<>());
+  }
+
+  /**
+   * Create a new manifest under the data directory, which starts with the given edit. The old
+   * manifest will be replaced atomically, so the manifest won't grow without bound across
+   * restarts.
+   */
+  public static Manifest create(String dataDir, Edit base) throws IOException {
+    File f = new File(dataDir, MANIFEST_FILE_NAME);
+    File tmp = new File(dataDir, MANIFEST_FILE_NAME + FILE_NAME_TMP_SUFFIX);
+    try (FileOutputStream tmpOut = new FileOutputStream(tmp, false)) {
+      tmpOut.write(toRecord(base));
+      tmpOut.flush();
+      tmpOut.getFD().sync();
+    }
+    if (!tmp.renameTo(f)) {
+      throw new IOException("Rename " + tmp + " to " + f + " failed");
+    }
+    return new Manifest(f.getPath());
+  }
+
+  private static int checksum(byte[] payload) {
+    Checksum crc32 = new CRC32();
+    crc32.update(payload, 0, payload.length);
+    return (int) crc32.getValue();
+  }
+
+  private static byte[] toRecord(Edit edit) throws IOException {
+    byte[] payload = edit.toBytes();
+    byte[] record = new byte[PAYLOAD_LEN_SIZE + CHECKSUM_SIZE + payload.length];
+    System.arraycopy(Bytes.toBytes(payload.length), 0, record, 0, PAYLOAD_LEN_SIZE);
+    System.arraycopy(Bytes.toBytes(checksum(payload)), 0, record, PAYLOAD_LEN_SIZE,
+        CHECKSUM_SIZE);
+    System.arraycopy(payload, 0, record, PAYLOAD_LEN_SIZE + CHECKSUM_SIZE, payload.length);
+    return record;
+  }
+
+  /**
+   * Append the edit and sync it to disk, the edit takes effect once this method returns.
+   */
+  public synchronized void append(Edit edit) throws IOException {
+    if (out == null) {
+      throw new IOException("Manifest has been closed: " + fileName);
+    }
+    out.write(toRecord(edit));
+    out.flush();
+    out.getFD().sync();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      try {
+        out.close();
+      } finally {
+        out = null;
+      }
+    }
+  }
+}
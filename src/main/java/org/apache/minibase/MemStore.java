@@ -7,12 +7,15 @@ import org.apache.minibase.MiniBase.Flusher;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -26,6 +29,9 @@ public class MemStore implements Closeable {
 
   private volatile ConcurrentSkipListMap<KeyValue, KeyValue> kvMap;
   private volatile ConcurrentSkipListMap<KeyValue, KeyValue> snapshot;
+  // The range tombstones are kept aside of the key values, and snapshotted together with them.
+  private volatile List<RangeTombstone> rangeTombstones;
+  private volatile List<RangeTombstone> snapshotRangeTombstones;
 
   private final ReentrantReadWriteLock updateLock = new ReentrantReadWriteLock();
   private final AtomicBoolean isSnapshotFlushing = new AtomicBoolean(false);
@@ -42,6 +48,8 @@ public class MemStore implements Closeable {
     dataSize.set(0);
     this.kvMap = new ConcurrentSkipListMap<>();
     this.snapshot = null;
+    this.rangeTombstones = new CopyOnWriteArrayList<>();
+    this.snapshotRangeTombstones = Collections.emptyList();
   }
 
   public void add(KeyValue kv) throws IOException {
@@ -60,18 +68,80 @@ public class MemStore implements Closeable {
     flushIfNeeded(false);
   }
 
+  public void addRangeTombstone(RangeTombstone tombstone) throws IOException {
+    flushIfNeeded(true);
+    updateLock.readLock().lock();
+    try {
+      rangeTombstones.add(tombstone);
+      dataSize.addAndGet(tombstone.getSerializeSize());
+    } finally {
+      updateLock.readLock().unlock();
+    }
+    flushIfNeeded(false);
+  }
+
+  /**
+   * @return the range tombstones of both the active map and the snapshot being flushed.
+   */
+  public List<RangeTombstone> getRangeTombstones() {
+    updateLock.readLock().lock();
+    try {
+      List<RangeTombstone> tombstones = new ArrayList<>(rangeTombstones);
+      tombstones.addAll(snapshotRangeTombstones);
+      return tombstones;
+    } finally {
+      updateLock.readLock().unlock();
+    }
+  }
+
   private void flushIfNeeded(boolean shouldBlocking) throws IOException {
     if (getDataSize() > conf.getMaxMemstoreSize()) {
       if (isSnapshotFlushing.get() && shouldBlocking) {
         throw new IOException(
                 "Memstore is full, currentDataSize=" + dataSize.get() + "B, maxMemstoreSize="
                 + conf.getMaxMemstoreSize() + "B, please wait until the flushing is finished.");
-      } else if (isSnapshotFlushing.compareAndSet(false, true)) {
-        pool.submit(new FlusherTask());
+      } else {
+        requestFlush();
+      }
+    }
+  }
+
+  /**
+   * Flush the memstore in background unless it's being flushed.
+   *
+   * @return true if a flush is started.
+   */
+  public boolean requestFlush() {
+    if (isSnapshotFlushing.compareAndSet(false, true)) {
+      pool.submit(new FlusherTask());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Hold off the flushes until {@link #resumeFlush()}, after the running flush is finished, so
+   * the key values won't move from the memstore to the disk store in between. The writes fail as
+   * when the memstore is being flushed, once the memstore is full.
+   */
+  public void pauseFlush() throws IOException {
+    while (!isSnapshotFlushing.compareAndSet(false, true)) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted when waiting for the flush");
       }
     }
   }
 
+  public void resumeFlush() {
+    isSnapshotFlushing.set(false);
+    if (getDataSize() > conf.getMaxMemstoreSize()) {
+      requestFlush();
+    }
+  }
+
   public long getDataSize() {
     return dataSize.get();
   }
@@ -93,6 +163,8 @@ public class MemStore implements Closeable {
         snapshot = kvMap;
         // TODO MemStoreIter may find the kvMap changed ? should synchronize ?
         kvMap = new ConcurrentSkipListMap<>();
+        snapshotRangeTombstones = rangeTombstones;
+        rangeTombstones = new CopyOnWriteArrayList<>();
         dataSize.set(0);
       } finally {
         updateLock.writeLock().unlock();
@@ -102,7 +174,7 @@ public class MemStore implements Closeable {
       boolean success = false;
       for (int i = 0; i < conf.getFlushMaxRetries(); i++) {
         try {
-          flusher.flush(new IteratorWrapper(snapshot));
+          flusher.flush(new IteratorWrapper(snapshot), snapshotRangeTombstones);
           success = true;
         } catch (IOException e) {
           LOG.error("Failed to flush memstore, retries=" + i + ", maxFlushRetries="
@@ -118,6 +190,7 @@ public class MemStore implements Closeable {
       if (success) {
         // TODO MemStoreIter may get a NPE because we set null here ? should synchronize ?
         snapshot = null;
+        snapshotRangeTombstones = Collections.emptyList();
         isSnapshotFlushing.compareAndSet(true, false);
       }
     }
@@ -161,7 +234,7 @@ public class MemStore implements Closeable {
                         NavigableMap<KeyValue, KeyValue> snapshot) throws IOException {
       List<IteratorWrapper> inputs = new ArrayList<>();
       if (kvSet != null && kvSet.size() > 0) {
-        inputs.add(new IteratorWrapper(kvMap));
+        inputs.add(new IteratorWrapper(kvSet));
       }
       if (snapshot != null && snapshot.size() > 0) {
         inputs.add(new IteratorWrapper(snapshot));
@@ -0,0 +1,115 @@
+package org.apache.minibase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Combine the operands written by {@link MiniBase#merge(byte[], byte[])} into the value of a key.
+ * The operands are written blindly, and combined lazily when the key is read, flushed or
+ * compacted, so a read-modify-write like a counter increment costs a single memstore insert.
+ * <p>
+ * The operator must be deterministic, and the same operator must be configured whenever the store
+ * is opened, since the operands on the disk are combined by it later.
+ */
+public interface MergeOperator {
+
+  /**
+   * Apply the operands to the base value of the key.
+   *
+   * @param base     the value of the newest put older than the operands, null if the key has
+   *                 never been put or is deleted.
+   * @param operands the operands, from the oldest to the newest.
+   * @return the value of the key.
+   */
+  byte[] fullMerge(byte[] key, byte[] base, List<byte[]> operands) throws IOException;
+
+  /**
+   * Combine the consecutive operands into one when the base value is unknown, such as when the
+   * compaction doesn't include the older versions of the key. Applying the combined operand must
+   * have the same result as applying the operands one by one.
+   *
+   * @param operands the operands, from the oldest to the newest.
+   * @return the combined operand, or null if the operands can't be combined, then they're kept.
+   */
+  default byte[] partialMerge(byte[] key, List<byte[]> operands) throws IOException {
+    return null;
+  }
+
+  /**
+   * Add the 8 bytes signed long operands to the value, an absent value counts as 0.
+   */
+  class Counter implements MergeOperator {
+
+    public static final Counter INSTANCE = new Counter();
+
+    private static long toLong(byte[] value) throws IOException {
+      if (value.length != 8) {
+        throw new IOException("Counter value should be 8 bytes: " + Bytes.toHex(value));
+      }
+      return Bytes.toLong(value);
+    }
+
+    private static long sum(List<byte[]> operands) throws IOException {
+      long sum = 0;
+      for (byte[] operand : operands) {
+        sum += toLong(operand);
+      }
+      return sum;
+    }
+
+    @Override
+    public byte[] fullMerge(byte[] key, byte[] base, List<byte[]> operands) throws IOException {
+      long value = base == null ? 0 : toLong(base);
+      return Bytes.toBytes(value + sum(operands));
+    }
+
+    @Override
+    public byte[] partialMerge(byte[] key, List<byte[]> operands) throws IOException {
+      return Bytes.toBytes(sum(operands));
+    }
+  }
+
+  /**
+   * Append the operands to the value, separated by the delimiter.
+   */
+  class Append implements MergeOperator {
+
+    private final byte[] delimiter;
+
+    public Append(byte[] delimiter) {
+      this.delimiter = delimiter;
+    }
+
+    public Append() {
+      this(Bytes.EMPTY_BYTES);
+    }
+
+    private byte[] concat(byte[] base, List<byte[]> operands) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      boolean first = true;
+      if (base != null) {
+        out.write(base, 0, base.length);
+        first = false;
+      }
+      for (byte[] operand : operands) {
+        if (!first) {
+          out.write(delimiter, 0, delimiter.length);
+        }
+        out.write(operand, 0, operand.length);
+        first = false;
+      }
+      return out.toByteArray();
+    }
+
+    @Override
+    public byte[] fullMerge(byte[] key, byte[] base, List<byte[]> operands) {
+      return concat(base, operands);
+    }
+
+    @Override
+    public byte[] partialMerge(byte[] key, List<byte[]> operands) {
+      return concat(null, operands);
+    }
+  }
+}
@@ -2,15 +2,49 @@ package org.apache.minibase;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 public interface MiniBase extends Closeable {
 
   void put(byte[] key, byte[] value) throws IOException;
 
-  KeyValue get(byte[] key) throws IOException;
+  default KeyValue get(byte[] key) throws IOException {
+    return get(key, null);
+  }
+
+  /**
+   * Get the newest put of the key which is visible to the snapshot.
+   *
+   * @param snapshot the snapshot to read, null means the latest read point.
+   * @return the key value, or null if the key does not exist or is deleted.
+   */
+  KeyValue get(byte[] key, Snapshot snapshot) throws IOException;
 
   void delete(byte[] key) throws IOException;
 
+  /**
+   * Delete all the keys located in the range [start, stop) with a single range tombstone, no
+   * matter how many keys it covers. The keys written after the deletion are not affected.
+   *
+   * @param start the start key (inclusive).
+   * @param stop  the stop key (exclusive), which must be greater than the start key.
+   */
+  void deleteRange(byte[] start, byte[] stop) throws IOException;
+
+  /**
+   * Write an operand of the {@link MergeOperator} configured by
+   * {@link Config#setMergeOperator(MergeOperator)} without reading the key. The reads see the value
+   * combined from the operands and the older value of the key.
+   */
+  void merge(byte[] key, byte[] operand) throws IOException;
+
+  /**
+   * Register a snapshot with the current read point. All the reads with the snapshot will see
+   * the same version of the store, no matter how many writes land after that. The snapshot
+   * should be closed once finished, otherwise the compaction can not drop the old versions.
+   */
+  Snapshot getSnapshot() throws IOException;
+
   /**
    * Fetch all the key values whose key located in the range [startKey, stopKey)
    *
@@ -20,7 +54,22 @@ public interface MiniBase extends Closeable {
    *                 infinity.
    * @return Iterator for fetching the key value one by one.
    */
-  Iter<KeyValue> scan(byte[] startKey, byte[] stopKey) throws IOException;
+  default Iter<KeyValue> scan(byte[] startKey, byte[] stopKey) throws IOException {
+    return scan(startKey, stopKey, new ScanOptions());
+  }
+
+  /**
+   * Fetch all the key values whose key located in the range [startKey, stopKey), and accepted by
+   * the {@link ScanOptions}.
+   *
+   * @param startKey start key to scan (inclusive), if start is byte[0], it means negative
+   *                 infinity.
+   * @param stopKey  to stop the scan. (exclusive), if stopKey is byte[0], it means positive
+   *                 infinity.
+   * @param options  the filter, keys-only mode and limit to push down into the scanner.
+   * @return Iterator for fetching the key value one by one.
+   */
+  Iter<KeyValue> scan(byte[] startKey, byte[] stopKey, ScanOptions options) throws IOException;
 
   /**
    * Full scan the Key Value store.
@@ -32,14 +81,59 @@ public interface MiniBase extends Closeable {
     return scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
   }
 
-  interface Iter<KeyValue> {
+  interface Iter<KeyValue> extends Closeable {
     boolean hasNext() throws IOException;
 
     KeyValue next() throws IOException;
+
+    /**
+     * Release the resources pinned by the iterator, such as the disk files. The iterators of
+     * MiniBase release them automatically once exhausted, so only an iterator abandoned halfway
+     * must be closed.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+  }
+
+  interface Filter {
+
+    /**
+     * Evaluated before the value of the key is touched. The disk files skip the rejected keys
+     * before decoding their values, so it may be evaluated on every version of a key, including
+     * the deleted and the invisible ones, and must depend on the key only.
+     *
+     * @return true to skip the key, otherwise false.
+     */
+    default boolean filterKey(byte[] key) {
+      return false;
+    }
+
+    /**
+     * Evaluated after the key passed {@link #filterKey(byte[])}. Under the keys-only mode, the
+     * value of the given key value will be empty.
+     *
+     * @return true to skip the key value, otherwise false.
+     */
+    default boolean filterKeyValue(KeyValue kv) {
+      return false;
+    }
   }
 
   interface Flusher {
     void flush(Iter<KeyValue> it) throws IOException;
+
+    /**
+     * Flush the key values together with the range tombstones of the memstore. A flusher which
+     * doesn't override it can only flush the memstore without any range tombstone.
+     */
+    default void flush(Iter<KeyValue> it, List<RangeTombstone> rangeTombstones)
+        throws IOException {
+      if (!rangeTombstones.isEmpty()) {
+        throw new IOException("The flusher can't flush the range tombstones");
+      }
+      flush(it);
+    }
   }
 
   abstract class Compactor extends Thread {
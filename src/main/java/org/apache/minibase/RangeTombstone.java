@@ -0,0 +1,252 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.function.LongPredicate;
+
+/**
+ * The delete marker of the key range [start, stop), which deletes all the versions of the keys in
+ * the range whose sequence id is less than its own. A range tombstone is kept aside of the key
+ * values, in the memstore and in a separate block of each disk file, so deleting a range costs one
+ * write no matter how many keys it covers.
+ */
+public class RangeTombstone {
+
+  private static final int KEY_LEN_SIZE = 4;
+  private static final int COUNT_SIZE = 4;
+  private static final int CHECKSUM_SIZE = 4;
+
+  private final byte[] start;
+  private final byte[] stop;
+  private final long sequenceId;
+
+  /**
+   * @param start the start key (inclusive).
+   * @param stop  the stop key (exclusive), which must be greater than the start key.
+   */
+  public RangeTombstone(byte[] start, byte[] stop, long sequenceId) {
+    if (Bytes.compare(start, stop) >= 0) {
+      throw new IllegalArgumentException("Start key " + Bytes.toHex(start)
+          + " should be less than stop key " + Bytes.toHex(stop));
+    }
+    this.start = start;
+    this.stop = stop;
+    this.sequenceId = sequenceId;
+  }
+
+  public byte[] getStart() {
+    return start;
+  }
+
+  public byte[] getStop() {
+    return stop;
+  }
+
+  public long getSequenceId() {
+    return sequenceId;
+  }
+
+  public boolean contains(byte[] key) {
+    return Bytes.compare(start, key) <= 0 && Bytes.compare(key, stop) < 0;
+  }
+
+  /**
+   * @param start the start key (inclusive), byte[0] means negative infinity.
+   * @param stop  the stop key (exclusive), byte[0] means positive infinity.
+   * @return true if the range of the tombstone overlaps with the range [start, stop).
+   */
+  public boolean overlaps(byte[] start, byte[] stop) {
+    return Bytes.compare(start, this.stop) < 0
+        && (stop.length == 0 || Bytes.compare(this.start, stop) < 0);
+  }
+
+  public int getSerializeSize() {
+    return KEY_LEN_SIZE + start.length + KEY_LEN_SIZE + stop.length + 8;
+  }
+
+  /**
+   * Serialize the range tombstones of a disk file into a block:
+   *
+   * <pre>
+   * count(4B) + (startLen(4B) + start + stopLen(4B) + stop + sequenceId(8B))* + checksum(4B)
+   * </pre>
+   */
+  public static byte[] toBlock(List<RangeTombstone> tombstones) {
+    int size = COUNT_SIZE + CHECKSUM_SIZE;
+    for (RangeTombstone t : tombstones) {
+      size += t.getSerializeSize();
+    }
+    byte[] buf = new byte[size];
+    int pos = 0;
+    System.arraycopy(Bytes.toBytes(tombstones.size()), 0, buf, pos, COUNT_SIZE);
+    pos += COUNT_SIZE;
+    for (RangeTombstone t : tombstones) {
+      for (byte[] key : new byte[][] { t.start, t.stop }) {
+        System.arraycopy(Bytes.toBytes(key.length), 0, buf, pos, KEY_LEN_SIZE);
+        pos += KEY_LEN_SIZE;
+        System.arraycopy(key, 0, buf, pos, key.length);
+        pos += key.length;
+      }
+      System.arraycopy(Bytes.toBytes(t.sequenceId), 0, buf, pos, 8);
+      pos += 8;
+    }
+    System.arraycopy(Bytes.toBytes(Crc32c.checksum(buf, 0, pos)), 0, buf, pos, CHECKSUM_SIZE);
+    return buf;
+  }
+
+  public static List<RangeTombstone> parseBlock(byte[] buf, int offset, int len)
+      throws IOException {
+    if (len < COUNT_SIZE + CHECKSUM_SIZE) {
+      throw new CorruptedBlockException("Range tombstone block is too short: " + len);
+    }
+    int end = offset + len - CHECKSUM_SIZE;
+    if (Crc32c.checksum(buf, offset, len - CHECKSUM_SIZE)
+        != Bytes.toInt(Bytes.slice(buf, end, CHECKSUM_SIZE))) {
+      throw new CorruptedBlockException("Checksum mismatch of range tombstone block");
+    }
+    int pos = offset;
+    int count = Bytes.toInt(Bytes.slice(buf, pos, COUNT_SIZE));
+    pos += COUNT_SIZE;
+    List<RangeTombstone> tombstones = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[][] keys = new byte[2][];
+      for (int k = 0; k < 2; k++) {
+        int keyLen = Bytes.toInt(Bytes.slice(buf, pos, KEY_LEN_SIZE));
+        pos += KEY_LEN_SIZE;
+        keys[k] = Bytes.slice(buf, pos, keyLen);
+        pos += keyLen;
+      }
+      long sequenceId = Bytes.toLong(Bytes.slice(buf, pos, 8));
+      pos += 8;
+      tombstones.add(new RangeTombstone(keys[0], keys[1], sequenceId));
+    }
+    if (pos != end) {
+      throw new CorruptedBlockException("Range tombstone block has " + (end - pos)
+          + " trailing bytes");
+    }
+    return tombstones;
+  }
+
+  @Override
+  public String toString() {
+    return "start=" + Bytes.toHex(start) + "/stop=" + Bytes.toHex(stop) + "/sequenceId="
+        + sequenceId;
+  }
+
+  /**
+   * The range tombstones cut into disjoint fragments, each of which holds the largest sequence id
+   * of the tombstones covering it, so the tombstone covering a key is found by a binary search
+   * however many tombstones overlap.
+   */
+  public static class Fragments {
+
+    private final List<byte[]> starts = new ArrayList<>();
+    private final List<byte[]> stops = new ArrayList<>();
+    private final List<Long> sequenceIds = new ArrayList<>();
+
+    public Fragments(Collection<RangeTombstone> tombstones) {
+      TreeSet<byte[]> bounds = new TreeSet<>(Bytes::compare);
+      List<RangeTombstone> sorted = new ArrayList<>(tombstones);
+      sorted.sort((a, b) -> Bytes.compare(a.start, b.start));
+      for (RangeTombstone t : sorted) {
+        bounds.add(t.start);
+        bounds.add(t.stop);
+      }
+
+      // The tombstones covering the current fragment, the newest first. The ones which stop
+      // before the fragment are removed lazily once they're on the top.
+      PriorityQueue<RangeTombstone> active =
+          new PriorityQueue<>((a, b) -> Long.compare(b.sequenceId, a.sequenceId));
+      int next = 0;
+      byte[] prev = null;
+      for (byte[] bound : bounds) {
+        if (prev != null) {
+          while (!active.isEmpty() && Bytes.compare(active.peek().stop, prev) <= 0) {
+            active.poll();
+          }
+          if (!active.isEmpty()) {
+            add(prev, bound, active.peek().sequenceId);
+          }
+        }
+        while (next < sorted.size() && Bytes.compare(sorted.get(next).start, bound) == 0) {
+          active.add(sorted.get(next++));
+        }
+        prev = bound;
+      }
+    }
+
+    private void add(byte[] start, byte[] stop, long sequenceId) {
+      int last = starts.size() - 1;
+      // Join the adjacent fragments with the same sequence id.
+      if (last >= 0 && sequenceIds.get(last) == sequenceId
+          && Bytes.compare(stops.get(last), start) == 0) {
+        stops.set(last, stop);
+        return;
+      }
+      starts.add(start);
+      stops.add(stop);
+      sequenceIds.add(sequenceId);
+    }
+
+    public boolean isEmpty() {
+      return starts.isEmpty();
+    }
+
+    /**
+     * @return the index of the fragment containing the key, or -1 if no fragment contains it.
+     */
+    private int find(byte[] key) {
+      int low = 0, high = starts.size() - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (Bytes.compare(starts.get(mid), key) <= 0) {
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return high >= 0 && Bytes.compare(key, stops.get(high)) < 0 ? high : -1;
+    }
+
+    /**
+     * @return the largest sequence id of the tombstones covering the key, or -1 if no tombstone
+     * covers it.
+     */
+    public long getSequenceId(byte[] key) {
+      int i = find(key);
+      return i < 0 ? -1L : sequenceIds.get(i);
+    }
+
+    /**
+     * @return true if the key value is deleted by a newer tombstone.
+     */
+    public boolean covers(KeyValue kv) {
+      return getSequenceId(kv.getKey()) > kv.getSequenceId();
+    }
+
+    /**
+     * Find the run of the adjacent fragments from the one containing the key, the key values
+     * under which can all be dropped.
+     *
+     * @param droppable tell whether the key values under a fragment with the given sequence id
+     *                  can be dropped.
+     * @return the stop key of the run, or null if the fragment containing the key isn't
+     * droppable.
+     */
+    public byte[] skipUntil(byte[] key, LongPredicate droppable) {
+      int i = find(key);
+      if (i < 0 || !droppable.test(sequenceIds.get(i))) {
+        return null;
+      }
+      while (i + 1 < starts.size() && Bytes.compare(stops.get(i), starts.get(i + 1)) == 0
+          && droppable.test(sequenceIds.get(i + 1))) {
+        i++;
+      }
+      return stops.get(i);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Filter;
+
+/**
+ * The options of a scan, which will be pushed down into the scanner so that we can skip the
+ * unwanted key values before materializing them.
+ */
+public class ScanOptions {
+
+  private Filter filter = null;
+  private boolean keysOnly = false;
+  private long limit = -1L;
+  private Snapshot snapshot = null;
+
+  /**
+   * @param filter the filter to evaluate on each key value inside the scanner, null means accept
+   *               all the key values. The keys rejected by {@link Filter#filterKey(byte[])} are
+   *               dropped by the disk files before their values are decoded.
+   */
+  public ScanOptions setFilter(Filter filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  public Filter getFilter() {
+    return this.filter;
+  }
+
+  /**
+   * @param keysOnly if true, the scanner will return the key values with an empty value, and the
+   *                 values won't be copied out of the data blocks.
+   */
+  public ScanOptions setKeysOnly(boolean keysOnly) {
+    this.keysOnly = keysOnly;
+    return this;
+  }
+
+  public boolean isKeysOnly() {
+    return this.keysOnly;
+  }
+
+  /**
+   * @param limit the max number of key values to return, a negative value means no limit.
+   */
+  public ScanOptions setLimit(long limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  public long getLimit() {
+    return this.limit;
+  }
+
+  /**
+   * @param snapshot the scan only sees the key values visible to the snapshot, null means the
+   *                 latest read point when the scan is created.
+   */
+  public ScanOptions setSnapshot(Snapshot snapshot) {
+    this.snapshot = snapshot;
+    return this;
+  }
+
+  public Snapshot getSnapshot() {
+    return this.snapshot;
+  }
+}
@@ -0,0 +1,75 @@
+package org.apache.minibase;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A read point of the store, the reads with the snapshot will only see the key values whose
+ * sequence id is less than or equals to the read point. The snapshot is registered in the store
+ * until closed, so that the compaction won't drop the versions which are still visible to it.
+ */
+public class Snapshot implements Closeable {
+
+  private final long readPoint;
+  private final Tracker tracker;
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
+  private Snapshot(long readPoint, Tracker tracker) {
+    this.readPoint = readPoint;
+    this.tracker = tracker;
+  }
+
+  public long getReadPoint() {
+    return this.readPoint;
+  }
+
+  @Override
+  public void close() {
+    if (released.compareAndSet(false, true)) {
+      tracker.release(readPoint);
+    }
+  }
+
+  /**
+   * Track the read points of all the live snapshots.
+   */
+  public static class Tracker {
+
+    // read point -> count of the live snapshots with the read point.
+    private final TreeMap<Long, Integer> readPoints = new TreeMap<>();
+
+    public synchronized Snapshot register(long readPoint) {
+      readPoints.merge(readPoint, 1, Integer::sum);
+      return new Snapshot(readPoint, this);
+    }
+
+    private synchronized void release(long readPoint) {
+      Integer count = readPoints.get(readPoint);
+      assert count != null && count > 0;
+      if (count <= 1) {
+        readPoints.remove(readPoint);
+      } else {
+        readPoints.put(readPoint, count - 1);
+      }
+    }
+
+    /**
+     * @return the read points of all the live snapshots, in ascending order.
+     */
+    public synchronized NavigableSet<Long> getReadPoints() {
+      return new TreeSet<>(readPoints.keySet());
+    }
+
+    public synchronized int size() {
+      int size = 0;
+      for (Map.Entry<Long, Integer> e : readPoints.entrySet()) {
+        size += e.getValue();
+      }
+      return size;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bound the number of the opened disk files. A disk file opens its file handle and loads its
+ * index on demand, and the least recently used disk files will be closed once there're too many
+ * opened disk files. A disk file pinned by any iterator won't be closed, so the number of opened
+ * disk files may exceed the limit temporarily.
+ *
+ * The disk file reports its pins and closes with its own lock held, so the cache never misses a
+ * reopen in between. Only the unpinned disk files are kept in the LRU order, so an eviction takes
+ * the eldest ones directly rather than walking through the pinned ones.
+ */
+public class TableCache {
+
+  private static final Logger LOG = Logger.getLogger(TableCache.class);
+
+  private final int maxOpenFiles;
+  // The opened disk files which are not pinned, in the order of when they're unpinned, the eldest
+  // one is the least recently used.
+  private final LinkedHashMap<DiskFile, Boolean> idleFiles = new LinkedHashMap<>();
+  // The number of the opened disk files which are pinned.
+  private int pinnedFiles = 0;
+
+  public TableCache(int maxOpenFiles) {
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  /**
+   * Called once the opened disk file is pinned by its first iterator.
+   */
+  synchronized void pinned(DiskFile df) {
+    idleFiles.remove(df);
+    pinnedFiles++;
+  }
+
+  /**
+   * Called once the disk file is unpinned by its last iterator.
+   *
+   * @param opened false if the disk file has been closed while it was pinned.
+   */
+  synchronized void unpinned(DiskFile df, boolean opened) {
+    pinnedFiles--;
+    if (opened) {
+      idleFiles.put(df, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Called after the disk file is closed.
+   */
+  synchronized void remove(DiskFile df) {
+    idleFiles.remove(df);
+  }
+
+  /**
+   * Close the least recently used disk files which are not pinned, until the number of opened
+   * disk files is within the limit.
+   */
+  public void evictIfNeeded() {
+    List<DiskFile> victims = new ArrayList<>();
+    synchronized (this) {
+      int excess = idleFiles.size() + pinnedFiles - maxOpenFiles;
+      Iterator<DiskFile> it = idleFiles.keySet().iterator();
+      for (; excess > 0 && it.hasNext(); excess--) {
+        victims.add(it.next());
+        it.remove();
+      }
+    }
+    for (DiskFile df : victims) {
+      try {
+        // Can not hold the lock of the cache here, because the disk file will lock itself. The
+        // disk file stays open if it's pinned again in between.
+        df.closeIfUnpinned();
+      } catch (IOException e) {
+        LOG.warn("Failed to close the disk file " + df.getFileName(), e);
+      }
+    }
+  }
+
+  public synchronized int getOpenFileCount() {
+    return idleFiles.size() + pinnedFiles;
+  }
+
+  public int getMaxOpenFiles() {
+    return maxOpenFiles;
+  }
+}
@@ -0,0 +1,207 @@
+package org.apache.minibase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The output of a newly written file, which copies the appended bytes into direct buffers and
+ * writes the full buffers to the file by a background thread, so that the writer keeps encoding
+ * the next blocks while the previous ones are being written. The file is synced only once when
+ * it's closed.
+ * <p>
+ * A channel holds at most {@link #BUFFERS_PER_CHANNEL} buffers, the writer waits for a free
+ * buffer once all of them are filled, so a slow disk throttles the writer.
+ */
+public class WriteBehindChannel implements Closeable {
+
+  public static final int BUFFER_SIZE = 1024 * 1024;
+  // One buffer is being filled while the others are queued or being written.
+  static final int BUFFERS_PER_CHANNEL = 4;
+  private static final int MAX_POOLED_BUFFERS = 16;
+
+  // The direct buffers are expensive to allocate, so they're reused by the channels.
+  private static final ArrayDeque<ByteBuffer> BUFFERS = new ArrayDeque<>();
+  // Tell the write-behind thread to exit.
+  private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+  private final String fname;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final BlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<>();
+  private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  // The first failure of the write-behind thread, which is thrown by the next append or close.
+  private volatile IOException error = null;
+
+  private ByteBuffer current;
+  private long position = 0;
+  private long preallocated = 0;
+  private boolean closed = false;
+
+  /**
+   * Create the file, or truncate it if it exists.
+   */
+  public WriteBehindChannel(String fname) throws IOException {
+    this.fname = fname;
+    this.raf = new RandomAccessFile(fname, "rw");
+    try {
+      raf.setLength(0);
+      this.channel = raf.getChannel();
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    for (int i = 0; i < BUFFERS_PER_CHANNEL; i++) {
+      free.add(acquireBuffer());
+    }
+    this.current = free.poll();
+    this.writer = new Thread(this::writeLoop, "WriteBehind-" + fname);
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  private static ByteBuffer acquireBuffer() {
+    synchronized (BUFFERS) {
+      ByteBuffer buf = BUFFERS.poll();
+      if (buf != null) {
+        return buf;
+      }
+    }
+    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  private static void releaseBuffer(ByteBuffer buf) {
+    buf.clear();
+    synchronized (BUFFERS) {
+      if (BUFFERS.size() < MAX_POOLED_BUFFERS) {
+        BUFFERS.add(buf);
+      }
+    }
+  }
+
+  /**
+   * Reserve the size of the file, so the file needn't be extended by each write. The file is
+   * truncated to the written size when it's closed, and this should be called before appending.
+   */
+  public void preallocate(long size) throws IOException {
+    if (size > raf.length()) {
+      raf.setLength(size);
+      preallocated = size;
+    }
+  }
+
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (!current.hasRemaining()) {
+        submit();
+      }
+      int n = Math.min(len, current.remaining());
+      current.put(b, off, n);
+      off += n;
+      len -= n;
+      position += n;
+    }
+  }
+
+  /**
+   * @return the number of the appended bytes.
+   */
+  public long position() {
+    return position;
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw new IOException("Failed to write " + fname, error);
+    }
+  }
+
+  private void submit() throws IOException {
+    checkError();
+    current.flip();
+    pending.add(current);
+    try {
+      // The write-behind thread returns every buffer even after a failure.
+      current = free.take();
+    } catch (InterruptedException e) {
+      current = null;
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted when writing " + fname);
+    }
+  }
+
+  private void writeLoop() {
+    while (true) {
+      ByteBuffer buf;
+      try {
+        buf = pending.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (buf == EOF) {
+        return;
+      }
+      if (error == null) {
+        try {
+          while (buf.hasRemaining()) {
+            channel.write(buf);
+          }
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+      buf.clear();
+      free.add(buf);
+    }
+  }
+
+  /**
+   * Write the rest bytes, wait for the write-behind thread and sync the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (current != null && current.position() > 0) {
+        current.flip();
+        pending.add(current);
+        current = null;
+      }
+      pending.add(EOF);
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted when closing " + fname);
+      }
+      checkError();
+      if (preallocated > 0) {
+        channel.truncate(position);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+      if (current != null) {
+        releaseBuffer(current);
+      }
+      ByteBuffer buf;
+      while ((buf = free.poll()) != null) {
+        releaseBuffer(buf);
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.apache.minibase;
+
+import org.apache.minibase.BlockCache.BlockKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBlockCache {
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    BlockCache cache = new BlockCache(100);
+    cache.put(new BlockKey("a", 0), "a0", 40);
+    cache.put(new BlockKey("a", 40), "a40", 40);
+    // Access a0, so that a40 becomes the least recently used one.
+    Assert.assertEquals("a0", cache.get(new BlockKey("a", 0)));
+
+    cache.put(new BlockKey("b", 0), "b0", 40);
+    Assert.assertNull(cache.get(new BlockKey("a", 40)));
+    Assert.assertEquals("a0", cache.get(new BlockKey("a", 0)));
+    Assert.assertEquals("b0", cache.get(new BlockKey("b", 0)));
+    Assert.assertEquals(80, cache.getSize());
+    Assert.assertEquals(3, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+
+    // The block larger than the capacity won't be cached.
+    cache.put(new BlockKey("c", 0), "c0", 101);
+    Assert.assertNull(cache.get(new BlockKey("c", 0)));
+    Assert.assertEquals(2, cache.getBlockCount());
+  }
+
+  @Test
+  public void testEvictFile() {
+    BlockCache cache = new BlockCache(100);
+    cache.put(new BlockKey("a", 0), "a0", 10);
+    cache.put(new BlockKey("a", 10), "a10", 10);
+    cache.put(new BlockKey("b", 0), "b0", 10);
+
+    cache.evictFile("a");
+    Assert.assertEquals(1, cache.getBlockCount());
+    Assert.assertEquals(10, cache.getSize());
+    Assert.assertEquals("b0", cache.get(new BlockKey("b", 0)));
+  }
+}
@@ -23,4 +23,43 @@ public class TestBloomFilter {
     Assert.assertTrue(bf.contains(Bytes.toBytes("bloom")));
     Assert.assertTrue(bf.contains(Bytes.toBytes("key")));
   }
+
+  private double falsePositiveRate(int bitsPerKey) throws IOException {
+    int count = 100000;
+    byte[][] keys = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      keys[i] = Bytes.toBytes("key-" + i);
+    }
+    byte[] filter = new BloomFilter(bitsPerKey).generate(keys);
+    for (byte[] key : keys) {
+      Assert.assertTrue(BloomFilter.contains(filter, key));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < count; i++) {
+      if (BloomFilter.contains(filter, Bytes.toBytes("absent-" + i))) {
+        falsePositives++;
+      }
+    }
+    return (double) falsePositives / count;
+  }
+
+  @Test
+  public void testFalsePositiveRate() throws IOException {
+    Assert.assertTrue(falsePositiveRate(10) < 0.015);
+    Assert.assertTrue(falsePositiveRate(16) < falsePositiveRate(10));
+    Assert.assertTrue(falsePositiveRate(5) < 0.15);
+  }
+
+  @Test
+  public void testSerializedFilter() throws IOException {
+    byte[][] keys = new byte[][] { Bytes.toBytes("a"), Bytes.toBytes("b") };
+    byte[] filter = new BloomFilter(4, 20).generate(keys);
+    // One line plus the probe count.
+    Assert.assertEquals(BloomFilter.LINE_BYTES + 1, filter.length);
+    Assert.assertEquals(4, filter[filter.length - 1]);
+    // The filter is queried without the generator.
+    Assert.assertTrue(BloomFilter.contains(filter, Bytes.toBytes("a")));
+    Assert.assertTrue(BloomFilter.contains(filter, Bytes.toBytes("b")));
+    Assert.assertFalse(BloomFilter.contains(Bytes.EMPTY_BYTES, Bytes.toBytes("a")));
+  }
 }
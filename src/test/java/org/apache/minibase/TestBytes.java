@@ -3,6 +3,8 @@ package org.apache.minibase;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+
 public class TestBytes {
 
   @Test
@@ -43,4 +45,32 @@ public class TestBytes {
     Assert.assertEquals(Bytes.compare(new byte[]{0x00}, null), 1);
     Assert.assertEquals(Bytes.compare(new byte[]{0x00}, new byte[]{0x01}), -1);
   }
+
+  @Test
+  public void testVLong() throws IOException {
+    long[] values = { 0L, 1L, 127L, 128L, 300L, Integer.MAX_VALUE, Long.MAX_VALUE };
+    byte[] buf = new byte[10];
+    for (long v : values) {
+      int pos = Bytes.putVLong(buf, 0, v);
+      Assert.assertEquals(Bytes.vlongSize(v), pos);
+      Assert.assertEquals(v, Bytes.getVLong(buf, 0));
+    }
+  }
+
+  @Test
+  public void testShortestSeparator() throws IOException {
+    Assert.assertArrayEquals(Bytes.toBytes("abd"),
+      Bytes.shortestSeparator(Bytes.toBytes("abc123"), Bytes.toBytes("abz")));
+    // The first differing bytes are adjacent, so bump the next byte of the smaller key.
+    Assert.assertArrayEquals(Bytes.toBytes("abc2"),
+      Bytes.shortestSeparator(Bytes.toBytes("abc123"), Bytes.toBytes("abd")));
+    // No separator shorter than a prefix.
+    Assert.assertArrayEquals(Bytes.toBytes("abc"),
+      Bytes.shortestSeparator(Bytes.toBytes("abc"), Bytes.toBytes("abcd")));
+    Assert.assertArrayEquals(Bytes.toBytes("abc"),
+      Bytes.shortestSeparator(Bytes.toBytes("abc"), Bytes.toBytes("abc")));
+    byte[] a = new byte[] { 0x01, (byte) 0xFF, (byte) 0xFF };
+    byte[] b = new byte[] { 0x02 };
+    Assert.assertArrayEquals(a, Bytes.shortestSeparator(a, b));
+  }
 }
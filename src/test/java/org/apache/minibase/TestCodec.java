@@ -0,0 +1,92 @@
+package org.apache.minibase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestCodec {
+
+  private static final Random RANDOM = new Random(0);
+
+  private static final Codec[] CODECS = new Codec[] { Codec.None.INSTANCE, DeflateCodec.INSTANCE,
+      LZCodec.INSTANCE };
+
+  private byte[] generateBytes(int len, int alphabet) {
+    byte[] buf = new byte[len];
+    for (int i = 0; i < len; i++) {
+      buf[i] = (byte) RANDOM.nextInt(alphabet);
+    }
+    return buf;
+  }
+
+  private void assertRoundTrip(Codec codec, byte[] raw) throws IOException {
+    // Compress a slice of a larger array to check the offsets.
+    byte[] src = new byte[raw.length + 7];
+    System.arraycopy(raw, 0, src, 3, raw.length);
+    byte[] compressed = codec.compress(src, 3, raw.length);
+
+    byte[] dst = new byte[raw.length + 2];
+    codec.decompress(compressed, 0, compressed.length, dst, 1, raw.length);
+    Assert.assertArrayEquals(raw, Arrays.copyOfRange(dst, 1, raw.length + 1));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    byte[] repeated = new byte[100000];
+    for (int i = 0; i < repeated.length; i++) {
+      repeated[i] = (byte) ("abcdefg".charAt(i % 7));
+    }
+    byte[][] inputs = new byte[][] { Bytes.EMPTY_BYTES, Bytes.toBytes("a"),
+        Bytes.toBytes("abcabcabcabcabcabcabc"), new byte[70000], repeated,
+        generateBytes(100000, 4), generateBytes(100000, 256) };
+    for (Codec codec : CODECS) {
+      for (byte[] raw : inputs) {
+        assertRoundTrip(codec, raw);
+      }
+    }
+  }
+
+  @Test
+  public void testCompressionRatio() throws IOException {
+    byte[] raw = new byte[100000];
+    for (int i = 0; i < raw.length; i += 10) {
+      byte[] key = Bytes.toBytes("key-" + (i / 100));
+      System.arraycopy(key, 0, raw, i, key.length);
+    }
+    Assert.assertTrue(LZCodec.INSTANCE.compress(raw, 0, raw.length).length < raw.length / 4);
+    Assert.assertTrue(DeflateCodec.INSTANCE.compress(raw, 0, raw.length).length < raw.length / 4);
+  }
+
+  @Test
+  public void testMalformed() throws IOException {
+    byte[] raw = generateBytes(1000, 4);
+    for (Codec codec : CODECS) {
+      byte[] compressed = codec.compress(raw, 0, raw.length);
+      try {
+        // The raw length mismatches the compressed bytes.
+        codec.decompress(compressed, 0, compressed.length, new byte[raw.length * 2], 0,
+          raw.length + 1);
+        Assert.fail();
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    for (Codec codec : CODECS) {
+      Assert.assertSame(codec, Codec.of(codec.getId()));
+      Assert.assertSame(codec, Codec.of(codec.getName().toUpperCase()));
+    }
+    try {
+      Codec.of("snappy");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
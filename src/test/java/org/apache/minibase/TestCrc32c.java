@@ -0,0 +1,41 @@
+package org.apache.minibase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+public class TestCrc32c {
+
+  @Test
+  public void testKnownValue() throws Exception {
+    byte[] data = Bytes.toBytes("123456789");
+    Assert.assertEquals(0xE3069283, Crc32c.checksum(data, 0, data.length));
+
+    Checksum checksum = new Crc32c();
+    checksum.update(data, 0, data.length);
+    Assert.assertEquals(0xE3069283L, checksum.getValue());
+    checksum.reset();
+    Assert.assertEquals(0L, checksum.getValue());
+  }
+
+  @Test
+  public void testSameAsJdk() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      byte[] data = new byte[random.nextInt(4096)];
+      random.nextBytes(data);
+      int off = data.length == 0 ? 0 : random.nextInt(data.length);
+      int len = data.length - off;
+
+      Checksum expected = Crc32c.create();
+      expected.update(data, off, len);
+      Checksum actual = new Crc32c();
+      for (int j = off; j < off + len; j++) {
+        actual.update(data[j]);
+      }
+      Assert.assertEquals(expected.getValue(), actual.getValue());
+    }
+  }
+}
@@ -1,15 +1,25 @@
 package org.apache.minibase;
 
-import org.apache.minibase.DiskFile.BlockMeta;
+import org.apache.minibase.DiskFile.BlockIndex;
+import org.apache.minibase.DiskFile.BlockIndexWriter;
 import org.apache.minibase.DiskFile.BlockReader;
 import org.apache.minibase.DiskFile.BlockWriter;
+import org.apache.minibase.DiskFile.BloomBlock;
 import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskFile.FileMeta;
+import org.apache.minibase.FormatOptions.IndexType;
+import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Iter;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 public class TestDiskFile {
@@ -35,25 +45,457 @@ public class TestDiskFile {
       bytes[i] = br.getKeyValues().get(i).getKey();
     }
     BloomFilter bloom =
-            new BloomFilter(DiskFile.BLOOM_FILTER_HASH_COUNT, DiskFile.BLOOM_FILTER_BITS_PER_KEY);
+            new BloomFilter(DiskFile.BLOOM_FILTER_BITS_PER_KEY);
     Assert.assertArrayEquals(bloom.generate(bytes), bw.getBloomFilter());
   }
 
   @Test
-  public void testBlockMeta() throws IOException {
-    KeyValue lastKV = KeyValue.createPut(Bytes.toBytes("abc"), Bytes.toBytes("abc"), 1L);
-    long offset = 1024, size = 1024;
-    byte[] bloomFilter = Bytes.toBytes("bloomFilter");
+  public void testBlockSeek() throws IOException {
+    BlockWriter bw = new BlockWriter();
+    List<KeyValue> kvs = new ArrayList<>();
+    long rawSize = 0;
+    for (int i = 0; i < 100; i++) {
+      byte[] key = Bytes.toBytes(String.format("row-%08d", i * 2));
+      // The sequence ids go up and down across the keys.
+      long seqId = (i % 3) * 1000000007L + i;
+      kvs.add(KeyValue.createPut(key, Bytes.toBytes("value-" + i), seqId + 1));
+      kvs.add(KeyValue.createDelete(key, seqId));
+    }
+    for (KeyValue kv : kvs) {
+      bw.append(kv);
+      rawSize += kv.getSerializeSize();
+    }
+    byte[] buffer = bw.serialize();
+    Assert.assertEquals(buffer.length, bw.size());
+    // The shared prefixes and the sequence id deltas shrink the block.
+    Assert.assertTrue(buffer.length < rawSize / 2);
+
+    BlockReader br = BlockReader.parseFrom(buffer, 0, buffer.length);
+    Assert.assertEquals(kvs.size(), br.getKeyValueCount());
+    Assert.assertEquals(kvs, br.getKeyValues());
+    for (KeyValue kv : kvs) {
+      Assert.assertTrue(br.seekTo(kv));
+      KeyValue found = br.next();
+      Assert.assertEquals(kv, found);
+      Assert.assertArrayEquals(kv.getValue(), found.getValue());
+    }
+    for (int i = 0; i < 100; i++) {
+      // Seek to the absent key between two existing keys.
+      byte[] key = Bytes.toBytes(String.format("row-%08d", i * 2 + 1));
+      if (i == 99) {
+        Assert.assertFalse(br.seekTo(KeyValue.createDelete(key, Long.MAX_VALUE)));
+      } else {
+        Assert.assertTrue(br.seekTo(KeyValue.createDelete(key, Long.MAX_VALUE)));
+        Assert.assertEquals(kvs.get(i * 2 + 2), br.next());
+        Assert.assertEquals(kvs.get(i * 2 + 3), br.next());
+      }
+    }
+
+    BlockReader keyOnly = BlockReader.parseFrom(buffer, 0, buffer.length, true);
+    Assert.assertTrue(keyOnly.seekTo(kvs.get(51)));
+    KeyValue kv = keyOnly.next();
+    Assert.assertEquals(kvs.get(51), kv);
+    Assert.assertEquals(0, kv.getValue().length);
+  }
+
+  @Test
+  public void testBlockHashIndex() throws IOException {
+    BlockWriter bw = new BlockWriter(new FormatOptions().setIndexType(IndexType.HASH));
+    List<KeyValue> kvs = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      // Several versions of a key may span two restart intervals.
+      for (int v = i % 5 + 1; v > 0; v--) {
+        kvs.add(KeyValue.createPut(Bytes.toBytes(i * 2), Bytes.toBytes(i + "-" + v), v));
+      }
+    }
+    for (KeyValue kv : kvs) {
+      bw.append(kv);
+    }
+    byte[] buffer = bw.serialize();
+    Assert.assertEquals(buffer.length, bw.size());
+
+    BlockReader br = BlockReader.parseFrom(buffer, 0, buffer.length);
+    Assert.assertTrue(br.hasHashIndex());
+    Assert.assertEquals(kvs, br.getKeyValues());
+    for (KeyValue kv : kvs) {
+      Assert.assertNotEquals(BlockWriter.BUCKET_EMPTY, br.lookupRestart(kv.getKey()));
+      Assert.assertTrue(br.seekTo(kv, true));
+      KeyValue found = br.next();
+      Assert.assertEquals(kv, found);
+      Assert.assertArrayEquals(kv.getValue(), found.getValue());
+    }
+    int absent = 0;
+    for (int i = 0; i < 500; i++) {
+      byte[] key = Bytes.toBytes(i * 2 + 1);
+      if (br.lookupRestart(key) == BlockWriter.BUCKET_EMPTY) {
+        absent++;
+      }
+      // The point seek never returns the absent key.
+      if (br.seekTo(KeyValue.createDelete(key, Long.MAX_VALUE), true)) {
+        Assert.assertTrue(Bytes.compare(br.next().getKey(), key) > 0);
+      }
+    }
+    Assert.assertTrue(absent > 250);
+
+    // The block without the hash index falls back to the binary search.
+    bw = new BlockWriter();
+    for (KeyValue kv : kvs) {
+      bw.append(kv);
+    }
+    buffer = bw.serialize();
+    br = BlockReader.parseFrom(buffer, 0, buffer.length);
+    Assert.assertFalse(br.hasHashIndex());
+    Assert.assertTrue(br.seekTo(kvs.get(100), true));
+    Assert.assertEquals(kvs.get(100), br.next());
+  }
+
+  @Test
+  public void testPointIterator() throws IOException {
+    String dbFile = "testPointIterator.db";
+    byte[] value = new byte[64 * 1024];
+    int rowsCount = 100;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile,
+          new FormatOptions().setIndexPartitionBlocks(4).setIndexType(IndexType.HASH))) {
+        for (int i = 0; i < rowsCount; i++) {
+          for (int v = 3; v > 0; v--) {
+            diskWriter.append(KeyValue.createPut(Bytes.toBytes(i * 2), value, v));
+          }
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        for (int i = 0; i < rowsCount; i++) {
+          for (int v = 3; v > 0; v--) {
+            try (SeekIter<KeyValue> it = df.pointIterator()) {
+              it.seekTo(KeyValue.createDelete(Bytes.toBytes(i * 2), v));
+              Assert.assertTrue(it.hasNext());
+              Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i * 2), value, v), it.next());
+            }
+          }
+          try (SeekIter<KeyValue> it = df.pointIterator()) {
+            it.seekTo(KeyValue.createDelete(Bytes.toBytes(i * 2 + 1), Long.MAX_VALUE));
+            if (it.hasNext()) {
+              Assert.assertTrue(Bytes.compare(it.next().getKey(), Bytes.toBytes(i * 2 + 1)) > 0);
+            }
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testInterruptedRead() throws IOException {
+    String dbFile = "testInterruptedRead.db";
+    int rowsCount = 1000;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < rowsCount; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Thread.currentThread().interrupt();
+        try (SeekIter<KeyValue> it = df.iterator()) {
+          while (it.hasNext()) {
+            it.next();
+          }
+          Assert.fail("The interrupted read should fail");
+        } catch (InterruptedIOException e) {
+          // expected
+        }
+        Assert.assertTrue(Thread.interrupted());
+
+        // The channel closed by the interrupt is reopened for the other readers.
+        int count = 0;
+        try (SeekIter<KeyValue> it = df.iterator()) {
+          while (it.hasNext()) {
+            Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(count), Bytes.toBytes(count),
+              1L), it.next());
+            count++;
+          }
+        }
+        Assert.assertEquals(rowsCount, count);
+      }
+    } finally {
+      Thread.interrupted();
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testBlockIndex() throws IOException {
+    BlockIndexWriter writer = new BlockIndexWriter();
+    String[] keys = { "abc", "abcd", "abd", "b", "bcdef" };
+    for (int i = 0; i < keys.length; i++) {
+      writer.append(Bytes.toBytes(keys[i]), i * 1024L, 1000 + i);
+    }
+    byte[] buffer = writer.serialize();
 
-    BlockMeta meta = new BlockMeta(lastKV, offset, size, bloomFilter);
-    byte[] buffer = meta.toBytes();
+    BlockIndex index = BlockIndex.parseFrom(buffer, 0, buffer.length);
+    Assert.assertEquals(keys.length, index.size());
+    for (int i = 0; i < keys.length; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(keys[i]), index.getKey(i));
+      Assert.assertEquals(i * 1024L, index.getBlockOffset(i));
+      Assert.assertEquals(1000 + i, index.getBlockSize(i));
+    }
+
+    Assert.assertEquals(0, index.seek(Bytes.EMPTY_BYTES));
+    Assert.assertEquals(0, index.seek(Bytes.toBytes("abc")));
+    Assert.assertEquals(1, index.seek(Bytes.toBytes("abc0")));
+    Assert.assertEquals(3, index.seek(Bytes.toBytes("abz")));
+    Assert.assertEquals(4, index.seek(Bytes.toBytes("bcdef")));
+    Assert.assertEquals(5, index.seek(Bytes.toBytes("c")));
+  }
 
-    BlockMeta meta2 = BlockMeta.parseFrom(buffer, 0);
+  @Test
+  public void testBloomBlock() throws IOException {
+    BloomBlock bloomBlock = new BloomBlock();
+    bloomBlock.append(Bytes.toBytes("bloomFilter"));
+    bloomBlock.append(Bytes.EMPTY_BYTES);
+    byte[] buffer = bloomBlock.serialize();
 
-    Assert.assertEquals(lastKV, meta2.getLastKV());
-    Assert.assertEquals(offset, meta2.getBlockOffset());
-    Assert.assertEquals(size, meta2.getBlockSize());
-    Assert.assertArrayEquals(bloomFilter, meta2.getBloomFilter());
+    byte[][] filters = BloomBlock.parseFrom(buffer, 0, buffer.length);
+    Assert.assertEquals(2, filters.length);
+    Assert.assertArrayEquals(Bytes.toBytes("bloomFilter"), filters[0]);
+    Assert.assertArrayEquals(Bytes.EMPTY_BYTES, filters[1]);
+  }
+
+  @Test
+  public void testSeekAcrossBlocks() throws IOException {
+    String dbFile = "testSeekAcrossBlocks.db";
+    // Large values make every block hold only a few keys, and every key has several versions so
+    // that some of them span two blocks. Every index partition indexes two blocks.
+    byte[] value = new byte[256 * 1024];
+    int rowsCount = 20, versions = 3;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile,
+          new FormatOptions().setIndexPartitionBlocks(2))) {
+        for (int i = 0; i < rowsCount; i++) {
+          for (int v = versions; v > 0; v--) {
+            diskWriter.append(KeyValue.createPut(Bytes.toBytes(i * 2), value, v));
+          }
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+
+      BlockCache blockCache = new BlockCache(1024 * 1024);
+      try (DiskFile df = new DiskFile(dbFile, null, null, blockCache)) {
+        df.open(dbFile);
+        Assert.assertTrue(df.getBlockIndexKeys().size() > 4);
+        Assert.assertTrue(blockCache.getBlockCount() > 2);
+        for (int i = 0; i < rowsCount; i++) {
+          Assert.assertTrue(df.mightContain(Bytes.toBytes(i * 2)));
+          for (int v = versions; v > 0; v--) {
+            try (SeekIter<KeyValue> it = df.iterator(true)) {
+              it.seekTo(KeyValue.createDelete(Bytes.toBytes(i * 2), v));
+              Assert.assertTrue(it.hasNext());
+              Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i * 2), Bytes.EMPTY_BYTES, v),
+                it.next());
+            }
+          }
+          // Seek to the absent key between two existing keys.
+          try (SeekIter<KeyValue> it = df.iterator(true)) {
+            it.seekTo(KeyValue.createDelete(Bytes.toBytes(i * 2 + 1), Long.MAX_VALUE));
+            if (i == rowsCount - 1) {
+              Assert.assertFalse(it.hasNext());
+            } else {
+              Assert.assertTrue(it.hasNext());
+              Assert.assertArrayEquals(Bytes.toBytes(i * 2 + 2), it.next().getKey());
+            }
+          }
+        }
+        Assert.assertFalse(df.mightContain(Bytes.toBytes(rowsCount * 2)));
+        Assert.assertTrue(blockCache.getHitCount() > 0);
+      }
+      // The cached blocks are dropped once the disk file is closed.
+      Assert.assertEquals(0, blockCache.getBlockCount());
+      Assert.assertEquals(0, blockCache.getSize());
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testFilteredIterator() throws IOException {
+    String dbFile = "testFilteredIterator.db";
+    int rowsCount = 5000;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile,
+          new FormatOptions().setBlockSize(4 * 1024))) {
+        for (int i = 0; i < rowsCount; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes("v" + i), 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+
+      // The whole blocks before 4000 are rejected, and so are the odd keys after it.
+      MiniBase.Filter filter = new MiniBase.Filter() {
+        @Override
+        public boolean filterKey(byte[] key) {
+          int i = Bytes.toInt(key);
+          return i < 4000 || i % 2 != 0;
+        }
+      };
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Assert.assertTrue(df.getBlockIndexKeys().size() > 10);
+        try (SeekIter<KeyValue> it = df.iterator(false, filter, true, 0)) {
+          for (int i = 4000; i < rowsCount; i += 2) {
+            Assert.assertTrue(it.hasNext());
+            Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes("v" + i), 1L),
+              it.next());
+          }
+          Assert.assertFalse(it.hasNext());
+        }
+        try (SeekIter<KeyValue> it = df.iterator(false, filter, true, 0)) {
+          it.seekTo(KeyValue.createDelete(Bytes.toBytes(4001), Long.MAX_VALUE));
+          Assert.assertTrue(it.hasNext());
+          Assert.assertArrayEquals(Bytes.toBytes(4002), it.next().getKey());
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testCompressedBlocks() throws IOException {
+    String dbFile = "testCompressedBlocks.db";
+    int rowsCount = 5000;
+    Codec[] codecs = new Codec[] { LZCodec.INSTANCE, DeflateCodec.INSTANCE };
+    try {
+      for (Codec codec : codecs) {
+        new File(dbFile).delete();
+        FileMeta meta;
+        try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile,
+            new FormatOptions().setIndexPartitionBlocks(4).setCodec(codec))) {
+          for (int i = 0; i < rowsCount; i++) {
+            diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), new byte[1024], i));
+          }
+          diskWriter.appendIndex();
+          diskWriter.appendTrailer();
+          meta = diskWriter.getFileMeta(dbFile);
+        }
+        // The zero values compress well.
+        Assert.assertTrue(meta.getEncodedSize() < meta.getRawSize() / 4);
+
+        // Read through no cache, the cache of the compressed blocks and the decompressed ones.
+        BlockCache[] caches = new BlockCache[] { null, new BlockCache(64 * 1024 * 1024, true),
+            new BlockCache(64 * 1024 * 1024, false) };
+        for (BlockCache blockCache : caches) {
+          try (DiskFile df = new DiskFile(dbFile, null, null, blockCache)) {
+            df.open(dbFile);
+            for (int pass = 0; pass < 2; pass++) {
+              int index = 0;
+              try (SeekIter<KeyValue> it = df.iterator()) {
+                while (it.hasNext()) {
+                  KeyValue kv = it.next();
+                  Assert.assertArrayEquals(Bytes.toBytes(index), kv.getKey());
+                  Assert.assertEquals(1024, kv.getValue().length);
+                  index++;
+                }
+              }
+              Assert.assertEquals(rowsCount, index);
+            }
+            try (SeekIter<KeyValue> it = df.iterator()) {
+              it.seekTo(KeyValue.createDelete(Bytes.toBytes(4321), Long.MAX_VALUE));
+              Assert.assertArrayEquals(Bytes.toBytes(4321), it.next().getKey());
+            }
+            if (blockCache != null) {
+              Assert.assertTrue(blockCache.getHitCount() > 0);
+            }
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testReadahead() throws IOException {
+    String dbFile = "testReadahead.db";
+    int rowsCount = 20000;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < rowsCount; i++) {
+          byte[] value = Arrays.copyOf(Bytes.toBytes(i), 1024);
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), value, i));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+
+      BlockCache[] caches = new BlockCache[] { null, new BlockCache(64 * 1024 * 1024) };
+      for (BlockCache blockCache : caches) {
+        try (DiskFile df = new DiskFile(dbFile, null, null, blockCache)) {
+          df.open(dbFile);
+          Assert.assertTrue(df.getBlockIndexKeys().size() > 8);
+          // The second pass reads ahead the blocks which are cached already.
+          for (int pass = 0; pass < 2; pass++) {
+            try (SeekIter<KeyValue> it = df.iterator(false, true, 3)) {
+              assertRows(it, 0, rowsCount);
+              Assert.assertFalse(it.hasNext());
+            }
+            try (SeekIter<KeyValue> it = df.sequentialIterator(true, 3)) {
+              assertRows(it, 0, rowsCount);
+              Assert.assertFalse(it.hasNext());
+            }
+          }
+          // The seek drops the blocks read ahead, and the scan reads ahead again after it.
+          try (SeekIter<KeyValue> it = df.iterator(false, true, 3)) {
+            assertRows(it, 0, 15000);
+            it.seekTo(KeyValue.createDelete(Bytes.toBytes(2000), Long.MAX_VALUE));
+            assertRows(it, 2000, rowsCount);
+            Assert.assertFalse(it.hasNext());
+            it.seekTo(KeyValue.createDelete(Bytes.toBytes(12345), Long.MAX_VALUE));
+            assertRows(it, 12345, 13000);
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Read the rows [from, to) from the iterator.
+   */
+  private static void assertRows(SeekIter<KeyValue> it, int from, int to) throws IOException {
+    for (int i = from; i < to; i++) {
+      Assert.assertTrue(it.hasNext());
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+      Assert.assertArrayEquals(Arrays.copyOf(Bytes.toBytes(i), 1024), kv.getValue());
+    }
   }
 
   private byte[] generateRandomBytes() {
@@ -88,6 +530,168 @@ public class TestDiskFile {
     }
   }
 
+  @Test
+  public void testUnsupportedVersion() throws IOException {
+    String dbFile = "testUnsupportedVersion.db";
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        diskWriter.append(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L));
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      long fileSize = new File(dbFile).length();
+      try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+        raf.seek(fileSize - 8 - 4);
+        raf.writeInt(DiskFile.DISK_FILE_VERSION - 1);
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Assert.fail("The disk file of an older version should fail to open");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().contains("Unsupported disk file version "
+            + (DiskFile.DISK_FILE_VERSION - 1) + ", expected " + DiskFile.DISK_FILE_VERSION));
+      }
+
+      // The disk files written before the version was added to the trailer.
+      try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+        raf.seek(fileSize - 8);
+        raf.writeLong(0xFAC881234221FFA9L);
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Assert.fail("The disk file of the legacy format should fail to open");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().contains("Unsupported disk file version 0, expected "
+            + DiskFile.DISK_FILE_VERSION));
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptedBlock() throws IOException {
+    String dbFile = "testCorruptedBlock.db";
+    int rowsCount = 1000;
+    byte[] value = new byte[100];
+    Arrays.fill(value, (byte) 0x5A);
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < rowsCount; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), value, 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      // Flip a byte in the middle of a value, so the block is still well-formed.
+      try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+        raf.seek(DiskFile.BLOCK_HEADER_SIZE + 4000);
+        byte[] buf = new byte[100];
+        raf.readFully(buf);
+        int pos = 0;
+        while (buf[pos] != 0x5A || buf[pos + 1] != 0x5A) {
+          pos++;
+        }
+        raf.seek(DiskFile.BLOCK_HEADER_SIZE + 4000 + pos + 1);
+        raf.write(0x5B);
+      }
+
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        try (SeekIter<KeyValue> it = df.iterator()) {
+          it.hasNext();
+          Assert.fail("The corrupted block should fail the iterator");
+        } catch (CorruptedBlockException e) {
+          Assert.assertTrue(e.getMessage().contains(dbFile));
+        }
+
+        // The corruption passes without the verification.
+        int index = 0;
+        int corrupted = 0;
+        try (SeekIter<KeyValue> it = df.iterator(false, false, 0)) {
+          while (it.hasNext()) {
+            KeyValue kv = it.next();
+            Assert.assertArrayEquals(Bytes.toBytes(index), kv.getKey());
+            if (!Arrays.equals(value, kv.getValue())) {
+              corrupted++;
+            }
+            index++;
+          }
+        }
+        Assert.assertEquals(rowsCount, index);
+        Assert.assertEquals(1, corrupted);
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptedCompressedBlock() throws IOException {
+    String dbFile = "testCorruptedCompressedBlock.db";
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile,
+          new FormatOptions().setCodec(LZCodec.INSTANCE))) {
+        for (int i = 0; i < 1000; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), new byte[100], 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+
+      // A block cached without the verification is verified once a verifying reader hits it.
+      BlockCache blockCache = new BlockCache(64 * 1024 * 1024);
+      try (DiskFile df = new DiskFile(dbFile, null, null, blockCache)) {
+        df.open(dbFile);
+        try (SeekIter<KeyValue> it = df.iterator(false, false, 0)) {
+          Assert.assertTrue(it.hasNext());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+          raf.seek(DiskFile.BLOCK_HEADER_SIZE + 10);
+          int b = raf.read();
+          raf.seek(DiskFile.BLOCK_HEADER_SIZE + 10);
+          raf.write(b ^ 0x01);
+        }
+        try (SeekIter<KeyValue> it = df.iterator(false, true, 0)) {
+          it.hasNext();
+          Assert.fail("The corrupted payload should fail the checksum");
+        } catch (CorruptedBlockException e) {
+          Assert.assertTrue(e.getMessage().contains("Checksum mismatched"));
+        }
+      }
+
+      // The header is checked even without the verification.
+      byte[][] headers = new byte[][] { { 7 }, { Codec.LZ_ID, -1, -1, -1, -1 },
+          { Codec.NONE_ID, 0, 0, 0, 1 } };
+      for (byte[] header : headers) {
+        try (RandomAccessFile raf = new RandomAccessFile(dbFile, "rw")) {
+          raf.seek(0);
+          raf.write(header);
+        }
+        try (DiskFile df = new DiskFile()) {
+          df.open(dbFile);
+          try (SeekIter<KeyValue> it = df.iterator(false, false, 0)) {
+            it.hasNext();
+            Assert.fail("The corrupted header should fail the iterator");
+          } catch (CorruptedBlockException e) {
+            Assert.assertTrue(e.getMessage().contains(dbFile));
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
   @Test
   public void testDiskFileIO() throws IOException {
     String dbFile = "testDiskFileIO.db";
@@ -124,4 +728,54 @@ public class TestDiskFile {
       }
     }
   }
+
+  @Test
+  public void testFileMeta() throws IOException {
+    String dbFile = "testFileMeta.db";
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 100; i < 200; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i));
+          if (i % 4 == 0) {
+            diskWriter.append(KeyValue.createDelete(Bytes.toBytes(i), i - 50));
+          }
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        FileMeta meta = df.readFileMeta();
+        Assert.assertEquals(dbFile, meta.getFileName());
+        Assert.assertEquals(new File(dbFile).length(), meta.getFileSize());
+        Assert.assertArrayEquals(Bytes.toBytes(100), meta.getMinKey());
+        Assert.assertArrayEquals(Bytes.toBytes(199), meta.getMaxKey());
+        Assert.assertEquals(50, meta.getMinSequenceId());
+        Assert.assertEquals(199, meta.getMaxSequenceId());
+        Assert.assertEquals(125, meta.getEntryCount());
+        Assert.assertEquals(25, meta.getTombstoneCount());
+        Assert.assertEquals(0.2, meta.getTombstoneRatio(), 1e-9);
+
+        for (int i = 100; i < 200; i++) {
+          Assert.assertTrue(df.mightContain(Bytes.toBytes(i)));
+        }
+        // Out of the key range.
+        Assert.assertFalse(df.mightContain(Bytes.toBytes(99)));
+        Assert.assertFalse(df.mightContain(Bytes.toBytes(200)));
+
+        FileMeta meta2 = FileMeta.parseFrom(meta.toBytes(), 0);
+        Assert.assertEquals(meta.getFileName(), meta2.getFileName());
+        Assert.assertEquals(meta.getEntryCount(), meta2.getEntryCount());
+        Assert.assertEquals(meta.getTombstoneCount(), meta2.getTombstoneCount());
+        Assert.assertEquals(meta.getRawSize(), meta2.getRawSize());
+        Assert.assertEquals(meta.getEncodedSize(), meta2.getEncodedSize());
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
 }
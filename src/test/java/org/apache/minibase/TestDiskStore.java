@@ -0,0 +1,688 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskStore.CompactIter;
+import org.apache.minibase.DiskStore.DefaultCompactor;
+import org.apache.minibase.DiskStore.DefaultFlusher;
+import org.apache.minibase.DiskFile.FileMeta;
+import org.apache.minibase.FormatOptions.IndexType;
+import org.apache.minibase.KeyValue.Op;
+import org.apache.minibase.MStore.SeekIter;
+import org.apache.minibase.MemStore.IteratorWrapper;
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class TestDiskStore {
+
+  private String dataDir;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/diskstore-" + System.nanoTime();
+    File f = new File(dataDir);
+    Assert.assertTrue(f.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private void flush(DiskStore diskStore, int start, int end, long sequenceId)
+      throws IOException {
+    flush(diskStore, start, end, sequenceId, Op.Put);
+  }
+
+  private void flush(DiskStore diskStore, int start, int end, long sequenceId, Op op)
+      throws IOException {
+    ConcurrentSkipListMap<KeyValue, KeyValue> map = new ConcurrentSkipListMap<>();
+    for (int i = start; i < end; i++) {
+      KeyValue kv = op == Op.Put
+          ? KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), sequenceId)
+          : KeyValue.createDelete(Bytes.toBytes(i), sequenceId);
+      map.put(kv, kv);
+    }
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(map));
+  }
+
+  @Test
+  public void testCompactWhileScanning() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    flush(diskStore, 0, 100, 1L);
+    flush(diskStore, 100, 200, 2L);
+    flush(diskStore, 200, 300, 3L);
+    List<DiskFile> inputs = new ArrayList<>(diskStore.getDiskFiles());
+    Assert.assertEquals(3, inputs.size());
+
+    Iter<KeyValue> it = diskStore.createIterator(false);
+    int count = 0;
+    for (; count < 50; count++) {
+      Assert.assertTrue(it.hasNext());
+      Assert.assertArrayEquals(Bytes.toBytes(count), it.next().getKey());
+    }
+
+    new DefaultCompactor(diskStore).compact();
+    Assert.assertEquals(1, diskStore.getDiskFiles().size());
+
+    // The scanner pins the old version, so the input files are still readable.
+    for (DiskFile df : inputs) {
+      Assert.assertTrue(new File(df.getFileName()).exists());
+    }
+    while (it.hasNext()) {
+      Assert.assertArrayEquals(Bytes.toBytes(count), it.next().getKey());
+      count++;
+    }
+    Assert.assertEquals(300, count);
+    it.close();
+
+    // The input files are archived once the scanner released them.
+    for (DiskFile df : inputs) {
+      Assert.assertFalse(new File(df.getFileName()).exists());
+    }
+
+    it = diskStore.createIterator(false);
+    count = 0;
+    while (it.hasNext()) {
+      Assert.assertArrayEquals(Bytes.toBytes(count), it.next().getKey());
+      count++;
+    }
+    Assert.assertEquals(300, count);
+    it.close();
+    diskStore.close();
+  }
+
+  @Test
+  public void testOpenWithManifest() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    flush(diskStore, 0, 100, 1L);
+    flush(diskStore, 100, 200, 2L);
+    new DefaultCompactor(diskStore).compact();
+    flush(diskStore, 200, 300, 3L);
+    List<String> fileNames = new ArrayList<>();
+    for (DiskFile df : diskStore.getDiskFiles()) {
+      fileNames.add(df.getFileName());
+    }
+    diskStore.close();
+
+    diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    Assert.assertEquals(2, diskStore.getDiskFiles().size());
+    Assert.assertEquals(3L, diskStore.getMaxSequenceId());
+    for (int i = 0; i < fileNames.size(); i++) {
+      DiskFile df = diskStore.getDiskFiles().get(i);
+      Assert.assertEquals(fileNames.get(i), df.getFileName());
+      // Opened lazily.
+      Assert.assertFalse(df.isOpened());
+    }
+    DiskFile.FileMeta meta = diskStore.getDiskFiles().get(0).getFileMeta();
+    Assert.assertArrayEquals(Bytes.toBytes(0), meta.getMinKey());
+    Assert.assertArrayEquals(Bytes.toBytes(199), meta.getMaxKey());
+    Assert.assertEquals(1L, meta.getMinSequenceId());
+    Assert.assertEquals(2L, meta.getMaxSequenceId());
+
+    // The file id won't be reused.
+    String nextFileName = diskStore.getNextDiskFileName();
+    for (String fileName : fileNames) {
+      Assert.assertTrue(nextFileName.compareTo(fileName) > 0);
+    }
+
+    int count = 0;
+    try (Iter<KeyValue> it = diskStore.createIterator(false)) {
+      while (it.hasNext()) {
+        Assert.assertArrayEquals(Bytes.toBytes(count), it.next().getKey());
+        count++;
+      }
+    }
+    Assert.assertEquals(300, count);
+    diskStore.close();
+  }
+
+  @Test
+  public void testManifestWithBrokenTail() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    flush(diskStore, 0, 100, 1L);
+    flush(diskStore, 100, 200, 2L);
+    diskStore.close();
+
+    // Append an incomplete record.
+    try (FileOutputStream out =
+             new FileOutputStream(new File(dataDir, Manifest.MANIFEST_FILE_NAME), true)) {
+      out.write(Bytes.toBytes(1024));
+      out.write(Bytes.toBytes(0));
+    }
+    Manifest.Edit edit = Manifest.replay(dataDir);
+    Assert.assertEquals(2, edit.getAdded().size());
+
+    diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    Assert.assertEquals(2, diskStore.getDiskFiles().size());
+    diskStore.close();
+  }
+
+  @Test
+  public void testTableCache() throws Exception {
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir).setMaxOpenFiles(2));
+    diskStore.open();
+    for (int i = 0; i < 4; i++) {
+      flush(diskStore, i * 100, (i + 1) * 100, i + 1);
+    }
+
+    for (int round = 0; round < 2; round++) {
+      Iter<KeyValue> it = diskStore.createIterator(false);
+      int count = 0;
+      while (it.hasNext()) {
+        Assert.assertArrayEquals(Bytes.toBytes(count), it.next().getKey());
+        count++;
+      }
+      Assert.assertEquals(400, count);
+      // All the disk files are pinned by the iterator.
+      Assert.assertEquals(4, diskStore.getTableCache().getOpenFileCount());
+      it.close();
+      Assert.assertEquals(2, diskStore.getTableCache().getOpenFileCount());
+    }
+
+    int opened = 0;
+    for (DiskFile df : diskStore.getDiskFiles()) {
+      opened += df.isOpened() ? 1 : 0;
+    }
+    Assert.assertEquals(2, opened);
+
+    // The concurrent pins never leave an opened disk file untracked by the cache.
+    List<DiskFile> diskFiles = diskStore.getDiskFiles();
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        try {
+          for (int i = 0; i < 2000; i++) {
+            DiskFile df = diskFiles.get(ThreadLocalRandom.current().nextInt(diskFiles.size()));
+            df.pin();
+            df.unpin();
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertTrue(errors.isEmpty());
+    opened = 0;
+    for (DiskFile df : diskFiles) {
+      opened += df.isOpened() ? 1 : 0;
+    }
+    Assert.assertEquals(2, opened);
+    Assert.assertEquals(2, diskStore.getTableCache().getOpenFileCount());
+    diskStore.close();
+  }
+
+  @Test
+  public void testPruneByKeyRange() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    for (int i = 0; i < 4; i++) {
+      flush(diskStore, i * 100, (i + 1) * 100, i + 1);
+    }
+    // The flushed disk files are opened on demand.
+    Assert.assertEquals(0, diskStore.getTableCache().getOpenFileCount());
+
+    try (Iter<KeyValue> it = diskStore.createIterator(Bytes.toBytes(120), Bytes.toBytes(180),
+        true)) {
+      Assert.assertTrue(it.hasNext());
+      Assert.assertEquals(1, diskStore.getTableCache().getOpenFileCount());
+    }
+    try (Iter<KeyValue> it = diskStore.createPointIterator(Bytes.toBytes(1000))) {
+      Assert.assertFalse(it.hasNext());
+      Assert.assertEquals(1, diskStore.getTableCache().getOpenFileCount());
+    }
+    diskStore.close();
+  }
+
+  @Test
+  public void testTombstoneCompaction() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    flush(diskStore, 0, 2000, 1L);
+    flush(diskStore, 0, 1500, 2L, Op.Delete);
+    flush(diskStore, 5000, 5100, 3L);
+
+    FileMeta deletes = diskStore.getDiskFiles().get(1).getFileMeta();
+    Assert.assertEquals(1500, deletes.getEntryCount());
+    Assert.assertEquals(1500, deletes.getTombstoneCount());
+    Assert.assertTrue(deletes.getRawSize() > 0);
+    // The keys are prefix encoded in the data blocks.
+    Assert.assertTrue(deletes.getEncodedSize() < deletes.getRawSize());
+
+    DefaultCompactor compactor = new DefaultCompactor(diskStore);
+    // The disk file of the deletes and the one it overlaps with.
+    Assert.assertEquals(2, compactor.pickTombstoneCandidates(diskStore.getDiskFiles()).size());
+    Assert.assertTrue(compactor.compactTombstones());
+
+    List<DiskFile> diskFiles = diskStore.getDiskFiles();
+    Assert.assertEquals(2, diskFiles.size());
+    long entries = 0, tombstones = 0;
+    for (DiskFile df : diskFiles) {
+      entries += df.getFileMeta().getEntryCount();
+      tombstones += df.getFileMeta().getTombstoneCount();
+    }
+    Assert.assertEquals(600, entries);
+    Assert.assertEquals(0, tombstones);
+    Assert.assertFalse(compactor.compactTombstones());
+
+    // The snapshot keeps the delete markers which are newer than it.
+    flush(diskStore, 2000, 4000, 4L, Op.Delete);
+    Snapshot.Tracker snapshots = new Snapshot.Tracker();
+    try (Snapshot snapshot = snapshots.register(3L)) {
+      Assert.assertFalse(new DefaultCompactor(diskStore, snapshots).compactTombstones());
+    }
+    diskStore.close();
+  }
+
+  private byte[] blobValue(int i, long sequenceId) {
+    byte[] value = new byte[2048];
+    System.arraycopy(Bytes.toBytes(i), 0, value, 0, 4);
+    value[value.length - 1] = (byte) sequenceId;
+    return value;
+  }
+
+  private void flushBlobs(DiskStore diskStore, int start, int end, long sequenceId)
+      throws IOException {
+    ConcurrentSkipListMap<KeyValue, KeyValue> map = new ConcurrentSkipListMap<>();
+    for (int i = start; i < end; i++) {
+      // The odd keys have small values which are kept inline.
+      byte[] value = i % 2 == 0 ? blobValue(i, sequenceId) : Bytes.toBytes(i);
+      KeyValue kv = KeyValue.createPut(Bytes.toBytes(i), value, sequenceId);
+      map.put(kv, kv);
+    }
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(map));
+  }
+
+  private void assertBlobValues(DiskStore diskStore, int count, long... sequenceIds)
+      throws IOException {
+    try (Iter<KeyValue> it = diskStore.createIterator(false)) {
+      int i = 0;
+      while (it.hasNext()) {
+        KeyValue kv = it.next();
+        // Only the newest version of each key is checked.
+        if (Bytes.toInt(kv.getKey()) != i) {
+          continue;
+        }
+        Assert.assertEquals(Op.Put, kv.getOp());
+        Assert.assertEquals(sequenceIds[i], kv.getSequenceId());
+        Assert.assertArrayEquals(i % 2 == 0 ? blobValue(i, sequenceIds[i]) : Bytes.toBytes(i),
+          kv.getValue());
+        i++;
+      }
+      Assert.assertEquals(count, i);
+    }
+  }
+
+  private void assertRows(DiskStore diskStore, int count) throws IOException {
+    try (Iter<KeyValue> it = diskStore.createIterator(false)) {
+      for (int i = 0; i < count; i++) {
+        Assert.assertTrue(it.hasNext());
+        KeyValue kv = it.next();
+        Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+        Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+      }
+      Assert.assertFalse(it.hasNext());
+    }
+    for (int i = 0; i < count; i += 7) {
+      try (SeekIter<KeyValue> it = diskStore.createPointIterator(Bytes.toBytes(i))) {
+        it.seekTo(KeyValue.createDelete(Bytes.toBytes(i), Long.MAX_VALUE));
+        Assert.assertTrue(it.hasNext());
+        Assert.assertArrayEquals(Bytes.toBytes(i), it.next().getValue());
+      }
+    }
+  }
+
+  private List<KeyValue> readAll(DiskStore diskStore) throws IOException {
+    List<KeyValue> kvs = new ArrayList<>();
+    try (Iter<KeyValue> it = diskStore.createIterator(false)) {
+      while (it.hasNext()) {
+        kvs.add(it.next());
+      }
+    }
+    return kvs;
+  }
+
+  @Test
+  public void testMerge() throws IOException {
+    Config conf = new Config().setDataDir(dataDir)
+        .setMergeOperator(MergeOperator.Counter.INSTANCE);
+    DiskStore diskStore = new DiskStore(conf);
+    diskStore.open();
+    byte[] key = Bytes.toBytes("counter");
+    ConcurrentSkipListMap<KeyValue, KeyValue> map = new ConcurrentSkipListMap<>();
+    for (KeyValue kv : new KeyValue[] { KeyValue.createPut(key, Bytes.toBytes(10L), 1L),
+        KeyValue.createMerge(key, Bytes.toBytes(1L), 2L),
+        KeyValue.createMerge(key, Bytes.toBytes(2L), 3L) }) {
+      map.put(kv, kv);
+    }
+    // The snapshot with read point 2 keeps the second version.
+    Snapshot.Tracker snapshots = new Snapshot.Tracker();
+    Snapshot snapshot = snapshots.register(2L);
+    new DefaultFlusher(diskStore, snapshots, () -> Long.MAX_VALUE)
+        .flush(new IteratorWrapper(map));
+    List<KeyValue> kvs = readAll(diskStore);
+    Assert.assertEquals(Arrays.asList(KeyValue.createMerge(key, Bytes.toBytes(2L), 3L),
+      KeyValue.createPut(key, Bytes.toBytes(11L), 2L)), kvs);
+    Assert.assertArrayEquals(Bytes.toBytes(11L), kvs.get(1).getValue());
+    snapshot.close();
+
+    // Only the operands are flushed, the base value is in the other disk file.
+    map.clear();
+    for (KeyValue kv : new KeyValue[] { KeyValue.createMerge(key, Bytes.toBytes(5L), 4L),
+        KeyValue.createMerge(key, Bytes.toBytes(6L), 5L) }) {
+      map.put(kv, kv);
+    }
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(map));
+    Assert.assertEquals(2, diskStore.getDiskFiles().size());
+    kvs = readAll(diskStore);
+    Assert.assertEquals(KeyValue.createMerge(key, Bytes.toBytes(11L), 5L), kvs.get(0));
+    Assert.assertArrayEquals(Bytes.toBytes(11L), kvs.get(0).getValue());
+
+    // The base value is outside of the compaction, so the operands are not applied to nothing.
+    List<DiskFile> files = diskStore.getDiskFiles();
+    CompactIter it = new CompactIter(diskStore.createCompactionIterator(files.subList(1, 2)),
+        new TreeSet<>(), true, MergeOperator.Counter.INSTANCE, Long.MAX_VALUE,
+        Collections.emptyList(), Collections.singletonList(files.get(0).getFileMeta()));
+    Assert.assertTrue(it.hasNext());
+    Assert.assertEquals(Op.Merge, it.next().getOp());
+    Assert.assertFalse(it.hasNext());
+    it.close();
+
+    new DefaultCompactor(diskStore, snapshots).compact();
+    kvs = readAll(diskStore);
+    Assert.assertEquals(Collections.singletonList(
+      KeyValue.createPut(key, Bytes.toBytes(24L), 5L)), kvs);
+    Assert.assertArrayEquals(Bytes.toBytes(24L), kvs.get(0).getValue());
+    diskStore.close();
+  }
+
+  private void flush(DiskStore diskStore, KeyValue... kvs) throws IOException {
+    ConcurrentSkipListMap<KeyValue, KeyValue> map = new ConcurrentSkipListMap<>();
+    for (KeyValue kv : kvs) {
+      map.put(kv, kv);
+    }
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(map));
+  }
+
+  @Test
+  public void testTombstoneCompactionClosure() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    byte[] x = Bytes.toBytes(9000);
+    flush(diskStore, KeyValue.createPut(x, x, 1L));
+    // Overlaps with the file of the point deletes, and with the put of x only by its delete.
+    flush(diskStore, KeyValue.createPut(Bytes.toBytes(500), Bytes.toBytes(500), 2L),
+      KeyValue.createDelete(x, 3L));
+    flush(diskStore, 0, 2000, 4L, Op.Delete);
+
+    DefaultCompactor compactor = new DefaultCompactor(diskStore);
+    // The file of the put of x overlaps the picked files transitively.
+    Assert.assertEquals(3, compactor.pickTombstoneCandidates(diskStore.getDiskFiles()).size());
+    Assert.assertTrue(compactor.compactTombstones());
+    for (KeyValue kv : readAll(diskStore)) {
+      Assert.assertNotEquals(Op.Put, Bytes.compare(kv.getKey(), x) == 0 ? kv.getOp() : null);
+    }
+
+    // The delete marker is kept while the put of x is outside of the compaction.
+    DiskStore other = new DiskStore(dataDir + "-other", 10);
+    Assert.assertTrue(new File(dataDir + "-other").mkdirs());
+    other.open();
+    flush(other, KeyValue.createPut(x, x, 1L));
+    flush(other, KeyValue.createPut(Bytes.toBytes(500), Bytes.toBytes(500), 2L),
+      KeyValue.createDelete(x, 3L));
+    List<DiskFile> files = other.getDiskFiles();
+    try (CompactIter it = new CompactIter(other.createCompactionIterator(files.subList(1, 2)),
+        new TreeSet<>(), true, null, Long.MAX_VALUE, Collections.emptyList(),
+        Collections.singletonList(files.get(0).getFileMeta()))) {
+      Assert.assertTrue(it.hasNext());
+      Assert.assertArrayEquals(Bytes.toBytes(500), it.next().getKey());
+      Assert.assertEquals(Op.Delete, it.next().getOp());
+      Assert.assertFalse(it.hasNext());
+    }
+    other.close();
+    diskStore.close();
+  }
+
+  @Test
+  public void testRangeTombstoneKeptForOtherFiles() throws IOException {
+    DiskStore diskStore = new DiskStore(dataDir, 10);
+    diskStore.open();
+    flush(diskStore, 100, 200, 1L);
+    flush(diskStore, 500, 600, 2L);
+    flushRangeTombstone(diskStore, 150, 550, 3L);
+    List<DiskFile> files = diskStore.getDiskFiles();
+    List<RangeTombstone> tombstones = files.get(2).getRangeTombstones();
+
+    // The put of 100..199 is outside of the compaction, so the tombstone still shadows it.
+    CompactIter it = new CompactIter(diskStore.createCompactionIterator(files.subList(1, 3)),
+        new TreeSet<>(), true, null, Long.MAX_VALUE, tombstones,
+        Collections.singletonList(files.get(0).getFileMeta()));
+    Assert.assertEquals(50, count(it));
+    Assert.assertEquals(1, it.getRangeTombstones().size());
+
+    it = new CompactIter(diskStore.createCompactionIterator(files), new TreeSet<>(), true, null,
+        Long.MAX_VALUE, tombstones, Collections.emptyList());
+    Assert.assertEquals(100, count(it));
+    Assert.assertTrue(it.getRangeTombstones().isEmpty());
+    diskStore.close();
+  }
+
+  private void flushRangeTombstone(DiskStore diskStore, int start, int stop, long sequenceId)
+      throws IOException {
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(new ConcurrentSkipListMap<>()),
+      Collections.singletonList(
+        new RangeTombstone(Bytes.toBytes(start), Bytes.toBytes(stop), sequenceId)));
+  }
+
+  private long count(Iter<KeyValue> it) throws IOException {
+    long count = 0;
+    try {
+      while (it.hasNext()) {
+        it.next();
+        count++;
+      }
+    } finally {
+      it.close();
+    }
+    return count;
+  }
+
+  @Test
+  public void testRangeTombstoneCompaction() throws IOException {
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir).setBlockSize(256));
+    diskStore.open();
+    flush(diskStore, 0, 2000, 1L);
+    flush(diskStore, 3000, 3100, 2L);
+    flushRangeTombstone(diskStore, 0, 1000, 3L);
+
+    DiskFile data = diskStore.getDiskFiles().get(0);
+    DiskFile tombstones = diskStore.getDiskFiles().get(2);
+    FileMeta meta = tombstones.getFileMeta();
+    Assert.assertEquals(0, meta.getEntryCount());
+    Assert.assertEquals(1, meta.getRangeTombstoneCount());
+    Assert.assertArrayEquals(Bytes.toBytes(0), meta.getMinKey());
+    Assert.assertArrayEquals(Bytes.toBytes(1000), meta.getMaxKey());
+    Assert.assertEquals(3L, diskStore.getMaxSequenceId());
+    Assert.assertEquals(1, tombstones.getRangeTombstones().size());
+    // The disk file without range tombstones isn't opened for them.
+    Assert.assertTrue(data.getRangeTombstones().isEmpty());
+    Assert.assertEquals(1, diskStore.getTableCache().getOpenFileCount());
+
+    List<RangeTombstone> found = new ArrayList<>();
+    count(diskStore.createIterator(Bytes.toBytes(500), Bytes.toBytes(600), false, found));
+    Assert.assertEquals(1, found.size());
+    found.clear();
+    count(diskStore.createPointIterator(Bytes.toBytes(1500), found));
+    Assert.assertTrue(found.isEmpty());
+
+    // The covered blocks are skipped, unless a snapshot still sees the key values.
+    RangeTombstone.Fragments fragments =
+        new RangeTombstone.Fragments(tombstones.getRangeTombstones());
+    Assert.assertEquals(1000, count(diskStore.createCompactionIterator(
+      Collections.singletonList(data), fragments, new TreeSet<>())));
+    Assert.assertEquals(2000, count(diskStore.createCompactionIterator(
+      Collections.singletonList(data), fragments, new TreeSet<>(Arrays.asList(2L)))));
+
+    DefaultCompactor compactor = new DefaultCompactor(diskStore);
+    // The range tombstone and the disk file it overlaps with.
+    Assert.assertEquals(2, compactor.pickTombstoneCandidates(diskStore.getDiskFiles()).size());
+    Assert.assertTrue(compactor.compactTombstones());
+    Assert.assertEquals(2, diskStore.getDiskFiles().size());
+    long entries = 0, rangeTombstones = 0;
+    for (DiskFile df : diskStore.getDiskFiles()) {
+      entries += df.getFileMeta().getEntryCount();
+      rangeTombstones += df.getFileMeta().getRangeTombstoneCount();
+    }
+    Assert.assertEquals(1100, entries);
+    Assert.assertEquals(0, rangeTombstones);
+    Assert.assertFalse(compactor.compactTombstones());
+    Assert.assertArrayEquals(Bytes.toBytes(1000), readAll(diskStore).get(0).getKey());
+    diskStore.close();
+
+    // A disk file covered by the range tombstone entirely is never opened.
+    diskStore = new DiskStore(new Config().setDataDir(dataDir).setBlockSize(256));
+    diskStore.open();
+    Assert.assertEquals(0, diskStore.getTableCache().getOpenFileCount());
+    fragments = new RangeTombstone.Fragments(Collections.singletonList(
+      new RangeTombstone(Bytes.toBytes(2500), Bytes.toBytes(4000), 4L)));
+    Assert.assertEquals(1000, count(diskStore.createCompactionIterator(
+      diskStore.getDiskFiles(), fragments, new TreeSet<>())));
+    Assert.assertEquals(1, diskStore.getTableCache().getOpenFileCount());
+
+    // The range tombstone invisible to no snapshot is dropped with the key values it covers.
+    flushRangeTombstone(diskStore, 1500, 3050, 4L);
+    new DefaultCompactor(diskStore).compact();
+    Assert.assertEquals(550, readAll(diskStore).size());
+    // The range tombstone newer than the snapshot is kept, so are the key values it covers.
+    flushRangeTombstone(diskStore, 1200, 1300, 5L);
+    Snapshot.Tracker snapshots = new Snapshot.Tracker();
+    try (Snapshot snapshot = snapshots.register(4L)) {
+      new DefaultCompactor(diskStore, snapshots).compact();
+    }
+    Assert.assertEquals(550, readAll(diskStore).size());
+    Assert.assertEquals(1, diskStore.getDiskFiles().size());
+    Assert.assertEquals(1, diskStore.getDiskFiles().get(0).getRangeTombstones().size());
+    diskStore.close();
+  }
+
+  @Test
+  public void testMixedFormatOptions() throws IOException {
+    Config conf = new Config().setDataDir(dataDir).setBlockSize(256).setRestartInterval(4);
+    DiskStore diskStore = new DiskStore(conf);
+    diskStore.open();
+    flush(diskStore, 0, 1000, 1L);
+    diskStore.close();
+
+    // Reopen the store with the other options, the old file is still read with its own options.
+    conf = new Config().setDataDir(dataDir).setBlockSize(1024).setRestartInterval(32)
+        .setIndexType(IndexType.HASH).setCompression("lz");
+    diskStore = new DiskStore(conf);
+    diskStore.open();
+    flush(diskStore, 1000, 2000, 2L);
+    List<DiskFile> diskFiles = diskStore.getDiskFiles();
+    Assert.assertEquals(2, diskFiles.size());
+    FormatOptions first = diskFiles.get(0).getFormatOptions();
+    FormatOptions second = diskFiles.get(1).getFormatOptions();
+    Assert.assertEquals(256, first.getBlockSize());
+    Assert.assertEquals(4, first.getRestartInterval());
+    Assert.assertEquals(IndexType.BINARY_SEARCH, first.getIndexType());
+    Assert.assertEquals(1024, second.getBlockSize());
+    Assert.assertEquals(32, second.getRestartInterval());
+    Assert.assertEquals(IndexType.HASH, second.getIndexType());
+    Assert.assertEquals("lz", second.getCodec().getName());
+
+    assertRows(diskStore, 2000);
+
+    // The compaction rewrites both files with the current options.
+    new DefaultCompactor(diskStore).compact();
+    Assert.assertEquals(1, diskStore.getDiskFiles().size());
+    Assert.assertEquals(second.toString(),
+      diskStore.getDiskFiles().get(0).getFormatOptions().toString());
+    assertRows(diskStore, 2000);
+    diskStore.close();
+  }
+
+  @Test
+  public void testBlobFiles() throws IOException {
+    Config conf = new Config().setDataDir(dataDir).setBlobValueThreshold(1024)
+        .setPreallocateDiskFiles(true);
+    DiskStore diskStore = new DiskStore(conf);
+    diskStore.open();
+    flushBlobs(diskStore, 0, 100, 1L);
+    Assert.assertEquals(1, diskStore.getBlobFiles().size());
+    BlobFile first = diskStore.getBlobFiles().get(0);
+    Assert.assertEquals(50 * 2048, first.getBlobMeta().getTotalBytes());
+    // Only the references to the large values are in the disk file.
+    Assert.assertTrue(diskStore.getDiskFiles().get(0).getFileMeta().getRawSize() < 50 * 2048);
+
+    // The key-only scan never reads the blob files.
+    try (Iter<KeyValue> it = diskStore.createIterator(true)) {
+      int count = 0;
+      while (it.hasNext()) {
+        KeyValue kv = it.next();
+        Assert.assertEquals(Op.Put, kv.getOp());
+        Assert.assertEquals(0, kv.getValue().length);
+        count++;
+      }
+      Assert.assertEquals(100, count);
+    }
+    Assert.assertFalse(first.isOpened());
+
+    long[] sequenceIds = new long[100];
+    Arrays.fill(sequenceIds, 1L);
+    assertBlobValues(diskStore, 100, sequenceIds);
+    Assert.assertTrue(first.isOpened());
+
+    // Overwrite the first half of the keys, so half of the first blob file is dead after the
+    // compaction drops the old versions.
+    flushBlobs(diskStore, 0, 50, 2L);
+    Arrays.fill(sequenceIds, 0, 50, 2L);
+    DefaultCompactor compactor = new DefaultCompactor(diskStore);
+    compactor.compact();
+    Assert.assertEquals(1, diskStore.getDiskFiles().size());
+    Assert.assertEquals(2, diskStore.getBlobFiles().size());
+    Assert.assertEquals(25 * 2048, first.getBlobMeta().getGarbageBytes());
+    assertBlobValues(diskStore, 100, sequenceIds);
+
+    // The live values of the first blob file are relocated, then it's removed.
+    Assert.assertTrue(compactor.collectBlobGarbage());
+    Assert.assertFalse(diskStore.getBlobFiles().contains(first));
+    Assert.assertFalse(new File(first.getFileName()).exists());
+    Assert.assertEquals(2, diskStore.getBlobFiles().size());
+    assertBlobValues(diskStore, 100, sequenceIds);
+    Assert.assertFalse(compactor.collectBlobGarbage());
+    diskStore.close();
+
+    // The blob files and their garbage are recovered from the manifest.
+    diskStore = new DiskStore(conf);
+    diskStore.open();
+    Assert.assertEquals(2, diskStore.getBlobFiles().size());
+    for (BlobFile bf : diskStore.getBlobFiles()) {
+      Assert.assertEquals(0, bf.getBlobMeta().getGarbageBytes());
+    }
+    assertBlobValues(diskStore, 100, sequenceIds);
+    diskStore.close();
+  }
+}
@@ -0,0 +1,53 @@
+package org.apache.minibase;
+
+import org.apache.minibase.FormatOptions.IndexType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestFormatOptions {
+
+  @Test
+  public void testSerialize() throws IOException {
+    FormatOptions options = new FormatOptions().setBlockSize(4096).setRestartInterval(8)
+        .setBloomBitsPerKey(12).setIndexType(IndexType.HASH).setCodec(LZCodec.INSTANCE)
+        .setIndexPartitionBlocks(16);
+    byte[] buf = new byte[FormatOptions.SERIALIZE_SIZE + 3];
+    System.arraycopy(options.toBytes(), 0, buf, 3, FormatOptions.SERIALIZE_SIZE);
+
+    FormatOptions parsed = FormatOptions.parseFrom(buf, 3);
+    Assert.assertEquals(4096, parsed.getBlockSize());
+    Assert.assertEquals(8, parsed.getRestartInterval());
+    Assert.assertEquals(12, parsed.getBloomBitsPerKey());
+    Assert.assertEquals(IndexType.HASH, parsed.getIndexType());
+    Assert.assertSame(LZCodec.INSTANCE, parsed.getCodec());
+    Assert.assertEquals(16, parsed.getIndexPartitionBlocks());
+  }
+
+  @Test
+  public void testInvalidOptions() {
+    try {
+      new FormatOptions().setBlockSize(DiskFile.BLOCK_SIZE_UP_LIMIT + 1);
+      Assert.fail("Block size above the limit should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new FormatOptions().setRestartInterval(0);
+      Assert.fail("Restart interval 0 should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    byte[] buf = new FormatOptions().toBytes();
+    // Corrupt the index type.
+    buf[12] = 9;
+    try {
+      FormatOptions.parseFrom(buf, 0);
+      Assert.fail("Unknown index type should be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
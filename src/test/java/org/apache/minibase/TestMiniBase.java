@@ -1,5 +1,6 @@
 package org.apache.minibase;
 
+import org.apache.minibase.ChangeLog.Change;
 import org.apache.minibase.KeyValue.Op;
 import org.apache.minibase.MStore.ScanIter;
 import org.apache.minibase.MStore.SeekIter;
@@ -9,10 +10,24 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class TestMiniBase {
 
@@ -20,7 +35,7 @@ public class TestMiniBase {
 
   @Before
   public void setUp() {
-    dataDir = "target/minihbase-" + System.currentTimeMillis();
+    dataDir = "target/minihbase-" + System.nanoTime();
     File f = new File(dataDir);
     Assert.assertTrue(f.mkdirs());
   }
@@ -129,6 +144,620 @@ public class TestMiniBase {
     Assert.assertNull(db.get(B));
   }
 
+  @Test
+  public void testParallelScan() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024).setFlushMaxRetries(1)
+            .setMaxDiskFiles(10);
+    final MStore db = MStore.create(conf);
+    db.open();
+
+    final long totalKVSize = 500L;
+    WriterThread writer = new WriterThread(db, 0, totalKVSize);
+    writer.start();
+    writer.join();
+
+    Spliterator<KeyValue> split = db.spliterator();
+    Assert.assertNotNull(split.trySplit());
+
+    List<KeyValue> kvs = StreamSupport.stream(db.spliterator(), true).collect(Collectors.toList());
+    Assert.assertEquals(totalKVSize, kvs.size());
+    for (int i = 0; i < kvs.size(); i++) {
+      Assert.assertArrayEquals(Bytes.toBytes((long) i), kvs.get(i).getKey());
+      Assert.assertArrayEquals(Bytes.toBytes((long) i), kvs.get(i).getValue());
+    }
+
+    // The sub range [100, 300)
+    long count = StreamSupport
+            .stream(db.spliterator(Bytes.toBytes(100L), Bytes.toBytes(300L)), true).count();
+    Assert.assertEquals(200L, count);
+    db.close();
+  }
+
+  @Test
+  public void testStreamUnpinsVersion() throws Exception {
+    // Nothing is flushed, so the current version stays the same.
+    MStore db = MStore.create(new Config().setDataDir(dataDir));
+    db.open();
+    for (long i = 0; i < 100; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    DiskStore.Version version =
+        db.getColumnFamily(MStore.DEFAULT_COLUMN_FAMILY).getDiskStore().acquireVersion();
+    int refCount = version.getRefCount();
+    for (boolean parallel : new boolean[] { false, true }) {
+      // The short-circuiting operations leave the scanners open until the stream is closed.
+      try (Stream<KeyValue> stream = db.stream(parallel)) {
+        Assert.assertTrue(stream.anyMatch(kv -> Bytes.toLong(kv.getKey()) == 50L));
+      }
+      Assert.assertEquals(refCount, version.getRefCount());
+      try (Stream<KeyValue> stream = db.stream(parallel)) {
+        Assert.assertEquals(100L, stream.count());
+      }
+      Assert.assertEquals(refCount, version.getRefCount());
+    }
+    version.release();
+    db.close();
+  }
+
+  @Test
+  public void testScanOptions() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024).setFlushMaxRetries(1)
+            .setMaxDiskFiles(10);
+    final MiniBase db = MStore.create(conf).open();
+
+    final long totalKVSize = 200L;
+    WriterThread writer = new WriterThread(db, 0, totalKVSize);
+    writer.start();
+    writer.join();
+
+    // Keys only.
+    Iter<KeyValue> it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES,
+            new ScanOptions().setKeysOnly(true));
+    long count = 0;
+    while (it.hasNext()) {
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(count), kv.getKey());
+      Assert.assertEquals(0, kv.getValue().length);
+      count++;
+    }
+    Assert.assertEquals(totalKVSize, count);
+
+    // Filter the odd keys and limit.
+    MiniBase.Filter filter = new MiniBase.Filter() {
+      @Override
+      public boolean filterKey(byte[] key) {
+        return (key[key.length - 1] & 1) != 0;
+      }
+    };
+    it = db.scan(Bytes.toBytes(10L), Bytes.EMPTY_BYTES,
+            new ScanOptions().setFilter(filter).setLimit(5));
+    count = 0;
+    while (it.hasNext()) {
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(10L + 2 * count), kv.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes(10L + 2 * count), kv.getValue());
+      count++;
+    }
+    Assert.assertEquals(5, count);
+    db.close();
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(2 * 1024 * 1024);
+    MiniBase db = MStore.create(conf).open();
+
+    byte[] A = Bytes.toBytes("A");
+    byte[] B = Bytes.toBytes("B");
+    byte[] C = Bytes.toBytes("C");
+
+    db.put(A, A);
+    db.put(B, B);
+    try (Snapshot snapshot = db.getSnapshot()) {
+      db.put(A, B);
+      db.delete(B);
+      db.put(C, C);
+
+      Assert.assertArrayEquals(A, db.get(A, snapshot).getValue());
+      Assert.assertArrayEquals(B, db.get(B, snapshot).getValue());
+      Assert.assertNull(db.get(C, snapshot));
+
+      Assert.assertArrayEquals(B, db.get(A).getValue());
+      Assert.assertNull(db.get(B));
+      Assert.assertArrayEquals(C, db.get(C).getValue());
+
+      Iter<KeyValue> it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES,
+              new ScanOptions().setSnapshot(snapshot));
+      Assert.assertTrue(it.hasNext());
+      Assert.assertEquals(KeyValue.createPut(A, A, 1L), it.next());
+      Assert.assertTrue(it.hasNext());
+      Assert.assertEquals(KeyValue.createPut(B, B, 2L), it.next());
+      Assert.assertFalse(it.hasNext());
+    }
+    db.close();
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    Config conf = new Config().setDataDir(dataDir)
+        .setMergeOperator(new MergeOperator.Append(Bytes.toBytes(",")));
+    MiniBase db = MStore.create(conf).open();
+
+    byte[] A = Bytes.toBytes("A");
+    byte[] B = Bytes.toBytes("B");
+    byte[] C = Bytes.toBytes("C");
+
+    db.put(A, Bytes.toBytes("a"));
+    db.merge(A, Bytes.toBytes("b"));
+    db.merge(B, Bytes.toBytes("x"));
+    try (Snapshot snapshot = db.getSnapshot()) {
+      db.merge(A, Bytes.toBytes("c"));
+      db.delete(B);
+      db.merge(B, Bytes.toBytes("y"));
+      db.merge(C, Bytes.toBytes("z"));
+
+      Assert.assertArrayEquals(Bytes.toBytes("a,b,c"), db.get(A).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes("y"), db.get(B).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes("z"), db.get(C).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes("a,b"), db.get(A, snapshot).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes("x"), db.get(B, snapshot).getValue());
+      Assert.assertNull(db.get(C, snapshot));
+
+      // The operands of a key are all consumed before the next key.
+      Iter<KeyValue> it = db.scan(B, Bytes.EMPTY_BYTES);
+      Assert.assertTrue(it.hasNext());
+      Assert.assertEquals(KeyValue.createPut(B, Bytes.toBytes("y"), 6L), it.next());
+      Assert.assertTrue(it.hasNext());
+      Assert.assertEquals(KeyValue.createPut(C, Bytes.toBytes("z"), 7L), it.next());
+      Assert.assertFalse(it.hasNext());
+
+      it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES, new ScanOptions().setKeysOnly(true));
+      int count = 0;
+      while (it.hasNext()) {
+        Assert.assertEquals(0, it.next().getValue().length);
+        count++;
+      }
+      Assert.assertEquals(3, count);
+    }
+    db.close();
+
+    // Merging without an operator is rejected.
+    db = MStore.create(new Config().setDataDir(dataDir)).open();
+    try {
+      db.merge(A, A);
+      Assert.fail("Merge without an operator should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    db.close();
+  }
+
+  private static long count(Iter<KeyValue> it) throws IOException {
+    long count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testDeleteRange() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024).setFlushMaxRetries(1)
+            .setMaxDiskFiles(10);
+    MiniBase db = MStore.create(conf).open();
+
+    WriterThread writer = new WriterThread(db, 0, 200);
+    writer.start();
+    writer.join();
+
+    try (Snapshot snapshot = db.getSnapshot()) {
+      db.deleteRange(Bytes.toBytes(50L), Bytes.toBytes(150L));
+      db.put(Bytes.toBytes(100L), Bytes.toBytes(100L));
+
+      // The range tombstone is in the memstore, then flushed with the following writes.
+      for (int round = 0; round < 2; round++) {
+        Assert.assertArrayEquals(Bytes.toBytes(49L), db.get(Bytes.toBytes(49L)).getValue());
+        Assert.assertNull(db.get(Bytes.toBytes(50L)));
+        Assert.assertNull(db.get(Bytes.toBytes(149L)));
+        Assert.assertArrayEquals(Bytes.toBytes(100L), db.get(Bytes.toBytes(100L)).getValue());
+        Assert.assertArrayEquals(Bytes.toBytes(150L), db.get(Bytes.toBytes(150L)).getValue());
+        Assert.assertArrayEquals(Bytes.toBytes(60L),
+          db.get(Bytes.toBytes(60L), snapshot).getValue());
+
+        Assert.assertEquals(101L, count(db.scan(Bytes.EMPTY_BYTES, Bytes.toBytes(200L))));
+        Assert.assertEquals(1L, count(db.scan(Bytes.toBytes(60L), Bytes.toBytes(140L))));
+        Assert.assertEquals(200L, count(db.scan(Bytes.EMPTY_BYTES, Bytes.toBytes(200L),
+          new ScanOptions().setSnapshot(snapshot))));
+
+        writer = new WriterThread(db, 200, 400);
+        writer.start();
+        writer.join();
+      }
+    }
+
+    try {
+      db.deleteRange(Bytes.toBytes(2L), Bytes.toBytes(1L));
+      Assert.fail("Range with start key greater than stop key should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    db.close();
+  }
+
+  private static int countDataFiles(File dir) {
+    String[] names = dir.list((d, name) -> name.matches("data\\.[0-9]+"));
+    return names == null ? 0 : names.length;
+  }
+
+  @Test
+  public void testColumnFamilies() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024 * 1024)
+            .setGlobalMemstoreSize(4096);
+    MStore db = MStore.create(conf);
+    db.open();
+    MStore.ColumnFamily counters = db.openColumnFamily("counters",
+        new Config().setMaxMemstoreSize(1024 * 1024).setBlockSize(256)
+            .setMergeOperator(MergeOperator.Counter.INSTANCE));
+    Assert.assertSame(counters, db.getColumnFamily("counters"));
+    Assert.assertEquals(MStore.DEFAULT_COLUMN_FAMILY,
+        db.getColumnFamily(MStore.DEFAULT_COLUMN_FAMILY).getName());
+
+    byte[] A = Bytes.toBytes("A");
+    db.put(A, A);
+    counters.put(A, Bytes.toBytes(1L));
+    try (Snapshot snapshot = counters.getSnapshot()) {
+      counters.merge(A, Bytes.toBytes(2L));
+      db.delete(A);
+      Assert.assertNull(db.get(A));
+      Assert.assertArrayEquals(Bytes.toBytes(3L), counters.get(A).getValue());
+      // The snapshot is consistent across the column families.
+      Assert.assertArrayEquals(A, db.get(A, snapshot).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes(1L), counters.get(A, snapshot).getValue());
+    }
+    // The default column family has no merge operator.
+    try {
+      db.merge(A, A);
+      Assert.fail("Merge without an operator should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    // The memstore of the counters is the largest one, and flushed for the global budget.
+    for (long i = 0; i < 200; i++) {
+      counters.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    File dir = new File(dataDir, "counters");
+    for (int i = 0; i < 100 && countDataFiles(dir) == 0; i++) {
+      Thread.sleep(100);
+    }
+    Assert.assertTrue(countDataFiles(dir) > 0);
+    Assert.assertEquals(0, countDataFiles(new File(dataDir)));
+    Assert.assertArrayEquals(Bytes.toBytes(99L), counters.get(Bytes.toBytes(99L)).getValue());
+
+    for (String name : new String[] { "counters", MStore.DEFAULT_COLUMN_FAMILY, "a/b" }) {
+      try {
+        db.openColumnFamily(name, new Config());
+        Assert.fail("Column family " + name + " should be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    counters.close();
+    Assert.assertNull(db.getColumnFamily("counters"));
+    db.close();
+  }
+
+  private static Path buildDiskFile(File dir, String name, long start, long end)
+      throws IOException {
+    File f = new File(dir, name);
+    try (DiskFileBuilder builder = new DiskFileBuilder(f.getPath(),
+        new FormatOptions().setBlockSize(256))) {
+      for (long i = start; i < end; i++) {
+        builder.put(Bytes.toBytes(i), Bytes.toBytes(-i));
+      }
+      DiskFile.FileMeta meta = builder.finish();
+      Assert.assertEquals(end - start, meta.getEntryCount());
+    }
+    return f.toPath();
+  }
+
+  @Test
+  public void testIngest() throws Exception {
+    File external = new File(dataDir + "-external");
+    Assert.assertTrue(external.mkdirs());
+    Path first = buildDiskFile(external, "first", 0, 100);
+    Path second = buildDiskFile(external, "second", 100, 300);
+    Path overlapped = buildDiskFile(external, "overlapped", 250, 260);
+
+    try (DiskFileBuilder builder = new DiskFileBuilder(new File(external, "bad").getPath())) {
+      builder.put(Bytes.toBytes(2L), Bytes.toBytes(2L));
+      try {
+        builder.put(Bytes.toBytes(2L), Bytes.toBytes(2L));
+        Assert.fail("Keys out of order should be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    Assert.assertFalse(new File(external, "bad").exists());
+
+    Config conf = new Config().setDataDir(dataDir);
+    MStore db = MStore.create(conf);
+    db.open();
+    db.put(Bytes.toBytes(50L), Bytes.toBytes(50L));
+    db.put(Bytes.toBytes(500L), Bytes.toBytes(500L));
+    try {
+      db.ingest(Arrays.asList(second, overlapped));
+      Assert.fail("Overlapped disk files should be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+
+    try (Snapshot snapshot = db.getSnapshot()) {
+      db.ingest(Arrays.asList(second, first));
+      // The ingested key values shadow the older writes.
+      Assert.assertArrayEquals(Bytes.toBytes(-50L), db.get(Bytes.toBytes(50L)).getValue());
+      Assert.assertArrayEquals(Bytes.toBytes(50L),
+        db.get(Bytes.toBytes(50L), snapshot).getValue());
+      Assert.assertNull(db.get(Bytes.toBytes(150L), snapshot));
+      Assert.assertEquals(301L, count(db.scan()));
+    }
+    db.put(Bytes.toBytes(150L), Bytes.toBytes(150L));
+    Assert.assertArrayEquals(Bytes.toBytes(150L), db.get(Bytes.toBytes(150L)).getValue());
+    db.close();
+
+    // The ingested disk files are recorded in the manifest with their sequence id.
+    db = MStore.create(conf);
+    db.open();
+    Assert.assertArrayEquals(Bytes.toBytes(-299L), db.get(Bytes.toBytes(299L)).getValue());
+    db.put(Bytes.toBytes(299L), Bytes.toBytes(299L));
+    Assert.assertArrayEquals(Bytes.toBytes(299L), db.get(Bytes.toBytes(299L)).getValue());
+    db.close();
+  }
+
+  @Test
+  public void testBulkImport() throws Exception {
+    List<Long> keys = new ArrayList<>();
+    for (long i = 0; i < 2000; i++) {
+      keys.add(i);
+    }
+    Collections.shuffle(keys, new Random(7));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (long k : keys) {
+      BulkImporter.writeRecord(out, Bytes.toBytes(k), Bytes.toBytes(k));
+    }
+    // The later records of the same key win.
+    for (long k = 0; k < 100; k++) {
+      BulkImporter.writeRecord(out, Bytes.toBytes(k), Bytes.toBytes(-k));
+    }
+    out.close();
+
+    File tmp1 = new File(dataDir + "-tmp1"), tmp2 = new File(dataDir + "-tmp2");
+    Assert.assertTrue(tmp1.mkdirs());
+    Assert.assertTrue(tmp2.mkdirs());
+    BulkImporter importer = new BulkImporter().setThreads(4).setRunSize(16 * 1024)
+        .setFileSize(4 * 1024).setTmpDirs(Arrays.asList(tmp1.getPath(), tmp2.getPath()));
+
+    Config conf = new Config().setDataDir(dataDir);
+    MStore db = MStore.create(conf);
+    db.open();
+    db.put(Bytes.toBytes(5000L), Bytes.toBytes(5000L));
+    long imported = importer.importTo(new ByteArrayInputStream(bytes.toByteArray()),
+      db.getColumnFamily(MStore.DEFAULT_COLUMN_FAMILY));
+    Assert.assertEquals(2000L, imported);
+    Assert.assertArrayEquals(Bytes.toBytes(-50L), db.get(Bytes.toBytes(50L)).getValue());
+    Assert.assertArrayEquals(Bytes.toBytes(1500L), db.get(Bytes.toBytes(1500L)).getValue());
+    Assert.assertEquals(2001L, count(db.scan()));
+    Assert.assertTrue(countDataFiles(new File(dataDir)) > 1);
+    // The runs and the merged disk files are removed once installed.
+    Assert.assertEquals(0, tmp1.list().length);
+    Assert.assertEquals(0, tmp2.list().length);
+
+    // A truncated length prefix or an invalid length fails the import, rather than being taken
+    // as the end of the input.
+    byte[] valid = bytes.toByteArray();
+    byte[] truncated = Arrays.copyOf(valid, valid.length + 2);
+    byte[] negative = Arrays.copyOf(valid, valid.length + 4);
+    Arrays.fill(negative, valid.length, negative.length, (byte) 0xFF);
+    for (byte[] input : Arrays.asList(truncated, negative)) {
+      try {
+        importer.importTo(new ByteArrayInputStream(input),
+          db.getColumnFamily(MStore.DEFAULT_COLUMN_FAMILY));
+        Assert.fail("The malformed input should fail the import");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    Assert.assertEquals(2001L, count(db.scan()));
+    Assert.assertEquals(0, tmp1.list().length);
+    Assert.assertEquals(0, tmp2.list().length);
+    db.close();
+  }
+
+  @Test
+  public void testCheckpoint() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024).setFlushMaxRetries(1)
+            .setMaxDiskFiles(10);
+    MStore db = MStore.create(conf);
+    db.open();
+    MiniBase cf = db.openColumnFamily("cf1", new Config());
+    WriterThread writer = new WriterThread(db, 0, 400);
+    writer.start();
+    writer.join();
+    db.deleteRange(Bytes.toBytes(10L), Bytes.toBytes(20L));
+    cf.put(Bytes.toBytes(1L), Bytes.toBytes(1L));
+
+    String checkpointDir = dataDir + "-checkpoint";
+    db.checkpoint(checkpointDir);
+    try {
+      db.checkpoint(checkpointDir);
+      Assert.fail("Non-empty checkpoint directory should be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertTrue(countDataFiles(new File(checkpointDir)) > 0);
+
+    // The writes after the checkpoint are not in the copy.
+    db.put(Bytes.toBytes(5L), Bytes.toBytes(-5L));
+    db.put(Bytes.toBytes(1000L), Bytes.toBytes(1000L));
+    db.deleteRange(Bytes.toBytes(100L), Bytes.toBytes(200L));
+    cf.delete(Bytes.toBytes(1L));
+    Assert.assertEquals(291L, count(db.scan()));
+    db.close();
+
+    MStore copy = MStore.create(new Config().setDataDir(checkpointDir));
+    copy.open();
+    MiniBase copyCf = copy.openColumnFamily("cf1", new Config());
+    Assert.assertEquals(390L, count(copy.scan()));
+    Assert.assertArrayEquals(Bytes.toBytes(5L), copy.get(Bytes.toBytes(5L)).getValue());
+    Assert.assertNull(copy.get(Bytes.toBytes(15L)));
+    Assert.assertArrayEquals(Bytes.toBytes(150L), copy.get(Bytes.toBytes(150L)).getValue());
+    Assert.assertNull(copy.get(Bytes.toBytes(1000L)));
+    Assert.assertArrayEquals(Bytes.toBytes(1L), copyCf.get(Bytes.toBytes(1L)).getValue());
+    // The copy is writable, without touching the store.
+    copy.put(Bytes.toBytes(2000L), Bytes.toBytes(2000L));
+    copy.close();
+
+    db = MStore.create(conf);
+    db.open();
+    Assert.assertNull(db.get(Bytes.toBytes(2000L)));
+    db.close();
+  }
+
+  @Test
+  public void testSubscribe() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024).setFlushMaxRetries(1)
+            .setChangeLogSize(16);
+    MStore db = MStore.create(conf);
+    db.open();
+    for (long i = 0; i < 10; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    db.delete(Bytes.toBytes(3L));
+    db.deleteRange(Bytes.toBytes(5L), Bytes.toBytes(7L));
+
+    try (MStore.Subscription sub = db.subscribe(0)) {
+      List<Change> changes = sub.poll(100, 0, TimeUnit.MILLISECONDS);
+      Assert.assertEquals(12, changes.size());
+      for (int i = 0; i < 10; i++) {
+        Assert.assertEquals(i + 1, changes.get(i).getSequenceId());
+        Assert.assertEquals(Op.Put, changes.get(i).getKeyValue().getOp());
+        Assert.assertArrayEquals(Bytes.toBytes((long) i), changes.get(i).getKeyValue().getKey());
+        Assert.assertEquals(MStore.DEFAULT_COLUMN_FAMILY, changes.get(i).getColumnFamily());
+      }
+      Assert.assertEquals(Op.Delete, changes.get(10).getKeyValue().getOp());
+      Assert.assertArrayEquals(Bytes.toBytes(5L), changes.get(11).getRangeTombstone().getStart());
+      Assert.assertEquals(12L, sub.getSequenceId());
+
+      // The changes are pulled in batches, and the poll waits for the next write.
+      MiniBase cf = db.openColumnFamily("cf1", new Config());
+      for (long i = 10; i < 15; i++) {
+        cf.put(Bytes.toBytes(i), Bytes.toBytes(i));
+      }
+      Assert.assertEquals(2, sub.poll(2, 0, TimeUnit.MILLISECONDS).size());
+      changes = sub.poll(100, 0, TimeUnit.MILLISECONDS);
+      Assert.assertEquals(3, changes.size());
+      Assert.assertEquals("cf1", changes.get(0).getColumnFamily());
+      Assert.assertTrue(sub.poll(100, 10, TimeUnit.MILLISECONDS).isEmpty());
+      Thread writer = new Thread(() -> {
+        try {
+          Thread.sleep(100);
+          db.put(Bytes.toBytes(15L), Bytes.toBytes(15L));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      writer.start();
+      changes = sub.poll(100, 10, TimeUnit.SECONDS);
+      writer.join();
+      Assert.assertEquals(1, changes.size());
+      Assert.assertArrayEquals(Bytes.toBytes(15L), changes.get(0).getKeyValue().getKey());
+
+      // Falling behind the change log, the changes are read from the disk stores.
+      WriterThread writers = new WriterThread(db, 100, 300);
+      writers.start();
+      writers.join();
+      File external = new File(dataDir + "-external");
+      Assert.assertTrue(external.mkdirs());
+      db.ingest(Collections.singletonList(buildDiskFile(external, "ingested", 1000, 1010)));
+      db.put(Bytes.toBytes(2000L), Bytes.toBytes(2000L));
+
+      // The small batches resume in the middle of the key values sharing a sequence id.
+      List<Change> all = new ArrayList<>();
+      while (true) {
+        changes = sub.poll(7, 0, TimeUnit.MILLISECONDS);
+        if (changes.isEmpty()) {
+          break;
+        }
+        all.addAll(changes);
+      }
+      Assert.assertEquals(211, all.size());
+      for (int i = 0; i < 200; i++) {
+        Assert.assertArrayEquals(Bytes.toBytes(100L + i), all.get(i).getKeyValue().getKey());
+        Assert.assertTrue(i == 0
+            || all.get(i).getSequenceId() > all.get(i - 1).getSequenceId());
+      }
+      // The key values of the ingested disk file share a sequence id.
+      Assert.assertEquals(all.get(200).getSequenceId(), all.get(209).getSequenceId());
+      Assert.assertArrayEquals(Bytes.toBytes(-1009L), all.get(209).getKeyValue().getValue());
+      Assert.assertArrayEquals(Bytes.toBytes(2000L), all.get(210).getKeyValue().getKey());
+    }
+
+    // Subscribe from a sequence id, without the change log.
+    db.close();
+    MStore reopened = MStore.create(new Config().setDataDir(dataDir));
+    reopened.open();
+    try (MStore.Subscription sub = reopened.subscribe(5)) {
+      List<Change> changes = sub.poll(100, 0, TimeUnit.MILLISECONDS);
+      Assert.assertArrayEquals(Bytes.toBytes(4L), changes.get(0).getKeyValue().getKey());
+      Assert.assertEquals(5L, changes.get(0).getSequenceId());
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void testSubscriptionExpiry() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setSubscriptionRetention(50);
+    MStore db = MStore.create(conf);
+    db.open();
+    db.put(Bytes.toBytes(1L), Bytes.toBytes(1L));
+
+    // An idle subscription expires and can't be polled any more.
+    MStore.Subscription idle = db.subscribe(0);
+    Assert.assertEquals(1, idle.poll(100, 0, TimeUnit.MILLISECONDS).size());
+    Thread.sleep(100);
+    db.expireSubscriptions();
+    Assert.assertTrue(idle.isExpired());
+    try {
+      idle.poll(100, 0, TimeUnit.MILLISECONDS);
+      Assert.fail("The expired subscription should not be polled");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    idle.close();
+
+    // A subscription waiting in a poll never expires, and closing it ends the wait at once.
+    MStore.Subscription waiting = db.subscribe(2);
+    AtomicReference<List<Change>> polled = new AtomicReference<>();
+    Thread poller = new Thread(() -> {
+      try {
+        polled.set(waiting.poll(100, 1, TimeUnit.MINUTES));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    poller.start();
+    Thread.sleep(100);
+    db.expireSubscriptions();
+    Assert.assertFalse(waiting.isExpired());
+    waiting.close();
+    poller.join(10000);
+    Assert.assertFalse(poller.isAlive());
+    Assert.assertTrue(polled.get().isEmpty());
+    db.close();
+  }
+
   static class MockSeekIter implements SeekIter<KeyValue> {
 
     private int curIdx = 0;
@@ -1,6 +1,7 @@
 package org.apache.minibase;
 
 import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskStore.CompactIter;
 import org.apache.minibase.DiskStore.MultiIter;
 import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Iter;
@@ -12,6 +13,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.TreeSet;
 
 public class TestMultiIter {
 
@@ -121,6 +123,99 @@ public class TestMultiIter {
     Assert.assertEquals(count, 4);
   }
 
+  @Test
+  public void testCompactIter() throws IOException {
+    byte[] A = Bytes.toBytes("A");
+    byte[] B = Bytes.toBytes("B");
+    byte[] C = Bytes.toBytes("C");
+    List<KeyValue> list = new ArrayList<>();
+    list.add(KeyValue.createPut(A, A, 10));
+    list.add(KeyValue.createPut(A, A, 8));
+    list.add(KeyValue.createPut(A, A, 5));
+    list.add(KeyValue.createPut(A, A, 3));
+    list.add(KeyValue.createDelete(B, 9));
+    list.add(KeyValue.createPut(B, B, 4));
+    list.add(KeyValue.createDelete(C, 4));
+    list.add(KeyValue.createPut(C, C, 2));
+
+    // No snapshots, keep the newest version only.
+    List<KeyValue> result = new ArrayList<>();
+    Iter<KeyValue> it = new CompactIter(new TestMiniBase.MockSeekIter(list), new TreeSet<>(),
+            false);
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    Assert.assertEquals(Arrays.asList(list.get(0), list.get(4), list.get(6)), result);
+
+    // Snapshot with read point 5 can see A@5, B@4 and C@4.
+    result.clear();
+    it = new CompactIter(new TestMiniBase.MockSeekIter(list), new TreeSet<>(Arrays.asList(5L)),
+            true);
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    Assert.assertEquals(Arrays.asList(list.get(0), list.get(2), list.get(4), list.get(5)), result);
+  }
+
+  @Test
+  public void testCompactIterMerge() throws IOException {
+    byte[] A = Bytes.toBytes("A");
+    byte[] B = Bytes.toBytes("B");
+    byte[] C = Bytes.toBytes("C");
+    List<KeyValue> list = new ArrayList<>();
+    list.add(KeyValue.createMerge(A, Bytes.toBytes(1L), 10));
+    list.add(KeyValue.createMerge(A, Bytes.toBytes(2L), 8));
+    list.add(KeyValue.createMerge(A, Bytes.toBytes(3L), 6));
+    list.add(KeyValue.createPut(A, Bytes.toBytes(100L), 4));
+    list.add(KeyValue.createPut(A, Bytes.toBytes(200L), 3));
+    list.add(KeyValue.createMerge(B, Bytes.toBytes(1L), 9));
+    list.add(KeyValue.createMerge(B, Bytes.toBytes(2L), 7));
+    list.add(KeyValue.createMerge(C, Bytes.toBytes(1L), 5));
+    list.add(KeyValue.createDelete(C, 2));
+    MergeOperator counter = MergeOperator.Counter.INSTANCE;
+
+    // No snapshots, the operands of A and C are applied to their put and delete. B may have older
+    // versions in other files, so its operands are only combined.
+    List<KeyValue> result = new ArrayList<>();
+    Iter<KeyValue> it = new CompactIter(new TestMiniBase.MockSeekIter(list), new TreeSet<>(),
+        false, counter, Long.MAX_VALUE);
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    Assert.assertEquals(Arrays.asList(KeyValue.createPut(A, Bytes.toBytes(106L), 10),
+      KeyValue.createMerge(B, Bytes.toBytes(3L), 9), KeyValue.createPut(C, Bytes.toBytes(1L), 5)),
+      result);
+    Assert.assertArrayEquals(Bytes.toBytes(106L), result.get(0).getValue());
+    Assert.assertArrayEquals(Bytes.toBytes(3L), result.get(1).getValue());
+
+    // The snapshot with read point 7 sees A=103 and B=2, the newer operands of A are combined. No
+    // other file has the older versions of B, so its operands are applied to nothing.
+    result.clear();
+    it = new CompactIter(new TestMiniBase.MockSeekIter(list), new TreeSet<>(Arrays.asList(7L)),
+        true, counter, Long.MAX_VALUE);
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    Assert.assertEquals(Arrays.asList(list.get(0), KeyValue.createPut(A, Bytes.toBytes(0L), 6),
+      list.get(5), KeyValue.createPut(B, Bytes.toBytes(0L), 7),
+      KeyValue.createPut(C, Bytes.toBytes(1L), 5)), result);
+    Assert.assertArrayEquals(Bytes.toBytes(3L), result.get(0).getValue());
+    Assert.assertArrayEquals(Bytes.toBytes(103L), result.get(1).getValue());
+    Assert.assertArrayEquals(Bytes.toBytes(2L), result.get(3).getValue());
+
+    // The versions newer than the stable read point 7 are kept as they are.
+    result.clear();
+    it = new CompactIter(new TestMiniBase.MockSeekIter(list), new TreeSet<>(), false, counter,
+        7);
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    Assert.assertEquals(Arrays.asList(list.get(0), list.get(1),
+      KeyValue.createPut(A, Bytes.toBytes(0L), 6), list.get(5), list.get(6),
+      KeyValue.createPut(C, Bytes.toBytes(1L), 5)), result);
+    Assert.assertArrayEquals(Bytes.toBytes(103L), result.get(2).getValue());
+  }
+
   private void testDiskFileMergeSort(String[] inputs, String output, int rowCount)
       throws IOException {
     try {
@@ -0,0 +1,73 @@
+package org.apache.minibase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestRangeTombstone {
+
+  private static RangeTombstone tombstone(int start, int stop, long sequenceId) {
+    return new RangeTombstone(Bytes.toBytes(start), Bytes.toBytes(stop), sequenceId);
+  }
+
+  @Test
+  public void testBlock() throws IOException {
+    List<RangeTombstone> tombstones = Arrays.asList(tombstone(1, 5, 10L), tombstone(3, 9, 7L));
+    byte[] block = RangeTombstone.toBlock(tombstones);
+    byte[] buf = new byte[block.length + 2];
+    System.arraycopy(block, 0, buf, 2, block.length);
+
+    List<RangeTombstone> parsed = RangeTombstone.parseBlock(buf, 2, block.length);
+    Assert.assertEquals(2, parsed.size());
+    Assert.assertArrayEquals(Bytes.toBytes(3), parsed.get(1).getStart());
+    Assert.assertArrayEquals(Bytes.toBytes(9), parsed.get(1).getStop());
+    Assert.assertEquals(7L, parsed.get(1).getSequenceId());
+
+    block[5] ^= 1;
+    try {
+      RangeTombstone.parseBlock(block, 0, block.length);
+      Assert.fail("Corrupted block should be rejected");
+    } catch (CorruptedBlockException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFragments() {
+    RangeTombstone.Fragments fragments = new RangeTombstone.Fragments(Arrays.asList(
+      tombstone(10, 30, 5L), tombstone(20, 40, 8L), tombstone(25, 35, 3L),
+      tombstone(50, 60, 8L), tombstone(60, 70, 8L)));
+    Assert.assertFalse(fragments.isEmpty());
+    Assert.assertEquals(-1L, fragments.getSequenceId(Bytes.toBytes(9)));
+    Assert.assertEquals(5L, fragments.getSequenceId(Bytes.toBytes(10)));
+    Assert.assertEquals(5L, fragments.getSequenceId(Bytes.toBytes(19)));
+    // The newest tombstone wins where they overlap.
+    Assert.assertEquals(8L, fragments.getSequenceId(Bytes.toBytes(20)));
+    Assert.assertEquals(8L, fragments.getSequenceId(Bytes.toBytes(33)));
+    Assert.assertEquals(-1L, fragments.getSequenceId(Bytes.toBytes(40)));
+    Assert.assertEquals(8L, fragments.getSequenceId(Bytes.toBytes(69)));
+    Assert.assertEquals(-1L, fragments.getSequenceId(Bytes.toBytes(70)));
+
+    Assert.assertTrue(fragments.covers(KeyValue.createPut(Bytes.toBytes(15), Bytes.EMPTY_BYTES,
+      4L)));
+    Assert.assertFalse(fragments.covers(KeyValue.createPut(Bytes.toBytes(15), Bytes.EMPTY_BYTES,
+      5L)));
+
+    // The adjacent fragments are skipped together while they're droppable.
+    Assert.assertArrayEquals(Bytes.toBytes(40), fragments.skipUntil(Bytes.toBytes(12), s -> true));
+    Assert.assertArrayEquals(Bytes.toBytes(20),
+      fragments.skipUntil(Bytes.toBytes(12), s -> s < 6L));
+    Assert.assertNull(fragments.skipUntil(Bytes.toBytes(22), s -> s < 6L));
+    Assert.assertArrayEquals(Bytes.toBytes(70), fragments.skipUntil(Bytes.toBytes(55), s -> true));
+    Assert.assertNull(fragments.skipUntil(Bytes.toBytes(45), s -> true));
+    Assert.assertTrue(new RangeTombstone.Fragments(Arrays.asList()).isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRange() {
+    tombstone(5, 5, 1L);
+  }
+}
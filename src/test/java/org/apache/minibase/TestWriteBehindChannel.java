@@ -0,0 +1,59 @@
+package org.apache.minibase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class TestWriteBehindChannel {
+
+  @Test
+  public void testWrite() throws IOException {
+    String fname = "testWriteBehind.dat";
+    // More buffers than a channel holds, so the writer has to wait for the free buffers.
+    byte[] data = new byte[WriteBehindChannel.BUFFER_SIZE * 10 + 123];
+    new Random(42).nextBytes(data);
+    try {
+      try (WriteBehindChannel out = new WriteBehindChannel(fname)) {
+        int off = 0;
+        for (int len = 1; off < data.length; len = len * 3 % 100003 + 1) {
+          len = Math.min(len, data.length - off);
+          out.write(data, off, len);
+          off += len;
+        }
+        Assert.assertEquals(data.length, out.position());
+      }
+      Assert.assertArrayEquals(data, Files.readAllBytes(new File(fname).toPath()));
+
+      // The file is truncated when it's created again.
+      try (WriteBehindChannel out = new WriteBehindChannel(fname)) {
+        out.write(Bytes.toBytes("minibase"));
+      }
+      Assert.assertArrayEquals(Bytes.toBytes("minibase"),
+        Files.readAllBytes(new File(fname).toPath()));
+    } finally {
+      new File(fname).delete();
+    }
+  }
+
+  @Test
+  public void testPreallocate() throws IOException {
+    String fname = "testPreallocate.dat";
+    byte[] data = new byte[WriteBehindChannel.BUFFER_SIZE + 1];
+    new Random(42).nextBytes(data);
+    try {
+      try (WriteBehindChannel out = new WriteBehindChannel(fname)) {
+        out.preallocate(8 * WriteBehindChannel.BUFFER_SIZE);
+        Assert.assertEquals(8 * WriteBehindChannel.BUFFER_SIZE, new File(fname).length());
+        out.write(data);
+      }
+      // The unused preallocated space is truncated.
+      Assert.assertArrayEquals(data, Files.readAllBytes(new File(fname).toPath()));
+    } finally {
+      new File(fname).delete();
+    }
+  }
+}